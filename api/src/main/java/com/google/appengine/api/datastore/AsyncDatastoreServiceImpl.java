@@ -387,7 +387,10 @@ class AsyncDatastoreServiceImpl extends BaseAsyncDatastoreServiceImpl {
           private void addEntitiesToResultMap(GetResponse response) {
             for (GetResponse.Entity entityResult : response.getEntityList()) {
               if (entityResult.hasEntity()) {
-                Entity responseEntity = EntityTranslator.createFromPb(entityResult.getEntity());
+                Entity responseEntity =
+                    datastoreServiceConfig.isLazyEntityDecodingEnabled()
+                        ? EntityTranslator.createFromPbLazily(entityResult.getEntity())
+                        : EntityTranslator.createFromPb(entityResult.getEntity());
                 Key responseKey = responseEntity.getKey();
 
                 // Hack for Remote API which rewrites App Ids on Keys.
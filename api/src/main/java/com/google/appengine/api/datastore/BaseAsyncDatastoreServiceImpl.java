@@ -218,8 +218,16 @@ abstract class BaseAsyncDatastoreServiceImpl
     // Don't fetch anything from datastore that was provided by the preGet hooks.
     keyList.removeAll(resultMap.keySet());
 
+    // Don't fetch anything that this request has already read.
+    RequestEntityCache cache = getRequestEntityCache();
+    long cacheGeneration = cache == null ? 0 : cache.lookup(txn, keyList, resultMap);
+
     // Send the RPC(s).
-    Future<Map<Key, Entity>> result = doBatchGet(txn, Sets.newLinkedHashSet(keyList), resultMap);
+    Set<Key> keysToGet = Sets.newLinkedHashSet(keyList);
+    Future<Map<Key, Entity>> result = batchGet(txn, keysToGet, resultMap);
+    if (cache != null) {
+      result = cache.fillOnCompletion(txn, keysToGet, cacheGeneration, result);
+    }
 
     // Invoke the user post-get callbacks.
     return new PostLoadFuture(result, datastoreServiceConfig.getDatastoreCallbacks(), this, txn);
@@ -271,8 +279,16 @@ abstract class BaseAsyncDatastoreServiceImpl
     PutContext prePutContext = new PutContext(this, txn, entityList);
     datastoreServiceConfig.getDatastoreCallbacks().executePrePutCallbacks(prePutContext);
 
+    RequestEntityCache cache = getRequestEntityCacheForWrite();
+    if (cache != null) {
+      cache.invalidateEntities(txn, entityList);
+    }
+
     // Do the datastore put RPC on the remaining entities.
-    Future<List<Key>> result = doBatchPut(txn, ImmutableList.copyOf(entities));
+    Future<List<Key>> result = batchPut(txn, ImmutableList.copyOf(entities));
+    if (cache != null && datastoreServiceConfig.isRequestEntityCacheEnabled()) {
+      result = cache.putOnCompletion(txn, entityList, result);
+    }
 
     if (txn == null) {
       // We're not in a txn so make sure we execute post-put callbacks when
@@ -328,9 +344,13 @@ abstract class BaseAsyncDatastoreServiceImpl
     List<Key> allKeys = keys instanceof List ? (List<Key>) keys : ImmutableList.copyOf(keys);
     DeleteContext preDeleteContext = new DeleteContext(this, txn, allKeys);
     datastoreServiceConfig.getDatastoreCallbacks().executePreDeleteCallbacks(preDeleteContext);
+    RequestEntityCache cache = getRequestEntityCacheForWrite();
+    if (cache != null) {
+      cache.invalidate(txn, allKeys);
+    }
     // NOTE: We are reusing the user's list here, we can do this because
     // we do not hold on to this list after this function returns.
-    Future<Void> result = doBatchDelete(txn, allKeys);
+    Future<Void> result = batchDelete(txn, allKeys);
 
     if (txn == null) {
       // We're not in a txn so make sure we execute post delete callbacks when
@@ -349,6 +369,62 @@ abstract class BaseAsyncDatastoreServiceImpl
     return result;
   }
 
+  private Future<Map<Key, Entity>> batchGet(
+      @Nullable Transaction txn, Set<Key> keysToGet, Map<Key, Entity> resultMap) {
+    OperationCoalescer coalescer = getOperationCoalescer(txn);
+    // Any other rpc sends the buffered operations first, see OperationCoalescer.flushCurrent().
+    if (coalescer != null && keysToGet.size() == 1) {
+      return coalescer.get(this, keysToGet.iterator().next(), resultMap);
+    }
+    return doBatchGet(txn, keysToGet, resultMap);
+  }
+
+  private Future<List<Key>> batchPut(@Nullable Transaction txn, List<Entity> entities) {
+    OperationCoalescer coalescer = getOperationCoalescer(txn);
+    if (coalescer != null && entities.size() == 1) {
+      return coalescer.put(this, entities.get(0));
+    }
+    return doBatchPut(txn, entities);
+  }
+
+  private Future<Void> batchDelete(@Nullable Transaction txn, Collection<Key> keys) {
+    OperationCoalescer coalescer = getOperationCoalescer(txn);
+    if (coalescer != null && keys.size() == 1) {
+      return coalescer.delete(this, keys.iterator().next());
+    }
+    return doBatchDelete(txn, keys);
+  }
+
+  /**
+   * Returns the coalescer that buffers single-key operations of the current request, or {@code
+   * null} if coalescing is disabled, there is no current request or {@code txn} is not null.
+   */
+  private @Nullable OperationCoalescer getOperationCoalescer(@Nullable Transaction txn) {
+    return txn == null && datastoreServiceConfig.isSingleKeyOperationCoalescingEnabled()
+        ? OperationCoalescer.getCurrent()
+        : null;
+  }
+
+  /**
+   * Returns the entity cache of the current request, or {@code null} if it is disabled or there is
+   * no current request.
+   */
+  private @Nullable RequestEntityCache getRequestEntityCache() {
+    return datastoreServiceConfig.isRequestEntityCacheEnabled()
+        ? RequestEntityCache.getCurrent()
+        : null;
+  }
+
+  /**
+   * Returns the entity cache that a write must invalidate. Another service used by the same request
+   * may have enabled the cache even if this one has not, so an existing cache is always returned.
+   */
+  private @Nullable RequestEntityCache getRequestEntityCacheForWrite() {
+    return datastoreServiceConfig.isRequestEntityCacheEnabled()
+        ? RequestEntityCache.getCurrent()
+        : RequestEntityCache.getExisting();
+  }
+
   @Override
   public Collection<Transaction> getActiveTransactions() {
     return defaultTxnProvider.getAll();
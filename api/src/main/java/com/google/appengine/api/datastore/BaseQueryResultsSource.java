@@ -164,6 +164,11 @@ abstract class BaseQueryResultsSource<InitialResultT, NextRequestT, NextResultT>
     return (nextQueryPrototype == null || queryResultFuture != null);
   }
 
+  @Override
+  public boolean isNextResultReady() {
+    return queryResultFuture != null && queryResultFuture.isDone();
+  }
+
   @Override
   public int getNumSkipped() {
     return skippedResults;
@@ -206,6 +206,7 @@ final class CloudDatastoreV1ClientImpl implements CloudDatastoreV1Client {
   }
 
   private <T extends Message> Future<T> makeCall(final Callable<T> oneAttempt) {
+    OperationCoalescer.flushCurrent();
     // Note that there is some cost to capturing this stack trace and it can be disabled in
     // DatastoreServiceGlobalConfig
     final Exception stackTraceCapturer =
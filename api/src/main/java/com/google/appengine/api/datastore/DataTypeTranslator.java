@@ -419,7 +419,7 @@ public final class DataTypeTranslator {
     return indexed ? value : new UnindexedValue(value);
   }
 
-  private static void addPropertyToMap(
+  static void addPropertyToMap(
       Property property, boolean indexed, Map<String, @Nullable Object> map) {
     String name = property.getName();
 
@@ -105,6 +105,7 @@ public final class DatastoreApiHelper {
       final DatastoreService_3.Method method,
       Message.Builder request,
       final S responseProto) {
+    OperationCoalescer.flushCurrent();
     Future<byte[]> response =
         ApiProxy.makeAsyncCall(
             DATASTORE_V3_PACKAGE, method.name(), request.build().toByteArray(), apiConfig);
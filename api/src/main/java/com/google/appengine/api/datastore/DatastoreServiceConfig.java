@@ -114,6 +114,22 @@ public final class DatastoreServiceConfig {
     return value != null && value.equals(Boolean.TRUE.toString());
   }
 
+  /**
+   * Key in {@link ApiProxy.Environment#getAttributes()} holding a {@link Long} count of the keys
+   * served from the request entity cache during the current request; see {@link
+   * #requestEntityCache(boolean)}.
+   */
+  public static final String REQUEST_ENTITY_CACHE_HITS_ATTRIBUTE =
+      "com.google.appengine.api.datastore.RequestEntityCache.hits";
+
+  /**
+   * Key in {@link ApiProxy.Environment#getAttributes()} holding a {@link Long} count of the keys
+   * that the request entity cache could not serve during the current request; see {@link
+   * #requestEntityCache(boolean)}.
+   */
+  public static final String REQUEST_ENTITY_CACHE_MISSES_ATTRIBUTE =
+      "com.google.appengine.api.datastore.RequestEntityCache.misses";
+
   /** The default maximum size a request RPC can be. */
   // NOTE: keep in sync with
   // com.google.appengine.tools.development.ApiProxyLocalImpl.MAX_API_REQUEST_SIZE
@@ -190,6 +206,12 @@ public final class DatastoreServiceConfig {
 
   private AppIdNamespace appIdNamespace;
 
+  private boolean requestEntityCache;
+
+  private boolean coalesceSingleKeyOperations;
+
+  private boolean lazyEntityDecoding;
+
   int maxRpcSizeBytes = DEFAULT_RPC_SIZE_LIMIT_BYTES;
   int maxBatchWriteEntities = DEFAULT_MAX_BATCH_WRITE_ENTITIES;
   int maxBatchReadEntities = DEFAULT_MAX_BATCH_GET_KEYS;
@@ -218,6 +240,9 @@ public final class DatastoreServiceConfig {
     maxEntityGroupsPerRpc = config.maxEntityGroupsPerRpc;
     instanceDatastoreCallbacks = config.instanceDatastoreCallbacks;
     appIdNamespace = config.appIdNamespace;
+    requestEntityCache = config.requestEntityCache;
+    coalesceSingleKeyOperations = config.coalesceSingleKeyOperations;
+    lazyEntityDecoding = config.lazyEntityDecoding;
   }
 
   /**
@@ -265,6 +290,70 @@ public final class DatastoreServiceConfig {
     return this;
   }
 
+  /**
+   * Enables or disables the per-request entity cache.
+   *
+   * <p>When enabled, entities fetched with {@code get} or written with {@code put} are remembered
+   * by {@link Key} for the rest of the current request, so a later {@code get} of the same key is
+   * answered without an rpc. A {@code put} or {@code delete} of a key invalidates it. Reads inside
+   * a transaction are only answered from the cache if the entity was already read in that same
+   * transaction. The cache is shared by all {@link DatastoreService} instances with this option
+   * enabled and is discarded when the request ends.
+   *
+   * <p>Writes made by other requests while this request is running are not observed for keys
+   * that are already cached. Hit and miss counts are available from the request's {@link
+   * ApiProxy.Environment#getAttributes() environment attributes} under {@link
+   * #REQUEST_ENTITY_CACHE_HITS_ATTRIBUTE} and {@link #REQUEST_ENTITY_CACHE_MISSES_ATTRIBUTE}.
+   *
+   * @param requestEntityCache whether the cache should be used.
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig requestEntityCache(boolean requestEntityCache) {
+    this.requestEntityCache = requestEntityCache;
+    return this;
+  }
+
+  /**
+   * Enables or disables coalescing of single-key operations.
+   *
+   * <p>When enabled, non-transactional gets, puts and deletes of a single key or entity issued
+   * through an {@link AsyncDatastoreService} are not sent right away. Consecutive operations of the
+   * same kind are buffered and sent together as one batch rpc (split as usual by size, count and
+   * entity group) as soon as the result of any of them is needed, an operation of another kind is
+   * issued, or the request ends. Any other datastore rpc of the request, such as a query, a
+   * transaction or a get through another service, sends the buffered operations first, so they are
+   * still applied in the order they were issued. This removes most of the per-rpc overhead of code
+   * that issues many single-key operations in a loop before waiting on their results.
+   *
+   * <p>Because buffered operations are only sent once a result is needed, a single-key operation
+   * issued by a synchronous {@link DatastoreService} is sent immediately, as before.
+   *
+   * @param coalesceSingleKeyOperations whether single-key operations should be coalesced.
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig coalesceSingleKeyOperations(boolean coalesceSingleKeyOperations) {
+    this.coalesceSingleKeyOperations = coalesceSingleKeyOperations;
+    return this;
+  }
+
+  /**
+   * Enables or disables lazy decoding of entities.
+   *
+   * <p>When enabled, entities returned by {@code get} and by queries without projections keep the
+   * protocol buffer they were read from and convert each property to its Java representation only
+   * when it is first accessed, for instance by {@link Entity#getProperty}. Handlers that read a
+   * few properties of large entities then avoid converting, and allocating, the rest. Operations
+   * that need every property, such as {@link Entity#getProperties()}, {@link Entity#clone()} or
+   * serialization, convert the remaining properties at that point.
+   *
+   * @param lazyEntityDecoding whether entities should be decoded lazily.
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig lazyEntityDecoding(boolean lazyEntityDecoding) {
+    this.lazyEntityDecoding = lazyEntityDecoding;
+    return this;
+  }
+
   DatastoreServiceConfig appIdNamespace(AppIdNamespace appIdNamespace) {
     this.appIdNamespace = appIdNamespace;
     return this;
@@ -375,6 +464,21 @@ public final class DatastoreServiceConfig {
     return deadline;
   }
 
+  /** Returns whether the per-request entity cache is enabled. */
+  public boolean isRequestEntityCacheEnabled() {
+    return requestEntityCache;
+  }
+
+  /** Returns whether single-key operations are coalesced into batch rpcs. */
+  public boolean isSingleKeyOperationCoalescingEnabled() {
+    return coalesceSingleKeyOperations;
+  }
+
+  /** Returns whether entities are decoded lazily. */
+  public boolean isLazyEntityDecodingEnabled() {
+    return lazyEntityDecoding;
+  }
+
   AppIdNamespace getAppIdNamespace() {
     return appIdNamespace == null ? DatastoreApiHelper.getCurrentAppIdNamespace() : appIdNamespace;
   }
@@ -452,6 +556,36 @@ public final class DatastoreServiceConfig {
       return withDefaults().maxEntityGroupsPerRpc(maxEntityGroupsPerRpc);
     }
 
+    /**
+     * Create a {@link DatastoreServiceConfig} with the per-request entity cache enabled.
+     *
+     * @return The newly created DatastoreServiceConfig instance.
+     * @see DatastoreServiceConfig#requestEntityCache(boolean)
+     */
+    public static DatastoreServiceConfig withRequestEntityCache() {
+      return withDefaults().requestEntityCache(true);
+    }
+
+    /**
+     * Create a {@link DatastoreServiceConfig} with coalescing of single-key operations enabled.
+     *
+     * @return The newly created DatastoreServiceConfig instance.
+     * @see DatastoreServiceConfig#coalesceSingleKeyOperations(boolean)
+     */
+    public static DatastoreServiceConfig withSingleKeyOperationCoalescing() {
+      return withDefaults().coalesceSingleKeyOperations(true);
+    }
+
+    /**
+     * Create a {@link DatastoreServiceConfig} with lazy decoding of entities enabled.
+     *
+     * @return The newly created DatastoreServiceConfig instance.
+     * @see DatastoreServiceConfig#lazyEntityDecoding(boolean)
+     */
+    public static DatastoreServiceConfig withLazyEntityDecoding() {
+      return withDefaults().lazyEntityDecoding(true);
+    }
+
     /**
      * Helper method for creating a {@link DatastoreServiceConfig} instance with the specified
      * {@code datastoreCallbacks}. The callbacks defined for the application are bypassed and the
@@ -259,6 +259,12 @@ public final class Entity extends PropertyContainer implements Cloneable {
     this.propertyMap = new HashMap<>();
   }
 
+  /** Creates an {@code Entity} that uses {@code propertyMap} to hold its properties. */
+  Entity(Key key, Map<String, @Nullable Object> propertyMap) {
+    this.key = key;
+    this.propertyMap = propertyMap;
+  }
+
   /**
    * Two {@code Entity} objects are considered equal if they refer to the same entity (i.e. their
    * {@code Key} objects match).
@@ -358,4 +364,15 @@ public final class Entity extends PropertyContainer implements Cloneable {
   Map<String, @Nullable Object> getPropertyMap() {
     return propertyMap;
   }
+
+  /**
+   * Entities decoded lazily are serialized with a plain {@link HashMap} of properties, the form
+   * every other entity has, so the serialized form does not depend on how the entity was read.
+   */
+  private Object writeReplace() {
+    if (propertyMap instanceof LazyPropertyMap lazyPropertyMap) {
+      return new Entity(key, lazyPropertyMap.toHashMap());
+    }
+    return this;
+  }
 }
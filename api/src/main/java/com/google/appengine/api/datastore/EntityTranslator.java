@@ -59,6 +59,15 @@ public class EntityTranslator {
     return entity;
   }
 
+  /**
+   * Like {@link #createFromPb(EntityProto)}, but properties are only converted from {@code proto}
+   * when they are first accessed.
+   */
+  static Entity createFromPbLazily(EntityProto proto) {
+    Key key = KeyTranslator.createFromPb(proto.getKey());
+    return new Entity(key, new LazyPropertyMap(proto));
+  }
+
   public static Entity createFromPbBytes(byte[] pbBytes) {
     EntityProto.Builder proto = EntityProto.newBuilder();
     boolean parsed = true;
@@ -41,9 +41,14 @@ import org.jspecify.annotations.Nullable;
  * by {@link PreparedQuery#asIterator(FetchOptions)} and the {@link Iterable} returned by {@link
  * PreparedQuery#asIterable(FetchOptions)}.
  *
- * <p>Note that unlike {@code limit}, {@code offset} and {@code cursor}, {@code prefetchSize} and
- * {@code chunkSize} have no impact on the result of the {@link PreparedQuery}, but rather only the
- * performance of the {@link PreparedQuery}.
+ * <p>{@code lookAheadChunks} is the number of chunks that {@link Iterator} may hold ahead of the
+ * caller. When set, results that have already arrived are moved into the iterator, and the request
+ * for the following chunk is sent, as soon as fewer than that many chunks are left to consume,
+ * rather than only once the current chunk is used up.
+ *
+ * <p>Note that unlike {@code limit}, {@code offset} and {@code cursor}, {@code prefetchSize},
+ * {@code chunkSize} and {@code lookAheadChunks} have no impact on the result of the {@link
+ * PreparedQuery}, but rather only the performance of the {@link PreparedQuery}.
  *
  * <p>Notes on usage:<br>
  * The recommended way to instantiate a {@code FetchOptions} object is to import {@link
@@ -75,6 +80,7 @@ public final class FetchOptions {
   private @Nullable Integer offset;
   private @Nullable Integer prefetchSize;
   private @Nullable Integer chunkSize;
+  private @Nullable Integer lookAheadChunks;
   private @Nullable Cursor startCursor;
   private @Nullable Cursor endCursor;
   private @Nullable Boolean compile;
@@ -86,6 +92,7 @@ public final class FetchOptions {
     this.offset = original.offset;
     this.prefetchSize = original.prefetchSize;
     this.chunkSize = original.chunkSize;
+    this.lookAheadChunks = original.lookAheadChunks;
     this.startCursor = original.startCursor;
     this.endCursor = original.endCursor;
     this.compile = original.compile;
@@ -151,6 +158,26 @@ public final class FetchOptions {
     return this;
   }
 
+  /**
+   * Sets the number of chunks to look ahead. Please read the class javadoc for an explanation of
+   * how look ahead is used.
+   *
+   * @param lookAheadChunks The number of chunks to set. Must be greater than 0.
+   * @return {@code this} (for chaining)
+   */
+  public FetchOptions lookAheadChunks(int lookAheadChunks) {
+    if (lookAheadChunks < 1) {
+      throw new IllegalArgumentException("Look ahead chunks must be greater than 0.");
+    }
+    this.lookAheadChunks = lookAheadChunks;
+    return this;
+  }
+
+  FetchOptions clearLookAheadChunks() {
+    lookAheadChunks = null;
+    return this;
+  }
+
   /**
    * Sets the number of entities to prefetch.
    *
@@ -245,6 +272,13 @@ public final class FetchOptions {
     return chunkSize;
   }
 
+  /**
+   * Returns the number of chunks to look ahead, or {@code null} if no number of chunks was provided.
+   */
+  public @Nullable Integer getLookAheadChunks() {
+    return lookAheadChunks;
+  }
+
   /** Returns the prefetch size, or {@code null} if no prefetch size was provided. */
   public @Nullable Integer getPrefetchSize() {
     return prefetchSize;
@@ -286,6 +320,10 @@ public final class FetchOptions {
       result = result * 31 + chunkSize.hashCode();
     }
 
+    if (lookAheadChunks != null) {
+      result = result * 31 + lookAheadChunks.hashCode();
+    }
+
     if (limit != null) {
       result = result * 31 + limit.hashCode();
     }
@@ -337,6 +375,14 @@ public final class FetchOptions {
       return false;
     }
 
+    if (lookAheadChunks != null) {
+      if (!lookAheadChunks.equals(that.lookAheadChunks)) {
+        return false;
+      }
+    } else if (that.lookAheadChunks != null) {
+      return false;
+    }
+
     if (limit != null) {
       if (!limit.equals(that.limit)) {
         return false;
@@ -392,6 +438,10 @@ public final class FetchOptions {
       result.add("chunkSize=" + chunkSize);
     }
 
+    if (lookAheadChunks != null) {
+      result.add("lookAheadChunks=" + lookAheadChunks);
+    }
+
     if (limit != null) {
       result.add("limit=" + limit);
     }
@@ -453,6 +503,18 @@ public final class FetchOptions {
       return withDefaults().chunkSize(chunkSize);
     }
 
+    /**
+     * Create a {@link FetchOptions} with the given number of chunks to look ahead. Shorthand for
+     * <code>FetchOptions.withDefaults().lookAheadChunks(...);</code> Please read the {@link
+     * FetchOptions} class javadoc for an explanation of how look ahead is used.
+     *
+     * @param lookAheadChunks the number of chunks to set.
+     * @return The newly created FetchOptions instance.
+     */
+    public static FetchOptions withLookAheadChunks(int lookAheadChunks) {
+      return withDefaults().lookAheadChunks(lookAheadChunks);
+    }
+
     /**
      * Create a {@link FetchOptions} with the given prefetch size. Shorthand for <code>
      * FetchOptions.withDefaults().prefetchSize(...);</code>. Please read the {@link FetchOptions}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.storage.onestore.v3_bytes.proto2api.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3_bytes.proto2api.OnestoreEntity.Property;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * The property map of an {@link Entity} read from an {@link EntityProto}, which converts each
+ * property to its Java representation only the first time it is accessed. Used when {@link
+ * DatastoreServiceConfig#lazyEntityDecoding(boolean)} is enabled.
+ *
+ * <p>Building the map only groups the protocol buffer properties by name; values, including large
+ * unindexed {@link Text} and {@link Blob} values, are not copied out of the protocol buffer until
+ * they are read. Any operation that needs every value (iterating, {@link #equals}, serializing)
+ * converts the remaining properties first, after which the map behaves like a {@link HashMap}.
+ *
+ * <p>Reads convert properties in place, so all methods are synchronized to keep concurrent readers
+ * of the same entity as safe as they are with a {@link HashMap}.
+ */
+final class LazyPropertyMap extends AbstractMap<String, @Nullable Object> {
+
+  /** The properties of one name, in the order {@link DataTypeTranslator} would apply them. */
+  private static final class PendingProperty {
+    final List<Property> properties = new ArrayList<>(1);
+    // Indexed properties are all added before unindexed ones, so they form a prefix.
+    int indexedCount;
+  }
+
+  private final Map<String, @Nullable Object> decoded;
+
+  /** Properties not converted yet. Never shares a name with {@link #decoded}. */
+  private final Map<String, PendingProperty> pending;
+
+  LazyPropertyMap(EntityProto proto) {
+    int count = proto.getPropertyCount() + proto.getRawPropertyCount();
+    decoded = new HashMap<>(count);
+    pending = new HashMap<>(count);
+    // Same order as DataTypeTranslator.extractPropertiesFromPb: indexed first, then unindexed.
+    for (Property property : proto.getPropertyList()) {
+      addPending(property, true);
+    }
+    for (Property property : proto.getRawPropertyList()) {
+      addPending(property, false);
+    }
+  }
+
+  private void addPending(Property property, boolean indexed) {
+    PendingProperty pendingProperty =
+        pending.computeIfAbsent(property.getName(), name -> new PendingProperty());
+    pendingProperty.properties.add(property);
+    if (indexed) {
+      pendingProperty.indexedCount++;
+    }
+  }
+
+  private void decode(Object name) {
+    PendingProperty pendingProperty = pending.remove(name);
+    if (pendingProperty != null) {
+      for (int i = 0; i < pendingProperty.properties.size(); i++) {
+        DataTypeTranslator.addPropertyToMap(
+            pendingProperty.properties.get(i), i < pendingProperty.indexedCount, decoded);
+      }
+    }
+  }
+
+  private void decodeAll() {
+    if (!pending.isEmpty()) {
+      for (Object name : new ArrayList<>(pending.keySet())) {
+        decode(name);
+      }
+    }
+  }
+
+  @Override
+  public synchronized @Nullable Object get(Object name) {
+    decode(name);
+    return decoded.get(name);
+  }
+
+  @Override
+  public synchronized boolean containsKey(Object name) {
+    return pending.containsKey(name) || decoded.containsKey(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Returns {@code null} if the replaced property was never read, so overwriting a property does
+   * not convert it.
+   */
+  @Override
+  public synchronized @Nullable Object put(String name, @Nullable Object value) {
+    pending.remove(name);
+    return decoded.put(name, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Returns {@code null} if the removed property was never read, so removing a property does not
+   * convert it.
+   */
+  @Override
+  public synchronized @Nullable Object remove(Object name) {
+    pending.remove(name);
+    return decoded.remove(name);
+  }
+
+  @Override
+  public synchronized int size() {
+    return pending.size() + decoded.size();
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return pending.isEmpty() && decoded.isEmpty();
+  }
+
+  @Override
+  public synchronized void clear() {
+    pending.clear();
+    decoded.clear();
+  }
+
+  @Override
+  public synchronized Set<Entry<String, @Nullable Object>> entrySet() {
+    decodeAll();
+    return decoded.entrySet();
+  }
+
+  /** Returns a {@link HashMap} holding every property, all of them converted. */
+  synchronized HashMap<String, @Nullable Object> toHashMap() {
+    decodeAll();
+    return new HashMap<>(decoded);
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.apphosting.api.ApiProxy;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Buffers non-transactional single-key gets, puts and deletes issued during one request, and sends
+ * each run of operations of the same kind made through the same {@link
+ * BaseAsyncDatastoreServiceImpl} as a single batch, which the service's {@link Batcher} then splits
+ * as usual. Used when {@link DatastoreServiceConfig#coalesceSingleKeyOperations(boolean)} is
+ * enabled.
+ *
+ * <p>Buffered operations are sent when:
+ *
+ * <ul>
+ *   <li>the result of any of them is requested with {@link Future#get()} or {@link
+ *       Future#isDone()};
+ *   <li>an operation of a different kind, or one through a different service, is buffered;
+ *   <li>the batch reaches the configured maximum number of keys or entities per rpc;
+ *   <li>any other datastore rpc of the request is about to be made, through any service, so that
+ *       queries, transactions and id allocations observe the buffered writes (see {@link
+ *       #flushCurrent});
+ *   <li>the request completes, so a put whose future is never consulted is still sent.
+ * </ul>
+ *
+ * <p>Pre-operation callbacks have already run by the time an operation reaches the coalescer, and
+ * post-operation callbacks run when the individual future is resolved, exactly as without
+ * coalescing.
+ */
+final class OperationCoalescer implements Flushable {
+
+  /** Key in {@link ApiProxy.Environment#getAttributes()} holding the coalescers of a request. */
+  // NOTE: keep in sync with TransactionCleanupListener in the runtime.
+  static final String PENDING_OPERATIONS_ATTRIBUTE_KEY =
+      "com.google.appengine.api.datastore.PendingOperations";
+
+  private enum Kind {
+    GET,
+    PUT,
+    DELETE
+  }
+
+  // Guarded by this.
+  private @Nullable Kind pendingKind;
+  private @Nullable BaseAsyncDatastoreServiceImpl pendingService;
+  private List<PendingOperation<?>> pending = new ArrayList<>();
+
+  private OperationCoalescer() {}
+
+  /**
+   * Returns the coalescer of the current request, or {@code null} if there is no current request.
+   */
+  static @Nullable OperationCoalescer getCurrent() {
+    Map<String, Object> attributes = getAttributes();
+    if (attributes == null) {
+      return null;
+    }
+    // The attributes map is not necessarily thread-safe, but threads of the same request share it.
+    synchronized (attributes) {
+      Object coalescer = attributes.get(PENDING_OPERATIONS_ATTRIBUTE_KEY);
+      if (coalescer == null) {
+        coalescer = new OperationCoalescer();
+        attributes.put(PENDING_OPERATIONS_ATTRIBUTE_KEY, coalescer);
+      }
+      return (OperationCoalescer) coalescer;
+    }
+  }
+
+  /**
+   * Sends the operations buffered by the current request, if any. Called before every other
+   * datastore rpc, whether or not the service making it coalesces operations, so that rpcs are
+   * sent in the order the application issued them.
+   */
+  static void flushCurrent() {
+    Map<String, Object> attributes = getAttributes();
+    if (attributes == null) {
+      return;
+    }
+    Object coalescer;
+    synchronized (attributes) {
+      coalescer = attributes.get(PENDING_OPERATIONS_ATTRIBUTE_KEY);
+    }
+    if (coalescer != null) {
+      ((OperationCoalescer) coalescer).flush();
+    }
+  }
+
+  private static @Nullable Map<String, Object> getAttributes() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    return environment == null ? null : environment.getAttributes();
+  }
+
+  /**
+   * Queues a get of {@code key} through {@code service}. The returned future adds the entity, if it
+   * exists, to {@code resultMap} and returns {@code resultMap}.
+   */
+  Future<Map<Key, Entity>> get(
+      BaseAsyncDatastoreServiceImpl service, Key key, Map<Key, Entity> resultMap) {
+    return enqueue(service, Kind.GET, new PendingGet(key, resultMap));
+  }
+
+  /**
+   * Queues a put of {@code entity} through {@code service}. The returned future yields the list of
+   * its (single) key.
+   */
+  Future<List<Key>> put(BaseAsyncDatastoreServiceImpl service, Entity entity) {
+    return enqueue(service, Kind.PUT, new PendingPut(entity));
+  }
+
+  /** Queues a delete of {@code key} through {@code service}. */
+  Future<Void> delete(BaseAsyncDatastoreServiceImpl service, Key key) {
+    return enqueue(service, Kind.DELETE, new PendingDelete(key));
+  }
+
+  private synchronized <T> Future<T> enqueue(
+      BaseAsyncDatastoreServiceImpl service, Kind kind, PendingOperation<T> operation) {
+    // Services may differ in read policy, deadline or batch limits, so only operations made
+    // through the same service share an rpc.
+    if (pendingKind != kind || pendingService != service) {
+      flush();
+      pendingKind = kind;
+      pendingService = service;
+    }
+    pending.add(operation);
+    int maxCount =
+        kind == Kind.GET
+            ? service.datastoreServiceConfig.maxBatchReadEntities
+            : service.datastoreServiceConfig.maxBatchWriteEntities;
+    if (pending.size() >= maxCount) {
+      flush();
+    }
+    return operation;
+  }
+
+  /** Sends all buffered operations. Does not wait for their results. */
+  @Override
+  public synchronized void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<PendingOperation<?>> operations = pending;
+    Kind kind = pendingKind;
+    BaseAsyncDatastoreServiceImpl service = pendingService;
+    // Reset first: sending the batch makes an rpc, which calls flushCurrent() again.
+    pending = new ArrayList<>();
+    pendingKind = null;
+    pendingService = null;
+    operations.removeIf(PendingOperation::isCancelled);
+    if (operations.isEmpty()) {
+      return;
+    }
+    switch (kind) {
+      case GET:
+        sendGets(service, operations);
+        break;
+      case PUT:
+        sendPuts(service, operations);
+        break;
+      case DELETE:
+        sendDeletes(service, operations);
+        break;
+    }
+  }
+
+  private void sendGets(
+      BaseAsyncDatastoreServiceImpl service, List<PendingOperation<?>> operations) {
+    Set<Key> keys = new LinkedHashSet<>();
+    for (PendingOperation<?> operation : operations) {
+      PendingGet get = (PendingGet) operation;
+      // Callers asking for the same key must not share a mutable Entity.
+      get.copyResult = !keys.add(get.key);
+    }
+    Future<Map<Key, Entity>> batch = service.doBatchGet(null, keys, new HashMap<Key, Entity>());
+    for (PendingOperation<?> operation : operations) {
+      ((PendingGet) operation).sent(batch);
+    }
+  }
+
+  private void sendPuts(
+      BaseAsyncDatastoreServiceImpl service, List<PendingOperation<?>> operations) {
+    List<Entity> entities = new ArrayList<>(operations.size());
+    for (PendingOperation<?> operation : operations) {
+      entities.add(((PendingPut) operation).entity);
+    }
+    Future<List<Key>> batch = service.doBatchPut(null, entities);
+    for (int i = 0; i < operations.size(); i++) {
+      ((PendingPut) operations.get(i)).sent(batch, i);
+    }
+  }
+
+  private void sendDeletes(
+      BaseAsyncDatastoreServiceImpl service, List<PendingOperation<?>> operations) {
+    List<Key> keys = new ArrayList<>(operations.size());
+    for (PendingOperation<?> operation : operations) {
+      keys.add(((PendingDelete) operation).key);
+    }
+    Future<Void> batch = service.doBatchDelete(null, keys);
+    for (PendingOperation<?> operation : operations) {
+      ((PendingDelete) operation).sent(batch);
+    }
+  }
+
+  /**
+   * The {@link Future} handed out for a buffered operation. Until the batch containing it is sent,
+   * asking for its result sends the batch.
+   */
+  @SuppressWarnings("ShouldNotSubclass")
+  private abstract class PendingOperation<T> implements Future<T> {
+    // Guarded by OperationCoalescer.this.
+    private @Nullable Future<T> delegate;
+    private boolean cancelled;
+
+    final void setDelegate(Future<T> delegate) {
+      this.delegate = delegate;
+    }
+
+    private Future<T> sentDelegate() {
+      synchronized (OperationCoalescer.this) {
+        if (delegate == null && !cancelled) {
+          flush();
+        }
+        return delegate;
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      synchronized (OperationCoalescer.this) {
+        if (delegate == null && !cancelled) {
+          // Not sent yet, so it is simply left out of the batch.
+          cancelled = true;
+          return true;
+        }
+      }
+      // The rpc is shared with other operations and cannot be cancelled on behalf of one of them.
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (OperationCoalescer.this) {
+        return cancelled;
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      Future<T> sent = sentDelegate();
+      return sent == null || sent.isDone();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+      Future<T> sent = sentDelegate();
+      if (sent == null) {
+        throw new CancellationException();
+      }
+      return sent.get();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      Future<T> sent = sentDelegate();
+      if (sent == null) {
+        throw new CancellationException();
+      }
+      return sent.get(timeout, unit);
+    }
+  }
+
+  private final class PendingGet extends PendingOperation<Map<Key, Entity>> {
+    final Key key;
+    final Map<Key, Entity> resultMap;
+    boolean copyResult;
+
+    PendingGet(Key key, Map<Key, Entity> resultMap) {
+      this.key = key;
+      this.resultMap = resultMap;
+    }
+
+    void sent(Future<Map<Key, Entity>> batch) {
+      setDelegate(
+          new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(batch) {
+            @Override
+            protected Map<Key, Entity> wrap(Map<Key, Entity> entities) {
+              Entity entity = entities.get(key);
+              if (entity != null) {
+                resultMap.put(key, copyResult ? entity.clone() : entity);
+              }
+              return resultMap;
+            }
+
+            @Override
+            protected Throwable convertException(Throwable cause) {
+              return cause;
+            }
+          });
+    }
+  }
+
+  private final class PendingPut extends PendingOperation<List<Key>> {
+    final Entity entity;
+
+    PendingPut(Entity entity) {
+      // Snapshot the entity, since the caller may change it before the batch is sent. The copy
+      // shares the key of the caller's entity, so the put still completes that key in place.
+      this.entity = entity.clone();
+    }
+
+    void sent(Future<List<Key>> batch, int index) {
+      setDelegate(
+          new FutureWrapper<List<Key>, List<Key>>(batch) {
+            @Override
+            protected List<Key> wrap(List<Key> keys) {
+              return Collections.singletonList(keys.get(index));
+            }
+
+            @Override
+            protected Throwable convertException(Throwable cause) {
+              return cause;
+            }
+          });
+    }
+  }
+
+  private final class PendingDelete extends PendingOperation<Void> {
+    final Key key;
+
+    PendingDelete(Key key) {
+      this.key = key;
+    }
+
+    void sent(Future<Void> batch) {
+      setDelegate(batch);
+    }
+  }
+}
@@ -49,7 +49,8 @@ import org.jspecify.annotations.Nullable;
  * We then use this {@link Comparator} to produce an appropriately ordered sequence of results that
  * contains the results from each sub-query. As each sub-query produces results that are already
  * sorted we simply use a {@link PriorityQueue} to merge the results from the sub-query as new
- * results are requested.
+ * results are requested. All the sub-queries of such a merge are started before any result is
+ * read, so their round trips overlap, and each one only buffers the chunk it has fetched.
  *
  */
 class PreparedMultiQuery extends BasePreparedQuery {
@@ -278,10 +279,16 @@ class PreparedMultiQuery extends BasePreparedQuery {
         // One source query only
         return queries.get(0).asIterator(fetchOptions);
       } else {
+        // Start every source query before waiting on any of them: the heap needs the first result
+        // of each source, so creating the iterators lazily would serialize one round trip per
+        // source before the first result could be returned.
+        List<Iterator<Entity>> iterators = new ArrayList<>(queries.size());
+        for (PreparedQuery query : queries) {
+          iterators.add(query.asIterator(fetchOptions));
+        }
         // use a heap iterator to merge the results from multiple sources
         // this may not respect the limit passed to it in fetchOptions
-        return makeHeapIterator(
-            Iterables.transform(queries, input -> input.asIterator(fetchOptions)));
+        return makeHeapIterator(iterators);
       }
     }
 
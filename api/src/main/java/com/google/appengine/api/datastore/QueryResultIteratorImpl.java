@@ -44,9 +44,13 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
   // back on start/end cursors or Cursor.advance().
   private final LinkedList<Cursor> entityCursorBuffer;
   private final Transaction txn;
+  // 0 when look ahead is disabled, see FetchOptions#lookAheadChunks(int).
+  private final int lookAheadChunks;
   private Cursor lastCursor = null;
   private Cursor nextCursor;
   private int resultsSinceLastCursor = 0;
+  // The number of entities added to the buffer by the most recent load that added any.
+  private int lastLoadSize = 0;
 
   /**
    * Create a QueryIterator that wraps around the specified Cursor. Elements will be retrieved in
@@ -62,6 +66,8 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
     this.entityBuffer = new LinkedList<Entity>();
     this.entityCursorBuffer = new LinkedList<Cursor>();
     this.txn = txn;
+    this.lookAheadChunks =
+        fetchOptions.getLookAheadChunks() != null ? fetchOptions.getLookAheadChunks() : 0;
 
     if (fetchOptions.getCompile() == Boolean.TRUE) {
       // Create new cursor that points to the position in the query
@@ -89,7 +95,9 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
     if (ensureLoaded()) {
       ++resultsSinceLastCursor;
       entityCursorBuffer.removeFirst();
-      return entityBuffer.removeFirst();
+      Entity entity = entityBuffer.removeFirst();
+      lookAhead();
+      return entity;
     } else {
       throw new NoSuchElementException();
     }
@@ -146,10 +154,12 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
     backingList.clear();
     entityCursorBuffer.subList(0, numberToReturn).clear();
     resultsSinceLastCursor += returnList.size();
+    lookAhead();
     return returnList;
   }
 
   private void saveNextCursor(int bufferSize, Cursor next) {
+    recordLoadSize(bufferSize);
     if (next != null) {
       // lastCursor is null for the first request. In this case the buffer is empty and
       // the offset has been processed (and already pre-populated in resultsSinceLastCursor).
@@ -176,6 +186,33 @@ class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
         entityBuffer.size(), resultsSource.loadMoreEntities(0, entityBuffer, entityCursorBuffer));
   }
 
+  /**
+   * If look ahead is enabled, moves results that have already arrived into the buffer while it
+   * holds fewer than {@code lookAheadChunks} chunks. Loading a result sends the request for the
+   * following chunk, so the datastore keeps working while the caller consumes the buffer.
+   */
+  private void lookAhead() {
+    while (lookAheadChunks > 0
+        && entityBuffer.size() < (long) lookAheadChunks * lastLoadSize
+        && resultsSource.isNextResultReady()) {
+      int bufferSize = entityBuffer.size();
+      Cursor next = resultsSource.loadMoreEntities(entityBuffer, entityCursorBuffer);
+      recordLoadSize(bufferSize);
+      // Unlike saveNextCursor(), keep lastCursor and resultsSinceLastCursor: they still locate the
+      // caller, who may ask for a cursor before consuming what was buffered before this load.
+      if (next != null) {
+        nextCursor = next;
+      }
+    }
+  }
+
+  private void recordLoadSize(int bufferSizeBeforeLoad) {
+    int loaded = entityBuffer.size() - bufferSizeBeforeLoad;
+    if (loaded > 0) {
+      lastLoadSize = loaded;
+    }
+  }
+
   /**
    * Request additional {@code Entity} objects from the current cursor so that there is at least one
    * pending object.
@@ -29,6 +29,14 @@ interface QueryResultsSource {
    */
   boolean hasMoreEntities();
 
+  /**
+   * Returns true when the result that the next call to {@link #loadMoreEntities(List, List)} will
+   * process has already arrived, so loading it does not have to wait for the datastore.
+   */
+  default boolean isNextResultReady() {
+    return false;
+  }
+
   /**
    * Load at least one {@code Entity} object if there are more entities.
    *
@@ -39,6 +39,7 @@ import org.jspecify.annotations.Nullable;
 class QueryResultsSourceV3 extends BaseQueryResultsSource<QueryResult, NextRequest.Builder, QueryResult> {
 
   private final ApiConfig apiConfig;
+  private final boolean lazyEntityDecoding;
 
   QueryResultsSourceV3(
       DatastoreCallbacks callbacks,
@@ -46,9 +47,11 @@ class QueryResultsSourceV3 extends BaseQueryResultsSource<QueryResult, NextReque
       Transaction txn,
       Query query,
       Future<QueryResult> initialQueryResultFuture,
-      ApiConfig apiConfig) {
+      ApiConfig apiConfig,
+      boolean lazyEntityDecoding) {
     super(callbacks, fetchOptions, txn, query, initialQueryResultFuture);
     this.apiConfig = apiConfig;
+    this.lazyEntityDecoding = lazyEntityDecoding;
   }
 
   @Override
@@ -86,25 +89,31 @@ class QueryResultsSourceV3 extends BaseQueryResultsSource<QueryResult, NextReque
 
   @Override
   public WrappedQueryResult wrapResult(QueryResult result) {
-    return new WrappedQueryResultV3(result);
+    return new WrappedQueryResultV3(result, lazyEntityDecoding);
   }
 
   @Override
   public WrappedQueryResult wrapInitialResult(QueryResult initialResult) {
-    return new WrappedQueryResultV3(initialResult);
+    return new WrappedQueryResultV3(initialResult, lazyEntityDecoding);
   }
 
   private static class WrappedQueryResultV3 implements WrappedQueryResult {
     private final DatastoreV3Pb.QueryResult res;
+    private final boolean lazyEntityDecoding;
 
-    WrappedQueryResultV3(DatastoreV3Pb.QueryResult res) {
+    WrappedQueryResultV3(DatastoreV3Pb.QueryResult res, boolean lazyEntityDecoding) {
       this.res = res;
+      this.lazyEntityDecoding = lazyEntityDecoding;
     }
 
     @Override
     public List<Entity> getEntities(Collection<Projection> projections) {
       List<Entity> entities = Lists.newArrayListWithCapacity(res.getResultCount());
-      if (projections.isEmpty()) {
+      if (projections.isEmpty() && lazyEntityDecoding) {
+        for (EntityProto entityProto : res.getResultList()) {
+          entities.add(EntityTranslator.createFromPbLazily(entityProto));
+        }
+      } else if (projections.isEmpty()) {
         for (EntityProto entityProto : res.getResultList()) {
           entities.add(EntityTranslator.createFromPb(entityProto));
         }
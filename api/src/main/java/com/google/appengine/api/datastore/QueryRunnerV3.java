@@ -78,7 +78,8 @@ final class QueryRunnerV3 implements QueryRunner {
         txn,
         query,
         result,
-        apiConfig);
+        apiConfig,
+        datastoreServiceConfig.isLazyEntityDecodingEnabled());
   }
 
   private void addMissingIndexData(DatastoreV3Pb.Query.Builder queryProto, DatastoreNeedIndexException e) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A per-request cache of entities read or written by key, used when {@link
+ * DatastoreServiceConfig#requestEntityCache(boolean)} is enabled.
+ *
+ * <p>The cache lives in the {@link ApiProxy.Environment#getAttributes() attributes} of the current
+ * request so it is shared by every {@link DatastoreService} used by the request and is discarded
+ * with the request. The runtime also removes it explicitly when the request completes.
+ *
+ * <p>Entries read outside a transaction are only served outside a transaction. Entries read inside
+ * a transaction are only served to that same transaction. A key written inside a transaction is
+ * not cached for non-transactional reads until it is written again outside a transaction, because
+ * we do not know when (or whether) that transaction commits. Entries read inside a transaction are
+ * dropped when it commits or rolls back. Entities are copied on the way in and on the way out, so
+ * callers can never mutate a cached value.
+ */
+final class RequestEntityCache {
+
+  /** Key in {@link ApiProxy.Environment#getAttributes()} holding the cache for the request. */
+  // NOTE: keep in sync with TransactionCleanupListener in the runtime.
+  static final String CACHE_ATTRIBUTE_KEY =
+      "com.google.appengine.api.datastore.RequestEntityCache";
+
+  private static final String HITS_ATTRIBUTE_KEY =
+      DatastoreServiceConfig.REQUEST_ENTITY_CACHE_HITS_ATTRIBUTE;
+
+  private static final String MISSES_ATTRIBUTE_KEY =
+      DatastoreServiceConfig.REQUEST_ENTITY_CACHE_MISSES_ATTRIBUTE;
+
+  /** Marker for a key we know does not exist. {@link ConcurrentHashMap} does not allow null. */
+  private static final Object ABSENT = new Object();
+
+  private final Map<Key, Object> entries = new ConcurrentHashMap<>();
+
+  /** Entries read inside a transaction, keyed by transaction id. */
+  private final Map<String, Map<Key, Object>> txnEntries = new ConcurrentHashMap<>();
+
+  /** Keys written in a transaction that may or may not have committed. */
+  private final Set<Key> writtenInTxn = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Incremented on every invalidation. A fetch only fills the cache if no invalidation happened
+   * while it was in flight, so a slow read can never overwrite the effect of a later write.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final Map<String, Object> attributes;
+
+  private RequestEntityCache(Map<String, Object> attributes) {
+    this.attributes = attributes;
+  }
+
+  /**
+   * Returns the cache for the current request, or {@code null} if there is no current request.
+   */
+  static @Nullable RequestEntityCache getCurrent() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null) {
+      return null;
+    }
+    Map<String, Object> attributes = environment.getAttributes();
+    if (attributes == null) {
+      return null;
+    }
+    // The attributes map is not necessarily thread-safe, but threads of the same request share it.
+    synchronized (attributes) {
+      Object cache = attributes.get(CACHE_ATTRIBUTE_KEY);
+      if (cache == null) {
+        cache = new RequestEntityCache(attributes);
+        attributes.put(CACHE_ATTRIBUTE_KEY, cache);
+      }
+      return (RequestEntityCache) cache;
+    }
+  }
+
+  /**
+   * Returns the cache of the current request if something has already created it, or {@code null}
+   * otherwise. Never creates a cache.
+   */
+  static @Nullable RequestEntityCache getExisting() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    Map<String, Object> attributes = environment == null ? null : environment.getAttributes();
+    if (attributes == null) {
+      return null;
+    }
+    synchronized (attributes) {
+      return (RequestEntityCache) attributes.get(CACHE_ATTRIBUTE_KEY);
+    }
+  }
+
+  /**
+   * Drops the entries read inside {@code txn}, which is being committed or rolled back. Does not
+   * create a cache if the current request has none.
+   */
+  static void transactionEnded(Transaction txn) {
+    RequestEntityCache cache = getExisting();
+    if (cache != null) {
+      cache.txnEntries.remove(txn.getId());
+    }
+  }
+
+  /**
+   * Resolves as many of {@code keys} as possible from the cache. Entities found are added to
+   * {@code resultMap} and every key that was resolved (whether or not the entity exists) is
+   * removed from {@code keys}.
+   *
+   * @return the generation to pass to {@link #fillOnCompletion}
+   */
+  long lookup(@Nullable Transaction txn, List<Key> keys, Map<Key, Entity> resultMap) {
+    long startGeneration = generation.get();
+    Map<Key, Object> source = txn == null ? entries : txnEntries.get(txn.getId());
+    long hits = 0;
+    if (source != null) {
+      for (Iterator<Key> it = keys.iterator(); it.hasNext(); ) {
+        Key key = it.next();
+        Object cached = source.get(key);
+        if (cached != null) {
+          if (cached != ABSENT) {
+            resultMap.put(key, ((Entity) cached).clone());
+          }
+          it.remove();
+          hits++;
+        }
+      }
+    }
+    incrementCounter(HITS_ATTRIBUTE_KEY, hits);
+    incrementCounter(MISSES_ATTRIBUTE_KEY, keys.size());
+    return startGeneration;
+  }
+
+  /**
+   * Returns a {@link Future} that records the outcome of fetching {@code fetchedKeys} once the
+   * given get completes successfully.
+   */
+  Future<Map<Key, Entity>> fillOnCompletion(
+      @Nullable Transaction txn,
+      Collection<Key> fetchedKeys,
+      long startGeneration,
+      Future<Map<Key, Entity>> result) {
+    if (fetchedKeys.isEmpty()) {
+      return result;
+    }
+    return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(result) {
+      @Override
+      protected Map<Key, Entity> wrap(Map<Key, Entity> entities) {
+        fill(txn, fetchedKeys, entities, startGeneration);
+        return entities;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  private void fill(
+      @Nullable Transaction txn,
+      Collection<Key> fetchedKeys,
+      Map<Key, Entity> entities,
+      long startGeneration) {
+    if (generation.get() != startGeneration) {
+      return;
+    }
+    Map<Key, Object> target =
+        txn == null
+            ? entries
+            : txnEntries.computeIfAbsent(txn.getId(), id -> new ConcurrentHashMap<>());
+    for (Key key : fetchedKeys) {
+      if (txn == null && writtenInTxn.contains(key)) {
+        continue;
+      }
+      Entity entity = entities.get(key);
+      target.put(key, entity == null ? ABSENT : entity.clone());
+    }
+  }
+
+  /** Invalidates {@code keys} because they are about to be written or deleted. */
+  void invalidate(@Nullable Transaction txn, Iterable<Key> keys) {
+    generation.incrementAndGet();
+    Map<Key, Object> txnMap = txn == null ? null : txnEntries.get(txn.getId());
+    for (Key key : keys) {
+      entries.remove(key);
+      if (txnMap != null) {
+        txnMap.remove(key);
+      }
+      if (txn == null) {
+        writtenInTxn.remove(key);
+      } else {
+        writtenInTxn.add(key);
+      }
+    }
+  }
+
+  /**
+   * Returns a {@link Future} that caches the written entities once a non-transactional put
+   * succeeds. Transactional puts are never cached, see {@link #invalidate}.
+   */
+  Future<List<Key>> putOnCompletion(
+      @Nullable Transaction txn, List<Entity> entities, Future<List<Key>> result) {
+    if (txn != null) {
+      return result;
+    }
+    long startGeneration = generation.get();
+    // Copy the entities now, since the caller may change them before the put completes. A copy
+    // shares the key of its entity, which the put completes in place.
+    List<Entity> copies = new ArrayList<>(entities.size());
+    for (Entity entity : entities) {
+      copies.add(entity.clone());
+    }
+    return new FutureWrapper<List<Key>, List<Key>>(result) {
+      @Override
+      protected List<Key> wrap(List<Key> keys) {
+        if (generation.get() == startGeneration) {
+          for (Entity copy : copies) {
+            entries.put(copy.getKey(), copy);
+          }
+        }
+        return keys;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  /** Invalidates the keys of {@code entities} that are already complete. */
+  void invalidateEntities(@Nullable Transaction txn, List<Entity> entities) {
+    List<Key> keys = new ArrayList<>(entities.size());
+    for (Entity entity : entities) {
+      if (entity.getKey().isComplete()) {
+        keys.add(entity.getKey());
+      }
+    }
+    invalidate(txn, keys);
+  }
+
+  //@VisibleForTesting
+  int transactionCount() {
+    return txnEntries.size();
+  }
+
+  private void incrementCounter(String attributeKey, long delta) {
+    if (delta != 0) {
+      synchronized (attributes) {
+        attributes.merge(attributeKey, delta, (a, b) -> (Long) a + (Long) b);
+      }
+    }
+  }
+}
@@ -192,6 +192,7 @@ class TransactionImpl implements Transaction, CurrentTransactionProvider {
       if (isExplicit) {
         txnStack.remove(this);
       }
+      RequestEntityCache.transactionEnded(this);
     }
   }
 
@@ -256,6 +257,7 @@ class TransactionImpl implements Transaction, CurrentTransactionProvider {
       if (isExplicit) {
         txnStack.remove(this);
       }
+      RequestEntityCache.transactionEnded(this);
     }
   }
 
@@ -24,6 +24,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
  * An asynchronous version of {@link MemcacheService}.  All methods return
@@ -57,6 +58,16 @@ public interface AsyncMemcacheService extends BaseMemcacheService {
    */
   <T> Future<Map<T, ItemForPeek>> getItemsForPeek(Collection<T> keys);
 
+  /**
+   * Reads the value asynchronously. If it has to be computed, {@code loader} runs on the thread
+   * that calls {@link Future#get} on the returned future.
+   *
+   * @see MemcacheService#getOrCompute(Object, Supplier, ComputeOptions)
+   */
+  default <T> Future<T> getOrCompute(Object key, Supplier<T> loader, ComputeOptions options) {
+    return MemcacheComputation.DEFAULT.getOrCompute(this, key, loader, options);
+  }
+
   /**
    * @see MemcacheService#contains(Object)
    */
@@ -53,6 +53,7 @@ import com.google.common.base.Ascii;
 import com.google.common.base.Joiner;
 import com.google.common.primitives.Bytes;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -311,8 +312,41 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  /**
+   * The name of the system property that makes single-key {@link #get} calls coalesce. Gets made
+   * by one request within a short window are sent together as one call; see {@link
+   * MemcacheGetCoalescer}.
+   */
+  static final String COALESCE_GETS_PROPERTY = "appengine.api.memcache.coalesceGets";
+
+  /**
+   * The name of the system property that sets how long, in microseconds, a coalesced get waits
+   * for others before it is sent.
+   */
+  static final String COALESCE_GETS_WINDOW_PROPERTY =
+      "appengine.api.memcache.coalesceGetsWindowMicros";
+
+  private static class CoalesceGetsHolder {
+    static final boolean INSTANCE = Boolean.getBoolean(COALESCE_GETS_PROPERTY);
+    static final long WINDOW_MICROS =
+        Long.getLong(COALESCE_GETS_WINDOW_PROPERTY, MemcacheGetCoalescer.DEFAULT_WINDOW_MICROS);
+  }
+
+  private final boolean coalesceGets;
+  private final long coalesceWindowMicros;
+
   AsyncMemcacheServiceImpl(String namespace) {
+    this(namespace, CoalesceGetsHolder.INSTANCE);
+  }
+
+  AsyncMemcacheServiceImpl(String namespace, boolean coalesceGets) {
+    this(namespace, coalesceGets, CoalesceGetsHolder.WINDOW_MICROS);
+  }
+
+  AsyncMemcacheServiceImpl(String namespace, boolean coalesceGets, long coalesceWindowMicros) {
     super(namespace);
+    this.coalesceGets = coalesceGets;
+    this.coalesceWindowMicros = coalesceWindowMicros;
   }
 
   static <T, V> Map<T, V> makeMap(Collection<T> keys, V value) {
@@ -331,6 +365,63 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  private static final MemcacheBatcher<ByteString> GET_BATCHER =
+      new MemcacheBatcher<ByteString>() {
+        @Override
+        int getSize(ByteString pbKey) {
+          return CodedOutputStream.computeBytesSize(1, pbKey);
+        }
+      };
+
+  /** Bounds the bytes an item of a set request takes on top of its key and value. */
+  private static final int SET_ITEM_OVERHEAD = 32;
+
+  private static final MemcacheBatcher<MemcacheSetRequest.Item.Builder> SET_BATCHER =
+      new MemcacheBatcher<MemcacheSetRequest.Item.Builder>() {
+        @Override
+        int getSize(MemcacheSetRequest.Item.Builder item) {
+          return item.getKey().size() + item.getValue().size() + SET_ITEM_OVERHEAD;
+        }
+      };
+
+  /** Returns a future over the union of the maps the given futures produce. */
+  private static <K, V> Future<Map<K, V>> mergeMaps(List<Future<Map<K, V>>> futures) {
+    if (futures.size() == 1) {
+      return futures.get(0);
+    }
+    return new MemcacheBatcher.MergingFuture<Map<K, V>, Map<K, V>>(futures) {
+      @Override
+      Map<K, V> initResult() {
+        return new HashMap<>();
+      }
+
+      @Override
+      Map<K, V> merge(Map<K, V> result, Map<K, V> batchResult) {
+        result.putAll(batchResult);
+        return result;
+      }
+    };
+  }
+
+  /** Returns a future over the union of the sets the given futures produce. */
+  private static <T> Future<Set<T>> mergeSets(List<Future<Set<T>>> futures) {
+    if (futures.size() == 1) {
+      return futures.get(0);
+    }
+    return new MemcacheBatcher.MergingFuture<Set<T>, Set<T>>(futures) {
+      @Override
+      Set<T> initResult() {
+        return new HashSet<>();
+      }
+
+      @Override
+      Set<T> merge(Set<T> result, Set<T> batchResult) {
+        result.addAll(batchResult);
+        return result;
+      }
+    };
+  }
+
   private static ValueAndFlags serializeValue(Object value) {
     try {
       return MemcacheSerialization.serialize(value);
@@ -502,6 +593,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public Future<Object> get(final Object key) {
+    if (coalesceGets) {
+      return coalescedGet(key);
+    }
     return doGet(
         key,
         false, // forCas
@@ -516,6 +610,46 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         DefaultValueProviders.nullValue());
   }
 
+  private Future<Object> coalescedGet(Object key) {
+    MemcacheGetCoalescer coalescer = MemcacheGetCoalescer.getCurrent();
+    if (coalescer == null) {
+      // Outside a request there is nothing to coalesce with, and no one to send the gets later.
+      return doGet(
+          key,
+          false, // forCas
+          false, // forPeek
+          "Memcache get: exception getting 1 key (" + key + ")",
+          response -> response.getItemCount() == 0 ? null : deserializeItem(key, response.getItem(0)),
+          DefaultValueProviders.nullValue());
+    }
+    return coalescer.get(this, getEffectiveNamespace(), coalesceWindowMicros, makePbKey(key), key);
+  }
+
+  /** Sends the gets of {@code keys} that {@link MemcacheGetCoalescer} collected as one call. */
+  Future<Map<ByteString, MemcacheGetResponse.Item>> sendCoalescedGets(
+      String namespace, Map<ByteString, Object> keys) {
+    MemcacheGetRequest request =
+        MemcacheGetRequest.newBuilder().setNameSpace(namespace).addAllKey(keys.keySet()).build();
+    return makeAsyncCall(
+        "Get",
+        request,
+        createRpcResponseHandler(
+            MemcacheGetResponse.getDefaultInstance(),
+            "Memcache get: exception getting " + keys.size() + " keys " + keys.values(),
+            getResponse -> {
+              Map<ByteString, MemcacheGetResponse.Item> items = new HashMap<>();
+              for (MemcacheGetResponse.Item item : getResponse.getItemList()) {
+                items.put(item.getKey(), item);
+              }
+              return items;
+            }),
+        DefaultValueProviders.<ByteString, MemcacheGetResponse.Item>emptyMap());
+  }
+
+  Object deserializeCoalescedItem(Object key, MemcacheGetResponse.Item item) {
+    return deserializeItem(key, item);
+  }
+
   @Override
   public Future<IdentifiableValue> getIdentifiable(final Object key) {
     return doGet(
@@ -653,28 +787,36 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       String errorText,
       Transformer<KeyValuePair<K, MemcacheGetResponse.Item>, V> responseTransformer,
       Provider<Map<K, V>> defaultValue) {
-    MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
-    requestBuilder.setNameSpace(getEffectiveNamespace());
+    String namespace = getEffectiveNamespace();
     final Map<ByteString, K> byteStringToKey = new HashMap<ByteString, K>(keys.size(), 1);
+    List<ByteString> pbKeys = new ArrayList<>(keys.size());
     for (K key : keys) {
       ByteString pbKey = makePbKey(key);
       byteStringToKey.put(pbKey, key);
-      requestBuilder.addKey(pbKey);
-    }
-    if (forCas) {
-      requestBuilder.setForCas(forCas);
-    }
-    if (forPeek) {
-      requestBuilder.setForPeek(forPeek);
+      pbKeys.add(pbKey);
     }
     Transformer<MemcacheGetResponse, Map<K, V>> rpcResponseTransformer =
         new GetAllRpcResponseTransformer<>(byteStringToKey, responseTransformer);
-    return makeAsyncCall(
-        "Get",
-        requestBuilder.build(),
-        createRpcResponseHandler(
-            MemcacheGetResponse.getDefaultInstance(), errorText, rpcResponseTransformer),
-        defaultValue);
+    List<Future<Map<K, V>>> futures = new ArrayList<>();
+    for (List<ByteString> batch : GET_BATCHER.split(pbKeys)) {
+      MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
+      requestBuilder.setNameSpace(namespace);
+      requestBuilder.addAllKey(batch);
+      if (forCas) {
+        requestBuilder.setForCas(forCas);
+      }
+      if (forPeek) {
+        requestBuilder.setForPeek(forPeek);
+      }
+      futures.add(
+          makeAsyncCall(
+              "Get",
+              requestBuilder.build(),
+              createRpcResponseHandler(
+                  MemcacheGetResponse.getDefaultInstance(), errorText, rpcResponseTransformer),
+              defaultValue));
+    }
+    return mergeMaps(futures);
   }
 
   private static class GetAllRpcResponseTransformer<K, V>
@@ -842,9 +984,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   private <T> Future<Set<T>> doPutAll(Map<T, ?> values, Expiration expires,
       MemcacheSetRequest.SetPolicy policy, String operation) {
-    MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
-    requestBuilder.setNameSpace(getEffectiveNamespace());
+    String namespace = getEffectiveNamespace();
 
+    List<MemcacheSetRequest.Item.Builder> items = new ArrayList<>(values.size());
     List<T> requestedKeys = new ArrayList<T>(values.size());
     Set<Integer> oversized = new HashSet<>();
     int itemIndex = 0;
@@ -879,7 +1021,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       itemBuilder.setValue(ByteString.copyFrom(vaf.value));
       itemBuilder.setFlags(vaf.flags.ordinal());
       itemBuilder.setSetPolicy(policy);
-      requestBuilder.addItem(itemBuilder);
+      items.add(itemBuilder);
 
       int itemSize = itemBuilder.getKey().size() + itemBuilder.getValue().size();
       if (itemSize > MAX_ITEM_SIZE) {
@@ -888,16 +1030,34 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       itemIndex++;
     }
 
-    return makeAsyncCall(
-        "Set",
-        requestBuilder.build(),
-        createRpcResponseHandlerForPut(
-            requestBuilder.getItemBuilderList(),
-            requestBuilder.getNameSpace(),
-            MemcacheSetResponse.getDefaultInstance(),
-            "Memcache " + operation + ": Unknown exception setting " + values.size() + " keys",
-            new PutAllResponseTransformer<>(requestedKeys, oversized)),
-        DefaultValueProviders.<T>emptySet());
+    List<Future<Set<T>>> futures = new ArrayList<>();
+    int offset = 0;
+    for (List<MemcacheSetRequest.Item.Builder> batch : SET_BATCHER.split(items)) {
+      MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
+      requestBuilder.setNameSpace(namespace);
+      Set<Integer> batchOversized = new HashSet<>();
+      for (int i = 0; i < batch.size(); i++) {
+        requestBuilder.addItem(batch.get(i));
+        if (oversized.contains(offset + i)) {
+          batchOversized.add(i);
+        }
+      }
+      futures.add(
+          makeAsyncCall(
+              "Set",
+              requestBuilder.build(),
+              createRpcResponseHandlerForPut(
+                  requestBuilder.getItemBuilderList(),
+                  requestBuilder.getNameSpace(),
+                  MemcacheSetResponse.getDefaultInstance(),
+                  "Memcache " + operation + ": Unknown exception setting " + batch.size()
+                      + " keys",
+                  new PutAllResponseTransformer<>(
+                      requestedKeys.subList(offset, offset + batch.size()), batchOversized)),
+              DefaultValueProviders.<T>emptySet()));
+      offset += batch.size();
+    }
+    return mergeSets(futures);
   }
 
   private static class PutAllResponseTransformer<T>
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The built-in {@link MemcacheCodec}. It writes the common collection and map classes, datastore
+ * entities and keys, and protocol buffer messages as a compact tagged binary format, so reading
+ * them back involves no class resolution except for the class of a message.
+ *
+ * <p>The elements of collections and maps may be any of those, as well as null, the primitive
+ * wrappers, strings and byte arrays. Other serializable elements are embedded with Java
+ * serialization.
+ *
+ * <p>Protocol buffer messages are recognized by name and handled reflectively rather than through
+ * {@code MessageLite}, because the API jar relocates its own copy of the protocol buffer runtime
+ * and that relocated type is not the one the application's messages implement.
+ */
+final class CompactCodec implements MemcacheCodec {
+  private static final int NULL = 0;
+  private static final int TRUE = 1;
+  private static final int FALSE = 2;
+  private static final int BYTE = 3;
+  private static final int SHORT = 4;
+  private static final int INTEGER = 5;
+  private static final int LONG = 6;
+  private static final int FLOAT = 7;
+  private static final int DOUBLE = 8;
+  private static final int CHARACTER = 9;
+  private static final int STRING = 10;
+  private static final int BYTES = 11;
+  private static final int ARRAY_LIST = 20;
+  private static final int HASH_SET = 21;
+  private static final int LINKED_HASH_SET = 22;
+  private static final int TREE_SET = 23;
+  private static final int HASH_MAP = 24;
+  private static final int LINKED_HASH_MAP = 25;
+  private static final int TREE_MAP = 26;
+  private static final int ENTITY = 30;
+  private static final int KEY = 31;
+  private static final int MESSAGE = 32;
+  private static final int SERIALIZED = 40;
+
+  /**
+   * Suffix of the name of the interface every protocol buffer message implements. It deliberately
+   * does not start with the package name, so relocating {@code com.google.protobuf} in the API jar
+   * leaves it alone and it matches both relocated and application messages.
+   */
+  private static final String MESSAGE_LITE_SUFFIX = ".protobuf.MessageLite";
+
+  /** The serialization methods of each protocol buffer message class, empty for other classes. */
+  private static final ClassValue<Optional<MessageMethods>> messageMethods =
+      new ClassValue<Optional<MessageMethods>>() {
+        @Override
+        protected Optional<MessageMethods> computeValue(Class<?> type) {
+          if (!implementsMessageLite(type)) {
+            return Optional.empty();
+          }
+          try {
+            Method parseFrom = type.getMethod("parseFrom", byte[].class);
+            if (!Modifier.isStatic(parseFrom.getModifiers())
+                || !type.isAssignableFrom(parseFrom.getReturnType())) {
+              return Optional.empty();
+            }
+            return Optional.of(new MessageMethods(type.getMethod("toByteArray"), parseFrom));
+          } catch (NoSuchMethodException e) {
+            return Optional.empty();
+          }
+        }
+      };
+
+  /** The reflective counterparts of {@code MessageLite.toByteArray} and {@code parseFrom}. */
+  private static final class MessageMethods {
+    final Method toByteArray;
+    final Method parseFrom;
+
+    MessageMethods(Method toByteArray, Method parseFrom) {
+      this.toByteArray = toByteArray;
+      this.parseFrom = parseFrom;
+    }
+  }
+
+  private static boolean implementsMessageLite(Class<?> type) {
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      for (Class<?> iface : c.getInterfaces()) {
+        if (iface.getName().endsWith(MESSAGE_LITE_SUFFIX) || implementsMessageLite(iface)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean canEncode(Object value) {
+    return collectionTag(value) != -1
+        || value instanceof Entity
+        || value instanceof Key
+        || messageMethods.get(value.getClass()).isPresent();
+  }
+
+  /**
+   * Returns the tag of a collection or map whose class is decoded as the same class, or -1 if
+   * {@code value} is not one.
+   */
+  private static int collectionTag(Object value) {
+    Class<?> type = value.getClass();
+    if (type == ArrayList.class) {
+      return ARRAY_LIST;
+    } else if (type == HashSet.class) {
+      return HASH_SET;
+    } else if (type == LinkedHashSet.class) {
+      return LINKED_HASH_SET;
+    } else if (type == TreeSet.class && ((SortedSet<?>) value).comparator() == null) {
+      return TREE_SET;
+    } else if (type == HashMap.class) {
+      return HASH_MAP;
+    } else if (type == LinkedHashMap.class) {
+      return LINKED_HASH_MAP;
+    } else if (type == TreeMap.class && ((SortedMap<?, ?>) value).comparator() == null) {
+      return TREE_MAP;
+    }
+    return -1;
+  }
+
+  @Override
+  public void encode(Object value, DataOutput out) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof Boolean b) {
+      out.writeByte(b ? TRUE : FALSE);
+    } else if (value instanceof Byte b) {
+      out.writeByte(BYTE);
+      out.writeByte(b);
+    } else if (value instanceof Short s) {
+      out.writeByte(SHORT);
+      out.writeShort(s);
+    } else if (value instanceof Integer i) {
+      out.writeByte(INTEGER);
+      writeVarLong(out, zigZag(i));
+    } else if (value instanceof Long l) {
+      out.writeByte(LONG);
+      writeVarLong(out, zigZag(l));
+    } else if (value instanceof Float f) {
+      out.writeByte(FLOAT);
+      out.writeFloat(f);
+    } else if (value instanceof Double d) {
+      out.writeByte(DOUBLE);
+      out.writeDouble(d);
+    } else if (value instanceof Character c) {
+      out.writeByte(CHARACTER);
+      out.writeChar(c);
+    } else if (value instanceof String s) {
+      out.writeByte(STRING);
+      writeBytes(out, s.getBytes(UTF_8));
+    } else if (value instanceof byte[] bytes) {
+      out.writeByte(BYTES);
+      writeBytes(out, bytes);
+    } else if (value instanceof Entity entity) {
+      out.writeByte(ENTITY);
+      writeBytes(out, EntityTranslator.convertToPb(entity).toByteArray());
+    } else if (value instanceof Key key) {
+      out.writeByte(KEY);
+      writeBytes(out, KeyFactory.keyToString(key).getBytes(UTF_8));
+    } else {
+      int tag = collectionTag(value);
+      Optional<MessageMethods> message =
+          tag == -1 ? messageMethods.get(value.getClass()) : Optional.empty();
+      if (message.isPresent()) {
+        out.writeByte(MESSAGE);
+        writeBytes(out, value.getClass().getName().getBytes(UTF_8));
+        writeBytes(out, (byte[]) invoke(message.get().toByteArray, value));
+      } else if (tag == -1) {
+        encodeSerialized(value, out);
+      } else if (value instanceof Map<?, ?> map) {
+        out.writeByte(tag);
+        writeVarLong(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          encode(entry.getKey(), out);
+          encode(entry.getValue(), out);
+        }
+      } else {
+        Collection<?> collection = (Collection<?>) value;
+        out.writeByte(tag);
+        writeVarLong(out, collection.size());
+        for (Object element : collection) {
+          encode(element, out);
+        }
+      }
+    }
+  }
+
+  private static void encodeSerialized(Object value, DataOutput out) throws IOException {
+    if (!(value instanceof Serializable)) {
+      throw new NotSerializableException(value.getClass().getName());
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream objOut = new ObjectOutputStream(bytes)) {
+      objOut.writeObject(value);
+    }
+    out.writeByte(SERIALIZED);
+    writeBytes(out, bytes.toByteArray());
+  }
+
+  @Override
+  public Object decode(DataInput in) throws IOException, ClassNotFoundException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case BYTE:
+        return in.readByte();
+      case SHORT:
+        return in.readShort();
+      case INTEGER:
+        return (int) unZigZag(readVarLong(in));
+      case LONG:
+        return unZigZag(readVarLong(in));
+      case FLOAT:
+        return in.readFloat();
+      case DOUBLE:
+        return in.readDouble();
+      case CHARACTER:
+        return in.readChar();
+      case STRING:
+        return new String(readBytes(in), UTF_8);
+      case BYTES:
+        return readBytes(in);
+      case ARRAY_LIST:
+        return decodeElements(in, new ArrayList<>());
+      case HASH_SET:
+        return decodeElements(in, new HashSet<>());
+      case LINKED_HASH_SET:
+        return decodeElements(in, new LinkedHashSet<>());
+      case TREE_SET:
+        return decodeElements(in, new TreeSet<>());
+      case HASH_MAP:
+        return decodeEntries(in, new HashMap<>());
+      case LINKED_HASH_MAP:
+        return decodeEntries(in, new LinkedHashMap<>());
+      case TREE_MAP:
+        return decodeEntries(in, new TreeMap<>());
+      case ENTITY:
+        return EntityTranslator.createFromPbBytes(readBytes(in));
+      case KEY:
+        return KeyFactory.stringToKey(new String(readBytes(in), UTF_8));
+      case MESSAGE:
+        return decodeMessage(in);
+      case SERIALIZED:
+        try (ObjectInputStream objIn =
+            MemcacheSerialization.newObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+          return objIn.readObject();
+        }
+      default:
+        throw new InvalidValueException("Cannot deserialize compact value: bad tag " + tag, null);
+    }
+  }
+
+  private Object decodeElements(DataInput in, Collection<Object> collection)
+      throws IOException, ClassNotFoundException {
+    int size = readSize(in);
+    for (int i = 0; i < size; i++) {
+      collection.add(decode(in));
+    }
+    return collection;
+  }
+
+  private Object decodeEntries(DataInput in, Map<Object, Object> map)
+      throws IOException, ClassNotFoundException {
+    int size = readSize(in);
+    for (int i = 0; i < size; i++) {
+      Object key = decode(in);
+      map.put(key, decode(in));
+    }
+    return map;
+  }
+
+  private static Object decodeMessage(DataInput in) throws IOException, ClassNotFoundException {
+    String className = new String(readBytes(in), UTF_8);
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if (loader == null) {
+      loader = CompactCodec.class.getClassLoader();
+    }
+    // The name comes from the cache, so the class is only initialized once it is known to be a
+    // message, which parseFrom below does.
+    Optional<MessageMethods> message =
+        messageMethods.get(Class.forName(className, /* initialize= */ false, loader));
+    if (message.isEmpty()) {
+      throw new InvalidValueException(
+          "Cannot deserialize compact value: not a protocol buffer message: " + className, null);
+    }
+    return invoke(message.get().parseFrom, null, readBytes(in));
+  }
+
+  /** Invokes a protocol buffer method, reporting any failure as an {@link IOException}. */
+  private static Object invoke(Method method, Object target, Object... args) throws IOException {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        // InvalidProtocolBufferException, from parseFrom.
+        throw new InvalidValueException("Cannot deserialize " + method.getDeclaringClass(), cause);
+      }
+      throw new IOException("Failed to invoke " + method, cause);
+    } catch (IllegalAccessException e) {
+      throw new IOException("Failed to invoke " + method, e);
+    }
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(DataOutput out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInput in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new InvalidValueException("Cannot deserialize compact value: bad varint", null);
+  }
+
+  private static int readSize(DataInput in) throws IOException {
+    long size = readVarLong(in);
+    if (size < 0 || size > Integer.MAX_VALUE) {
+      throw new InvalidValueException("Cannot deserialize compact value: bad length", null);
+    }
+    return (int) size;
+  }
+
+  private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInput in) throws IOException {
+    byte[] bytes = new byte[readSize(in)];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Configures how {@link MemcacheService#getOrCompute} computes and stores a missing value. For
+ * example:
+ *
+ * <pre>
+ *   ComputeOptions options = ComputeOptions.builder()
+ *       .expiration(Expiration.byDeltaSeconds(600))
+ *       .lease(Duration.ofSeconds(10))
+ *       .earlyRefresh(Duration.ofMillis(200))
+ *       .build();
+ *   Config config = memcache.getOrCompute("config", () -> loadConfig(), options);
+ * </pre>
+ */
+@AutoValue
+public abstract class ComputeOptions {
+  abstract @Nullable Expiration expiration();
+
+  abstract Duration lease();
+
+  abstract @Nullable Duration leaseWait();
+
+  abstract Duration earlyRefresh();
+
+  /** Returns how long to wait for another instance holding the lease to store the value. */
+  Duration effectiveLeaseWait() {
+    return leaseWait() == null ? lease() : leaseWait();
+  }
+
+  /** Returns a {@link ComputeOptions.Builder}. */
+  public static ComputeOptions.Builder builder() {
+    return new AutoValue_ComputeOptions.Builder().lease(Duration.ZERO).earlyRefresh(Duration.ZERO);
+  }
+
+  /** Builder for {@link ComputeOptions}. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    /** Sets when a computed value expires. By default it does not expire. */
+    public abstract ComputeOptions.Builder expiration(@Nullable Expiration value);
+
+    /**
+     * Makes instances take a lease in memcache before computing a missing value, so that only one
+     * instance at a time computes it while the others wait for it to be stored. The lease expires
+     * after {@code value}, in case its holder never stores the value. Defaults to zero, which
+     * only keeps concurrent computations within one instance apart.
+     */
+    public abstract ComputeOptions.Builder lease(Duration value);
+
+    /**
+     * Sets how long an instance that could not take the lease waits for the value before
+     * computing it anyway. Defaults to the duration of the lease.
+     */
+    public abstract ComputeOptions.Builder leaseWait(Duration value);
+
+    /**
+     * Enables recomputing a value before it expires, with a probability that rises as its
+     * expiration nears, so that one reader refreshes it while the others still read the old value
+     * instead of all of them missing at once. {@code value} is about how long the computation
+     * takes: the larger it is, the earlier refreshes start. Defaults to zero, which disables early
+     * refreshes.
+     */
+    public abstract ComputeOptions.Builder earlyRefresh(Duration value);
+
+    abstract ComputeOptions autoBuild();
+
+    public ComputeOptions build() {
+      ComputeOptions options = autoBuild();
+      checkArgument(!options.lease().isNegative(), "lease must not be negative");
+      checkArgument(
+          options.leaseWait() == null || !options.leaseWait().isNegative(),
+          "leaseWait must not be negative");
+      checkArgument(!options.earlyRefresh().isNegative(), "earlyRefresh must not be negative");
+      checkArgument(
+          options.lease().toMillis() <= Integer.MAX_VALUE, "lease must fit in an Expiration");
+      return options;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits the items of a multi-key memcache call into batches that each stay within the item count
+ * and request size limits of a single call. Each batch is sent as its own call, and the results of
+ * the calls are merged again with a {@link MergingFuture}.
+ *
+ * @param <T> the item type
+ */
+abstract class MemcacheBatcher<T> {
+
+  /** The maximum number of keys sent in a single call. */
+  static final int MAX_BATCH_ITEMS = 1000;
+
+  /**
+   * The maximum size in bytes of the items of a single call. This leaves some room below the 32MB
+   * request limit of the memcache service for the rest of the request.
+   */
+  static final int MAX_BATCH_BYTES = (32 << 20) - (64 << 10);
+
+  /** Returns the number of bytes {@code item} adds to a request. */
+  abstract int getSize(T item);
+
+  /**
+   * Splits {@code items} into batches, preserving their order. A batch always holds at least one
+   * item, even if that item alone exceeds the size limit.
+   */
+  List<List<T>> split(List<T> items) {
+    if (items.size() <= MAX_BATCH_ITEMS && totalSize(items) <= MAX_BATCH_BYTES) {
+      return Collections.singletonList(items);
+    }
+    List<List<T>> batches = new ArrayList<>();
+    List<T> batch = new ArrayList<>();
+    int batchSize = 0;
+    for (T item : items) {
+      int size = getSize(item);
+      if (!batch.isEmpty()
+          && (batch.size() == MAX_BATCH_ITEMS || batchSize + size > MAX_BATCH_BYTES)) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchSize = 0;
+      }
+      batch.add(item);
+      batchSize += size;
+    }
+    batches.add(batch);
+    return batches;
+  }
+
+  private long totalSize(List<T> items) {
+    long size = 0;
+    for (T item : items) {
+      size += getSize(item);
+    }
+    return size;
+  }
+
+  /**
+   * A future over the results of the calls made for each batch, merged into one result.
+   *
+   * @param <K> the result type of a single call
+   * @param <V> the merged result type
+   */
+  abstract static class MergingFuture<K, V> implements Future<V> {
+    private final List<Future<K>> futures;
+
+    MergingFuture(List<Future<K>> futures) {
+      this.futures = futures;
+    }
+
+    /** Returns {@code result} with the result of one more call merged into it. */
+    abstract V merge(V result, K batchResult);
+
+    /** Returns the result to merge the results of the calls into. */
+    abstract V initResult();
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+      V result = initResult();
+      for (Future<K> future : futures) {
+        result = merge(result, future.get());
+      }
+      return result;
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      V result = initResult();
+      for (Future<K> future : futures) {
+        result = merge(result, future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+      }
+      return result;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean result = true;
+      for (Future<K> future : futures) {
+        result &= future.cancel(mayInterruptIfRunning);
+      }
+      return result;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      boolean result = true;
+      for (Future<K> future : futures) {
+        result &= future.isCancelled();
+      }
+      return result;
+    }
+
+    @Override
+    public boolean isDone() {
+      boolean result = true;
+      for (Future<K> future : futures) {
+        result &= future.isDone();
+      }
+      return result;
+    }
+  }
+}
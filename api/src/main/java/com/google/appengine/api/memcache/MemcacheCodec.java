@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encodes memcache values of the types it supports in a format of its own, instead of Java
+ * serialization. Values written by a codec are stored with the {@link
+ * MemcacheSerialization.Flag#CODEC} flag and the ID the codec was registered with, so the codec
+ * must be registered with {@link MemcacheSerialization#registerCodec} under the same ID by every
+ * application version that reads them.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface MemcacheCodec {
+  /** Returns whether this codec encodes {@code value}. {@code value} is never null. */
+  boolean canEncode(Object value);
+
+  /** Writes {@code value}, for which {@link #canEncode} returned true, to {@code out}. */
+  void encode(Object value, DataOutput out) throws IOException;
+
+  /** Reads a value written by {@link #encode} from {@code in}. */
+  Object decode(DataInput in) throws IOException, ClassNotFoundException;
+}
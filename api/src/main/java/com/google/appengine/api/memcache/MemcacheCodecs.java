@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * The registered {@link MemcacheCodec}s, and the framing of the values they write.
+ *
+ * <p>A value with the {@link MemcacheSerialization.Flag#CODEC} flag starts with the ID of the
+ * codec that wrote it and a byte telling whether the rest of the value is compressed, followed by
+ * what the codec wrote. ID 0 is the built-in {@link CompactCodec}, which can always be read but is
+ * only used for writing when enabled, so that application versions that predate it can still read
+ * the values written while both are serving.
+ */
+final class MemcacheCodecs {
+  // The name of the system property that enables writing values with the built-in codec.
+  static final String USE_COMPACT_CODEC_PROPERTY = "appengine.api.memcache.useCompactCodec";
+
+  // The name of the system property that sets the size in bytes above which values written by a
+  // codec are compressed.
+  static final String COMPRESSION_THRESHOLD_PROPERTY =
+      "appengine.api.memcache.compressionThreshold";
+
+  static final int DEFAULT_COMPRESSION_THRESHOLD = 32 * 1024;
+
+  static final int COMPACT_CODEC_ID = 0;
+  static final int MAX_CODEC_ID = 127;
+
+  private static final byte UNCOMPRESSED = 0;
+  private static final byte DEFLATED = 1;
+
+  private static final AtomicReferenceArray<MemcacheCodec> codecs =
+      new AtomicReferenceArray<>(MAX_CODEC_ID + 1);
+
+  static {
+    codecs.set(COMPACT_CODEC_ID, new CompactCodec());
+  }
+
+  private static volatile boolean compactCodecEnabled =
+      Boolean.getBoolean(USE_COMPACT_CODEC_PROPERTY);
+
+  private static volatile int compressionThreshold =
+      Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_COMPRESSION_THRESHOLD);
+
+  private MemcacheCodecs() {}
+
+  static synchronized void register(int id, MemcacheCodec codec) {
+    if (id <= COMPACT_CODEC_ID || id > MAX_CODEC_ID) {
+      throw new IllegalArgumentException(
+          "Codec IDs must be between 1 and " + MAX_CODEC_ID + ", got " + id);
+    }
+    MemcacheCodec registered = codecs.get(id);
+    if (registered != null && registered != codec) {
+      throw new IllegalStateException("A different codec is already registered with ID " + id);
+    }
+    codecs.set(id, codec);
+  }
+
+  static void setCompactCodecEnabled(boolean enabled) {
+    compactCodecEnabled = enabled;
+  }
+
+  static void setCompressionThreshold(int threshold) {
+    compressionThreshold = threshold;
+  }
+
+  /**
+   * Encodes {@code value} with the first registered codec that accepts it, or returns null if
+   * none does. Codecs registered by the application take precedence over the built-in one.
+   */
+  static byte @Nullable [] encode(Object value) throws IOException {
+    for (int id = MAX_CODEC_ID; id >= COMPACT_CODEC_ID; id--) {
+      MemcacheCodec codec = codecs.get(id);
+      if (codec == null
+          || (id == COMPACT_CODEC_ID && !compactCodecEnabled)
+          || !codec.canEncode(value)) {
+        continue;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      bytes.write(id);
+      bytes.write(UNCOMPRESSED);
+      DataOutputStream out = new DataOutputStream(bytes);
+      codec.encode(value, out);
+      out.flush();
+      byte[] encoded = bytes.toByteArray();
+      return encoded.length > compressionThreshold ? compress(encoded) : encoded;
+    }
+    return null;
+  }
+
+  /** Returns {@code encoded} compressed, unless that does not make it smaller. */
+  private static byte[] compress(byte[] encoded) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length / 2);
+    bytes.write(encoded[0]);
+    bytes.write(DEFLATED);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+      out.write(encoded, 2, encoded.length - 2);
+    } finally {
+      deflater.end();
+    }
+    return bytes.size() < encoded.length ? bytes.toByteArray() : encoded;
+  }
+
+  static Object decode(byte[] value) throws IOException, ClassNotFoundException {
+    if (value.length < 2) {
+      throw new InvalidValueException("Cannot deserialize codec value: bad length", null);
+    }
+    int id = value[0];
+    MemcacheCodec codec = id >= 0 ? codecs.get(id) : null;
+    if (codec == null) {
+      throw new InvalidValueException("Cannot deserialize value of unknown codec " + id, null);
+    }
+    InputStream in = new ByteArrayInputStream(value, 2, value.length - 2);
+    switch (value[1]) {
+      case UNCOMPRESSED:
+        break;
+      case DEFLATED:
+        in = new InflaterInputStream(in);
+        break;
+      default:
+        throw new InvalidValueException("Cannot deserialize codec value: bad compression", null);
+    }
+    try (DataInputStream dataIn = new DataInputStream(in)) {
+      Object decoded = codec.decode(dataIn);
+      if (dataIn.read() != -1) {
+        throw new InvalidValueException("Cannot deserialize codec value: trailing bytes", null);
+      }
+      return decoded;
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.memcache.AsyncMemcacheServiceImpl.ItemForPeekImpl;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.ItemForPeek;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.utils.FutureWrapper;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Implements {@link MemcacheService#getOrCompute} and {@link AsyncMemcacheService#getOrCompute}.
+ *
+ * <p>Three things keep a popular value from being recomputed by every request that misses it:
+ *
+ * <ul>
+ *   <li>Within an instance, only one thread computes a given key at a time. The others wait for
+ *       its result, or keep returning the old value if there is one.
+ *   <li>With a lease, an instance first adds a lease item next to the value with {@link
+ *       SetPolicy#ADD_ONLY_IF_NOT_PRESENT}. Instances that find the lease taken wait for the value
+ *       to appear instead of computing it.
+ *   <li>With early refreshes, each read of a value that is about to expire recomputes it with a
+ *       probability that rises as its expiration nears, as described in "Optimal Probabilistic
+ *       Cache Stampede Prevention" (Vattani et al.), so that the value is usually replaced before
+ *       it expires.
+ * </ul>
+ */
+final class MemcacheComputation {
+  static final MemcacheComputation DEFAULT =
+      new MemcacheComputation(Clock.systemUTC(), () -> ThreadLocalRandom.current().nextDouble());
+
+  // Prefixes the key of a value to make the key of its lease.
+  static final String LEASE_KEY_PREFIX = "__appengine_memcache_lease__";
+
+  private static final long INITIAL_POLL_MILLIS = 50;
+  private static final long MAX_POLL_MILLIS = 500;
+
+  /** The memcache operations needed to compute a value, over either memcache interface. */
+  interface Store {
+    /** Returns the namespace of the service, or null for the current namespace. */
+    String getNamespace();
+
+    ItemForPeek getItemForPeek(Object key);
+
+    boolean put(Object key, Object value, Expiration expires, SetPolicy policy);
+
+    IdentifiableValue getIdentifiable(Object key);
+
+    boolean delete(Object key);
+  }
+
+  private final Clock clock;
+  private final DoubleSupplier random;
+
+  // The computations running in this instance, by namespace and key.
+  private final ConcurrentHashMap<List<Object>, CompletableFuture<Object>> inFlight =
+      new ConcurrentHashMap<>();
+
+  MemcacheComputation(Clock clock, DoubleSupplier random) {
+    this.clock = clock;
+    this.random = random;
+  }
+
+  <T> T getOrCompute(
+      MemcacheService memcache, Object key, Supplier<T> loader, ComputeOptions options) {
+    Store store = storeOf(memcache);
+    return finish(store, flightKey(store, key), key, store.getItemForPeek(key), loader, options);
+  }
+
+  <T> Future<T> getOrCompute(
+      AsyncMemcacheService memcache, Object key, Supplier<T> loader, ComputeOptions options) {
+    Store store = storeOf(memcache);
+    List<Object> flightKey = flightKey(store, key);
+    return new FutureWrapper<ItemForPeek, T>(memcache.getItemForPeek(key)) {
+      @Override
+      protected T wrap(ItemForPeek item) {
+        return finish(store, flightKey, key, item, loader, options);
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  /** Returns the value of {@code item} unless it is missing or due for a refresh. */
+  @SuppressWarnings("unchecked")
+  private <T> T finish(
+      Store store,
+      List<Object> flightKey,
+      Object key,
+      ItemForPeek item,
+      Supplier<T> loader,
+      ComputeOptions options) {
+    if (isMissing(item)) {
+      item = null;
+    } else if (!shouldRefreshEarly(item, options)) {
+      return (T) item.getValue();
+    }
+    CompletableFuture<Object> computation = new CompletableFuture<>();
+    CompletableFuture<Object> running = inFlight.putIfAbsent(flightKey, computation);
+    if (running != null) {
+      return item != null ? (T) item.getValue() : (T) await(running);
+    }
+    try {
+      Object value = computeWithLease(store, key, item, loader, options);
+      computation.complete(value);
+      return (T) value;
+    } catch (RuntimeException | Error e) {
+      computation.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(flightKey, computation);
+    }
+  }
+
+  private Object computeWithLease(
+      Store store, Object key, ItemForPeek item, Supplier<?> loader, ComputeOptions options) {
+    if (options.lease().isZero()) {
+      return compute(store, key, loader, options);
+    }
+    Object leaseKey = Arrays.asList(LEASE_KEY_PREFIX, key);
+    String token = UUID.randomUUID().toString();
+    Expiration leaseExpiration = Expiration.byDeltaMillis((int) options.lease().toMillis());
+    if (store.put(leaseKey, token, leaseExpiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      try {
+        return compute(store, key, loader, options);
+      } finally {
+        releaseLease(store, leaseKey, token);
+      }
+    }
+    // Another instance is computing the value.
+    if (item != null) {
+      return item.getValue();
+    }
+    ItemForPeek stored = awaitStored(store, key, options.effectiveLeaseWait());
+    return stored != null ? stored.getValue() : compute(store, key, loader, options);
+  }
+
+  private static Object compute(
+      Store store, Object key, Supplier<?> loader, ComputeOptions options) {
+    Object value = loader.get();
+    store.put(key, value, options.expiration(), SetPolicy.SET_ALWAYS);
+    return value;
+  }
+
+  /**
+   * Deletes the lease unless it expired and was taken by another instance. The lease can still
+   * expire between the two calls, in which case the other instance may compute the value again.
+   */
+  private static void releaseLease(Store store, Object leaseKey, String token) {
+    IdentifiableValue lease = store.getIdentifiable(leaseKey);
+    if (lease != null && token.equals(lease.getValue())) {
+      store.delete(leaseKey);
+    }
+  }
+
+  /** Polls for a value stored by the holder of its lease, giving up after {@code wait}. */
+  private ItemForPeek awaitStored(Store store, Object key, Duration wait) {
+    long deadline = System.nanoTime() + wait.toNanos();
+    long pollMillis = INITIAL_POLL_MILLIS;
+    while (true) {
+      long remainingMillis = Duration.ofNanos(deadline - System.nanoTime()).toMillis();
+      if (remainingMillis <= 0) {
+        return null;
+      }
+      try {
+        Thread.sleep(Math.min(pollMillis, remainingMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      ItemForPeek item = store.getItemForPeek(key);
+      if (!isMissing(item)) {
+        return item;
+      }
+      pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+    }
+  }
+
+  /**
+   * Returns whether to recompute {@code item} now. That is the case with probability {@code
+   * exp(-(expiration - now) / earlyRefresh)}, so a value is refreshed about {@code earlyRefresh}
+   * before it expires, and by one of the few requests that read it then.
+   */
+  private boolean shouldRefreshEarly(ItemForPeek item, ComputeOptions options) {
+    Long expirationTimeSec = item.getExpirationTimeSec();
+    if (options.earlyRefresh().isZero() || expirationTimeSec == null || expirationTimeSec == 0) {
+      return false;
+    }
+    // 1 - random is in (0, 1], so its logarithm is finite and not positive.
+    double gapMillis = -options.earlyRefresh().toMillis() * Math.log(1 - random.getAsDouble());
+    return clock.millis() + gapMillis >= expirationTimeSec * 1000;
+  }
+
+  private static boolean isMissing(ItemForPeek item) {
+    return item == null || item.getDeleteLockTimeSec() != null;
+  }
+
+  /** Returns the value being computed by another thread, rethrowing what it threw. */
+  private static Object await(CompletableFuture<Object> computation) {
+    try {
+      return computation.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      } else if (cause instanceof Error error) {
+        throw error;
+      }
+      throw e;
+    }
+  }
+
+  private static List<Object> flightKey(Store store, Object key) {
+    String namespace = store.getNamespace();
+    return Arrays.asList(namespace != null ? namespace : NamespaceManager.get(), key);
+  }
+
+  static Store storeOf(MemcacheService memcache) {
+    return new Store() {
+      @Override
+      public String getNamespace() {
+        return memcache.getNamespace();
+      }
+
+      // Services that do not implement getItemForPeek() are read without expiration times, so
+      // their values are not refreshed early.
+      @Override
+      public ItemForPeek getItemForPeek(Object key) {
+        try {
+          return memcache.getItemForPeek(key);
+        } catch (UnsupportedOperationException e) {
+          Object value = memcache.get(key);
+          return value != null || memcache.contains(key)
+              ? new ItemForPeekImpl(value, null, null, null)
+              : null;
+        }
+      }
+
+      @Override
+      public boolean put(Object key, Object value, Expiration expires, SetPolicy policy) {
+        return memcache.put(key, value, expires, policy);
+      }
+
+      @Override
+      public IdentifiableValue getIdentifiable(Object key) {
+        return memcache.getIdentifiable(key);
+      }
+
+      @Override
+      public boolean delete(Object key) {
+        return memcache.delete(key);
+      }
+    };
+  }
+
+  static Store storeOf(AsyncMemcacheService memcache) {
+    return new Store() {
+      @Override
+      public String getNamespace() {
+        return memcache.getNamespace();
+      }
+
+      @Override
+      public ItemForPeek getItemForPeek(Object key) {
+        return quietGet(memcache.getItemForPeek(key));
+      }
+
+      @Override
+      public boolean put(Object key, Object value, Expiration expires, SetPolicy policy) {
+        return quietGet(memcache.put(key, value, expires, policy));
+      }
+
+      @Override
+      public IdentifiableValue getIdentifiable(Object key) {
+        return quietGet(memcache.getIdentifiable(key));
+      }
+
+      @Override
+      public boolean delete(Object key) {
+        return quietGet(memcache.delete(key));
+      }
+    };
+  }
+
+  private static <T> T quietGet(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MemcacheServiceException("Unexpected failure", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      } else if (cause instanceof Error error) {
+        throw error;
+      } else {
+        throw new UndeclaredThrowableException(cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.apphosting.api.ApiProxy;
+import com.google.protobuf.ByteString;
+import java.io.Flushable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Collects the single-key gets a request makes within a short window and sends them as one
+ * multi-get. Used when {@link AsyncMemcacheServiceImpl#COALESCE_GETS_PROPERTY} is set.
+ *
+ * <p>The coalescer lives in the {@link ApiProxy.Environment#getAttributes() attributes} of the
+ * request, so it is shared by every memcache service the request uses and is discarded with it.
+ * Pending gets are sent when:
+ *
+ * <ul>
+ *   <li>the window of {@value AsyncMemcacheServiceImpl#COALESCE_GETS_WINDOW_PROPERTY} microseconds
+ *       (default {@value #DEFAULT_WINDOW_MICROS}) since the first of them has passed, so a get
+ *       issued ahead of other work is in flight while that work runs;
+ *   <li>the result of one of them is needed;
+ *   <li>they reach the maximum number of keys of a single call;
+ *   <li>a get through another service or in another namespace is made;
+ *   <li>any other memcache call of the request is about to be made, through any service, so that
+ *       a get never observes a change made after it.
+ * </ul>
+ */
+final class MemcacheGetCoalescer implements Flushable {
+
+  private static final Logger logger = Logger.getLogger(MemcacheGetCoalescer.class.getName());
+
+  /** Key in {@link ApiProxy.Environment#getAttributes()} holding the coalescer of a request. */
+  static final String PENDING_GETS_ATTRIBUTE_KEY =
+      "com.google.appengine.api.memcache.PendingGets";
+
+  static final long DEFAULT_WINDOW_MICROS = 1000;
+
+  /** Set once any service coalesces gets, so other calls skip the lookup until then. */
+  private static volatile boolean used;
+
+  private static class TimerHolder {
+    static final ScheduledThreadPoolExecutor INSTANCE = newTimer();
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+      ScheduledThreadPoolExecutor timer =
+          new ScheduledThreadPoolExecutor(
+              1,
+              runnable -> {
+                Thread thread = new Thread(runnable, "memcache-get-coalescer");
+                thread.setDaemon(true);
+                return thread;
+              });
+      // Most batches are sent before their window ends, which cancels their timer.
+      timer.setRemoveOnCancelPolicy(true);
+      return timer;
+    }
+  }
+
+  private final ApiProxy.Environment environment;
+
+  // Guarded by this.
+  private @Nullable Batch pending;
+
+  private MemcacheGetCoalescer(ApiProxy.Environment environment) {
+    this.environment = environment;
+  }
+
+  /**
+   * Returns the coalescer of the current request, or {@code null} if there is no current request.
+   */
+  static @Nullable MemcacheGetCoalescer getCurrent() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    Map<String, Object> attributes = environment == null ? null : environment.getAttributes();
+    if (attributes == null) {
+      return null;
+    }
+    used = true;
+    // The attributes map is not necessarily thread-safe, but threads of the same request share it.
+    synchronized (attributes) {
+      Object coalescer = attributes.get(PENDING_GETS_ATTRIBUTE_KEY);
+      if (coalescer == null) {
+        coalescer = new MemcacheGetCoalescer(environment);
+        attributes.put(PENDING_GETS_ATTRIBUTE_KEY, coalescer);
+      }
+      return (MemcacheGetCoalescer) coalescer;
+    }
+  }
+
+  /** Sends the gets the current request holds back, if any. Called before every memcache call. */
+  static void flushCurrent() {
+    if (!used) {
+      return;
+    }
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    Map<String, Object> attributes = environment == null ? null : environment.getAttributes();
+    if (attributes == null) {
+      return;
+    }
+    Object coalescer;
+    synchronized (attributes) {
+      coalescer = attributes.get(PENDING_GETS_ATTRIBUTE_KEY);
+    }
+    if (coalescer != null) {
+      ((MemcacheGetCoalescer) coalescer).flush();
+    }
+  }
+
+  /** Queues a get of {@code key} through {@code service} in {@code namespace}. */
+  synchronized Future<Object> get(
+      AsyncMemcacheServiceImpl service,
+      String namespace,
+      long windowMicros,
+      ByteString pbKey,
+      Object key) {
+    Batch batch = pending;
+    if (batch == null || batch.service != service || !batch.namespace.equals(namespace)) {
+      flush();
+      batch = new Batch(service, namespace);
+      pending = batch;
+      Batch scheduled = batch;
+      batch.timer =
+          TimerHolder.INSTANCE.schedule(
+              () -> sendOnTimer(scheduled), windowMicros, TimeUnit.MICROSECONDS);
+    }
+    batch.keys.putIfAbsent(pbKey, key);
+    if (batch.keys.size() >= MemcacheBatcher.MAX_BATCH_ITEMS) {
+      send(batch);
+    }
+    return new PendingGet(batch, pbKey, key);
+  }
+
+  /** Sends the pending gets. Does not wait for their results. */
+  @Override
+  public synchronized void flush() {
+    if (pending != null) {
+      send(pending);
+    }
+  }
+
+  private synchronized Future<Map<ByteString, MemcacheGetResponse.Item>> send(Batch batch) {
+    if (batch.response == null) {
+      if (pending == batch) {
+        // Cleared first: making the call flushes the coalescer again.
+        pending = null;
+      }
+      if (batch.timer != null) {
+        batch.timer.cancel(false);
+      }
+      batch.response = batch.service.sendCoalescedGets(batch.namespace, batch.keys);
+    }
+    return batch.response;
+  }
+
+  /** Sends {@code batch} from the timer thread, on behalf of the request that made it. */
+  private void sendOnTimer(Batch batch) {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      send(batch);
+    } catch (RuntimeException e) {
+      // Typically because the request has ended; whoever waits for a result sees the failure.
+      logger.log(Level.FINE, "Failed to send coalesced memcache gets", e);
+    } finally {
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+  }
+
+  /** Gets made through one service in one namespace that are sent as one call. */
+  private static final class Batch {
+    final AsyncMemcacheServiceImpl service;
+    final String namespace;
+    final Map<ByteString, Object> keys = new LinkedHashMap<>();
+    // Guarded by the coalescer.
+    @Nullable Future<?> timer;
+    @Nullable Future<Map<ByteString, MemcacheGetResponse.Item>> response;
+
+    Batch(AsyncMemcacheServiceImpl service, String namespace) {
+      this.service = service;
+      this.namespace = namespace;
+    }
+  }
+
+  /** The future of one get, which sends its batch as soon as its result is needed. */
+  private final class PendingGet implements Future<Object> {
+    private final Batch batch;
+    private final ByteString pbKey;
+    private final Object key;
+
+    PendingGet(Batch batch, ByteString pbKey, Object key) {
+      this.batch = batch;
+      this.pbKey = pbKey;
+      this.key = key;
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException {
+      return getValue(send(batch).get());
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return getValue(send(batch).get(timeout, unit));
+    }
+
+    private Object getValue(Map<ByteString, MemcacheGetResponse.Item> items) {
+      MemcacheGetResponse.Item item = items.get(pbKey);
+      return item == null ? null : batch.service.deserializeCoalescedItem(key, item);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      // The call is shared with other gets.
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return send(batch).isDone();
+    }
+  }
+}
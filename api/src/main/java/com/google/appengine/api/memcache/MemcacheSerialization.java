@@ -24,6 +24,7 @@ import com.google.common.primitives.Bytes;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
@@ -56,7 +57,8 @@ public class MemcacheSerialization {
     LONG,    // python TYPE_LONG
     BOOLEAN,  // python TYPE_BOOL
     BYTE,
-    SHORT;
+    SHORT,
+    CODEC;   // written by a MemcacheCodec, see MemcacheCodecs for the format
 
     private static final Flag[] VALUES = Flag.values();
 
@@ -124,6 +126,27 @@ public class MemcacheSerialization {
     // non-instantiable
   }
 
+  /**
+   * Registers a codec for the values it {@linkplain MemcacheCodec#canEncode accepts}. From then
+   * on such values are written by the codec with the {@link Flag#CODEC} flag, instead of with
+   * Java serialization, and values written by a codec with the same ID can be read.
+   *
+   * <p>Codecs with higher IDs are asked first. The built-in codec for collections, maps,
+   * datastore entities and keys and protocol buffer messages is asked last. It is only used for
+   * writing when the {@code appengine.api.memcache.useCompactCodec} system property is true,
+   * but values it wrote can always be read. Values written by any codec that are larger than the
+   * {@code appengine.api.memcache.compressionThreshold} system property, 32KB by default, are
+   * compressed.
+   *
+   * @param id an ID between 1 and 127 that identifies the codec in the values it writes
+   * @param codec the codec
+   * @throws IllegalArgumentException if {@code id} is out of range
+   * @throws IllegalStateException if a different codec has been registered with {@code id}
+   */
+  public static void registerCodec(int id, MemcacheCodec codec) {
+    MemcacheCodecs.register(id, codec);
+  }
+
   /**
    * Deserialize the object, according to its flags.  This would have private
    * visibility, but is also used by LocalMemcacheService for the increment
@@ -182,49 +205,56 @@ public class MemcacheSerialization {
         if (value.length == 0) {
           return null;
         }
-        ByteArrayInputStream baos = new ByteArrayInputStream(value);
-
-        ObjectInputStream objIn = null;
-        if (UseThreadContextClassLoaderHolder.INSTANCE) {
-          objIn = new ObjectInputStream(baos) {
-            // If there are more user-defined class loaders, the default class loader by
-            // ObjectInputStream might not be enough. For example, in Jetty, there are two
-            // user-defined class loaders, i.e. startJarLoader (the parent) and WebAppClassLoader
-            // (the child). startJarLoader normally loads this class, and WebAppClassLoader
-            // normally loads application classes. When an application object is serialized,
-            // startJarLoader will load this class and WebAppClassLoader will the application
-            // class. However, when the application object is deserialized, startJarLoader will
-            // be unfortunately used according to the logic of ObjectInputStream. This will cause
-            // ClassNotFoundException because startJarLoader could not find the application class.
-            @Override
-            protected Class<?> resolveClass(ObjectStreamClass objectStreamClass)
-                throws ClassNotFoundException, IOException {
-              ClassLoader threadClassLoader = Thread.currentThread().getContextClassLoader();
-              if (threadClassLoader == null) {
-                return super.resolveClass(objectStreamClass);
-              }
-
-              try {
-                return Class.forName(objectStreamClass.getName(), false, threadClassLoader);
-              } catch (ClassNotFoundException ex) {
-                return super.resolveClass(objectStreamClass);
-              }
-            }
-          };
-        } else {
-          objIn = new ObjectInputStream(baos);
-        }
-
+        ObjectInputStream objIn = newObjectInputStream(new ByteArrayInputStream(value));
         Object response = objIn.readObject();
         objIn.close();
         return response;
 
+      case CODEC:
+        return MemcacheCodecs.decode(value);
+
       default:
         assert false;
     }
     return null;
   }
 
+  /**
+   * Returns a stream that reads objects written with Java serialization, resolving their classes
+   * as configured by {@link #USE_THREAD_CONTEXT_CLASSLOADER_PROPERTY}.
+   */
+  static ObjectInputStream newObjectInputStream(InputStream in) throws IOException {
+    if (UseThreadContextClassLoaderHolder.INSTANCE) {
+      return new ObjectInputStream(in) {
+        // If there are more user-defined class loaders, the default class loader by
+        // ObjectInputStream might not be enough. For example, in Jetty, there are two
+        // user-defined class loaders, i.e. startJarLoader (the parent) and WebAppClassLoader
+        // (the child). startJarLoader normally loads this class, and WebAppClassLoader
+        // normally loads application classes. When an application object is serialized,
+        // startJarLoader will load this class and WebAppClassLoader will the application
+        // class. However, when the application object is deserialized, startJarLoader will
+        // be unfortunately used according to the logic of ObjectInputStream. This will cause
+        // ClassNotFoundException because startJarLoader could not find the application class.
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass objectStreamClass)
+            throws ClassNotFoundException, IOException {
+          ClassLoader threadClassLoader = Thread.currentThread().getContextClassLoader();
+          if (threadClassLoader == null) {
+            return super.resolveClass(objectStreamClass);
+          }
+
+          try {
+            return Class.forName(objectStreamClass.getName(), false, threadClassLoader);
+          } catch (ClassNotFoundException ex) {
+            return super.resolveClass(objectStreamClass);
+          }
+        }
+      };
+    } else {
+      return new ObjectInputStream(in);
+    }
+  }
+
   private static boolean noEmbeddedNulls(byte[] key) {
     return !Bytes.contains(key, (byte) 0);
   }
@@ -284,7 +314,9 @@ public class MemcacheSerialization {
   }
 
   private static final byte[] hash(Object key) throws IOException {
-    ValueAndFlags vaf = serialize(key);
+    // Keys are always hashed in their Java serialized form, so that they map to the same memcache
+    // key whichever codecs are in use.
+    ValueAndFlags vaf = serialize(key, false);
     MessageDigest md;
     try {
       md = (MessageDigest) sha1Prototype.clone();
@@ -307,6 +339,10 @@ public class MemcacheSerialization {
    */
   public static ValueAndFlags serialize(Object value)
       throws IOException {
+    return serialize(value, true);
+  }
+
+  private static ValueAndFlags serialize(Object value, boolean useCodecs) throws IOException {
     Flag flags;
     byte[] bytes;
 
@@ -342,17 +378,23 @@ public class MemcacheSerialization {
       flags = Flag.UTF8;
       bytes = ((String) value).getBytes(UTF_8);
 
-    } else if (value instanceof Serializable) {
-      flags = Flag.OBJECT;
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream objOut = new ObjectOutputStream(baos);
-      objOut.writeObject(value);
-      objOut.close();
-      bytes = baos.toByteArray();
-
     } else {
-      throw new IllegalArgumentException("can't accept " + value.getClass()
-          + " as a memcache entity");
+      bytes = useCodecs ? MemcacheCodecs.encode(value) : null;
+      if (bytes != null) {
+        flags = Flag.CODEC;
+
+      } else if (value instanceof Serializable) {
+        flags = Flag.OBJECT;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream objOut = new ObjectOutputStream(baos);
+        objOut.writeObject(value);
+        objOut.close();
+        bytes = baos.toByteArray();
+
+      } else {
+        throw new IllegalArgumentException("can't accept " + value.getClass()
+            + " as a memcache entity");
+      }
     }
     return new ValueAndFlags(bytes, flags);
   }
@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
@@ -293,6 +294,35 @@ public interface MemcacheService extends BaseMemcacheService {
      throw new UnsupportedOperationException();
    };
 
+  /**
+   * Returns the value for {@code key}, computing it with {@code loader} and storing it if it is
+   * not in the cache. Unlike a {@link #get} followed by a {@link #put}, this keeps a popular value
+   * that expires from being recomputed by every request that misses it:
+   *
+   * <ul>
+   *   <li>Only one thread of the instance computes the value at a time. The other threads wait
+   *       for it, or return the value being refreshed if there is one.
+   *   <li>With {@link ComputeOptions.Builder#lease}, only one instance computes the value at a
+   *       time, while the others wait for it to be stored.
+   *   <li>With {@link ComputeOptions.Builder#earlyRefresh}, the value is usually recomputed by one
+   *       reader shortly before it expires, while the others keep reading it.
+   * </ul>
+   *
+   * <p>Errors reading or storing the value are handled as by the other methods, see {@link
+   * BaseMemcacheService#setErrorHandler(ErrorHandler)}. Exceptions thrown by {@code loader}
+   * propagate to the threads waiting for it.
+   *
+   * @param key the key object used to store the cache entry
+   * @param loader computes the value when it is missing or due for a refresh
+   * @param options how the value is computed and stored
+   * @return the cached or computed value
+   * @throws IllegalArgumentException if {@code key} or the computed value is not {@link
+   *     Serializable} and is not {@code null}
+   */
+  default <T> T getOrCompute(Object key, Supplier<T> loader, ComputeOptions options) {
+    return MemcacheComputation.DEFAULT.getOrCompute(this, key, loader, options);
+  }
+
   /**
    * Tests whether a given value is in cache, even if its value is {@code null}.
    *
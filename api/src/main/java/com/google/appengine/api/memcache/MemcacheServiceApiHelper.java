@@ -124,6 +124,8 @@ class MemcacheServiceApiHelper {
    */
   static <M extends Message, T> Future<T> makeAsyncCall(String methodName, Message request,
       final RpcResponseHandler<M, T> responseHandler, final Provider<T> defaultValue) {
+    // Gets held back for coalescing must not observe the effect of this call.
+    MemcacheGetCoalescer.flushCurrent();
     Future<byte[]> asyncResp = ApiProxy.makeAsyncCall(PACKAGE, methodName, request.toByteArray());
     return new FutureWrapper<byte[], T>(asyncResp) {
 
@@ -17,6 +17,7 @@
 package com.google.appengine.api.memcache;
 
 import com.google.appengine.spi.ServiceFactoryFactory;
+import com.google.common.base.Ticker;
 
 /**
  * The factory by which users acquire a handle to the MemcacheService.
@@ -60,6 +61,28 @@ public class MemcacheServiceFactory {
     return getFactory().getMemcacheService(namespace);
   }
 
+  /**
+   * Similar to {@link #getMemcacheService(String)} but the returned service
+   * keeps the values it reads in an in-process cache configured by
+   * {@code config}. See {@link NearCachingMemcacheService} for which changes
+   * the cache observes.
+   * <p>
+   * The cache belongs to the returned instance, so an application should
+   * create one instance per configuration and share it between requests.
+   *
+   * @param namespace as for {@link #getMemcacheService(String)}
+   * @param config the size and time to live of the in-process cache
+   * @return a new {@code NearCachingMemcacheService} instance.
+   */
+  public static NearCachingMemcacheService getNearCachingMemcacheService(
+      String namespace, NearCacheConfig config) {
+    return new NearCachingMemcacheService(
+        getMemcacheService(namespace),
+        MemcacheServiceFactory::getAsyncMemcacheService,
+        config,
+        Ticker.systemTicker());
+  }
+
   /**
    * Similar to {@link #getMemcacheService()} but returns a handle to an
    * asynchronous version of the cache service.
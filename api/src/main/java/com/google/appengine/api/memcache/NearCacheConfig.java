@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+
+/**
+ * Configures the in-process cache kept by a {@link NearCachingMemcacheService}. For example:
+ *
+ * <pre>
+ *   NearCacheConfig config = NearCacheConfig.builder()
+ *       .maxEntries(500)
+ *       .defaultTtl(Duration.ofSeconds(5))
+ *       .namespaceTtl("flags", Duration.ofSeconds(30))
+ *       .staleWhileRevalidate(Duration.ofSeconds(10))
+ *       .build();
+ *   MemcacheService memcache = MemcacheServiceFactory.getNearCachingMemcacheService(null, config);
+ * </pre>
+ */
+@AutoValue
+public abstract class NearCacheConfig {
+  static final int DEFAULT_MAX_ENTRIES = 1000;
+  static final Duration DEFAULT_TTL = Duration.ofSeconds(1);
+
+  abstract int maxEntries();
+
+  abstract Duration defaultTtl();
+
+  abstract ImmutableMap<String, Duration> namespaceTtls();
+
+  abstract Duration staleWhileRevalidate();
+
+  /** Returns how long a value read in {@code namespace} is served from the cache. */
+  Duration ttlFor(String namespace) {
+    Duration ttl = namespaceTtls().get(namespace);
+    return ttl == null ? defaultTtl() : ttl;
+  }
+
+  /** Returns a {@link NearCacheConfig.Builder}. */
+  public static NearCacheConfig.Builder builder() {
+    return new AutoValue_NearCacheConfig.Builder()
+        .maxEntries(DEFAULT_MAX_ENTRIES)
+        .defaultTtl(DEFAULT_TTL)
+        .staleWhileRevalidate(Duration.ZERO);
+  }
+
+  /** Builder for {@link NearCacheConfig}. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    /**
+     * Sets the maximum number of values kept in the cache. The least recently used value is
+     * dropped to make room for a new one. Defaults to {@value #DEFAULT_MAX_ENTRIES}.
+     */
+    public abstract NearCacheConfig.Builder maxEntries(int value);
+
+    /**
+     * Sets how long a value read from memcache is served from the cache before memcache is asked
+     * again. Defaults to one second.
+     */
+    public abstract NearCacheConfig.Builder defaultTtl(Duration value);
+
+    abstract ImmutableMap.Builder<String, Duration> namespaceTtlsBuilder();
+
+    /**
+     * Overrides the {@linkplain #defaultTtl default time to live} for values in {@code namespace}.
+     * A zero time to live keeps the values of the namespace out of the cache.
+     */
+    public NearCacheConfig.Builder namespaceTtl(String namespace, Duration ttl) {
+      namespaceTtlsBuilder().put(namespace, ttl);
+      return this;
+    }
+
+    /**
+     * Sets how long after its time to live has passed a value is still served from the cache. The
+     * first read of such a value also asks memcache for the current value in the background, and
+     * later reads see it once it has arrived. Defaults to zero, which makes a read of an expired
+     * value wait for memcache.
+     */
+    public abstract NearCacheConfig.Builder staleWhileRevalidate(Duration value);
+
+    abstract NearCacheConfig autoBuild();
+
+    public NearCacheConfig build() {
+      NearCacheConfig config = autoBuild();
+      checkArgument(config.maxEntries() > 0, "maxEntries must be positive");
+      checkArgument(!config.defaultTtl().isNegative(), "defaultTtl must not be negative");
+      checkArgument(
+          !config.staleWhileRevalidate().isNegative(), "staleWhileRevalidate must not be negative");
+      for (Duration ttl : config.namespaceTtls().values()) {
+        checkArgument(!ttl.isNegative(), "namespace TTLs must not be negative");
+      }
+      return config;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+/**
+ * Statistics of the in-process cache of a {@link NearCachingMemcacheService}, available via
+ * {@link NearCachingMemcacheService#getNearCacheStatistics()}. Unlike {@link Stats}, these only
+ * count the reads made through one service instance.
+ */
+public interface NearCacheStats {
+  /** The number of keys read that were answered from the cache with a fresh value. */
+  long getHitCount();
+
+  /**
+   * The number of keys read that were answered from the cache with a value past its time to live,
+   * while the current value was fetched in the background.
+   */
+  long getStaleHitCount();
+
+  /** The number of keys read that had to be fetched from memcache. */
+  long getMissCount();
+
+  /** The number of values dropped from the cache to make room for newer ones. */
+  long getEvictionCount();
+
+  /** The number of values currently in the cache. */
+  long getItemCount();
+
+  /** The fraction of keys read that were answered from the cache, or 0 if none were read. */
+  double getHitRatio();
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.common.base.Ticker;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A {@link MemcacheService} that keeps the values it reads in a small in-process cache, so that
+ * repeated reads of the same keys do not each need a call to memcache. Instances are obtained
+ * from {@link MemcacheServiceFactory#getNearCachingMemcacheService} and configured with a {@link
+ * NearCacheConfig}.
+ *
+ * <p>{@link #get}, {@link #getAll} and {@link #contains} are answered from the cache while the
+ * values they need are younger than their time to live. Only values that were found are cached: a
+ * read that finds nothing may also be a failed call whose error the {@link ErrorHandler} logged,
+ * so keys without a value are asked again every time. Every other operation goes to memcache.
+ *
+ * <p>The cache is only kept consistent with the changes made through this instance: writing,
+ * deleting or incrementing a key through it drops the key from the cache, and {@link #clearAll}
+ * empties the cache. Changes made by other instances, other service objects or other
+ * applications are only seen once the cached value has expired, so the time to live bounds how
+ * stale a read can be. Cached values are shared between reads and must not be modified.
+ */
+public final class NearCachingMemcacheService implements MemcacheService {
+  private final MemcacheService delegate;
+  private final Function<String, AsyncMemcacheService> asyncFactory;
+  private final NearCacheConfig config;
+  private final Ticker ticker;
+
+  /** The cached values, least recently used first. Guarded by itself. */
+  private final LinkedHashMap<CacheKey, CachedRead> entries;
+
+  /**
+   * Counts the invalidations. A value read from memcache is only cached if no invalidation
+   * happened while it was being read, as the read may have raced with the write.
+   */
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  NearCachingMemcacheService(
+      MemcacheService delegate,
+      Function<String, AsyncMemcacheService> asyncFactory,
+      NearCacheConfig config,
+      Ticker ticker) {
+    this.delegate = delegate;
+    this.asyncFactory = asyncFactory;
+    this.config = config;
+    this.ticker = ticker;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  private static final class CacheKey {
+    final String namespace;
+    final @Nullable Object key;
+
+    CacheKey(String namespace, @Nullable Object key) {
+      this.namespace = namespace;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof CacheKey that
+          && namespace.equals(that.namespace)
+          && Objects.equals(key, that.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return namespace.hashCode() * 31 + Objects.hashCode(key);
+    }
+  }
+
+  /** A cached value of a key. */
+  private static final class CachedRead {
+    final @Nullable Object value;
+    final long freshUntilNanos;
+    final long staleUntilNanos;
+    /** The background read of the current value, if one has been started. */
+    final @Nullable Future<? extends Map<?, Object>> refresh;
+
+    CachedRead(
+        @Nullable Object value,
+        long freshUntilNanos,
+        long staleUntilNanos,
+        @Nullable Future<? extends Map<?, Object>> refresh) {
+      this.value = value;
+      this.freshUntilNanos = freshUntilNanos;
+      this.staleUntilNanos = staleUntilNanos;
+      this.refresh = refresh;
+    }
+
+    CachedRead withRefresh(@Nullable Future<? extends Map<?, Object>> refresh) {
+      return new CachedRead(value, freshUntilNanos, staleUntilNanos, refresh);
+    }
+  }
+
+  private String getEffectiveNamespace() {
+    String namespace = delegate.getNamespace();
+    if (namespace == null) {
+      namespace = NamespaceManager.get();
+    }
+    return namespace == null ? "" : namespace;
+  }
+
+  private CachedRead newRead(@Nullable Object value, long ttlNanos) {
+    long now = ticker.read();
+    return new CachedRead(
+        value,
+        now + ttlNanos,
+        now + ttlNanos + config.staleWhileRevalidate().toNanos(),
+        null);
+  }
+
+  /**
+   * Returns the cached read of {@code key}, or null if memcache has to be asked. Starts a
+   * background read if the cached value is stale, and picks up the result of an earlier one.
+   */
+  private @Nullable CachedRead lookup(CacheKey cacheKey, long ttlNanos) {
+    CachedRead entry;
+    synchronized (entries) {
+      entry = entries.get(cacheKey);
+    }
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    if (entry.refresh != null && entry.refresh.isDone()) {
+      entry = completeRefresh(cacheKey, entry, ttlNanos);
+      if (entry == null) {
+        misses.increment();
+        return null;
+      }
+    }
+    long now = ticker.read();
+    if (now - entry.freshUntilNanos < 0) {
+      hits.increment();
+      return entry;
+    }
+    if (now - entry.staleUntilNanos < 0) {
+      staleHits.increment();
+      if (entry.refresh == null) {
+        startRefresh(cacheKey, entry);
+      }
+      return entry;
+    }
+    misses.increment();
+    return null;
+  }
+
+  private void startRefresh(CacheKey cacheKey, CachedRead entry) {
+    synchronized (entries) {
+      if (entries.get(cacheKey) == entry) {
+        AsyncMemcacheService async = asyncFactory.apply(cacheKey.namespace);
+        async.setErrorHandler(delegate.getErrorHandler());
+        entries.put(
+            cacheKey, entry.withRefresh(async.getAll(Collections.singletonList(cacheKey.key))));
+      }
+    }
+  }
+
+  /**
+   * Replaces {@code entry} with the result of its background read, or drops it and returns null if
+   * the read found no value. Writing the key drops the entry, so a result that raced with a write
+   * is never cached.
+   */
+  private @Nullable CachedRead completeRefresh(
+      CacheKey cacheKey, CachedRead entry, long ttlNanos) {
+    CachedRead updated;
+    try {
+      Map<?, Object> values = entry.refresh.get();
+      updated =
+          values.containsKey(cacheKey.key) ? newRead(values.get(cacheKey.key), ttlNanos) : null;
+    } catch (ExecutionException | RuntimeException e) {
+      // Keep serving the stale value; the next read of it tries again.
+      updated = entry.withRefresh(null);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return entry;
+    }
+    synchronized (entries) {
+      if (entries.get(cacheKey) != entry) {
+        return entry;
+      }
+      if (updated == null) {
+        entries.remove(cacheKey);
+      } else {
+        entries.put(cacheKey, updated);
+      }
+    }
+    return updated;
+  }
+
+  private void store(CacheKey cacheKey, CachedRead entry, long readInvalidations) {
+    synchronized (entries) {
+      if (invalidations.get() == readInvalidations) {
+        entries.put(cacheKey, entry);
+        Iterator<CachedRead> eldest = entries.values().iterator();
+        for (int i = entries.size(); i > config.maxEntries(); i--) {
+          eldest.next();
+          eldest.remove();
+          evictions.increment();
+        }
+      }
+    }
+  }
+
+  private void invalidate(Collection<?> keys) {
+    String namespace = getEffectiveNamespace();
+    synchronized (entries) {
+      invalidations.incrementAndGet();
+      for (Object key : keys) {
+        entries.remove(new CacheKey(namespace, key));
+      }
+    }
+  }
+
+  private <T> T invalidating(Collection<?> keys, Supplier<T> write) {
+    try {
+      return write.get();
+    } finally {
+      invalidate(keys);
+    }
+  }
+
+  private <T> T invalidating(Object key, Supplier<T> write) {
+    return invalidating(Collections.singletonList(key), write);
+  }
+
+  @Override
+  public boolean contains(Object key) {
+    long ttlNanos = config.ttlFor(getEffectiveNamespace()).toNanos();
+    if (ttlNanos > 0) {
+      CachedRead entry = lookup(new CacheKey(getEffectiveNamespace(), key), ttlNanos);
+      if (entry != null) {
+        return true;
+      }
+    }
+    return delegate.contains(key);
+  }
+
+  @Override
+  public Object get(Object key) {
+    return getAll(Collections.singletonList(key)).get(key);
+  }
+
+  @Override
+  public <T> Map<T, Object> getAll(Collection<T> keys) {
+    String namespace = getEffectiveNamespace();
+    long ttlNanos = config.ttlFor(namespace).toNanos();
+    if (ttlNanos == 0) {
+      return delegate.getAll(keys);
+    }
+    Map<T, Object> result = new HashMap<>();
+    List<T> missing = new ArrayList<>();
+    for (T key : keys) {
+      CachedRead entry = lookup(new CacheKey(namespace, key), ttlNanos);
+      if (entry == null) {
+        missing.add(key);
+      } else {
+        result.put(key, entry.value);
+      }
+    }
+    if (!missing.isEmpty()) {
+      long readInvalidations = invalidations.get();
+      Map<T, Object> values = delegate.getAll(missing);
+      // Keys without a value are not cached, as the call may have failed.
+      for (Map.Entry<T, Object> value : values.entrySet()) {
+        store(
+            new CacheKey(namespace, value.getKey()),
+            newRead(value.getValue(), ttlNanos),
+            readInvalidations);
+        result.put(value.getKey(), value.getValue());
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public IdentifiableValue getIdentifiable(Object key) {
+    return delegate.getIdentifiable(key);
+  }
+
+  @Override
+  public <T> Map<T, IdentifiableValue> getIdentifiables(Collection<T> keys) {
+    return delegate.getIdentifiables(keys);
+  }
+
+  @Override
+  public ItemForPeek getItemForPeek(Object key) {
+    return delegate.getItemForPeek(key);
+  }
+
+  @Override
+  public <T> Map<T, ItemForPeek> getItemsForPeek(Collection<T> keys) {
+    return delegate.getItemsForPeek(keys);
+  }
+
+  @Override
+  public boolean put(Object key, Object value, Expiration expires, SetPolicy policy) {
+    return invalidating(key, () -> delegate.put(key, value, expires, policy));
+  }
+
+  @Override
+  public void put(Object key, Object value, Expiration expires) {
+    invalidating(
+        key,
+        () -> {
+          delegate.put(key, value, expires);
+          return null;
+        });
+  }
+
+  @Override
+  public void put(Object key, Object value) {
+    invalidating(
+        key,
+        () -> {
+          delegate.put(key, value);
+          return null;
+        });
+  }
+
+  @Override
+  public <T> Set<T> putAll(Map<T, ?> values, Expiration expires, SetPolicy policy) {
+    return invalidating(values.keySet(), () -> delegate.putAll(values, expires, policy));
+  }
+
+  @Override
+  public void putAll(Map<?, ?> values, Expiration expires) {
+    invalidating(
+        values.keySet(),
+        () -> {
+          delegate.putAll(values, expires);
+          return null;
+        });
+  }
+
+  @Override
+  public void putAll(Map<?, ?> values) {
+    invalidating(
+        values.keySet(),
+        () -> {
+          delegate.putAll(values);
+          return null;
+        });
+  }
+
+  @Override
+  public boolean putIfUntouched(
+      Object key, IdentifiableValue oldValue, Object newValue, Expiration expires) {
+    return invalidating(key, () -> delegate.putIfUntouched(key, oldValue, newValue, expires));
+  }
+
+  @Override
+  public boolean putIfUntouched(Object key, IdentifiableValue oldValue, Object newValue) {
+    return invalidating(key, () -> delegate.putIfUntouched(key, oldValue, newValue));
+  }
+
+  @Override
+  public <T> Set<T> putIfUntouched(Map<T, CasValues> values) {
+    return invalidating(values.keySet(), () -> delegate.putIfUntouched(values));
+  }
+
+  @Override
+  public <T> Set<T> putIfUntouched(Map<T, CasValues> values, Expiration expiration) {
+    return invalidating(values.keySet(), () -> delegate.putIfUntouched(values, expiration));
+  }
+
+  @Override
+  public boolean delete(Object key) {
+    return invalidating(key, () -> delegate.delete(key));
+  }
+
+  @Override
+  public boolean delete(Object key, long millisNoReAdd) {
+    return invalidating(key, () -> delegate.delete(key, millisNoReAdd));
+  }
+
+  @Override
+  public <T> Set<T> deleteAll(Collection<T> keys) {
+    return invalidating(keys, () -> delegate.deleteAll(keys));
+  }
+
+  @Override
+  public <T> Set<T> deleteAll(Collection<T> keys, long millisNoReAdd) {
+    return invalidating(keys, () -> delegate.deleteAll(keys, millisNoReAdd));
+  }
+
+  @Override
+  public Long increment(Object key, long delta) {
+    return invalidating(key, () -> delegate.increment(key, delta));
+  }
+
+  @Override
+  public Long increment(Object key, long delta, Long initialValue) {
+    return invalidating(key, () -> delegate.increment(key, delta, initialValue));
+  }
+
+  @Override
+  public <T> Map<T, Long> incrementAll(Collection<T> keys, long delta) {
+    return invalidating(keys, () -> delegate.incrementAll(keys, delta));
+  }
+
+  @Override
+  public <T> Map<T, Long> incrementAll(Collection<T> keys, long delta, Long initialValue) {
+    return invalidating(keys, () -> delegate.incrementAll(keys, delta, initialValue));
+  }
+
+  @Override
+  public <T> Map<T, Long> incrementAll(Map<T, Long> offsets) {
+    return invalidating(offsets.keySet(), () -> delegate.incrementAll(offsets));
+  }
+
+  @Override
+  public <T> Map<T, Long> incrementAll(Map<T, Long> offsets, Long initialValue) {
+    return invalidating(offsets.keySet(), () -> delegate.incrementAll(offsets, initialValue));
+  }
+
+  @Override
+  public void clearAll() {
+    try {
+      delegate.clearAll();
+    } finally {
+      synchronized (entries) {
+        invalidations.incrementAndGet();
+        entries.clear();
+      }
+    }
+  }
+
+  @Override
+  public Stats getStatistics() {
+    return delegate.getStatistics();
+  }
+
+  /** Returns the statistics of the in-process cache of this instance. */
+  public NearCacheStats getNearCacheStatistics() {
+    final long hitCount = hits.sum();
+    final long staleHitCount = staleHits.sum();
+    final long missCount = misses.sum();
+    final long evictionCount = evictions.sum();
+    final long itemCount;
+    synchronized (entries) {
+      itemCount = entries.size();
+    }
+    return new NearCacheStats() {
+      @Override
+      public long getHitCount() {
+        return hitCount;
+      }
+
+      @Override
+      public long getStaleHitCount() {
+        return staleHitCount;
+      }
+
+      @Override
+      public long getMissCount() {
+        return missCount;
+      }
+
+      @Override
+      public long getEvictionCount() {
+        return evictionCount;
+      }
+
+      @Override
+      public long getItemCount() {
+        return itemCount;
+      }
+
+      @Override
+      public double getHitRatio() {
+        long total = hitCount + staleHitCount + missCount;
+        return total == 0 ? 0 : (double) (hitCount + staleHitCount) / total;
+      }
+
+      @Override
+      public String toString() {
+        return String.format(
+            "NearCacheStats: hits=%d, staleHits=%d, misses=%d, evictions=%d, items=%d",
+            hitCount, staleHitCount, missCount, evictionCount, itemCount);
+      }
+    };
+  }
+
+  @Override
+  public String getNamespace() {
+    return delegate.getNamespace();
+  }
+
+  @Deprecated
+  @Override
+  public void setNamespace(String newNamespace) {
+    delegate.setNamespace(newNamespace);
+  }
+
+  @Override
+  public ErrorHandler getErrorHandler() {
+    return delegate.getErrorHandler();
+  }
+
+  @Override
+  public void setErrorHandler(ErrorHandler newHandler) {
+    delegate.setErrorHandler(newHandler);
+  }
+}
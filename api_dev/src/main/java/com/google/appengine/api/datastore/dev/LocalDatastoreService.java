@@ -28,8 +28,10 @@ import static com.google.common.collect.Iterables.getLast;
 
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.dev.ReservedKinds;
+import com.google.appengine.api.datastore.DataTypeTranslator;
 import com.google.appengine.api.datastore.DataTypeUtils;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityProtoComparators;
 import com.google.appengine.api.datastore.EntityProtoComparators.EntityProtoComparator;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.dev.LocalCompositeIndexManager.IndexConfigurationFormat;
@@ -80,6 +82,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.flogger.GoogleLogger;
@@ -105,6 +108,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -116,11 +120,14 @@ import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -130,7 +137,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.WeakHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -222,6 +231,16 @@ public abstract class LocalDatastoreService {
   /** True to put the datastore into "memory-only" mode. */
   public static final String NO_STORAGE_PROPERTY = "datastore.no_storage";
 
+  /**
+   * True to write the changes to the datastore to an append-only log next to the backing store, so
+   * that persisting costs as much as the changes made since the last time rather than as much as
+   * the whole datastore. The backing store is only rewritten once the log has grown larger than it.
+   */
+  public static final String STORE_LOG_PROPERTY = "datastore.store_log";
+
+  /** The size below which the log is never compacted into the backing store. */
+  private static final long MIN_LOG_COMPACTION_BYTES = 16L << 20;
+
   /**
    * The fully-qualifed name of a class that implements {@link HighRepJobPolicy} and has a no-arg
    * constructor. If not provided we use a {@link DefaultHighRepJobPolicy}. See the javadoc for this
@@ -432,6 +451,18 @@ public abstract class LocalDatastoreService {
 
   private boolean noStorage;
 
+  private boolean storeLog;
+
+  /** The log changes are persisted to, if {@link #storeLog} is set and storage is enabled. */
+  @Nullable private MutationLog mutationLog;
+
+  /**
+   * Incremented every time the backing store is rewritten, and recorded both in the backing store
+   * and in the header of the log that follows it. A log whose generation does not match the
+   * backing store was written before it and is not replayed.
+   */
+  private long backingStoreGeneration;
+
   /** The pseudoKinds known to this local datastore. */
   private PseudoKinds pseudoKinds;
 
@@ -462,6 +493,11 @@ public abstract class LocalDatastoreService {
       noStorage = Boolean.parseBoolean(noStorageProp);
     }
 
+    String storeLogProp = properties.get(STORE_LOG_PROPERTY);
+    if (storeLogProp != null) {
+      storeLog = Boolean.parseBoolean(storeLogProp);
+    }
+
     if (storeFile == null && !noStorage) {
       File dir = GenerationDirectory.getGenerationDirectory(appDirectory);
       dir.mkdirs();
@@ -653,6 +689,7 @@ public abstract class LocalDatastoreService {
       // forward before we shut down.
       rollForwardAllUnappliedJobs();
       persist();
+      closeMutationLog();
     }
 
     clearProfiles();
@@ -698,6 +735,10 @@ public abstract class LocalDatastoreService {
     this.noStorage = noStorage;
   }
 
+  public void setStoreLog(boolean storeLog) {
+    this.storeLog = storeLog;
+  }
+
   // TODO: Add a unit test for this.
   public void enableScatterProperty(boolean enable) {
     if (enable) {
@@ -720,12 +761,12 @@ public abstract class LocalDatastoreService {
       Path groupPath = getGroup(key);
       GetResponse.Entity.Builder responseEntity = response.addEntityBuilder();
       Profile profile = getOrCreateProfile(app);
-      synchronized (profile) {
-        Profile.EntityGroup eg = profile.getGroup(groupPath);
-        if (request.hasTransaction()) {
-          if (liveTxn == null) {
-            liveTxn = profile.getTxn(request.getTransaction().getHandle());
-          }
+      if (request.hasTransaction() && liveTxn == null) {
+        liveTxn = profile.getTxn(request.getTransaction().getHandle());
+      }
+      Profile.EntityGroup eg = profile.getGroup(groupPath);
+      synchronized (eg) {
+        if (liveTxn != null) {
           // this will throw an exception if we attempt to read from
           // the wrong entity group
           eg.addTransaction(liveTxn);
@@ -750,10 +791,10 @@ public abstract class LocalDatastoreService {
         } else {
           responseEntity.setKey(key);
         }
-        // Give all entity groups with unapplied jobs the opportunity to catch
-        // up.  Note that this will not impact the result we're about to return.
-        profile.groom();
       }
+      // Give all entity groups with unapplied jobs the opportunity to catch
+      // up.  Note that this will not impact the result we're about to return.
+      profile.groom();
     }
 
     return response.build();
@@ -860,32 +901,34 @@ public abstract class LocalDatastoreService {
     Map<Path, List<EntityProto>> entitiesByEntityGroup = new LinkedHashMap<>();
     Map<Reference, Long> writtenVersions = new HashMap<>();
     final Profile profile = getOrCreateProfile(app);
-    synchronized (profile) {
-      LiveTxn liveTxn = null;
-      for (EntityProto clone : clones) {
+    LiveTxn liveTxn = null;
+    for (EntityProto clone : clones) {
+      if (request.hasTransaction()) {
+        // If there's a transaction we delay the put until
+        // the transaction is committed.
+        if (liveTxn == null) {
+          liveTxn = profile.getTxn(request.getTransaction().getHandle());
+        }
+        checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
         Profile.EntityGroup eg = profile.getGroup(clone.getEntityGroup());
-        if (request.hasTransaction()) {
-          // If there's a transaction we delay the put until
-          // the transaction is committed.
-          if (liveTxn == null) {
-            liveTxn = profile.getTxn(request.getTransaction().getHandle());
-          }
-          checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
+        synchronized (eg) {
           // this will throw an exception if we attempt to
           // modify the wrong entity group
           eg.addTransaction(liveTxn).addWrittenEntity(clone);
-        } else {
-          List<EntityProto> entities = entitiesByEntityGroup.get(clone.getEntityGroup());
-          if (entities == null) {
-            entities = new ArrayList<>();
-            entitiesByEntityGroup.put(clone.getEntityGroup(), entities);
-          }
-          entities.add(clone);
         }
-        response.addKey(clone.getKey());
+      } else {
+        List<EntityProto> entities = entitiesByEntityGroup.get(clone.getEntityGroup());
+        if (entities == null) {
+          entities = new ArrayList<>();
+          entitiesByEntityGroup.put(clone.getEntityGroup(), entities);
+        }
+        entities.add(clone);
       }
-      for (final Map.Entry<Path, List<EntityProto>> entry : entitiesByEntityGroup.entrySet()) {
-        Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+      response.addKey(clone.getKey());
+    }
+    for (final Map.Entry<Path, List<EntityProto>> entry : entitiesByEntityGroup.entrySet()) {
+      Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+      synchronized (eg) {
         eg.incrementVersion();
         LocalDatastoreJob job =
             new WriteJob(
@@ -1067,32 +1110,34 @@ public abstract class LocalDatastoreService {
     // per entity group.
     Map<Path, List<Reference>> keysByEntityGroup = new LinkedHashMap<>();
     Map<Reference, Long> writtenVersions = new HashMap<>();
-    synchronized (profile) {
-      for (final Reference key : request.getKeyList()) {
-        validatePathComplete(key);
-        Path group = getGroup(key);
-        if (request.hasTransaction()) {
-          if (liveTxn == null) {
-            liveTxn = profile.getTxn(request.getTransaction().getHandle());
-          }
-          checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
-          Profile.EntityGroup eg = profile.getGroup(group);
+    for (final Reference key : request.getKeyList()) {
+      validatePathComplete(key);
+      Path group = getGroup(key);
+      if (request.hasTransaction()) {
+        if (liveTxn == null) {
+          liveTxn = profile.getTxn(request.getTransaction().getHandle());
+        }
+        checkRequest(!liveTxn.isReadOnly(), "Cannot modify entities in a read-only transaction.");
+        Profile.EntityGroup eg = profile.getGroup(group);
+        synchronized (eg) {
           // this will throw an exception if we attempt to modify
           // the wrong entity group
           eg.addTransaction(liveTxn).addDeletedEntity(key);
-        } else {
-          List<Reference> keysToDelete = keysByEntityGroup.get(group);
-          if (keysToDelete == null) {
-            keysToDelete = new ArrayList<>();
-            keysByEntityGroup.put(group, keysToDelete);
-          }
-          keysToDelete.add(key);
         }
+      } else {
+        List<Reference> keysToDelete = keysByEntityGroup.get(group);
+        if (keysToDelete == null) {
+          keysToDelete = new ArrayList<>();
+          keysByEntityGroup.put(group, keysToDelete);
+        }
+        keysToDelete.add(key);
       }
-      // Now loop over the entity groups.  We will attempt to apply one job that
-      // does all the work for each entity group.
-      for (final Map.Entry<Path, List<Reference>> entry : keysByEntityGroup.entrySet()) {
-        Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+    }
+    // Now loop over the entity groups.  We will attempt to apply one job that
+    // does all the work for each entity group.
+    for (final Map.Entry<Path, List<Reference>> entry : keysByEntityGroup.entrySet()) {
+      Profile.EntityGroup eg = profile.getGroup(entry.getKey());
+      synchronized (eg) {
         eg.incrementVersion();
         LocalDatastoreJob job =
             new WriteJob(
@@ -1186,23 +1231,24 @@ public abstract class LocalDatastoreService {
     String app = query.getApp();
     Profile profile = getOrCreateProfile(app);
 
-    synchronized (profile) {
-      if (query.hasTransaction()) {
-        if (!app.equals(query.getTransaction().getApp())) {
-          throw newError(
-              ErrorCode.INTERNAL_ERROR,
-              "Can't query app "
-                  + app
-                  + "in a transaction on app "
-                  + query.getTransaction().getApp());
-        }
+    if (query.hasTransaction()) {
+      if (!app.equals(query.getTransaction().getApp())) {
+        throw newError(
+            ErrorCode.INTERNAL_ERROR,
+            "Can't query app "
+                + app
+                + "in a transaction on app "
+                + query.getTransaction().getApp());
       }
+    }
 
-      if (query.hasAncestor()) {
-        Path groupPath = getGroup(query.getAncestor());
-        Profile.EntityGroup eg = profile.getGroup(groupPath);
-        if (query.hasTransaction()) {
-          LiveTxn liveTxn = profile.getTxn(query.getTransaction().getHandle());
+    if (query.hasAncestor()) {
+      Path groupPath = getGroup(query.getAncestor());
+      Profile.EntityGroup eg = profile.getGroup(groupPath);
+      LiveTxn liveTxn =
+          query.hasTransaction() ? profile.getTxn(query.getTransaction().getHandle()) : null;
+      synchronized (eg) {
+        if (liveTxn != null) {
           // this will throw an exception if we attempt to read from
           // the wrong entity group
           eg.addTransaction(liveTxn);
@@ -1216,154 +1262,195 @@ public abstract class LocalDatastoreService {
           eg.rollForwardUnappliedJobs();
         }
       }
+    }
 
-      if (query.hasSearchQuery()) {
-        throw newError(ErrorCode.BAD_REQUEST, "full-text search unsupported");
-      }
+    if (query.hasSearchQuery()) {
+      throw newError(ErrorCode.BAD_REQUEST, "full-text search unsupported");
+    }
 
-      // Run as a PseudoKind query if necessary, otherwise check the actual local datastore
-      List<EntityProto> queryEntities = pseudoKinds.runQuery(query.build());
-      Map<Reference, Long> versions = null;
+    // Run as a PseudoKind query if necessary, otherwise check the actual local datastore
+    List<EntityProto> queryEntities = pseudoKinds.runQuery(query.build());
+    Map<Reference, Long> versions = null;
+    Extent extent = null;
 
-      if (queryEntities == null) {
-        Collection<VersionedEntity> versionedEntities = null;
-        Map<String, Extent> extents = profile.getExtents();
-        Extent extent = extents.get(query.getKind());
+    if (queryEntities == null) {
+      extent = profile.getExtents().get(query.getKind());
+      if (extent == null && !query.hasKind() && query.getOrderCount() == 0) {
+        // Kind-less query: add a sort by key asc to match the behavior of prod
+        query.addOrder(
+            Order.newBuilder()
+                .setDirection(Query.Order.Direction.ASCENDING)
+                .setProperty(Entity.KEY_RESERVED_PROPERTY));
+      }
+    }
 
-        if (extent != null) {
-          // Make a copy of the list of all the entities in the extent
-          versionedEntities = extent.getAllEntities();
-        } else if (!query.hasKind()) {
-          // Kind-less query, so we need a list containing all entities of
-          // all kinds.
-          versionedEntities = profile.getAllEntities();
-          if (query.getOrderCount() == 0) {
-            // add a sort by key asc to match the behavior of prod
-            query.addOrder(
-                Order.newBuilder()
-                    .setDirection(Query.Order.Direction.ASCENDING)
-                    .setProperty(Entity.KEY_RESERVED_PROPERTY));
-          }
-        } else {
-          // no extent - we're querying for a kind without any entities
-        }
+    // Building filter predicate
+    List<Predicate<EntityProto>> predicates = new ArrayList<>();
+    // apply ancestor restriction
+    if (query.hasAncestor()) {
+      final List<Element> ancestorPath = query.getAncestor().getPath().getElementList();
+      predicates.add(
+          entity -> {
+            List<Element> path = entity.getKey().getPath().getElementList();
+            return path.size() >= ancestorPath.size()
+                && path.subList(0, ancestorPath.size()).equals(ancestorPath);
+          });
+    }
 
-        if (versionedEntities != null) {
-          queryEntities = new ArrayList<>();
-          versions = new HashMap<>();
-          for (VersionedEntity entity : versionedEntities) {
-            queryEntities.add(entity.entityProto());
-            versions.put(entity.entityProto().getKey(), entity.version());
+    if (query.getShallow()) {
+      final long keyPathLength =
+          query.hasAncestor() ? query.getAncestor().getPath().getElementCount() + 1 : 1;
+      predicates.add(
+          entity -> entity.getKey().getPath().getElementCount() == keyPathLength);
+    }
+
+    // apply namespace restriction
+    final boolean hasNamespace = query.hasNameSpace();
+    final String namespace = query.getNameSpace();
+    predicates.add(
+        entity -> {
+          Reference ref = entity.getKey();
+          // Filter all elements not in the query's namespace.
+          if (hasNamespace) {
+            if (!ref.hasNameSpace() || !namespace.equals(ref.getNameSpace())) {
+              return false;
+            }
+          } else {
+            if (ref.hasNameSpace()) {
+              return false;
+            }
+          }
+          return true;
+        });
+
+    // Get entityComparator with filter matching capability
+    final EntityProtoComparator entityComparator =
+        new EntityProtoComparator(
+            validatedQuery.getQuery().getOrderList(), validatedQuery.getQuery().getFilterList());
+
+    // applying filter restrictions
+    predicates.add(entityComparator::matches);
+
+    Predicate<EntityProto> queryMatches = Predicates.<EntityProto>and(predicates);
+
+    // Results that can be cut off after limit + offset entities once sorted: the cursors and the
+    // grouping are applied to the sorted results, and a projection can turn one entity into
+    // several results.
+    int maxResults =
+        query.hasLimit()
+                && !query.hasCompiledCursor()
+                && !query.hasEndCompiledCursor()
+                && query.getGroupByPropertyNameCount() == 0
+                && query.getPropertyNameCount() == 0
+            ? (int) Math.min((long) query.getLimit() + query.getOffset(), Integer.MAX_VALUE)
+            : Integer.MAX_VALUE;
+    boolean sorted = false;
+
+    if (queryEntities == null) {
+      Collection<VersionedEntity> versionedEntities = null;
+
+      if (extent != null) {
+        // Use the property indexes of the extent to avoid looking at every entity of the kind
+        // where we can. Otherwise make a copy of the list of all the entities in the extent.
+        versionedEntities = extent.getEntitiesMatchingEqualityFilter(query.getFilterList());
+        if (versionedEntities == null) {
+          Order firstOrder = entityComparator.getAdjustedOrders().get(0);
+          if (!firstOrder.getProperty().equals(Entity.KEY_RESERVED_PROPERTY)
+              && query.getPropertyNameCount() == 0) {
+            versionedEntities =
+                extent.scanPropertyIndex(
+                    firstOrder,
+                    query.getFilterList(),
+                    entityComparator,
+                    queryMatches,
+                    maxResults);
+            sorted = true;
+          } else {
+            versionedEntities = extent.getAllEntities();
           }
         }
+      } else if (!query.hasKind()) {
+        // Kind-less query, so we need a list containing all entities of
+        // all kinds.
+        versionedEntities = profile.getAllEntities();
+      } else {
+        // no extent - we're querying for a kind without any entities
       }
-      // Give all entity groups with unapplied jobs the opportunity to catch
-      // up.  Note that this will not impact the result of the query we're
-      // currently fulfilling since we already have the (unfiltered) result
-      // set.
-      profile.groom();
 
-      if (queryEntities == null) {
-        // so we don't need to check for null anywhere else down below
+      if (versionedEntities != null) {
         queryEntities = new ArrayList<>();
+        versions = new HashMap<>();
+        for (VersionedEntity entity : versionedEntities) {
+          queryEntities.add(entity.entityProto());
+          versions.put(entity.entityProto().getKey(), entity.version());
+        }
       }
+    }
+    // Give all entity groups with unapplied jobs the opportunity to catch
+    // up.  Note that this will not impact the result of the query we're
+    // currently fulfilling since we already have the (unfiltered) result
+    // set.
+    profile.groom();
 
-      // Building filter predicate
-      List<Predicate<EntityProto>> predicates = new ArrayList<>();
-      // apply ancestor restriction
-      if (query.hasAncestor()) {
-        final List<Element> ancestorPath = query.getAncestor().getPath().getElementList();
-        predicates.add(
-            entity -> {
-              List<Element> path = entity.getKey().getPath().getElementList();
-              return path.size() >= ancestorPath.size()
-                  && path.subList(0, ancestorPath.size()).equals(ancestorPath);
-            });
-      }
-
-      if (query.getShallow()) {
-        final long keyPathLength =
-            query.hasAncestor() ? query.getAncestor().getPath().getElementCount() + 1 : 1;
-        predicates.add(
-            entity -> entity.getKey().getPath().getElementCount() == keyPathLength);
-      }
-
-      // apply namespace restriction
-      final boolean hasNamespace = query.hasNameSpace();
-      final String namespace = query.getNameSpace();
-      predicates.add(
-          entity -> {
-            Reference ref = entity.getKey();
-            // Filter all elements not in the query's namespace.
-            if (hasNamespace) {
-              if (!ref.hasNameSpace() || !namespace.equals(ref.getNameSpace())) {
-                return false;
-              }
-            } else {
-              if (ref.hasNameSpace()) {
-                return false;
-              }
-            }
-            return true;
-          });
-
-      // Get entityComparator with filter matching capability
-      final EntityProtoComparator entityComparator =
-          new EntityProtoComparator(
-              validatedQuery.getQuery().getOrderList(), validatedQuery.getQuery().getFilterList());
-
-      // applying filter restrictions
-      predicates.add(entityComparator::matches);
-
-      Predicate<EntityProto> queryPredicate =
-          Predicates.<EntityProto>not(Predicates.<EntityProto>and(predicates));
+    if (queryEntities == null) {
+      // so we don't need to check for null anywhere else down below
+      queryEntities = new ArrayList<>();
+    }
 
-      // The ordering of the following operations is important to maintain correct
-      // query functionality.
+    // The ordering of the following operations is important to maintain correct
+    // query functionality.
 
-      // Filtering entities
-      Iterables.removeIf(queryEntities, queryPredicate);
+    // Filtering entities
+    if (!sorted) {
+      Iterables.removeIf(queryEntities, Predicates.not(queryMatches));
+    }
 
-      // Expanding projections
-      if (query.getPropertyNameCount() > 0) {
-        queryEntities = createIndexOnlyQueryResults(queryEntities, entityComparator);
+    // Expanding projections
+    if (query.getPropertyNameCount() > 0) {
+      queryEntities = createIndexOnlyQueryResults(queryEntities, entityComparator);
+    }
+    // Sorting entities, unless they came from a property index in order already
+    if (!sorted) {
+      if (maxResults < queryEntities.size()) {
+        queryEntities =
+            new ArrayList<>(Ordering.from(entityComparator).leastOf(queryEntities, maxResults));
+      } else {
+        Collections.sort(queryEntities, entityComparator);
       }
-      // Sorting entities
-      Collections.sort(queryEntities, entityComparator);
+    }
 
-      // Apply group by. This must happen after sorting to select the correct first entity.
-      queryEntities = applyGroupByProperties(queryEntities, query);
+    // Apply group by. This must happen after sorting to select the correct first entity.
+    queryEntities = applyGroupByProperties(queryEntities, query);
 
-      // store the query and return the results
-      LiveQuery liveQuery = new LiveQuery(queryEntities, versions, query, entityComparator, clock);
+    // store the query and return the results
+    LiveQuery liveQuery = new LiveQuery(queryEntities, versions, query, entityComparator, clock);
 
-      // CompositeIndexManager does some filesystem reads/writes
-      LocalCompositeIndexManager.getInstance().processQuery(validatedQuery.getV3Query());
+    // CompositeIndexManager does some filesystem reads/writes
+    LocalCompositeIndexManager.getInstance().processQuery(validatedQuery.getV3Query());
 
-      // Using next function to prefetch results and return them from runQuery
-      QueryResult.Builder result =
-          liveQuery.nextResult(
-              query.hasOffset() ? query.getOffset() : null,
-              query.hasCount() ? query.getCount() : null,
-              query.getCompile());
-      if (query.getCompile()) {
-        result.setCompiledQuery(liveQuery.compileQuery());
-      }
-      if (result.getMoreResults()) {
-        long cursor = queryId.getAndIncrement();
-        profile.addQuery(cursor, liveQuery);
-        result.getCursorBuilder().setApp(query.getApp()).setCursor(cursor);
-      }
-      // Copy the index list for the query into the result.
-      for (Index index : LocalCompositeIndexManager.getInstance().queryIndexList(query)) {
-        result.addIndex(wrapIndexInCompositeIndex(app, index));
-      } // for
-      if (!result
-          .hasMoreResults()) { // more_results is a required field so we need to set it to false}
-        result.setMoreResults(false);
-      }
-      return result.build();
+    // Using next function to prefetch results and return them from runQuery
+    QueryResult.Builder result =
+        liveQuery.nextResult(
+            query.hasOffset() ? query.getOffset() : null,
+            query.hasCount() ? query.getCount() : null,
+            query.getCompile());
+    if (query.getCompile()) {
+      result.setCompiledQuery(liveQuery.compileQuery());
+    }
+    if (result.getMoreResults()) {
+      long cursor = queryId.getAndIncrement();
+      profile.addQuery(cursor, liveQuery);
+      result.getCursorBuilder().setApp(query.getApp()).setCursor(cursor);
+    }
+    // Copy the index list for the query into the result.
+    for (Index index : LocalCompositeIndexManager.getInstance().queryIndexList(query)) {
+      result.addIndex(wrapIndexInCompositeIndex(app, index));
+    } // for
+    if (!result
+        .hasMoreResults()) { // more_results is a required field so we need to set it to false}
+      result.setMoreResults(false);
     }
+    return result.build();
   }
 
   @AutoValue
@@ -1562,10 +1649,10 @@ public abstract class LocalDatastoreService {
         throw newError(ErrorCode.BAD_REQUEST, TRANSACTION_RETRY_ON_READ_ONLY);
       }
 
+      LiveTxn previousTransaction;
       // synchronize to prevent check-remove race on previous transaction
       synchronized (profile) {
-        LiveTxn previousTransaction =
-            profile.getTxnQuietly(req.getPreviousTransaction().getHandle());
+        previousTransaction = profile.getTxnQuietly(req.getPreviousTransaction().getHandle());
 
         if (previousTransaction != null) {
           if (previousTransaction.concurrencyMode == ConcurrencyMode.READ_ONLY) {
@@ -1576,9 +1663,14 @@ public abstract class LocalDatastoreService {
             throw newError(ErrorCode.BAD_REQUEST, TRANSACTION_OPTIONS_CHANGED_ON_RESET);
           }
 
-          profile.removeTxn(req.getPreviousTransaction().getHandle());
+          profile.detachTxn(req.getPreviousTransaction().getHandle());
         }
       }
+      if (previousTransaction != null) {
+        // Closing locks the entity groups of the transaction, which must not be done while
+        // holding the lock on the profile.
+        previousTransaction.close();
+      }
     }
 
     Transaction.Builder txn =
@@ -1598,51 +1690,67 @@ public abstract class LocalDatastoreService {
 
     globalLock.readLock().lock();
 
-    // Synchronized so we can't commit and rollback at the same time.
-    synchronized (profile) {
-      LiveTxn liveTxn;
+    LiveTxn liveTxn;
+    try {
+      // Removing the transaction is atomic, so we can't commit and rollback at the same time.
+      liveTxn = profile.removeTxn(req.getHandle());
 
       try {
-        liveTxn = profile.removeTxn(req.getHandle());
-
-        try {
-          if (liveTxn.isDirty()) {
-            response = commitImpl(liveTxn, profile);
-          } else {
-            // cost of a read-only txn is 0
-            response.setCost(Cost.newBuilder().setEntityWrites(0).setIndexWrites(0).build());
-          }
-        } catch (ApplicationException e) {
-          // commit failed, re-add transaction so that it can be rolled back or reset.
-          profile.addTxn(
-              req.getHandle(),
-              new LiveTxn(clock, liveTxn.allowMultipleEg, liveTxn.originalTransactionMode, true));
-          throw e;
+        if (liveTxn.isDirty()) {
+          response = commitImpl(liveTxn, profile);
+        } else {
+          // cost of a read-only txn is 0
+          response.setCost(Cost.newBuilder().setEntityWrites(0).setIndexWrites(0).build());
         }
-      } finally {
-        globalLock.readLock().unlock();
+      } catch (ApplicationException e) {
+        // commit failed, re-add transaction so that it can be rolled back or reset.
+        profile.addTxn(
+            req.getHandle(),
+            new LiveTxn(clock, liveTxn.allowMultipleEg, liveTxn.originalTransactionMode, true));
+        throw e;
       }
+    } finally {
+      globalLock.readLock().unlock();
+    }
 
-      // Sends all pending actions.
-      // Note: this is an approximation of the true Datastore behavior.
-      // Currently, dev_server holds taskqueue tasks in memory, so they are lost
-      // on a dev_server restart.
-      // TODO: persist actions as a part of the transactions when
-      // taskqueue tasks become durable.
-      for (TaskQueueAddRequest action : liveTxn.getActions()) {
-        try {
-          addActionImpl(action);
-        } catch (ApplicationException e) {
-          logger.atWarning().withCause(e).log("Transactional task: %s has been dropped.", action);
-        }
+    // Sends all pending actions.
+    // Note: this is an approximation of the true Datastore behavior.
+    // Currently, dev_server holds taskqueue tasks in memory, so they are lost
+    // on a dev_server restart.
+    // TODO: persist actions as a part of the transactions when
+    // taskqueue tasks become durable.
+    for (TaskQueueAddRequest action : liveTxn.getActions()) {
+      try {
+        addActionImpl(action);
+      } catch (ApplicationException e) {
+        logger.atWarning().withCause(e).log("Transactional task: %s has been dropped.", action);
       }
     }
     return response.build();
   }
 
-  /** Requires a lock on the provided profile. */
+  /**
+   * Commits {@code liveTxn} while holding the locks of all of its entity groups. The locks are
+   * taken in the order the entity groups were created in, so that two transactions over the same
+   * entity groups can't deadlock.
+   */
   private CommitResponse.Builder commitImpl(LiveTxn liveTxn, final Profile profile) {
-    // assumes we already have a lock on the profile
+    List<Profile.EntityGroup> groups = new ArrayList<>();
+    for (EntityGroupTracker tracker : liveTxn.getAllTrackers()) {
+      groups.add(tracker.getEntityGroup());
+    }
+    groups.sort(Comparator.comparingLong(Profile.EntityGroup::getLockOrder));
+    return commitLocked(liveTxn, profile, groups);
+  }
+
+  /** Takes the lock of the first of {@code groups} and commits once all of them are held. */
+  private CommitResponse.Builder commitLocked(
+      LiveTxn liveTxn, Profile profile, List<Profile.EntityGroup> groups) {
+    if (!groups.isEmpty()) {
+      synchronized (groups.get(0)) {
+        return commitLocked(liveTxn, profile, groups.subList(1, groups.size()));
+      }
+    }
     CommitResponse.Builder response = CommitResponse.newBuilder();
 
     for (EntityGroupTracker tracker : liveTxn.getAllTrackers()) {
@@ -1824,9 +1932,20 @@ public abstract class LocalDatastoreService {
     if (!backingStoreFile.exists()) {
       logger.atInfo().log("The backing store, %s, does not exist. It will be created.", path);
       backingStoreFile.getParentFile().mkdirs();
-      return;
+    } else {
+      loadBackingStore(path);
     }
+    // The log holds the changes made after the backing store was last written. It is replayed
+    // even if it is no longer enabled, and is then folded into the backing store on the next
+    // write.
+    File logFile = MutationLog.logFileFor(backingStoreFile);
+    replayMutationLog(logFile);
+    if (storeLog) {
+      mutationLog = new MutationLog(logFile, backingStoreGeneration);
+    }
+  }
 
+  private void loadBackingStore(String path) {
     long start = clock.getCurrentTime();
     try (ObjectInputStream objectIn =
         new ObjectInputStream(new BufferedInputStream(new FileInputStream(backingStore)))) {
@@ -1849,6 +1968,12 @@ public abstract class LocalDatastoreService {
         profiles.clear();
         profiles.putAll(profilesOnDisk);
       }
+      try {
+        backingStoreGeneration = objectIn.readLong();
+      } catch (EOFException e) {
+        // Written before backing stores had a generation, and so before there was a log.
+        backingStoreGeneration = 0;
+      }
       long end = clock.getCurrentTime();
 
       logger.atInfo().log("Time to load datastore: %d ms", (end - start));
@@ -1860,6 +1985,60 @@ public abstract class LocalDatastoreService {
     }
   }
 
+  private void replayMutationLog(File logFile) {
+    long start = clock.getCurrentTime();
+    try {
+      int mutations =
+          MutationLog.replay(
+              logFile,
+              backingStoreGeneration,
+              new MutationLog.Replayer() {
+                @Override
+                public void put(EntityProto entity, long version) {
+                  Profile profile = getOrCreateProfile(entity.getKey().getApp());
+                  profile.advanceCommitTimestamp(version);
+                  getOrCreateExtent(profile, getKind(entity.getKey()))
+                      .putEntity(VersionedEntity.create(entity, version));
+                }
+
+                @Override
+                public void delete(Reference key) {
+                  Extent extent = getOrCreateProfile(key.getApp()).getExtents().get(getKind(key));
+                  if (extent != null) {
+                    extent.removeEntity(key);
+                  }
+                }
+
+                @Override
+                public void ids(long sequential, long scattered) {
+                  entityIdSequential.accumulateAndGet(sequential, Math::max);
+                  entityIdScattered.accumulateAndGet(scattered, Math::max);
+                }
+              });
+      if (mutations > 0) {
+        if (!storeLog) {
+          dirty = true;
+        }
+        logger.atInfo().log(
+            "Time to replay %d changes from the datastore log: %d ms",
+            mutations, clock.getCurrentTime() - start);
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to replay the datastore log, %s", logFile);
+    }
+  }
+
+  private void closeMutationLog() {
+    if (mutationLog != null) {
+      try {
+        mutationLog.close();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to close the datastore log");
+      }
+      mutationLog = null;
+    }
+  }
+
   /** A profile for an application. Contains all the Extents owned by the application. */
   static class Profile implements Serializable {
 
@@ -1880,24 +2059,37 @@ public abstract class LocalDatastoreService {
 
     /**
      * An EntityGroup maintains a consistent view of a profile during a transaction. All access to
-     * an entity group should be synchronized on the enclosing profile.
+     * an entity group should be synchronized on the entity group itself, so that operations on
+     * different entity groups of the same profile can run in parallel. Code holding the lock of an
+     * entity group may take the lock of the enclosing profile, but not the other way around, and
+     * must not take the lock of another entity group except through {@link #getLockOrder}.
      */
     class EntityGroup {
       private final Path path;
+      private final long lockOrder;
       private final AtomicLong version = new AtomicLong();
       private final WeakHashMap<LiveTxn, Profile> snapshots = new WeakHashMap<LiveTxn, Profile>();
       // Using a LinkedList because we insert at the end and remove from the front.
       private final LinkedList<LocalDatastoreJob> unappliedJobs =
           new LinkedList<LocalDatastoreJob>();
 
-      private EntityGroup(Path path) {
+      private EntityGroup(Path path, long lockOrder) {
         this.path = path;
+        this.lockOrder = lockOrder;
       }
 
       public long getVersion() {
         return version.get();
       }
 
+      /**
+       * Returns the position of this entity group in the order in which the locks of several
+       * entity groups must be taken.
+       */
+      long getLockOrder() {
+        return lockOrder;
+      }
+
       /**
        * Mark an entity group as modified. If there are open transactions for the current version of
        * the entity group, this will take a snapshot of the profile which the transactions will
@@ -1947,7 +2139,7 @@ public abstract class LocalDatastoreService {
         return tracker;
       }
 
-      public void removeTransaction(LiveTxn txn) {
+      public synchronized void removeTransaction(LiveTxn txn) {
         snapshots.remove(txn);
       }
 
@@ -1997,7 +2189,7 @@ public abstract class LocalDatastoreService {
         // need to apply existing unapplied jobs before we can try to apply
         // this one
         unappliedJobs.addLast(job);
-        getGroupsWithUnappliedJobs().add(path);
+        setHasUnappliedJobs(path, true);
         maybeRollForwardUnappliedJobs();
       }
 
@@ -2008,7 +2200,7 @@ public abstract class LocalDatastoreService {
             applyJob.apply();
           }
           unappliedJobs.clear();
-          getGroupsWithUnappliedJobs().remove(path);
+          setHasUnappliedJobs(path, false);
           logger.atFine().log("Rolled forward unapplied jobs for %s", path);
         }
       }
@@ -2033,7 +2225,7 @@ public abstract class LocalDatastoreService {
           }
         }
         if (unappliedJobs.isEmpty()) {
-          getGroupsWithUnappliedJobs().remove(path);
+          setHasUnappliedJobs(path, false);
         }
         logger.atFine().log("Rolled forward %d of %d jobs for %s", applied, jobsAtStart, path);
       }
@@ -2046,10 +2238,14 @@ public abstract class LocalDatastoreService {
       }
     }
 
-    // synchronized to ensure a consistent view of all the entities
-    public synchronized List<VersionedEntity> getAllEntities() {
+    // Each extent gives a consistent view of its own entities.
+    public List<VersionedEntity> getAllEntities() {
+      List<Extent> allExtents;
+      synchronized (extents) {
+        allExtents = new ArrayList<>(extents.values());
+      }
       List<VersionedEntity> entities = new ArrayList<>();
-      for (Extent extent : extents.values()) {
+      for (Extent extent : allExtents) {
         entities.addAll(extent.getAllEntities());
       }
       return entities;
@@ -2084,7 +2280,7 @@ public abstract class LocalDatastoreService {
      * Returns the current timestamp of the profile. This is equal to the commit timestamp of the
      * last job added to the profile.
      */
-    public long getReadTimestamp() {
+    public synchronized long getReadTimestamp() {
       return lastCommitTimestamp;
     }
 
@@ -2092,10 +2288,15 @@ public abstract class LocalDatastoreService {
      * Returns a commit timestamp for a newly created Job. This increments the read timestamp of the
      * profile.
      */
-    private long incrementAndGetCommitTimestamp() {
+    private synchronized long incrementAndGetCommitTimestamp() {
       return ++lastCommitTimestamp;
     }
 
+    /** Makes sure the commit timestamps returned from now on are larger than {@code timestamp}. */
+    private synchronized void advanceCommitTimestamp(long timestamp) {
+      lastCommitTimestamp = Math.max(lastCommitTimestamp, timestamp);
+    }
+
     /**
      * Returns the set of all {@code Extents} for this {@code Profile}, organized by kind. The
      * returned {@code Map} is synchronized.
@@ -2110,7 +2311,8 @@ public abstract class LocalDatastoreService {
       Map<Path, EntityGroup> map = getGroups();
       EntityGroup group = map.get(path);
       if (group == null) {
-        group = new EntityGroup(path);
+        // Entity groups are never removed, so the size of the map is a unique lock order.
+        group = new EntityGroup(path, map.size());
         map.put(path, group);
       }
       return group;
@@ -2123,13 +2325,20 @@ public abstract class LocalDatastoreService {
      * time and instead ties it to operations that users control, which makes tests much easier to
      * write.
      */
-    private synchronized void groom() {
+    private void groom() {
       // Need to iterate over a copy because grooming manipulates the list
       // we're iterating over. Note that a consistent order is necessary to
-      // get consistent grooming.
-      for (Path path : new LinkedHashSet<Path>(getGroupsWithUnappliedJobs())) {
+      // get consistent grooming. The lock on the profile is released before
+      // taking the lock of each entity group.
+      List<Path> paths;
+      synchronized (this) {
+        paths = new ArrayList<>(getGroupsWithUnappliedJobs());
+      }
+      for (Path path : paths) {
         EntityGroup eg = getGroup(path);
-        eg.maybeRollForwardUnappliedJobs();
+        synchronized (eg) {
+          eg.maybeRollForwardUnappliedJobs();
+        }
       }
     }
 
@@ -2167,9 +2376,17 @@ public abstract class LocalDatastoreService {
       getTxns().put(handle, txn);
     }
 
-    private synchronized LiveTxn removeTxn(long handle) {
-      LiveTxn txn = getTxn(handle);
+    private LiveTxn removeTxn(long handle) {
+      LiveTxn txn = detachTxn(handle);
+      // Closing locks the entity groups of the transaction, so it must happen without holding the
+      // lock on the profile.
       txn.close();
+      return txn;
+    }
+
+    /** Removes a transaction from the profile without closing it. */
+    private synchronized LiveTxn detachTxn(long handle) {
+      LiveTxn txn = getTxn(handle);
       txns.remove(handle);
       return txn;
     }
@@ -2194,6 +2411,14 @@ public abstract class LocalDatastoreService {
       }
       return groupsWithUnappliedJobs;
     }
+
+    private synchronized void setHasUnappliedJobs(Path path, boolean hasUnappliedJobs) {
+      if (hasUnappliedJobs) {
+        getGroupsWithUnappliedJobs().add(path);
+      } else {
+        getGroupsWithUnappliedJobs().remove(path);
+      }
+    }
   }
 
   /**
@@ -2235,6 +2460,26 @@ public abstract class LocalDatastoreService {
      */
     private Map<Reference, Long> versions = new HashMap<>();
 
+    /**
+     * Ordered indexes of single properties, keyed by property name. Each maps the comparable form
+     * of a property value, as used by {@link EntityProtoComparator}, to the keys of the entities
+     * that have an indexed property of that name with that value. An index is built the first time
+     * a query needs it and is then kept up to date by {@link #putEntity} and {@link
+     * #removeEntity}, so kinds that are never queried on a property pay nothing for it.
+     *
+     * <p>Non-final to permit manual initialization during deserialization.
+     */
+    private transient Map<String, NavigableMap<Comparable<Object>, Set<Reference>>>
+        propertyIndexes = new HashMap<>();
+
+    /**
+     * Guards all of the above. Reads, including queries, share the lock so that they only wait for
+     * the writes to this extent, which are short as they only replace entities.
+     *
+     * <p>Non-final to permit manual initialization during deserialization.
+     */
+    private transient ReadWriteLock lock = new ReentrantReadWriteLock();
+
     /* Default serial version from 195 SDK. */
     private static final long serialVersionUID = 1199103439874512494L;
 
@@ -2245,37 +2490,290 @@ public abstract class LocalDatastoreService {
     private static final String ENTITY_VERSION_RESERVED_PROPERTY = "__entity_version__";
 
     public Collection<VersionedEntity> getAllEntities() {
-      ImmutableList.Builder<VersionedEntity> builder = ImmutableList.builder();
-      for (Reference key : entities.keySet()) {
-        builder.add(getEntityByKey(key));
+      lock.readLock().lock();
+      try {
+        ImmutableList.Builder<VersionedEntity> builder = ImmutableList.builder();
+        for (Reference key : entities.keySet()) {
+          builder.add(getEntityByKey(key));
+        }
+        return builder.build();
+      } finally {
+        lock.readLock().unlock();
       }
-      return builder.build();
     }
 
     public Collection<EntityProto> getAllEntityProtos() {
-      return entities.values();
+      lock.readLock().lock();
+      try {
+        return ImmutableList.copyOf(entities.values());
+      } finally {
+        lock.readLock().unlock();
+      }
     }
 
     public VersionedEntity getEntityByKey(Reference key) {
-      EntityProto entity = entities.get(key);
-      Long version = versions.get(key);
+      lock.readLock().lock();
+      try {
+        EntityProto entity = entities.get(key);
+        Long version = versions.get(key);
 
-      return (entity == null) ? null : VersionedEntity.create(entity, version);
+        return (entity == null) ? null : VersionedEntity.create(entity, version);
+      } finally {
+        lock.readLock().unlock();
+      }
     }
 
     public EntityProto getEntityProtoByKey(Reference key) {
-      return entities.get(key);
+      lock.readLock().lock();
+      try {
+        return entities.get(key);
+      } finally {
+        lock.readLock().unlock();
+      }
     }
 
     public void removeEntity(Reference key) {
-      versions.remove(key);
-      entities.remove(key);
+      lock.writeLock().lock();
+      try {
+        versions.remove(key);
+        EntityProto removed = entities.remove(key);
+        if (removed != null) {
+          updatePropertyIndexes(removed, false);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
     }
 
     public void putEntity(VersionedEntity entity) {
-      Reference key = entity.entityProto().getKey();
-      entities.put(key, entity.entityProto());
-      versions.put(key, entity.version());
+      lock.writeLock().lock();
+      try {
+        Reference key = entity.entityProto().getKey();
+        EntityProto replaced = entities.put(key, entity.entityProto());
+        versions.put(key, entity.version());
+        if (replaced != null) {
+          updatePropertyIndexes(replaced, false);
+        }
+        updatePropertyIndexes(entity.entityProto(), true);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /**
+     * Returns the entities that have a value equal to the operand of one of the equality {@code
+     * filters}, using the filter that matches the fewest entities. Every entity that matches all
+     * of the filters is included. Returns null if there are no equality filters on properties.
+     */
+    @Nullable
+    Collection<VersionedEntity> getEntitiesMatchingEqualityFilter(List<Query.Filter> filters) {
+      List<Query.Filter> equalityFilters = new ArrayList<>();
+      for (Query.Filter filter : filters) {
+        Property property = filter.getProperty(0);
+        if (filter.getOp() == Query.Filter.Operator.EQUAL
+            && !property.getName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+          ensurePropertyIndex(property.getName());
+          equalityFilters.add(filter);
+        }
+      }
+      if (equalityFilters.isEmpty()) {
+        return null;
+      }
+      lock.readLock().lock();
+      try {
+        Set<Reference> keys = null;
+        for (Query.Filter filter : equalityFilters) {
+          Property property = filter.getProperty(0);
+          Set<Reference> matching =
+              propertyIndexes
+                  .get(property.getName())
+                  .get(DataTypeTranslator.getComparablePropertyValue(property));
+          if (matching == null) {
+            return ImmutableList.of();
+          }
+          if (keys == null || matching.size() < keys.size()) {
+            keys = matching;
+          }
+        }
+        ImmutableList.Builder<VersionedEntity> builder = ImmutableList.builder();
+        for (Reference key : keys) {
+          builder.add(getEntityByKey(key));
+        }
+        return builder.build();
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * Returns the entities that satisfy {@code matches}, in the order given by {@code
+     * entityComparator}, whose first order must be {@code order}. The entities are found by
+     * scanning the index of the order's property over the range allowed by the inequality {@code
+     * filters} on that property, which are the values {@link EntityProtoComparator} takes into
+     * account when ordering. The position of an entity is then given by the first index entry
+     * that refers to it, and only the entities that share that entry need to be sorted. The scan
+     * stops once at least {@code maxResults} entities have been found.
+     */
+    List<VersionedEntity> scanPropertyIndex(
+        Order order,
+        List<Query.Filter> filters,
+        EntityProtoComparator entityComparator,
+        Predicate<EntityProto> matches,
+        int maxResults) {
+      ensurePropertyIndex(order.getProperty());
+      lock.readLock().lock();
+      try {
+        NavigableMap<Comparable<Object>, Set<Reference>> index =
+            restrictToRange(
+                propertyIndexes.get(order.getProperty()), order.getProperty(), filters);
+        if (order.getDirection() == Order.Direction.DESCENDING) {
+          index = index.descendingMap();
+        }
+        Set<Reference> seen = new HashSet<>();
+        List<EntityProto> sameValue = new ArrayList<>();
+        List<VersionedEntity> results = new ArrayList<>();
+        for (Set<Reference> keys : index.values()) {
+          sameValue.clear();
+          for (Reference key : keys) {
+            if (seen.add(key)) {
+              EntityProto entity = entities.get(key);
+              if (matches.apply(entity)) {
+                sameValue.add(entity);
+              }
+            }
+          }
+          Collections.sort(sameValue, entityComparator);
+          for (EntityProto entity : sameValue) {
+            results.add(VersionedEntity.create(entity, versions.get(entity.getKey())));
+          }
+          if (results.size() >= maxResults) {
+            break;
+          }
+        }
+        return results;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    /**
+     * Returns the part of {@code index} allowed by the inequality {@code filters} on {@code
+     * propertyName}. When there are several bounds on the same side the tightest one applies, as
+     * in {@code FilterMatcher}.
+     */
+    private static NavigableMap<Comparable<Object>, Set<Reference>> restrictToRange(
+        NavigableMap<Comparable<Object>, Set<Reference>> index,
+        String propertyName,
+        List<Query.Filter> filters) {
+      Comparator<Comparable<Object>> comparator = EntityProtoComparators.MULTI_TYPE_COMPARATOR;
+      Comparable<Object> min = null;
+      boolean hasMin = false;
+      boolean minInclusive = false;
+      Comparable<Object> max = null;
+      boolean hasMax = false;
+      boolean maxInclusive = false;
+      for (Query.Filter filter : filters) {
+        Property property = filter.getProperty(0);
+        if (!property.getName().equals(propertyName)) {
+          continue;
+        }
+        Comparable<Object> value = DataTypeTranslator.getComparablePropertyValue(property);
+        switch (filter.getOp()) {
+          case GREATER_THAN, GREATER_THAN_OR_EQUAL -> {
+            boolean inclusive = filter.getOp() == Query.Filter.Operator.GREATER_THAN_OR_EQUAL;
+            int cmp = hasMin ? comparator.compare(min, value) : -1;
+            if (cmp < 0 || (cmp == 0 && !inclusive)) {
+              min = value;
+              hasMin = true;
+              minInclusive = inclusive;
+            }
+          }
+          case LESS_THAN, LESS_THAN_OR_EQUAL -> {
+            boolean inclusive = filter.getOp() == Query.Filter.Operator.LESS_THAN_OR_EQUAL;
+            int cmp = hasMax ? comparator.compare(max, value) : 1;
+            if (cmp > 0 || (cmp == 0 && !inclusive)) {
+              max = value;
+              hasMax = true;
+              maxInclusive = inclusive;
+            }
+          }
+          default -> {}
+        }
+      }
+      if (hasMin && hasMax) {
+        int cmp = comparator.compare(min, max);
+        if (cmp > 0 || (cmp == 0 && !(minInclusive && maxInclusive))) {
+          return Collections.emptyNavigableMap();
+        }
+        return index.subMap(min, minInclusive, max, maxInclusive);
+      } else if (hasMin) {
+        return index.tailMap(min, minInclusive);
+      } else if (hasMax) {
+        return index.headMap(max, maxInclusive);
+      }
+      return index;
+    }
+
+    /** Builds the index of {@code propertyName} if it has not been built yet. */
+    private void ensurePropertyIndex(String propertyName) {
+      lock.readLock().lock();
+      try {
+        if (propertyIndexes.containsKey(propertyName)) {
+          return;
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      lock.writeLock().lock();
+      try {
+        if (propertyIndexes.containsKey(propertyName)) {
+          return;
+        }
+        NavigableMap<Comparable<Object>, Set<Reference>> index =
+            new TreeMap<>(EntityProtoComparators.MULTI_TYPE_COMPARATOR);
+        for (EntityProto entity : entities.values()) {
+          for (Property property :
+              DataTypeTranslator.findIndexedPropertiesOnPb(entity, propertyName)) {
+            index
+                .computeIfAbsent(
+                    DataTypeTranslator.getComparablePropertyValue(property),
+                    value -> new HashSet<>())
+                .add(entity.getKey());
+          }
+        }
+        propertyIndexes.put(propertyName, index);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    /** Adds {@code entity} to, or removes it from, the property indexes that have been built. */
+    private void updatePropertyIndexes(EntityProto entity, boolean add) {
+      if (propertyIndexes.isEmpty()) {
+        return;
+      }
+      Reference key = entity.getKey();
+      Set<String> names = new HashSet<>();
+      for (Property property : entity.getPropertyList()) {
+        names.add(property.getName());
+      }
+      for (String name : names) {
+        NavigableMap<Comparable<Object>, Set<Reference>> index = propertyIndexes.get(name);
+        if (index == null) {
+          continue;
+        }
+        for (Property property : DataTypeTranslator.findIndexedPropertiesOnPb(entity, name)) {
+          Comparable<Object> value = DataTypeTranslator.getComparablePropertyValue(property);
+          if (add) {
+            index.computeIfAbsent(value, v -> new HashSet<>()).add(key);
+          } else {
+            Set<Reference> keys = index.get(value);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+              index.remove(value);
+            }
+          }
+        }
+      }
     }
 
     /**
@@ -2328,13 +2826,16 @@ public abstract class LocalDatastoreService {
       out.putFields();
       out.writeFields();
       out.writeLong(CURRENT_STORAGE_VERSION);
-      out.writeInt(entities.size());
-      for (VersionedEntity entity : getAllEntities()) {
+      Collection<VersionedEntity> allEntities = getAllEntities();
+      out.writeInt(allEntities.size());
+      for (VersionedEntity entity : allEntities) {
         out.writeObject(serializeEntity(entity));
       }
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      propertyIndexes = new HashMap<>();
+      lock = new ReentrantReadWriteLock();
       ObjectInputStream.GetField fields = in.readFields();
       if (fields.get("entities", null) != null) {
         // Legacy storage format.
@@ -2453,16 +2954,23 @@ public abstract class LocalDatastoreService {
       // to the previous job. Keeping the link would lead to OOM in case we have a policy that
       // always leaves a job unapplied per entity group.
       previousJob = null;
+      MutationLog log = mutationLog;
       for (Reference key : deletes) {
         Extent extent = profile.getExtents().get(getKind(key));
         if (extent != null) {
           extent.removeEntity(key);
+          if (log != null) {
+            log.recordDelete(key);
+          }
         }
       }
       for (Map.Entry<Reference, EntityProto> entry : puts.entrySet()) {
         if (!isNoOpWrite(entry.getKey())) {
           Extent extent = getOrCreateExtent(profile, getKind(entry.getKey()));
           extent.putEntity(VersionedEntity.create(entry.getValue(), timestamp));
+          if (log != null) {
+            log.recordPut(entry.getValue(), timestamp);
+          }
         }
       }
       dirty = true;
@@ -2910,8 +3418,8 @@ public abstract class LocalDatastoreService {
          * in the real datastore, this check must move to the snapshotting
          * logic. */
         /* Check if the other entity groups are still unchanged, i.e. that we
-         * have a consistent snapshot (safe to do before creating the new
-         * tracker as we have a lock on the profile). */
+         * have a consistent snapshot. The other entity groups may still change
+         * after this check, which the version check on commit catches. */
         for (EntityGroupTracker other : getAllTrackers()) {
           try {
             other.checkEntityGroupVersion();
@@ -2955,14 +3463,20 @@ public abstract class LocalDatastoreService {
       return false;
     }
 
-    synchronized void close() {
+    void close() {
       // Calling close is optional. Eventually the transaction will
       // timeout and get GC'd since EntityGroup uses a WeakHashMap.
       // Closing the transaction does prevent us from making an extra,
       // useless snapshot. In particular, the transaction should
       // be closed during commit before modifying any entities,
       // to prevent an extra snapshot during each commit.
-      for (EntityGroupTracker tracker : getAllTrackers()) {
+      // Entity groups call into the transaction while holding their own
+      // lock, so the lock on the transaction is released before taking theirs.
+      List<EntityGroupTracker> trackers;
+      synchronized (this) {
+        trackers = new ArrayList<>(getAllTrackers());
+      }
+      for (EntityGroupTracker tracker : trackers) {
         tracker.getEntityGroup().removeTransaction(this);
       }
     }
@@ -3200,22 +3714,54 @@ public abstract class LocalDatastoreService {
       if (noStorage || !dirty) {
         return;
       }
+      // Cleared first so that changes applied while we write are persisted next time.
+      dirty = false;
 
       long start = clock.getCurrentTime();
+      File backingStoreFile = new File(backingStore);
+      if (mutationLog != null) {
+        long logLength = mutationLog.append(entityIdSequential.get(), entityIdScattered.get());
+        if (logLength < Math.max(MIN_LOG_COMPACTION_BYTES, backingStoreFile.length())) {
+          logger.atFine().log(
+              "Time to append to the datastore log: %d ms", clock.getCurrentTime() - start);
+          return;
+        }
+        // Everything recorded so far is about to be written to the backing store.
+        mutationLog.discardPending();
+      }
+
+      // Written to a temporary file first so that the backing store is never left half written.
+      // The generation goes last so that older readers, which stop after the profiles, ignore it.
+      long generation = backingStoreGeneration + 1;
+      File tempFile = new File(backingStore + ".tmp");
       try (ObjectOutputStream objectOut =
-          new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(backingStore)))) {
+          new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
         objectOut.writeLong(-CURRENT_STORAGE_VERSION);
         objectOut.writeLong(entityIdSequential.get());
         objectOut.writeLong(entityIdScattered.get());
         objectOut.writeObject(profiles);
+        objectOut.writeLong(generation);
+      }
+      Files.move(
+          tempFile.toPath(),
+          backingStoreFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      // From here on the old log no longer matches the backing store, so it is not replayed even
+      // if we die before clearing or deleting it.
+      backingStoreGeneration = generation;
+      if (mutationLog != null) {
+        mutationLog.clear(generation);
+      } else {
+        Files.deleteIfExists(MutationLog.logFileFor(backingStoreFile).toPath());
       }
 
-      dirty = false;
       long end = clock.getCurrentTime();
 
       logger.atInfo().log("Time to persist datastore: %d ms", (end - start));
 
     } catch (Exception e) {
+      dirty = true;
       Throwable t = e.getCause();
       if (t instanceof IOException) {
         logger.atSevere().withCause(e).log("Unable to save the datastore");
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore.dev;
+
+import com.google.common.flogger.GoogleLogger;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+import com.google.storage.onestore.v3_bytes.proto2api.OnestoreEntity.EntityProto;
+import com.google.storage.onestore.v3_bytes.proto2api.OnestoreEntity.Reference;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * An append-only log of the entity mutations of the local datastore, kept next to its backing
+ * store. Writing the log costs as much as the mutations made since the last write, while the
+ * backing store is rewritten in full. The backing store is only rewritten, and the log cleared,
+ * once the log has grown large.
+ *
+ * <p>The log starts with a header and is followed by records, each of which is its length, the
+ * CRC32 of its payload and the payload. A record that was only partly written when the process
+ * died is detected by its length or checksum and dropped, along with anything after it.
+ *
+ * <p>The header holds the generation of the backing store the log follows. If the process dies
+ * after the backing store was rewritten but before the log was cleared, the log is left next to a
+ * backing store that already contains its changes and later ones. Its generation then no longer
+ * matches and it is ignored rather than replayed over the newer data.
+ *
+ * <p>Mutations can be recorded from any thread. {@link #append}, {@link #clear} and {@link
+ * #close} must not be called concurrently.
+ */
+final class MutationLog {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x4C44534C; // "LDSL"
+  private static final int FORMAT_VERSION = 2;
+  private static final int HEADER_LENGTH = 16;
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte IDS = 3;
+
+  /** Receives the mutations of a log as it is replayed. */
+  interface Replayer {
+    void put(EntityProto entity, long version);
+
+    void delete(Reference key);
+
+    /** Called with the values the auto ID counters had when the records that follow were made. */
+    void ids(long sequential, long scattered);
+  }
+
+  /** Returns the file holding the log of the given backing store. */
+  static File logFileFor(File backingStore) {
+    return new File(backingStore.getPath() + ".log");
+  }
+
+  private final File file;
+  private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+  @Nullable private FileChannel channel;
+  private long generation;
+
+  /** Creates a log following the backing store of the given generation. */
+  MutationLog(File file, long generation) {
+    this.file = file;
+    this.generation = generation;
+  }
+
+  void recordPut(EntityProto entity, long version) {
+    byte[] entityBytes = entity.toByteArray();
+    pending.add(
+        ByteBuffer.allocate(1 + 8 + entityBytes.length)
+            .put(PUT)
+            .putLong(version)
+            .put(entityBytes)
+            .array());
+  }
+
+  void recordDelete(Reference key) {
+    byte[] keyBytes = key.toByteArray();
+    pending.add(ByteBuffer.allocate(1 + keyBytes.length).put(DELETE).put(keyBytes).array());
+  }
+
+  /** Drops the mutations that have been recorded but not appended yet. */
+  void discardPending() {
+    pending.clear();
+  }
+
+  /**
+   * Appends the mutations recorded so far to the log, preceded by the current values of the auto
+   * ID counters, and forces them to disk.
+   *
+   * @return the length of the log
+   */
+  long append(long sequentialId, long scatteredId) throws IOException {
+    List<byte[]> payloads = new ArrayList<>();
+    payloads.add(
+        ByteBuffer.allocate(1 + 8 + 8).put(IDS).putLong(sequentialId).putLong(scatteredId).array());
+    int length = RECORD_HEADER_LENGTH + payloads.get(0).length;
+    for (byte[] payload = pending.poll(); payload != null; payload = pending.poll()) {
+      payloads.add(payload);
+      length += RECORD_HEADER_LENGTH + payload.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    CRC32 crc = new CRC32();
+    for (byte[] payload : payloads) {
+      crc.reset();
+      crc.update(payload);
+      buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    }
+    buffer.flip();
+    FileChannel out = openChannel();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    out.force(false);
+    return out.size();
+  }
+
+  /**
+   * Empties the log, once everything in it has been written to the backing store of the given
+   * generation.
+   */
+  void clear(long generation) throws IOException {
+    this.generation = generation;
+    FileChannel out = openChannel();
+    // Truncated before the header is rewritten, so the old records never carry the new generation.
+    out.truncate(0);
+    out.force(false);
+    writeHeader(out);
+  }
+
+  void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private FileChannel openChannel() throws IOException {
+    if (channel == null) {
+      FileChannel out =
+          FileChannel.open(
+              file.toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      out.read(header, 0);
+      header.flip();
+      if (header.remaining() < HEADER_LENGTH
+          || header.getInt() != MAGIC
+          || header.getInt() != FORMAT_VERSION
+          || header.getLong() != generation) {
+        // Nothing in the file belongs to the current backing store.
+        out.truncate(0);
+        writeHeader(out);
+      }
+      out.position(out.size());
+      channel = out;
+    }
+    return channel;
+  }
+
+  private void writeHeader(FileChannel out) throws IOException {
+    ByteBuffer header =
+        ByteBuffer.allocate(HEADER_LENGTH)
+            .putInt(MAGIC)
+            .putInt(FORMAT_VERSION)
+            .putLong(generation)
+            .flip();
+    out.position(0);
+    while (header.hasRemaining()) {
+      out.write(header);
+    }
+    out.force(false);
+  }
+
+  /**
+   * Replays the log in {@code file}, if there is one, by mapping it into memory. A partly written
+   * record at the end of the log is removed from the file. A log that does not follow the backing
+   * store of the given generation is emptied instead of replayed.
+   *
+   * @return the number of mutations replayed
+   */
+  static int replay(File file, long generation, Replayer replayer) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    try (FileChannel in =
+        FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = in.size();
+      if (size < HEADER_LENGTH) {
+        in.truncate(0);
+        return 0;
+      }
+      ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+      if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+        throw new IOException("Unsupported datastore log format in " + file);
+      }
+      long logGeneration = header.getLong();
+      if (logGeneration != generation) {
+        logger.atWarning().log(
+            "Ignoring %s, which follows backing store generation %d rather than %d",
+            file, logGeneration, generation);
+        in.truncate(0);
+        return 0;
+      }
+      int mutations = 0;
+      long position = HEADER_LENGTH;
+      CRC32 crc = new CRC32();
+      // Records never span two mappings: a mapping is redone from the start of the first record
+      // that does not fit in it.
+      while (position < size) {
+        MappedByteBuffer mapped =
+            in.map(
+                FileChannel.MapMode.READ_ONLY,
+                position,
+                Math.min(size - position, Integer.MAX_VALUE));
+        int start = 0;
+        while (mapped.remaining() >= RECORD_HEADER_LENGTH) {
+          int length = mapped.getInt();
+          int checksum = mapped.getInt();
+          if (length <= 0 || length > mapped.remaining()) {
+            break;
+          }
+          ByteBuffer payload = mapped.slice().limit(length);
+          crc.reset();
+          crc.update(payload.duplicate());
+          if ((int) crc.getValue() != checksum) {
+            break;
+          }
+          mapped.position(mapped.position() + length);
+          replayRecord(payload, replayer);
+          if (payload.get(0) != IDS) {
+            mutations++;
+          }
+          start = mapped.position();
+        }
+        if (start == 0) {
+          // Not even one record could be read from here on.
+          break;
+        }
+        position += start;
+      }
+      if (position < size) {
+        logger.atWarning().log(
+            "Dropping %d bytes of incomplete records at the end of %s", size - position, file);
+        in.truncate(position);
+      }
+      return mutations;
+    }
+  }
+
+  private static void replayRecord(ByteBuffer payload, Replayer replayer) throws IOException {
+    byte type = payload.get();
+    switch (type) {
+      case PUT -> {
+        long version = payload.getLong();
+        replayer.put(parse(EntityProto.parser(), payload), version);
+      }
+      case DELETE -> replayer.delete(parse(Reference.parser(), payload));
+      case IDS -> replayer.ids(payload.getLong(), payload.getLong());
+      default -> throw new IOException("Unknown datastore log record type " + type);
+    }
+  }
+
+  private static <T> T parse(Parser<T> parser, ByteBuffer bytes) throws IOException {
+    try {
+      return parser.parseFrom(bytes, ExtensionRegistry.getEmptyRegistry());
+    } catch (InvalidProtocolBufferException e) {
+      throw new IOException("Corrupt datastore log record", e);
+    }
+  }
+}
@@ -55,6 +55,7 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Java bindings for the local Memcache service. The local cache will by default hold up to 100Mb of
@@ -62,6 +63,9 @@ import java.util.concurrent.atomic.AtomicLong;
  * memcache.maxsize}, set in megabytes ("100M"), in kilobytes ("102400K"), or in bytes
  * ("104857600").
  *
+ * <p>The cache is split into independently locked segments, so that calls from concurrent requests
+ * only wait for each other when their keys fall into the same segment.
+ *
  */
 @AutoService(LocalRpcService.class)
 public final class LocalMemcacheService extends AbstractLocalRpcService {
@@ -97,6 +101,9 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     /** Access time in milliseconds-since-epoch */
     public long access;
 
+    /** Position of the last access among all accesses to the cache, for LRU eviction. */
+    long tick;
+
     public long bytes;
 
     /** "compare-and-swap" ID. See comments in <internal9>. */
@@ -152,62 +159,61 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
   }
 
   private class LocalStats {
-    private long hits;
-    private long misses;
-    private long hitBytes;
-    private long itemCount;
-    private long totalBytes;
-
-    private LocalStats(long hits, long misses, long hitBytes, long itemCount, long totalBytes) {
-      this.hits = hits;
-      this.misses = misses;
-      this.hitBytes = hitBytes;
-      this.itemCount = itemCount;
-      this.totalBytes = totalBytes;
-    }
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hitBytes = new LongAdder();
+    private final AtomicLong itemCount = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
 
     public MergedNamespaceStats getAsMergedNamespaceStats() {
       return MergedNamespaceStats.newBuilder()
-          .setHits(hits)
-          .setMisses(misses)
-          .setByteHits(hitBytes)
-          .setBytes(totalBytes)
-          .setItems(itemCount)
+          .setHits(hits.sum())
+          .setMisses(misses.sum())
+          .setByteHits(hitBytes.sum())
+          .setBytes(totalBytes.get())
+          .setItems(itemCount.get())
           .setOldestItemAge(getMaxSecondsWithoutAccess())
           .build();
     }
 
     public int getMaxSecondsWithoutAccess() {
-      if (lru.isEmpty()) {
+      long oldestAccess = Long.MAX_VALUE;
+      for (Segment segment : segments) {
+        synchronized (segment) {
+          if (!segment.lru.isEmpty()) {
+            oldestAccess = Math.min(oldestAccess, segment.lru.getOldest().access);
+          }
+        }
+      }
+      if (oldestAccess == Long.MAX_VALUE) {
         return 0; // no entries
       }
-      CacheEntry entry = lru.getOldest();
-      return (int) ((clock.getCurrentTime() - entry.access) / 1000);
+      return (int) ((clock.getCurrentTime() - oldestAccess) / 1000);
     }
 
     public void recordHit(CacheEntry ce) {
-      hits++;
-      hitBytes += ce.bytes;
+      hits.increment();
+      hitBytes.add(ce.bytes);
     }
 
     public void recordMiss() {
-      misses++;
+      misses.increment();
     }
 
     public void recordAdd(CacheEntry ce) {
-      itemCount++;
-      totalBytes += ce.bytes;
-      while (totalBytes > maxSize) {
-        CacheEntry oldest = lru.getOldest();
-        internalDelete(oldest.namespace, oldest.key);
-        itemCount--;
-        totalBytes -= oldest.bytes;
-      }
+      itemCount.incrementAndGet();
+      totalBytes.addAndGet(ce.bytes);
     }
 
     public void recordDelete(CacheEntry ce) {
-      itemCount--;
-      totalBytes -= ce.bytes;
+      itemCount.decrementAndGet();
+      totalBytes.addAndGet(-ce.bytes);
+    }
+
+    public void reset() {
+      hits.reset();
+      misses.reset();
+      hitBytes.reset();
     }
   }
 
@@ -217,9 +223,11 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
    */
   private class Key {
     private byte[] keyval;
+    private final int hash;
 
     public Key(byte[] bytes) {
       keyval = bytes;
+      hash = Arrays.hashCode(bytes);
     }
 
     public byte[] getBytes() {
@@ -237,67 +245,53 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(keyval);
+      return hash;
     }
   }
 
-  private LRU<CacheEntry> lru;
-  private final Map<String, Map<Key, CacheEntry>> mockCache;
-  private final Map<String, Map<Key, Long>> deleteHold;
-  private long maxSize;
-  private LocalStats stats;
-  private Clock clock;
-
-  public LocalMemcacheService() {
-    lru = new LRU<>();
-    mockCache = new HashMap<>();
-    deleteHold = new HashMap<>();
-    stats = new LocalStats(0, 0, 0, 0, 0);
-    globalNextCasId = new AtomicLong(1);
-  }
+  /**
+   * One of the independently locked parts of the cache. A key always lives in the same segment,
+   * so operations on a single key, such as CAS and increment, are atomic while holding the lock
+   * of its segment. Each segment keeps its own LRU chain; eviction removes the oldest entry across
+   * all segments, as ordered by {@link CacheEntry#tick}.
+   */
+  private final class Segment {
+    private final LRU<CacheEntry> lru = new LRU<>();
+    private final Map<String, Map<Key, CacheEntry>> entries = new HashMap<>();
+    private final Map<String, Map<Key, Long>> deleteHold = new HashMap<>();
 
-  private <K1, K2, V> Map<K2, V> getOrMakeSubMap(Map<K1, Map<K2, V>> map, K1 key) {
-    Map<K2, V> subMap = map.get(key);
-    if (subMap == null) {
-      subMap = new HashMap<>();
-      map.put(key, subMap);
+    private synchronized void touch(CacheEntry entry) {
+      entry.tick = nextTick.getAndIncrement();
+      lru.update(entry);
     }
-    return subMap;
-  }
 
-  private CacheEntry getWithExpiration(String namespace, Key key) {
-    CacheEntry entry;
-    synchronized (mockCache) {
-      entry = getOrMakeSubMap(mockCache, namespace).get(key);
+    private synchronized CacheEntry getWithExpiration(String namespace, Key key) {
+      CacheEntry entry = getOrMakeSubMap(entries, namespace).get(key);
       if (entry != null) {
         if (entry.expires == 0 || clock.getCurrentTime() < entry.expires) {
           entry.access = clock.getCurrentTime();
-          lru.update(entry);
+          touch(entry);
           return entry;
         }
         // Clean up expired item.
-        getOrMakeSubMap(mockCache, namespace).remove(key);
+        getOrMakeSubMap(entries, namespace).remove(key);
         lru.remove(entry);
         stats.recordDelete(entry);
       }
+      return null;
     }
-    return null;
-  }
 
-  private CacheEntry internalDelete(String namespace, Key key) {
-    CacheEntry ce;
-    synchronized (mockCache) {
-      ce = getOrMakeSubMap(mockCache, namespace).remove(key);
+    private synchronized CacheEntry internalDelete(String namespace, Key key) {
+      CacheEntry ce = getOrMakeSubMap(entries, namespace).remove(key);
       if (ce != null) {
         lru.remove(ce);
+        stats.recordDelete(ce);
       }
+      return ce;
     }
-    return ce;
-  }
 
-  private void internalSet(String namespace, Key key, CacheEntry entry) {
-    synchronized (mockCache) {
-      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
+    private synchronized void internalSet(String namespace, Key key, CacheEntry entry) {
+      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(entries, namespace);
       CacheEntry old = namespaceMap.get(key);
       if (old != null) {
         // The old entry is no longer valid so remove it from the LRU. The new entry will take its
@@ -306,9 +300,96 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
         stats.recordDelete(old);
       }
       namespaceMap.put(key, entry);
-      lru.update(entry);
+      touch(entry);
       stats.recordAdd(entry);
     }
+
+    /** Replaces the value of an entry in place, as increments do. */
+    private synchronized void internalUpdate(CacheEntry ce, byte[] value) {
+      stats.recordDelete(ce);
+      ce.value = value;
+      // don't change the flags; it keeps its original size/type
+      ce.bytes = (long) ce.key.getBytes().length + ce.value.length;
+      stats.recordAdd(ce);
+    }
+
+    /** Returns the tick of the least recently used entry, or {@link Long#MAX_VALUE} if empty. */
+    private synchronized long getOldestTick() {
+      return lru.isEmpty() ? Long.MAX_VALUE : lru.getOldest().tick;
+    }
+
+    private synchronized void evictOldest() {
+      if (!lru.isEmpty()) {
+        CacheEntry oldest = lru.getOldest();
+        internalDelete(oldest.namespace, oldest.key);
+      }
+    }
+
+    private synchronized void clear() {
+      for (CacheEntry entry = lru.getOldest(); entry != null; entry = lru.getOldest()) {
+        internalDelete(entry.namespace, entry.key);
+      }
+      entries.clear();
+      deleteHold.clear();
+      lru.clear();
+    }
+  }
+
+  /** The number of segments the cache is split into. Must be a power of two. */
+  private static final int SEGMENT_COUNT = 16;
+
+  private final Segment[] segments;
+  // Orders accesses across segments, so that eviction can find the least recently used entry.
+  private final AtomicLong nextTick;
+  private long maxSize;
+  private final LocalStats stats;
+  private Clock clock;
+
+  public LocalMemcacheService() {
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment();
+    }
+    nextTick = new AtomicLong();
+    stats = new LocalStats();
+    globalNextCasId = new AtomicLong(1);
+  }
+
+  private static <K1, K2, V> Map<K2, V> getOrMakeSubMap(Map<K1, Map<K2, V>> map, K1 key) {
+    Map<K2, V> subMap = map.get(key);
+    if (subMap == null) {
+      subMap = new HashMap<>();
+      map.put(key, subMap);
+    }
+    return subMap;
+  }
+
+  private Segment segmentFor(String namespace, Key key) {
+    int hash = namespace.hashCode() * 31 + key.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * Evicts least recently used entries until the cache fits in its size limit again. This locks
+   * one segment at a time, so concurrent additions may briefly take the cache over its limit, or
+   * make it evict slightly more than needed.
+   */
+  private void evictIfNeeded() {
+    while (stats.totalBytes.get() > maxSize) {
+      Segment oldestSegment = null;
+      long oldestTick = Long.MAX_VALUE;
+      for (Segment segment : segments) {
+        long tick = segment.getOldestTick();
+        if (tick < oldestTick) {
+          oldestTick = tick;
+          oldestSegment = segment;
+        }
+      }
+      if (oldestSegment == null) {
+        return;
+      }
+      oldestSegment.evictOldest();
+    }
   }
 
   @Override
@@ -363,23 +444,26 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     for (int i = 0; i < req.getKeyCount(); i++) {
       // our key is always a SHA1 hashcode
       Key key = new Key(req.getKey(i).toByteArray());
-      CacheEntry entry = getWithExpiration(req.getNameSpace(), key);
-      if (entry == null) {
-        stats.recordMiss();
-      } else {
-        stats.recordHit(entry);
-        MemcacheGetResponse.Item.Builder item = MemcacheGetResponse.Item.newBuilder();
+      Segment segment = segmentFor(req.getNameSpace(), key);
+      synchronized (segment) {
+        CacheEntry entry = segment.getWithExpiration(req.getNameSpace(), key);
+        if (entry == null) {
+          stats.recordMiss();
+        } else {
+          stats.recordHit(entry);
+          MemcacheGetResponse.Item.Builder item = MemcacheGetResponse.Item.newBuilder();
 
-        item.setKey(ByteString.copyFrom(key.getBytes()))
-            .setFlags(entry.flags)
-            .setValue(ByteString.copyFrom(entry.value));
+          item.setKey(ByteString.copyFrom(key.getBytes()))
+              .setFlags(entry.flags)
+              .setValue(ByteString.copyFrom(entry.value));
 
-        if (req.hasForCas() && req.getForCas()) {
-          entry.markWithCasId();
-          item.setCasId(entry.getCasId());
-        }
+          if (req.hasForCas() && req.getForCas()) {
+            entry.markWithCasId();
+            item.setCasId(entry.getCasId());
+          }
 
-        result.addItem(item.build());
+          result.addItem(item.build());
+        }
       }
     }
     status.setSuccessful(true);
@@ -394,23 +478,24 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
       MemcacheSetRequest.Item item = req.getItem(i);
       Key key = new Key(item.getKey().toByteArray());
       SetPolicy policy = item.getSetPolicy();
-      Map<Key, Long> timeoutMap = getOrMakeSubMap(deleteHold, namespace);
-      Long timeout = timeoutMap.get(key);
-
-      if (timeout != null && policy == SetPolicy.SET) {
-        // A SET operation overrides and clears any timeout that may exist
-        timeout = null;
-        timeoutMap.remove(key);
-      }
+      Segment segment = segmentFor(namespace, key);
+      synchronized (segment) {
+        Map<Key, Long> timeoutMap = getOrMakeSubMap(segment.deleteHold, namespace);
+        Long timeout = timeoutMap.get(key);
+
+        if (timeout != null && policy == SetPolicy.SET) {
+          // A SET operation overrides and clears any timeout that may exist
+          timeout = null;
+          timeoutMap.remove(key);
+        }
 
-      if ((timeout != null && clock.getCurrentTime() < timeout)
-          || (policy == SetPolicy.CAS && !item.hasCasId())) {
-        result.addSetStatus(SetStatusCode.NOT_STORED);
-        continue;
-      }
+        if ((timeout != null && clock.getCurrentTime() < timeout)
+            || (policy == SetPolicy.CAS && !item.hasCasId())) {
+          result.addSetStatus(SetStatusCode.NOT_STORED);
+          continue;
+        }
 
-      synchronized (mockCache) {
-        CacheEntry existingEntry = getWithExpiration(namespace, key);
+        CacheEntry existingEntry = segment.getWithExpiration(namespace, key);
         if ((policy == SetPolicy.REPLACE && existingEntry == null)
             || (policy == SetPolicy.ADD && existingEntry != null)
             || (policy == SetPolicy.CAS && existingEntry == null)) {
@@ -427,10 +512,11 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
           // avoid having to synchronize on reads. (Otherwise a reader on another thread
           // could be exposed to a partially modified entry).
           CacheEntry newEntry = new CacheEntry(namespace, key, value, flags, expiry * 1000);
-          internalSet(namespace, key, newEntry);
+          segment.internalSet(namespace, key, newEntry);
           result.addSetStatus(SetStatusCode.STORED);
         }
       }
+      evictIfNeeded();
     }
     status.setSuccessful(true);
     return result.build();
@@ -444,15 +530,16 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     for (int i = 0; i < req.getItemCount(); i++) {
       MemcacheDeleteRequest.Item item = req.getItem(i);
       Key key = new Key(item.getKey().toByteArray());
-      CacheEntry ce = internalDelete(namespace, key);
-      result.addDeleteStatus(ce == null ? DeleteStatusCode.NOT_FOUND : DeleteStatusCode.DELETED);
-      if (ce != null) {
-        stats.recordDelete(ce);
-      }
-      // open spec whether this happens if there was no deletion
-      if (item.hasDeleteTime()) {
-        int millisNoReAdd = item.getDeleteTime() * 1000;
-        getOrMakeSubMap(deleteHold, namespace).put(key, clock.getCurrentTime() + millisNoReAdd);
+      Segment segment = segmentFor(namespace, key);
+      synchronized (segment) {
+        CacheEntry ce = segment.internalDelete(namespace, key);
+        result.addDeleteStatus(ce == null ? DeleteStatusCode.NOT_FOUND : DeleteStatusCode.DELETED);
+        // open spec whether this happens if there was no deletion
+        if (item.hasDeleteTime()) {
+          int millisNoReAdd = item.getDeleteTime() * 1000;
+          getOrMakeSubMap(segment.deleteHold, namespace)
+              .put(key, clock.getCurrentTime() + millisNoReAdd);
+        }
       }
     }
     status.setSuccessful(true);
@@ -465,8 +552,9 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     final Key key = new Key(req.getKey().toByteArray());
     final long delta = req.getDirection() == Direction.DECREMENT ? -req.getDelta() : req.getDelta();
 
-    synchronized (mockCache) { // only increment offers atomicity
-      CacheEntry ce = getWithExpiration(namespace, key);
+    Segment segment = segmentFor(namespace, key);
+    synchronized (segment) { // only increment offers atomicity
+      CacheEntry ce = segment.getWithExpiration(namespace, key);
       if (ce == null) {
         if (req.hasInitialValue()) {
           // initial value is considered as uint64 and therefore can never be negative
@@ -476,7 +564,7 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
                   ? req.getInitialFlags()
                   : MemcacheSerialization.Flag.LONG.ordinal();
           ce = new CacheEntry(namespace, key, value.toString().getBytes(), flags, 0);
-          internalSet(namespace, key, ce);
+          segment.internalSet(namespace, key, ce);
         } else {
           stats.recordMiss();
           return result.build(); // with hasNewValue() == false
@@ -506,20 +594,14 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
       } else if (value.compareTo(UINT64_MAX_VALUE) > 0) {
         value = value.and(UINT64_MAX_VALUE);
       }
-      stats.recordDelete(ce);
       try {
-        ce.value = value.toString().getBytes(UTF8);
+        segment.internalUpdate(ce, value.toString().getBytes(UTF8));
       } catch (UnsupportedEncodingException e) {
         throw new ApiProxy.UnknownException(UTF8 + " encoding was not found.");
       }
-      // don't change the flags; it keeps its original size/type
-      ce.bytes = (long) key.getBytes().length + ce.value.length;
-      Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-      namespaceMap.remove(key);
-      namespaceMap.put(key, ce);
-      stats.recordAdd(ce);
       result.setNewValue(value.longValue());
     }
+    evictIfNeeded();
     status.setSuccessful(true);
     return result.build();
   }
@@ -529,17 +611,18 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     MemcacheBatchIncrementResponse.Builder result = MemcacheBatchIncrementResponse.newBuilder();
     String namespace = batchReq.getNameSpace();
 
-    synchronized (mockCache) { // only increment offers atomicity
-      for (MemcacheIncrementRequest req : batchReq.getItemList()) {
-        MemcacheIncrementResponse.Builder resp = MemcacheIncrementResponse.newBuilder();
+    for (MemcacheIncrementRequest req : batchReq.getItemList()) {
+      MemcacheIncrementResponse.Builder resp = MemcacheIncrementResponse.newBuilder();
 
-        Key key = new Key(req.getKey().toByteArray());
-        long delta = req.getDelta();
-        if (req.getDirection() == Direction.DECREMENT) {
-          delta = -delta;
-        }
+      Key key = new Key(req.getKey().toByteArray());
+      long delta = req.getDelta();
+      if (req.getDirection() == Direction.DECREMENT) {
+        delta = -delta;
+      }
 
-        CacheEntry ce = getWithExpiration(namespace, key);
+      Segment segment = segmentFor(namespace, key);
+      synchronized (segment) { // only increment offers atomicity
+        CacheEntry ce = segment.getWithExpiration(namespace, key);
         long newvalue;
         if (ce == null) {
           if (req.hasInitialValue()) {
@@ -550,6 +633,7 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
               throw new ApiProxy.UnknownException("Serialzation error: " + e);
             }
             ce = new CacheEntry(namespace, key, value.value, value.flags.ordinal(), 0);
+            segment.internalSet(namespace, key, ce);
           } else {
             stats.recordMiss();
             resp.setIncrementStatus(IncrementStatusCode.NOT_CHANGED);
@@ -581,25 +665,18 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
         if (delta < 0 && newvalue < 0) {
           newvalue = 0;
         }
-        stats.recordDelete(ce);
         try {
-          ce.value = Long.toString(newvalue).getBytes(UTF8);
+          segment.internalUpdate(ce, Long.toString(newvalue).getBytes(UTF8));
         } catch (UnsupportedEncodingException e) {
           // Shouldn't happen.
           throw new ApiProxy.UnknownException(UTF8 + " encoding was not found.");
         }
 
-        // don't change the flags; it keeps its original size/type
-        ce.bytes = (long) key.getBytes().length + ce.value.length;
-        Map<Key, CacheEntry> namespaceMap = getOrMakeSubMap(mockCache, namespace);
-        namespaceMap.remove(key);
-        namespaceMap.put(key, ce);
-        stats.recordAdd(ce);
-
         resp.setIncrementStatus(IncrementStatusCode.OK);
         resp.setNewValue(newvalue);
         result.addItem(resp);
       }
+      evictIfNeeded();
     }
     status.setSuccessful(true);
     return result.build();
@@ -607,12 +684,10 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
 
   public MemcacheFlushResponse flushAll(Status status, MemcacheFlushRequest req) {
     MemcacheFlushResponse.Builder result = MemcacheFlushResponse.newBuilder();
-    synchronized (mockCache) {
-      mockCache.clear();
-      deleteHold.clear();
-      lru.clear();
-      stats = new LocalStats(0, 0, 0, 0, 0);
+    for (Segment segment : segments) {
+      segment.clear();
     }
+    stats.reset();
 
     status.setSuccessful(true);
     return result.build();
@@ -635,8 +710,15 @@ public final class LocalMemcacheService extends AbstractLocalRpcService {
     return 32 << 20; // 32 MB
   }
 
+  /** Returns the combined length of the LRU chains of all segments. Only use this in tests! */
   /* @VisibleForTesting */
-  LRU<?> getLRU() {
-    return lru;
+  long getLruChainLength() {
+    long length = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        length += segment.lru.getChainLength();
+      }
+    }
+    return length;
   }
 }
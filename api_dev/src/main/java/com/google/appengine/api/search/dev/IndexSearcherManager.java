@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.search.dev;
+
+import com.google.common.flogger.GoogleLogger;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Shares one index reader per directory between searches. A reader is only reopened after a
+ * change has been committed to its directory, and reopening it only opens the segments that
+ * changed.
+ *
+ * <p>Readers are reference counted: a searcher handed out by {@link #acquire} keeps its reader
+ * open until it is passed to {@link #release}, even if the reader has been replaced meanwhile.
+ */
+final class IndexSearcherManager {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private final Map<Directory, IndexReader> readers = new HashMap<>();
+  private final Set<Directory> stale = new HashSet<>();
+
+  /**
+   * Returns a searcher over the last committed state of the index in {@code directory}, or null
+   * if there is no index there. The searcher must be passed to {@link #release} once done.
+   */
+  synchronized @Nullable IndexSearcher acquire(Directory directory) throws IOException {
+    IndexReader reader = readers.get(directory);
+    if (reader == null) {
+      if (!IndexReader.indexExists(directory)) {
+        return null;
+      }
+      reader = IndexReader.open(directory, true);
+      readers.put(directory, reader);
+      stale.remove(directory);
+    } else if (stale.remove(directory)) {
+      IndexReader newReader = reader.reopen();
+      if (newReader != reader) {
+        readers.put(directory, newReader);
+        reader.decRef();
+        reader = newReader;
+      }
+    }
+    reader.incRef();
+    return new IndexSearcher(reader);
+  }
+
+  /** Releases a searcher returned by {@link #acquire}. Does nothing if it is null. */
+  void release(@Nullable IndexSearcher searcher) {
+    if (searcher != null) {
+      try {
+        searcher.getIndexReader().decRef();
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Failed to close index reader");
+      }
+    }
+  }
+
+  /** Notes that changes have been committed to {@code directory}. */
+  synchronized void changed(Directory directory) {
+    if (readers.containsKey(directory)) {
+      stale.add(directory);
+    }
+  }
+
+  /** Drops all readers. Readers still in use are closed once they are released. */
+  synchronized void close() {
+    for (IndexReader reader : readers.values()) {
+      try {
+        reader.decRef();
+      } catch (IOException e) {
+        logger.atSevere().withCause(e).log("Failed to close index reader");
+      }
+    }
+    readers.clear();
+    stale.clear();
+  }
+}
@@ -88,6 +88,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
 
   public static final String USE_RAM_DIRECTORY = "LocalSearchService.useRamDirectory";
   public static final String USE_DIRECTORY = "LocalSearchService.useDirectory";
+  public static final String USE_MMAP_DIRECTORY = "LocalSearchService.useMmapDirectory";
 
   private static final GoogleLogger log = GoogleLogger.forEnclosingClass();
 
@@ -130,7 +131,9 @@ public class LocalSearchService extends AbstractLocalRpcService {
   private static final MaxFieldLength MAX_FIELD_LENGTH = MaxFieldLength.LIMITED;
 
   private LuceneDirectoryMap dirMap;
+  private boolean useMmapDirectory;
   private final Analyzer analyzer;
+  private final IndexSearcherManager searchers = new IndexSearcherManager();
 
   /**
    * The in-memory repository of Documents.
@@ -159,6 +162,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
   public void init(LocalServiceContext context, Map<String, String> properties) {
 
     documentsById = new LinkedHashMap<>();
+    useMmapDirectory = "true".equals(properties.get(USE_MMAP_DIRECTORY));
 
     if ("true".equals(properties.get(USE_RAM_DIRECTORY))) {
       log.atWarning().log("Using RAM directory; results are not preserved");
@@ -188,7 +192,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
 
         // Initialize directory map after to prevent index files from being opened in case we need
         // to delete indexes.
-        dirMap = new LuceneDirectoryMap.FileBased(indexDirectory);
+        dirMap = new LuceneDirectoryMap.FileBased(indexDirectory, useMmapDirectory);
       } else {
         log.atWarning().log(
             "Failed to create data directory %s, using RAM directory instead; results are not"
@@ -235,12 +239,16 @@ public class LocalSearchService extends AbstractLocalRpcService {
   }
 
   private void closeIndexWriters() {
-    for (IndexWriter writer : indexWriters.values()) {
-      try {
-        writer.close();
-      } catch (IOException e) {
-        log.atSevere().withCause(e).log("Failed to close index writer");
+    searchers.close();
+    synchronized (indexWriters) {
+      for (IndexWriter writer : indexWriters.values()) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          log.atSevere().withCause(e).log("Failed to close index writer");
+        }
       }
+      indexWriters.clear();
     }
     if (dirMap != null) {
       try {
@@ -281,9 +289,11 @@ public class LocalSearchService extends AbstractLocalRpcService {
       return respBuilder.addAllStatus(newRepeatedStatus(docsToIndex,
           SearchServicePb.SearchServiceError.ErrorCode.INVALID_REQUEST)).build();
     }
+    Directory directory;
     IndexWriter indexWriter;
     try {
-      indexWriter = getIndexWriter(dirMap.getDirectory(appId, indexSpec), true);
+      directory = dirMap.getDirectory(appId, indexSpec);
+      indexWriter = getIndexWriter(directory, true);
     } catch (IOException e) {
       log.atSevere().withCause(e).log("Unable to access index");
       return respBuilder.addAllStatus(newRepeatedStatus(docsToIndex,
@@ -325,7 +335,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
     } catch (IOException e) {
       // Ignored; this is an exception in a debug level log message.
     }
-    commitChangesToIndexWriter(indexWriter);
+    commitChangesToIndexWriter(directory, indexWriter);
     return respBuilder.build();
   }
 
@@ -355,9 +365,11 @@ public class LocalSearchService extends AbstractLocalRpcService {
       log.atInfo().log("Request to delete 0 documents; ignoring");
       return respBuilder.build();
     }
+    Directory directory;
     IndexWriter indexWriter = null;
     try {
-      indexWriter = getIndexWriter(dirMap.getDirectory(appId, indexSpec), false);
+      directory = dirMap.getDirectory(appId, indexSpec);
+      indexWriter = getIndexWriter(directory, false);
     } catch (IOException e) {
       log.atSevere().withCause(e).log("Failed to access index directory");
       return respBuilder.addAllStatus(newRepeatedStatus(docsToDelete,
@@ -391,7 +403,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
       return respBuilder.addAllStatus(newRepeatedStatus(docsToDelete,
           SearchServicePb.SearchServiceError.ErrorCode.INTERNAL_ERROR)).build();
     } finally {
-      commitChangesToIndexWriter(indexWriter);
+      commitChangesToIndexWriter(directory, indexWriter);
     }
   }
 
@@ -466,11 +478,10 @@ public class LocalSearchService extends AbstractLocalRpcService {
   private ImmutableList<Document> getDocuments(
       String appId, IndexSpec indexSpec, String start, boolean includeStart, int limit)
       throws IOException {
-    Directory directory = dirMap.getDirectory(appId, indexSpec);
-    if (!IndexReader.indexExists(directory)) {
+    final IndexSearcher indexSearcher = searchers.acquire(dirMap.getDirectory(appId, indexSpec));
+    if (indexSearcher == null) {
       return ImmutableList.of();
     }
-    final IndexSearcher indexSearcher = new IndexSearcher(directory, true);
 
     List<Document> docs = new ArrayList<>();
     try {
@@ -493,7 +504,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
         }
       }
     } finally {
-      closeIndexSearcher(indexSearcher);
+      searchers.release(indexSearcher);
     }
     return ImmutableList.copyOf(docs);
   }
@@ -579,7 +590,9 @@ public class LocalSearchService extends AbstractLocalRpcService {
       Directory directory = dirMap.getDirectory(appId, searchParams.getIndexSpec());
       if (IndexReader.indexExists(directory)) {
         fieldTypes = getFieldTypes(appId, searchParams.getIndexSpec());
-        indexSearcher = new IndexSearcher(directory, true);
+        indexSearcher = searchers.acquire(directory);
+      }
+      if (indexSearcher != null) {
         indexSearcher.setDefaultFieldSortScoring(true, false);
       }
     } catch (IOException e) {
@@ -669,7 +682,7 @@ public class LocalSearchService extends AbstractLocalRpcService {
       log.atSevere().withCause(e).log("Failed to execute search");
       return replyWith(SearchServicePb.SearchServiceError.ErrorCode.INTERNAL_ERROR, respBuilder);
     } finally {
-      closeIndexSearcher(indexSearcher);
+      searchers.release(indexSearcher);
     }
   }
 
@@ -702,21 +715,6 @@ public class LocalSearchService extends AbstractLocalRpcService {
 
   // --- Helper methods ---
 
-  /**
-   * Closes, if necessary, the index searcher reporting any problems in logs.
-   *
-   * @param indexSearcher the index searcher to close
-   */
-  private static void closeIndexSearcher(IndexSearcher indexSearcher) {
-    if (indexSearcher != null) {
-      try {
-        indexSearcher.close();
-      } catch (IOException e) {
-        log.atSevere().withCause(e).log("Failed to close index searcher");
-      }
-    }
-  }
-
   /**
    * Returns map of field names to a set of content types for each field.
    */
@@ -825,22 +823,25 @@ public class LocalSearchService extends AbstractLocalRpcService {
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
-      dirMap = new LuceneDirectoryMap.FileBased(indexDirectory);
+      dirMap = new LuceneDirectoryMap.FileBased(indexDirectory, useMmapDirectory);
     }
   }
 
   /**
-   * Commits change to index reporting any problems in logs.
+   * Commits change to index reporting any problems in logs. Searches see the changes once they
+   * are committed.
    *
-   * @param indexWriter the index writer to close
+   * @param directory the directory of the index
+   * @param indexWriter the index writer to commit
    */
-  private void commitChangesToIndexWriter(IndexWriter indexWriter) {
+  private void commitChangesToIndexWriter(Directory directory, IndexWriter indexWriter) {
     if (indexWriter != null) {
       try {
         indexWriter.commit();
       } catch (IOException e) {
         log.atSevere().withCause(e).log("Failed to commit changes to an index");
       }
+      searchers.changed(directory);
     }
   }
 
@@ -39,8 +39,9 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.RAMDirectory;
-import org.apache.lucene.store.SimpleFSDirectory;
 
 /** Maintains a map from app ID and index name, to a directory. */
 abstract class LuceneDirectoryMap {
@@ -87,17 +88,25 @@ abstract class LuceneDirectoryMap {
   }
 
   /**
-   * A directory map that produces file system based directories.
+   * A directory map that produces file system based directories. Index files are read through
+   * memory mapping if requested, and otherwise through the file system directory that Lucene
+   * picks for the platform, which uses positional NIO reads outside of Windows.
    */
   public static final class FileBased extends LuceneDirectoryMap {
 
     private final File rootDir;
+    private final boolean memoryMapped;
 
     private static class DecodingException extends Exception {
     }
 
     public FileBased(File rootDir) {
+      this(rootDir, false);
+    }
+
+    public FileBased(File rootDir, boolean memoryMapped) {
       this.rootDir = rootDir;
+      this.memoryMapped = memoryMapped;
 
       File[] appDirs = rootDir.listFiles();
       if (appDirs == null) {
@@ -140,7 +149,7 @@ abstract class LuceneDirectoryMap {
             }
 
             indexMap.put(indexSpec.getName(),
-                new LuceneIndexSpec(new SimpleFSDirectory(indexDir), indexSpec));
+                new LuceneIndexSpec(openDirectory(indexDir), indexSpec));
           }
         } catch (IOException e) {
           LOG.atSevere().withCause(e).log(
@@ -159,7 +168,11 @@ abstract class LuceneDirectoryMap {
       // subsequent local server runs.
       LOG.atFine().log(
           "For %s.%s returning FS directory %s", appId, indexSpec.getName(), indexDir.getPath());
-      return new LuceneIndexSpec(new SimpleFSDirectory(indexDir), indexSpec);
+      return new LuceneIndexSpec(openDirectory(indexDir), indexSpec);
+    }
+
+    private Directory openDirectory(File indexDir) throws IOException {
+      return memoryMapped ? new MMapDirectory(indexDir) : FSDirectory.open(indexDir);
     }
 
     private static String encodeIndexSpec(SearchServicePb.IndexSpec indexSpec) {
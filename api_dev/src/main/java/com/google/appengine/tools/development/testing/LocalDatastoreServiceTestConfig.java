@@ -42,6 +42,7 @@ public final class LocalDatastoreServiceTestConfig implements LocalServiceTestCo
   @Nullable private Integer maxTxnLifetimeMs;
   @Nullable private Integer storeDelayMs;
   @Nullable private String backingStoreLocation;
+  private boolean storeLog = false;
   private boolean noIndexAutoGen = true;
   @Nullable private Long defaultHighRepJobPolicyRandomSeed;
   @Nullable private Float defaultHighRepJobPolicyUnappliedJobPercentage;
@@ -134,6 +135,22 @@ public final class LocalDatastoreServiceTestConfig implements LocalServiceTestCo
     return this;
   }
 
+  public boolean isStoreLog() {
+    return storeLog;
+  }
+
+  /**
+   * True to persist changes to an append-only log next to the backing store, which is only
+   * rewritten once the log has grown large.  Only useful if {@link #isNoStorage()} returns
+   * {@code false}.
+   * @param storeLog
+   * @return {@code this} (for chaining)
+   */
+  public LocalDatastoreServiceTestConfig setStoreLog(boolean storeLog) {
+    this.storeLog = storeLog;
+    return this;
+  }
+
   public boolean isNoIndexAutoGen() {
     return noIndexAutoGen;
   }
@@ -282,6 +299,7 @@ public final class LocalDatastoreServiceTestConfig implements LocalServiceTestCo
     if (backingStoreLocation != null) {
       proxy.setProperty(LocalDatastoreService.BACKING_STORE_PROPERTY, backingStoreLocation);
     }
+    proxy.setProperty(LocalDatastoreService.STORE_LOG_PROPERTY, Boolean.toString(storeLog));
     proxy.setProperty(LocalDatastoreService.NO_INDEX_AUTO_GEN_PROP,
         Boolean.toString(noIndexAutoGen));
     if (defaultHighRepJobPolicyRandomSeed != null) {
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that the local datastore stays consistent when it is called from several threads, as
+ * happens when the calls of concurrent requests run on different entity groups.
+ */
+@RunWith(JUnit4.class)
+public class ConcurrentLocalDatastoreTest {
+  private static final String KIND = "Counter";
+  private static final int THREADS = 8;
+  private static final int INCREMENTS = 25;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    helper.tearDown();
+  }
+
+  /** Runs {@code task} on every thread, with the environment of the test thread. */
+  private <T> List<T> runOnAllThreads(Callable<T> task) throws Exception {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    List<Future<T>> futures = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                ApiProxy.setEnvironmentForCurrentThread(environment);
+                try {
+                  return task.call();
+                } finally {
+                  ApiProxy.clearEnvironmentForCurrentThread();
+                }
+              }));
+    }
+    List<T> results = new ArrayList<>();
+    for (Future<T> future : futures) {
+      results.add(future.get(60, SECONDS));
+    }
+    return results;
+  }
+
+  private static void increment(DatastoreService datastore, Key key) {
+    while (true) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity counter;
+        try {
+          counter = datastore.get(txn, key);
+        } catch (EntityNotFoundException e) {
+          counter = new Entity(key);
+          counter.setProperty("count", 0L);
+        }
+        counter.setProperty("count", (Long) counter.getProperty("count") + 1);
+        datastore.put(txn, counter);
+        txn.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        // Another thread committed to the same entity group first, try again.
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void transactionsOnSharedAndOwnEntityGroups() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key shared = KeyFactory.createKey(KIND, "shared");
+    List<Long> own =
+        runOnAllThreads(
+            () -> {
+              Key key = datastore.allocateIds(KIND, 1).getStart();
+              for (int i = 0; i < INCREMENTS; i++) {
+                increment(datastore, key);
+                increment(datastore, shared);
+              }
+              return (Long) datastore.get(key).getProperty("count");
+            });
+
+    assertThat(own).containsExactlyElementsIn(Collections.nCopies(THREADS, (long) INCREMENTS));
+    assertThat(datastore.get(shared).getProperty("count")).isEqualTo((long) THREADS * INCREMENTS);
+    assertThat(datastore.prepare(new Query(KIND)).countEntities(withDefaults()))
+        .isEqualTo(THREADS + 1);
+  }
+
+  @Test
+  public void queriesRunWhileOtherThreadsWrite() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    List<Integer> seen =
+        runOnAllThreads(
+            () -> {
+              int largest = 0;
+              for (int i = 0; i < INCREMENTS; i++) {
+                Entity entity = new Entity(KIND);
+                entity.setProperty("count", (long) i);
+                datastore.put(entity);
+                int count =
+                    datastore
+                        .prepare(new Query(KIND).addSort("count"))
+                        .asList(withDefaults())
+                        .size();
+                largest = Math.max(largest, count);
+              }
+              return largest;
+            });
+
+    for (int count : seen) {
+      assertThat(count).isAtLeast(INCREMENTS);
+    }
+    assertThat(datastore.prepare(new Query(KIND)).countEntities(withDefaults()))
+        .isEqualTo(THREADS * INCREMENTS);
+  }
+}
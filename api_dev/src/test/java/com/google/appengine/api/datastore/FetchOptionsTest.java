@@ -20,6 +20,7 @@ import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkS
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withEndCursor;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLookAheadChunks;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withOffset;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withPrefetchSize;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withStartCursor;
@@ -80,6 +81,21 @@ public class FetchOptionsTest {
     assertThat(fo.getChunkSize()).isNull();
   }
 
+  @Test
+  public void testLookAheadChunks() {
+    assertThrows(IllegalArgumentException.class, () -> withLookAheadChunks(0));
+    FetchOptions fo = withLookAheadChunks(2);
+    assertThat(fo.getLookAheadChunks().intValue()).isEqualTo(2);
+    assertThat(fo.getChunkSize()).isNull();
+    assertThat(fo.getLimit()).isNull();
+    assertThat(fo.getPrefetchSize()).isNull();
+    assertThat(fo).isEqualTo(new FetchOptions(fo));
+    assertThat(fo).isNotEqualTo(withDefaults());
+    assertThat(fo.toString()).isEqualTo("FetchOptions[lookAheadChunks=2]");
+    fo.clearLookAheadChunks();
+    assertThat(fo.getLookAheadChunks()).isNull();
+  }
+
   @Test
   public void testPrefetchSize() {
     assertThrows(IllegalArgumentException.class, () -> withPrefetchSize(-1));
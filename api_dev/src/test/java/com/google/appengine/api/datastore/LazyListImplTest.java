@@ -557,7 +557,8 @@ public class LazyListImplTest {
             null,
             new Query(q),
             new FutureHelper.FakeFuture<DatastoreV3Pb.QueryResult>(result.buildPartial()),
-            new ApiProxy.ApiConfig());
+            new ApiProxy.ApiConfig(),
+            false);
     return new QueryResultIteratorImpl(pq, source, opts, null);
   }
 
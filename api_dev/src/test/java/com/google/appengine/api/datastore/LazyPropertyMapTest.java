@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withLazyEntityDecoding;
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.testing.LocalServiceTestHelperRule;
+import com.google.common.collect.ImmutableList;
+import com.google.storage.onestore.v3_bytes.proto2api.OnestoreEntity.EntityProto;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LazyPropertyMapTest {
+  @Rule public LocalServiceTestHelperRule testHelperRule = new LocalServiceTestHelperRule();
+
+  private static Entity newEntity() {
+    Entity entity = new Entity("foo", 23);
+    entity.setProperty("indexed", 1L);
+    entity.setUnindexedProperty("unindexed", "bar");
+    entity.setProperty("text", new Text("a long text"));
+    entity.setProperty("blob", new Blob(new byte[] {1, 2, 3}));
+    entity.setProperty("multiple", ImmutableList.of(1L, "two", 3.0));
+    entity.setUnindexedProperty("unindexedMultiple", ImmutableList.of("a", "b"));
+    EmbeddedEntity embedded = new EmbeddedEntity();
+    embedded.setProperty("inner", "value");
+    entity.setIndexedProperty("embedded", embedded);
+    entity.setProperty("null", null);
+    return entity;
+  }
+
+  private static Entity decodeLazily(Entity entity) {
+    return EntityTranslator.createFromPbLazily(EntityTranslator.convertToPb(entity));
+  }
+
+  /** Asserts that {@code actual} holds exactly what eagerly decoding {@code original} yields. */
+  private static void assertDecodedFrom(Entity actual, Entity original) {
+    Entity expected = EntityTranslator.createFromPb(EntityTranslator.convertToPb(original));
+    assertThat(actual.getKey()).isEqualTo(expected.getKey());
+    assertThat(new HashMap<>(actual.getPropertyMap())).isEqualTo(expected.getPropertyMap());
+  }
+
+  @Test
+  public void testMatchesEagerDecoding() {
+    EntityProto proto = EntityTranslator.convertToPb(newEntity());
+    Entity eager = EntityTranslator.createFromPb(proto);
+    Entity lazy = EntityTranslator.createFromPbLazily(proto);
+
+    assertThat(lazy.getKey()).isEqualTo(eager.getKey());
+    for (String name : eager.getProperties().keySet()) {
+      assertThat(lazy.hasProperty(name)).isTrue();
+      assertThat(lazy.getProperty(name)).isEqualTo(eager.getProperty(name));
+      assertThat(lazy.isUnindexedProperty(name)).isEqualTo(eager.isUnindexedProperty(name));
+    }
+    assertThat(lazy.getPropertyMap()).isEqualTo(eager.getPropertyMap());
+  }
+
+  @Test
+  public void testPropertiesAreDecodedOnDemand() {
+    Entity lazy = decodeLazily(newEntity());
+    LazyPropertyMap map = (LazyPropertyMap) lazy.getPropertyMap();
+
+    assertThat(map.size()).isEqualTo(8);
+    assertThat(lazy.hasProperty("text")).isTrue();
+    assertThat(lazy.hasProperty("missing")).isFalse();
+    assertThat(lazy.getProperty("indexed")).isEqualTo(1L);
+
+    // Overwriting and removing properties that were never read does not decode them.
+    lazy.setProperty("text", "replaced");
+    lazy.removeProperty("blob");
+    assertThat(map.size()).isEqualTo(7);
+    assertThat(lazy.getProperty("text")).isEqualTo("replaced");
+    assertThat(lazy.hasProperty("blob")).isFalse();
+    assertThat(lazy.getProperty("multiple")).isEqualTo(ImmutableList.of(1L, "two", 3.0));
+  }
+
+  @Test
+  public void testClone() {
+    Entity original = newEntity();
+    Entity lazy = decodeLazily(original);
+    Entity clone = lazy.clone();
+    assertThat(clone.getPropertyMap()).isInstanceOf(HashMap.class);
+    assertDecodedFrom(clone, original);
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    Entity original = newEntity();
+    Entity lazy = decodeLazily(original);
+    lazy.getProperty("indexed");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(lazy);
+    }
+    Entity deserialized;
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      deserialized = (Entity) in.readObject();
+    }
+    assertThat(deserialized.getPropertyMap()).isInstanceOf(HashMap.class);
+    assertDecodedFrom(deserialized, original);
+  }
+
+  @Test
+  public void testGetAndQuery() throws Exception {
+    Entity original = newEntity();
+    DatastoreService ds = getDatastoreService(withLazyEntityDecoding());
+    Key key = ds.put(original);
+
+    Entity fetched = ds.get(key);
+    assertThat(fetched.getPropertyMap()).isInstanceOf(LazyPropertyMap.class);
+    assertDecodedFrom(fetched, original);
+
+    Entity queried = ds.prepare(new Query("foo")).asSingleEntity();
+    assertThat(queried.getPropertyMap()).isInstanceOf(LazyPropertyMap.class);
+    assertDecodedFrom(queried, original);
+
+    assertThat(getDatastoreService().get(key).getPropertyMap()).isInstanceOf(HashMap.class);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that the local datastore survives a restart when it persists its changes to a log next to
+ * the backing store.
+ */
+@RunWith(JUnit4.class)
+public class MutationLogPersistenceTest {
+  private static final String KIND = "Item";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File backingStore;
+  private File log;
+
+  @Before
+  public void setUp() throws Exception {
+    backingStore = new File(temporaryFolder.getRoot(), "local_db.bin");
+    log = new File(temporaryFolder.getRoot(), "local_db.bin.log");
+  }
+
+  private LocalServiceTestHelper newHelper(boolean storeLog) {
+    return new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig()
+            .setNoStorage(false)
+            .setBackingStoreLocation(backingStore.getAbsolutePath())
+            .setStoreLog(storeLog));
+  }
+
+  /** Starts the datastore, runs {@code work} against it and stops it again. */
+  private void run(boolean storeLog, DatastoreWork work) throws Exception {
+    LocalServiceTestHelper helper = newHelper(storeLog);
+    helper.setUp();
+    try {
+      work.run(DatastoreServiceFactory.getDatastoreService());
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  private interface DatastoreWork {
+    void run(DatastoreService datastore) throws Exception;
+  }
+
+  @Test
+  public void changesAreReplayedOnRestart() throws Exception {
+    run(
+        true,
+        datastore -> {
+          Entity first = new Entity(KIND, "first");
+          first.setProperty("p", 1L);
+          Entity second = new Entity(KIND, "second");
+          second.setProperty("p", 2L);
+          datastore.put(first);
+          datastore.put(second);
+          datastore.put(new Entity(KIND));
+        });
+    assertThat(log.length()).isGreaterThan(0L);
+    assertThat(backingStore.exists()).isFalse();
+
+    run(
+        true,
+        datastore -> {
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "first")).getProperty("p"))
+              .isEqualTo(1L);
+          assertThat(datastore.prepare(new Query(KIND)).countEntities(withDefaults()))
+              .isEqualTo(3);
+          datastore.delete(KeyFactory.createKey(KIND, "second"));
+          Entity first = new Entity(KIND, "first");
+          first.setProperty("p", 10L);
+          datastore.put(first);
+        });
+
+    run(
+        true,
+        datastore -> {
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "first")).getProperty("p"))
+              .isEqualTo(10L);
+          assertThrows(
+              EntityNotFoundException.class,
+              () -> datastore.get(KeyFactory.createKey(KIND, "second")));
+          // The auto ID of the entity put before the first restart is not handed out again.
+          datastore.put(new Entity(KIND));
+          assertThat(datastore.prepare(new Query(KIND)).countEntities(withDefaults()))
+              .isEqualTo(3);
+        });
+  }
+
+  @Test
+  public void incompleteRecordIsDropped() throws Exception {
+    run(true, datastore -> datastore.put(new Entity(KIND, "kept")));
+    long length = log.length();
+    try (OutputStream out = new FileOutputStream(log, /* append= */ true)) {
+      out.write(new byte[] {0, 0, 1, 0, 42});
+    }
+
+    run(
+        true,
+        datastore -> {
+          assertThat(log.length()).isEqualTo(length);
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "kept"))).isNotNull();
+        });
+  }
+
+  @Test
+  public void logIsFoldedIntoBackingStoreWhenDisabled() throws Exception {
+    run(true, datastore -> datastore.put(new Entity(KIND, "logged")));
+    assertThat(log.exists()).isTrue();
+
+    run(false, datastore -> datastore.put(new Entity(KIND, "stored")));
+    assertThat(log.exists()).isFalse();
+    assertThat(backingStore.exists()).isTrue();
+
+    run(
+        false,
+        datastore -> {
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "logged"))).isNotNull();
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "stored"))).isNotNull();
+        });
+  }
+
+  @Test
+  public void logLeftBehindByRewriteIsNotReplayed() throws Exception {
+    run(
+        true,
+        datastore -> {
+          Entity changed = new Entity(KIND, "changed");
+          changed.setProperty("p", 1L);
+          datastore.put(changed);
+          datastore.put(new Entity(KIND, "deleted"));
+        });
+    byte[] staleLog = Files.readAllBytes(log.toPath());
+
+    run(
+        false,
+        datastore -> {
+          Entity changed = new Entity(KIND, "changed");
+          changed.setProperty("p", 2L);
+          datastore.put(changed);
+          datastore.delete(KeyFactory.createKey(KIND, "deleted"));
+        });
+    assertThat(log.exists()).isFalse();
+    // What a crash between rewriting the backing store and deleting the log leaves behind.
+    Files.write(log.toPath(), staleLog);
+
+    run(
+        true,
+        datastore -> {
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "changed")).getProperty("p"))
+              .isEqualTo(2L);
+          assertThrows(
+              EntityNotFoundException.class,
+              () -> datastore.get(KeyFactory.createKey(KIND, "deleted")));
+          datastore.put(new Entity(KIND, "logged"));
+        });
+
+    run(
+        true,
+        datastore -> {
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "changed")).getProperty("p"))
+              .isEqualTo(2L);
+          assertThat(datastore.get(KeyFactory.createKey(KIND, "logged"))).isNotNull();
+        });
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withSingleKeyOperationCoalescing;
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getAsyncDatastoreService;
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OperationCoalescerTest {
+  private final LocalServiceTestHelper testHelper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private RpcCountingDelegate delegate;
+
+  @Before
+  public void setUp() throws Exception {
+    testHelper.setUp();
+    delegate = RpcCountingDelegate.install();
+  }
+
+  @After
+  public void tearDown() {
+    delegate.uninstall();
+    testHelper.tearDown();
+  }
+
+  @Test
+  public void testSingleKeyGetsAreCoalesced() throws Exception {
+    List<Key> keys = getDatastoreService().put(newEntities(10));
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    List<Future<Entity>> futures = new ArrayList<>();
+    for (Key key : keys) {
+      futures.add(ds.get(key));
+    }
+    assertThat(delegate.count("Get")).isEqualTo(0);
+    for (int i = 0; i < keys.size(); i++) {
+      assertThat(futures.get(i).get().getKey()).isEqualTo(keys.get(i));
+    }
+    assertThat(delegate.count("Get")).isEqualTo(1);
+  }
+
+  @Test
+  public void testMissingEntityFailsOnlyItsOwnFuture() throws Exception {
+    Key existing = getDatastoreService().put(new Entity("foo"));
+    Key missing = KeyFactory.createKey("foo", 12345);
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Future<Entity> found = ds.get(existing);
+    Future<Entity> notFound = ds.get(missing);
+    assertThat(found.get().getKey()).isEqualTo(existing);
+    ExecutionException e = assertThrows(ExecutionException.class, notFound::get);
+    assertThat(e).hasCauseThat().isInstanceOf(EntityNotFoundException.class);
+    assertThat(delegate.count("Get")).isEqualTo(1);
+  }
+
+  @Test
+  public void testDuplicateGetsDoNotShareEntities() throws Exception {
+    Key key = getDatastoreService().put(new Entity("foo"));
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Future<Entity> first = ds.get(key);
+    Future<Entity> second = ds.get(key);
+    assertThat(first.get()).isNotSameInstanceAs(second.get());
+    assertThat(delegate.count("Get")).isEqualTo(1);
+  }
+
+  @Test
+  public void testSingleEntityPutsAndDeletesAreCoalesced() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    List<Future<Key>> putFutures = new ArrayList<>();
+    List<Entity> entities = newEntities(5);
+    for (Entity entity : entities) {
+      putFutures.add(ds.put(entity));
+    }
+    List<Key> keys = new ArrayList<>();
+    for (int i = 0; i < entities.size(); i++) {
+      keys.add(putFutures.get(i).get());
+      assertThat(keys.get(i)).isEqualTo(entities.get(i).getKey());
+    }
+    assertThat(delegate.count("Put")).isEqualTo(1);
+
+    List<Future<Void>> deleteFutures = new ArrayList<>();
+    for (Key key : keys) {
+      deleteFutures.add(ds.delete(key));
+    }
+    deleteFutures.get(0).get();
+    assertThat(delegate.count("Delete")).isEqualTo(1);
+    assertThat(getDatastoreService().get(keys)).isEmpty();
+  }
+
+  @Test
+  public void testPutWritesEntityAsQueued() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Entity entity = new Entity("foo");
+    entity.setProperty("p", 1L);
+    Future<Key> put = ds.put(entity);
+    entity.setProperty("p", 2L);
+    Key key = put.get();
+    assertThat(delegate.count("Put")).isEqualTo(1);
+    // The key is still completed on the caller's entity.
+    assertThat(entity.getKey()).isEqualTo(key);
+    assertThat(getDatastoreService().get(key).getProperty("p")).isEqualTo(1L);
+  }
+
+  @Test
+  public void testDifferentKindOfOperationFlushesPending() throws Exception {
+    Key key = getDatastoreService().put(new Entity("foo"));
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Future<Void> delete = ds.delete(key);
+    assertThat(delegate.count("Delete")).isEqualTo(0);
+    Future<Entity> get = ds.get(key);
+    assertThat(delegate.count("Delete")).isEqualTo(1);
+    delete.get();
+    assertThrows(ExecutionException.class, get::get);
+  }
+
+  @Test
+  public void testRequestEndFlushesPending() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Entity entity = new Entity("foo", "name");
+    Future<Key> put = ds.put(entity);
+    assertThat(delegate.count("Put")).isEqualTo(0);
+    // What the runtime does when the request completes.
+    ((Flushable)
+            ApiProxy.getCurrentEnvironment()
+                .getAttributes()
+                .remove(OperationCoalescer.PENDING_OPERATIONS_ATTRIBUTE_KEY))
+        .flush();
+    assertThat(delegate.count("Put")).isEqualTo(1);
+    put.get();
+    assertThat(getDatastoreService().get(entity.getKey())).isEqualTo(entity);
+  }
+
+  @Test
+  public void testCancelledOperationIsNotSent() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Entity cancelled = new Entity("foo", "cancelled");
+    Entity kept = new Entity("foo", "kept");
+    assertThat(ds.put(cancelled).cancel(false)).isTrue();
+    ds.put(kept).get();
+    assertThat(getDatastoreService().get(ImmutableList.of(cancelled.getKey(), kept.getKey())))
+        .containsExactly(kept.getKey(), kept);
+  }
+
+  @Test
+  public void testTransactionalOperationsAreNotCoalesced() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Transaction txn = ds.beginTransaction().get();
+    ds.put(txn, new Entity("foo", "name"));
+    assertThat(delegate.count("Put")).isEqualTo(1);
+    txn.rollback();
+  }
+
+  @Test
+  public void testQueryFlushesPending() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Entity parent = new Entity("foo", "parent");
+    Future<Key> put = ds.put(parent);
+    Entity child = new Entity("bar", "child", parent.getKey());
+    Future<Key> childPut = ds.put(child);
+
+    // The buffered puts are sent before the query, not after it.
+    ds.prepare(new Query("bar").setAncestor(parent.getKey()))
+        .asList(FetchOptions.Builder.withDefaults())
+        .size();
+    assertThat(delegate.count("Put")).isEqualTo(1);
+    assertThat(delegate.methods()).containsAtLeast("Put", "RunQuery").inOrder();
+    put.get();
+    childPut.get();
+    assertThat(
+            ds.prepare(new Query("bar").setAncestor(parent.getKey()))
+                .asList(FetchOptions.Builder.withDefaults()))
+        .containsExactly(child);
+  }
+
+  @Test
+  public void testTransactionsAndAllocateIdsFlushPending() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    ds.put(new Entity("foo", "a"));
+    Transaction txn = ds.beginTransaction().get();
+    assertThat(delegate.count("Put")).isEqualTo(1);
+
+    // Passing no transaction explicitly keeps the put out of the current transaction.
+    ds.put(null, new Entity("foo", "b"));
+    txn.commit();
+    assertThat(delegate.count("Put")).isEqualTo(2);
+
+    ds.put(new Entity("foo", "c"));
+    ds.allocateIds("foo", 1).get();
+    assertThat(delegate.count("Put")).isEqualTo(3);
+  }
+
+  @Test
+  public void testOtherServiceFlushesPending() throws Exception {
+    AsyncDatastoreService ds = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Entity entity = new Entity("foo", "name");
+    Future<Key> put = ds.put(entity);
+    assertThat(delegate.count("Put")).isEqualTo(0);
+
+    // A service without coalescing sends the buffered put before its own get. Like any async
+    // put, it is not necessarily applied before the get, so only the order of the calls counts.
+    getDatastoreService().get(Arrays.asList(entity.getKey()));
+    assertThat(delegate.methods()).containsExactly("Put", "Get").inOrder();
+    assertThat(put.get()).isEqualTo(entity.getKey());
+  }
+
+  @Test
+  public void testOperationsOfDifferentServicesAreNotBatchedTogether() throws Exception {
+    AsyncDatastoreService first = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    AsyncDatastoreService second = getAsyncDatastoreService(withSingleKeyOperationCoalescing());
+    Future<Key> firstPut = first.put(new Entity("foo", "a"));
+    assertThat(delegate.count("Put")).isEqualTo(0);
+    Future<Key> secondPut = second.put(new Entity("foo", "b"));
+    assertThat(delegate.count("Put")).isEqualTo(1);
+    firstPut.get();
+    secondPut.get();
+    assertThat(delegate.count("Put")).isEqualTo(2);
+  }
+
+  private static List<Entity> newEntities(int count) {
+    List<Entity> entities = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      entities.add(new Entity("foo"));
+    }
+    return entities;
+  }
+}
@@ -561,6 +561,48 @@ public class PreparedMultiQueryTest {
     verifyNoMoreInteractions(neverQuery);
   }
 
+  @Test
+  public void testParallelQueriesAreAllStartedBeforeAnyIsRead() {
+    List<String> events = new ArrayList<>();
+    List<PreparedQuery> queries = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      String name = "q" + i;
+      Iterator<Entity> results = makeEntityIterator(2, 10 * i + 1);
+      PreparedQuery query = mock(PreparedQuery.class);
+      when(query.asIterator(any()))
+          .thenAnswer(
+              invocation -> {
+                events.add("start " + name);
+                return new Iterator<Entity>() {
+                  @Override
+                  public boolean hasNext() {
+                    events.add("read " + name);
+                    return results.hasNext();
+                  }
+
+                  @Override
+                  public Entity next() {
+                    return results.next();
+                  }
+                };
+              });
+      queries.add(query);
+    }
+    Iterator<PreparedQuery> itr = queries.iterator();
+    PreparedMultiQuery pmq =
+        new PreparedMultiQuery(new Query(), makeMultiQuery(1, 3), null, queryRunner) {
+          @Override
+          protected PreparedQuery prepareQuery(List<FilterPredicate> filters, boolean isCountQuery) {
+            return itr.next();
+          }
+        };
+
+    assertThat(pmq.asList(withDefaults())).hasSize(6);
+    assertThat(events.subList(0, 4))
+        .containsExactly("start q0", "start q1", "start q2", "read q0")
+        .inOrder();
+  }
+
   private static Iterable<Entity> makeEntityIterable(final int count, final int firstId) {
     return () -> makeEntityIterator(count, firstId);
   }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests that queries answered from the property indexes of the local datastore return the same
+ * results, in the same order, as sorting every entity of the kind would.
+ */
+@RunWith(JUnit4.class)
+public class PropertyIndexQueryTest {
+  private static final String KIND = "Item";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  private Key put(String name, Object value) {
+    Entity entity = new Entity(KIND, name);
+    entity.setProperty("p", value);
+    return datastore.put(entity);
+  }
+
+  private List<String> names(Query query, FetchOptions fetchOptions) {
+    List<String> names = new ArrayList<>();
+    for (Entity entity : datastore.prepare(query).asIterable(fetchOptions)) {
+      names.add(entity.getKey().getName());
+    }
+    return names;
+  }
+
+  private List<String> names(Query query) {
+    return names(query, withDefaults());
+  }
+
+  @Test
+  public void orderWithLimit() {
+    put("a", 3L);
+    put("b", 1L);
+    put("c", 2L);
+    put("d", 1L);
+    put("e", "text");
+
+    Query ascending = new Query(KIND).addSort("p");
+    assertThat(names(ascending)).containsExactly("b", "d", "c", "a", "e").inOrder();
+    assertThat(names(ascending, withLimit(3))).containsExactly("b", "d", "c").inOrder();
+
+    Query descending = new Query(KIND).addSort("p", SortDirection.DESCENDING);
+    assertThat(names(descending, withLimit(2))).containsExactly("e", "a").inOrder();
+    assertThat(names(descending, withLimit(2).offset(2))).containsExactly("c", "b").inOrder();
+  }
+
+  @Test
+  public void inequalityFilters() {
+    for (long i = 0; i < 10; i++) {
+      put("e" + i, i);
+    }
+
+    Query query =
+        new Query(KIND)
+            .setFilter(
+                Query.CompositeFilterOperator.and(
+                    new FilterPredicate("p", FilterOperator.GREATER_THAN, 2L),
+                    new FilterPredicate("p", FilterOperator.LESS_THAN_OR_EQUAL, 6L)))
+            .addSort("p", SortDirection.DESCENDING);
+    assertThat(names(query)).containsExactly("e6", "e5", "e4", "e3").inOrder();
+    assertThat(names(query, withLimit(2))).containsExactly("e6", "e5").inOrder();
+
+    Query empty =
+        new Query(KIND)
+            .setFilter(
+                Query.CompositeFilterOperator.and(
+                    new FilterPredicate("p", FilterOperator.GREATER_THAN, 6L),
+                    new FilterPredicate("p", FilterOperator.LESS_THAN, 6L)));
+    assertThat(names(empty)).isEmpty();
+  }
+
+  @Test
+  public void multipleValues() {
+    put("x", Arrays.asList(5L, 1L));
+    put("y", Arrays.asList(3L));
+    put("z", Arrays.asList(2L, 4L));
+
+    // Ascending order uses the smallest value and descending order the largest one.
+    assertThat(names(new Query(KIND).addSort("p"))).containsExactly("x", "z", "y").inOrder();
+    assertThat(names(new Query(KIND).addSort("p", SortDirection.DESCENDING)))
+        .containsExactly("x", "z", "y")
+        .inOrder();
+
+    // Only the values allowed by the inequality filter count for the order.
+    Query query =
+        new Query(KIND)
+            .setFilter(new FilterPredicate("p", FilterOperator.GREATER_THAN_OR_EQUAL, 3L))
+            .addSort("p");
+    assertThat(names(query)).containsExactly("y", "z", "x").inOrder();
+    assertThat(names(query, withLimit(1))).containsExactly("y");
+  }
+
+  @Test
+  public void equalityFilters() {
+    Entity first = new Entity(KIND, "first");
+    first.setProperty("color", "red");
+    first.setProperty("size", 2L);
+    Entity second = new Entity(KIND, "second");
+    second.setProperty("color", Arrays.asList("red", "blue"));
+    second.setProperty("size", 1L);
+    Entity third = new Entity(KIND, "third");
+    third.setProperty("color", "blue");
+    third.setProperty("size", 1L);
+    datastore.put(Arrays.asList(first, second, third));
+
+    Query red =
+        new Query(KIND)
+            .setFilter(new FilterPredicate("color", FilterOperator.EQUAL, "red"))
+            .addSort("size");
+    assertThat(names(red)).containsExactly("second", "first").inOrder();
+
+    Query redAndBlue =
+        new Query(KIND)
+            .setFilter(
+                Query.CompositeFilterOperator.and(
+                    new FilterPredicate("color", FilterOperator.EQUAL, "red"),
+                    new FilterPredicate("color", FilterOperator.EQUAL, "blue")));
+    assertThat(names(redAndBlue)).containsExactly("second");
+
+    Query green =
+        new Query(KIND).setFilter(new FilterPredicate("color", FilterOperator.EQUAL, "green"));
+    assertThat(names(green)).isEmpty();
+  }
+
+  @Test
+  public void indexesFollowWrites() {
+    put("a", 1L);
+    put("b", 2L);
+    Query query = new Query(KIND).addSort("p");
+    assertThat(names(query)).containsExactly("a", "b").inOrder();
+
+    put("a", 3L);
+    put("c", 0L);
+    assertThat(names(query)).containsExactly("c", "b", "a").inOrder();
+
+    datastore.delete(KeyFactory.createKey(KIND, "b"));
+    assertThat(names(query)).containsExactly("c", "a").inOrder();
+
+    Entity unindexed = new Entity(KIND, "c");
+    unindexed.setUnindexedProperty("p", 0L);
+    datastore.put(unindexed);
+    assertThat(names(query)).containsExactly("a");
+    Query zero = new Query(KIND).setFilter(new FilterPredicate("p", FilterOperator.EQUAL, 0L));
+    assertThat(names(zero)).isEmpty();
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.datastore_bytes.proto2api.DatastoreV3Pb;
+import com.google.protobuf.ExtensionRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class QueryResultIteratorImplTest {
+  private final LocalServiceTestHelper testHelper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private Delegate<Environment> original;
+  private NextRecordingDelegate delegate;
+
+  private Delegate<Environment> getDelegate() {
+    @SuppressWarnings("unchecked")
+    Delegate<Environment> delegate = ApiProxy.getDelegate();
+    return delegate;
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    testHelper.setUp();
+    original = getDelegate();
+    delegate = new NextRecordingDelegate(original);
+    ApiProxy.setDelegate(delegate);
+  }
+
+  @After
+  public void tearDown() {
+    ApiProxy.setDelegate(original);
+    testHelper.tearDown();
+  }
+
+  private static class NextRecordingDelegate implements Delegate<Environment> {
+    private final Delegate<Environment> delegate;
+    private final List<Future<byte[]>> nextCalls = Collections.synchronizedList(new ArrayList<>());
+    // Production query results do not always carry per result cursors; the local datastore does.
+    private boolean stripResultCursors;
+
+    private NextRecordingDelegate(Delegate<Environment> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] makeSyncCall(
+        Environment environment, String packageName, String methodName, byte[] request)
+        throws ApiProxy.ApiProxyException {
+      return delegate.makeSyncCall(environment, packageName, methodName, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(
+        Environment environment,
+        String packageName,
+        String methodName,
+        byte[] request,
+        ApiProxy.ApiConfig apiConfig) {
+      Future<byte[]> result =
+          delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+      if (stripResultCursors && (methodName.equals("RunQuery") || methodName.equals("Next"))) {
+        result =
+            new FutureWrapper<byte[], byte[]>(result) {
+              @Override
+              protected byte[] wrap(byte[] bytes) throws Exception {
+                return DatastoreV3Pb.QueryResult.newBuilder()
+                    .mergeFrom(bytes, ExtensionRegistry.getEmptyRegistry())
+                    .clearResultCompiledCursor()
+                    .buildPartial()
+                    .toByteArray();
+              }
+
+              @Override
+              protected Throwable convertException(Throwable cause) {
+                return cause;
+              }
+            };
+      }
+      if (methodName.equals("Next")) {
+        nextCalls.add(result);
+      }
+      return result;
+    }
+
+    @Override
+    public void log(Environment environment, ApiProxy.LogRecord record) {
+      delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(Environment environment) {
+      delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(Environment environment) {
+      return delegate.getRequestThreads(environment);
+    }
+  }
+
+  private static List<Key> putEntities(int count) {
+    List<Entity> entities = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Entity entity = new Entity("foo");
+      entity.setProperty("i", i);
+      entities.add(entity);
+    }
+    return DatastoreServiceFactory.getDatastoreService().put(entities);
+  }
+
+  private static PreparedQuery prepareQuery() {
+    return DatastoreServiceFactory.getDatastoreService()
+        .prepare(new Query("foo").addSort("i"));
+  }
+
+  /** Consumes {@code count} results, letting the latest continuation arrive before each one. */
+  private void consume(QueryResultIterator<Entity> it, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      if (!delegate.nextCalls.isEmpty()) {
+        delegate.nextCalls.get(delegate.nextCalls.size() - 1).get();
+      }
+      it.next();
+    }
+  }
+
+  @Test
+  public void testLookAheadLoadsArrivedResultsBeforeChunkIsConsumed() throws Exception {
+    putEntities(50);
+    QueryResultIterator<Entity> it =
+        prepareQuery().asQueryResultIterator(withChunkSize(10).lookAheadChunks(2));
+
+    consume(it, 3);
+    // Each arrived chunk was loaded while fewer than two chunks were buffered, and the following
+    // one requested.
+    assertThat(delegate.nextCalls.size()).isAtLeast(3);
+  }
+
+  @Test
+  public void testWithoutLookAheadWaitsForChunkToBeConsumed() throws Exception {
+    putEntities(50);
+    QueryResultIterator<Entity> it = prepareQuery().asQueryResultIterator(withChunkSize(10));
+
+    consume(it, 10);
+    assertThat(delegate.nextCalls).hasSize(1);
+    consume(it, 1);
+    assertThat(delegate.nextCalls).hasSize(2);
+  }
+
+  @Test
+  public void testLookAheadPreservesResultsAndCursors() throws Exception {
+    doTestLookAheadPreservesResultsAndCursors();
+  }
+
+  @Test
+  public void testLookAheadPreservesResultsAndCursors_noResultCursors() throws Exception {
+    delegate.stripResultCursors = true;
+    doTestLookAheadPreservesResultsAndCursors();
+  }
+
+  private void doTestLookAheadPreservesResultsAndCursors() throws Exception {
+    List<Key> keys = putEntities(95);
+    QueryResultIterator<Entity> it =
+        prepareQuery().asQueryResultIterator(withChunkSize(10).lookAheadChunks(3));
+
+    List<Key> results = new ArrayList<>();
+    List<Cursor> cursors = new ArrayList<>();
+    while (it.hasNext()) {
+      cursors.add(it.getCursor());
+      if (!delegate.nextCalls.isEmpty()) {
+        // Let the most recent continuation arrive so the iterator can look ahead.
+        delegate.nextCalls.get(delegate.nextCalls.size() - 1).get();
+      }
+      results.add(it.next().getKey());
+    }
+    assertThat(results).containsExactlyElementsIn(keys).inOrder();
+
+    for (int i = 0; i < cursors.size(); i += 7) {
+      List<Entity> fromCursor =
+          prepareQuery().asList(FetchOptions.Builder.withStartCursor(cursors.get(i)).limit(1));
+      assertThat(fromCursor.get(0).getKey()).isEqualTo(keys.get(i));
+    }
+  }
+}
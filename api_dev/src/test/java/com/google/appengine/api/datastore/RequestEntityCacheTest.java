@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import static com.google.appengine.api.datastore.DatastoreServiceConfig.Builder.withRequestEntityCache;
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RequestEntityCacheTest {
+  private final LocalServiceTestHelper testHelper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private RpcCountingDelegate delegate;
+
+  @Before
+  public void setUp() throws Exception {
+    testHelper.setUp();
+    delegate = RpcCountingDelegate.install();
+  }
+
+  @After
+  public void tearDown() {
+    delegate.uninstall();
+    testHelper.tearDown();
+  }
+
+  private static Object getAttribute(String key) {
+    return ApiProxy.getCurrentEnvironment().getAttributes().get(key);
+  }
+
+  @Test
+  public void testGetAfterPutIsServedFromCache() throws Exception {
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    Entity entity = new Entity("foo");
+    entity.setProperty("p", 1L);
+    Key key = ds.put(entity);
+
+    Entity fetched = ds.get(key);
+    assertThat(fetched).isEqualTo(entity);
+    assertThat(fetched.getProperty("p")).isEqualTo(1L);
+    assertThat(delegate.count("Get")).isEqualTo(0);
+
+    // Mutating the returned entity must not affect the cached copy.
+    fetched.setProperty("p", 2L);
+    assertThat(ds.get(key).getProperty("p")).isEqualTo(1L);
+    assertThat(getAttribute(DatastoreServiceConfig.REQUEST_ENTITY_CACHE_HITS_ATTRIBUTE))
+        .isEqualTo(2L);
+  }
+
+  @Test
+  public void testRepeatedGetIssuesOneRpc() throws Exception {
+    Key key = getDatastoreService().put(new Entity("foo"));
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    ds.get(key);
+    ds.get(key);
+    ds.get(key);
+    assertThat(delegate.count("Get")).isEqualTo(1);
+    assertThat(getAttribute(DatastoreServiceConfig.REQUEST_ENTITY_CACHE_MISSES_ATTRIBUTE))
+        .isEqualTo(1L);
+    assertThat(getAttribute(DatastoreServiceConfig.REQUEST_ENTITY_CACHE_HITS_ATTRIBUTE))
+        .isEqualTo(2L);
+  }
+
+  @Test
+  public void testMissingEntityIsCached() {
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    Key key = KeyFactory.createKey("foo", 1);
+    assertThrows(EntityNotFoundException.class, () -> ds.get(key));
+    assertThrows(EntityNotFoundException.class, () -> ds.get(key));
+    assertThat(delegate.count("Get")).isEqualTo(1);
+  }
+
+  @Test
+  public void testDeleteInvalidates() {
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    Key key = ds.put(new Entity("foo"));
+    ds.delete(key);
+    assertThrows(EntityNotFoundException.class, () -> ds.get(key));
+    assertThat(delegate.count("Get")).isEqualTo(1);
+  }
+
+  @Test
+  public void testTransactionDoesNotUseNonTransactionalEntries() throws Exception {
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    Key key = ds.put(new Entity("foo"));
+    Transaction txn = ds.beginTransaction();
+    ds.get(txn, key);
+    ds.get(txn, key);
+    txn.commit();
+    assertThat(delegate.count("Get")).isEqualTo(1);
+  }
+
+  @Test
+  public void testTransactionalWriteIsNotCachedForLaterReads() throws Exception {
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    Entity entity = new Entity("foo");
+    entity.setProperty("p", 1L);
+    Key key = ds.put(entity);
+
+    Transaction txn = ds.beginTransaction();
+    entity.setProperty("p", 2L);
+    ds.put(txn, entity);
+    assertThat(ds.get(key).getProperty("p")).isEqualTo(1L);
+    txn.commit();
+    assertThat(ds.get(key).getProperty("p")).isEqualTo(2L);
+    assertThat(delegate.count("Get")).isEqualTo(2);
+  }
+
+  @Test
+  public void testAsyncPutCachesEntityAsPut() throws Exception {
+    AsyncDatastoreService async =
+        DatastoreServiceFactory.getAsyncDatastoreService(withRequestEntityCache());
+    Entity entity = new Entity("foo");
+    entity.setProperty("p", 1L);
+    Future<Key> key = async.put(entity);
+    // Changes made after the put was issued were never written, so must not be cached.
+    entity.setProperty("p", 2L);
+
+    assertThat(async.get(key.get()).get().getProperty("p")).isEqualTo(1L);
+    assertThat(delegate.count("Get")).isEqualTo(0);
+  }
+
+  @Test
+  public void testTransactionEntriesAreDroppedWhenTransactionEnds() throws Exception {
+    DatastoreService ds = getDatastoreService(withRequestEntityCache());
+    Key key = ds.put(new Entity("foo"));
+    RequestEntityCache cache = RequestEntityCache.getCurrent();
+
+    Transaction committed = ds.beginTransaction();
+    ds.get(committed, key);
+    assertThat(cache.transactionCount()).isEqualTo(1);
+    committed.commit();
+    assertThat(cache.transactionCount()).isEqualTo(0);
+
+    Transaction rolledBack = ds.beginTransaction();
+    ds.get(rolledBack, key);
+    assertThat(cache.transactionCount()).isEqualTo(1);
+    rolledBack.rollback();
+    assertThat(cache.transactionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDisabledByDefault() throws Exception {
+    DatastoreService ds = getDatastoreService();
+    Key key = ds.put(new Entity("foo"));
+    ds.get(key);
+    ds.get(key);
+    assertThat(delegate.count("Get")).isEqualTo(2);
+    assertThat(getAttribute(DatastoreServiceConfig.REQUEST_ENTITY_CACHE_HITS_ATTRIBUTE)).isNull();
+  }
+
+  @Test
+  public void testWritesWithoutCacheInvalidateCacheOfOtherService() throws Exception {
+    DatastoreService cached = getDatastoreService(withRequestEntityCache());
+    DatastoreService uncached = getDatastoreService();
+    Entity entity = new Entity("foo");
+    entity.setProperty("p", 1L);
+    Key key = cached.put(entity);
+
+    entity.setProperty("p", 2L);
+    uncached.put(entity);
+    assertThat(cached.get(key).getProperty("p")).isEqualTo(2L);
+
+    uncached.delete(key);
+    assertThrows(EntityNotFoundException.class, () -> cached.get(key));
+    assertThat(delegate.count("Get")).isEqualTo(2);
+  }
+
+  @Test
+  public void testWritesWithoutCacheDoNotCreateCache() {
+    DatastoreService ds = getDatastoreService();
+    Key key = ds.put(new Entity("foo"));
+    ds.delete(key);
+    assertThat(getAttribute(RequestEntityCache.CACHE_ATTRIBUTE_KEY)).isNull();
+  }
+}
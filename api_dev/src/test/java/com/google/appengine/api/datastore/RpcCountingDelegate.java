@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.datastore;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Delegate} that records the method names of the async calls it forwards, so tests can
+ * check how many rpcs of each kind were made and in what order.
+ */
+class RpcCountingDelegate implements Delegate<Environment> {
+  private final Delegate<Environment> delegate;
+  private final List<String> methods = Collections.synchronizedList(new ArrayList<>());
+
+  private RpcCountingDelegate(Delegate<Environment> delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Installs a counting delegate in front of the current one. Undo with {@link #uninstall}. */
+  static RpcCountingDelegate install() {
+    @SuppressWarnings("unchecked")
+    Delegate<Environment> original = ApiProxy.getDelegate();
+    RpcCountingDelegate counting = new RpcCountingDelegate(original);
+    ApiProxy.setDelegate(counting);
+    return counting;
+  }
+
+  void uninstall() {
+    ApiProxy.setDelegate(delegate);
+  }
+
+  /** Returns the number of async calls made to {@code methodName} so far. */
+  int count(String methodName) {
+    synchronized (methods) {
+      return Collections.frequency(methods, methodName);
+    }
+  }
+
+  /** Returns the method names of the async calls made so far, in order. */
+  List<String> methods() {
+    synchronized (methods) {
+      return ImmutableList.copyOf(methods);
+    }
+  }
+
+  @Override
+  public byte[] makeSyncCall(
+      Environment environment, String packageName, String methodName, byte[] request)
+      throws ApiProxy.ApiProxyException {
+    return delegate.makeSyncCall(environment, packageName, methodName, request);
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(
+      Environment environment,
+      String packageName,
+      String methodName,
+      byte[] request,
+      ApiProxy.ApiConfig apiConfig) {
+    methods.add(methodName);
+    return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+  }
+
+  @Override
+  public void log(Environment environment, ApiProxy.LogRecord record) {
+    delegate.log(environment, record);
+  }
+
+  @Override
+  public void flushLogs(Environment environment) {
+    delegate.flushLogs(environment);
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(Environment environment) {
+    return delegate.getRequestThreads(environment);
+  }
+}
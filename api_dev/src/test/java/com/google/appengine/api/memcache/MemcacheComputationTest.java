@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.memcache.AsyncMemcacheServiceImpl.ItemForPeekImpl;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Unit tests for {@link MemcacheComputation}. */
+@RunWith(JUnit4.class)
+public class MemcacheComputationTest {
+  private static final Instant NOW = Instant.ofEpochSecond(1_000_000);
+  private static final Object LEASE_KEY =
+      Arrays.asList(MemcacheComputation.LEASE_KEY_PREFIX, "key");
+
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  @Mock private MemcacheService memcache;
+  @Mock private AsyncMemcacheService asyncMemcache;
+  @Mock private IdentifiableValue lease;
+
+  private final MemcacheComputation computation =
+      new MemcacheComputation(Clock.fixed(NOW, ZoneOffset.UTC), () -> 0.5);
+  private final AtomicInteger loads = new AtomicInteger();
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    when(memcache.getNamespace()).thenReturn("ns");
+    when(asyncMemcache.getNamespace()).thenReturn("ns");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private String load() {
+    loads.incrementAndGet();
+    return "computed";
+  }
+
+  private static ItemForPeekImpl item(Object value, Long expirationTimeSec) {
+    return new ItemForPeekImpl(value, expirationTimeSec, null, null);
+  }
+
+  @Test
+  public void testCachedValueIsReturned() {
+    when(memcache.getItemForPeek("key")).thenReturn(item("cached", null));
+    ComputeOptions options = ComputeOptions.builder().build();
+
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options)).isEqualTo("cached");
+    assertThat(loads.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testMissingValueIsComputedAndStored() {
+    Expiration expiration = Expiration.byDeltaSeconds(60);
+    ComputeOptions options = ComputeOptions.builder().expiration(expiration).build();
+
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options))
+        .isEqualTo("computed");
+    verify(memcache).put("key", "computed", expiration, SetPolicy.SET_ALWAYS);
+    verify(memcache, never()).put(eq(LEASE_KEY), any(), any(), any());
+  }
+
+  @Test
+  public void testValueIsComputedOnceByConcurrentThreads() throws Exception {
+    AtomicReference<ItemForPeekImpl> stored = new AtomicReference<>();
+    when(memcache.getItemForPeek("key")).thenAnswer(invocation -> stored.get());
+    when(memcache.put("key", "computed", null, SetPolicy.SET_ALWAYS))
+        .thenAnswer(
+            invocation -> {
+              stored.set(item("computed", null));
+              return true;
+            });
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ComputeOptions options = ComputeOptions.builder().build();
+
+    Future<Object> first =
+        executor.submit(
+            () ->
+                computation.getOrCompute(
+                    memcache,
+                    "key",
+                    () -> {
+                      loading.countDown();
+                      awaitUninterruptibly(release);
+                      return load();
+                    },
+                    options));
+    loading.await();
+    Future<Object> second =
+        executor.submit(() -> computation.getOrCompute(memcache, "key", this::load, options));
+    release.countDown();
+
+    assertThat(first.get()).isEqualTo("computed");
+    assertThat(second.get()).isEqualTo("computed");
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testLoaderExceptionPropagates() {
+    ComputeOptions options = ComputeOptions.builder().build();
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            computation.getOrCompute(
+                memcache,
+                "key",
+                () -> {
+                  throw new IllegalStateException();
+                },
+                options));
+    // A failed computation does not block later ones.
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options))
+        .isEqualTo("computed");
+  }
+
+  @Test
+  public void testLeaseIsTakenAndReleased() {
+    when(memcache.put(eq(LEASE_KEY), anyString(), any(), eq(SetPolicy.ADD_ONLY_IF_NOT_PRESENT)))
+        .thenAnswer(
+            invocation -> {
+              when(lease.getValue()).thenReturn(invocation.getArgument(1));
+              return true;
+            });
+    when(memcache.getIdentifiable(LEASE_KEY)).thenReturn(lease);
+    ComputeOptions options = ComputeOptions.builder().lease(Duration.ofSeconds(10)).build();
+
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options))
+        .isEqualTo("computed");
+    verify(memcache).put("key", "computed", null, SetPolicy.SET_ALWAYS);
+    verify(memcache).delete(LEASE_KEY);
+  }
+
+  @Test
+  public void testLeaseHeldElsewhereWaitsForValue() {
+    when(memcache.getItemForPeek("key")).thenReturn(null, null, item("theirs", null));
+    ComputeOptions options = ComputeOptions.builder().lease(Duration.ofSeconds(10)).build();
+
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options)).isEqualTo("theirs");
+    assertThat(loads.get()).isEqualTo(0);
+    verify(memcache, never()).delete(LEASE_KEY);
+  }
+
+  @Test
+  public void testLeaseWaitRunsOut() {
+    ComputeOptions options =
+        ComputeOptions.builder()
+            .lease(Duration.ofSeconds(10))
+            .leaseWait(Duration.ofMillis(100))
+            .build();
+
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options))
+        .isEqualTo("computed");
+    verify(memcache).put("key", "computed", null, SetPolicy.SET_ALWAYS);
+  }
+
+  @Test
+  public void testEarlyRefresh() {
+    // With a random value of 0.5, a value is refreshed within ln(2) * 1s of its expiration.
+    ComputeOptions options = ComputeOptions.builder().earlyRefresh(Duration.ofSeconds(1)).build();
+    when(memcache.getItemForPeek("key")).thenReturn(item("cached", NOW.getEpochSecond() + 1));
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options)).isEqualTo("cached");
+
+    when(memcache.getItemForPeek("key")).thenReturn(item("cached", NOW.getEpochSecond()));
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options))
+        .isEqualTo("computed");
+    assertThat(loads.get()).isEqualTo(1);
+
+    // Values that never expire are never refreshed.
+    when(memcache.getItemForPeek("key")).thenReturn(item("cached", 0L));
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options)).isEqualTo("cached");
+    assertThat(loads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testServicesWithoutPeekAreReadWithGet() {
+    when(memcache.getItemForPeek("key")).thenThrow(new UnsupportedOperationException());
+    when(memcache.get("key")).thenReturn("cached");
+    ComputeOptions options = ComputeOptions.builder().earlyRefresh(Duration.ofSeconds(1)).build();
+
+    assertThat(computation.getOrCompute(memcache, "key", this::load, options)).isEqualTo("cached");
+    assertThat(loads.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testAsyncGetOrCompute() throws Exception {
+    when(asyncMemcache.getItemForPeek("key")).thenReturn(immediateFuture(null));
+    when(asyncMemcache.put("key", "computed", null, SetPolicy.SET_ALWAYS))
+        .thenReturn(immediateFuture(true));
+
+    Future<String> future =
+        computation.getOrCompute(
+            asyncMemcache, "key", this::load, ComputeOptions.builder().build());
+    assertThat(loads.get()).isEqualTo(0);
+    assertThat(future.get()).isEqualTo("computed");
+    assertThat(future.get()).isEqualTo("computed");
+    assertThat(loads.get()).isEqualTo(1);
+  }
+}
@@ -21,17 +21,33 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.memcache.MemcacheSerialization.Flag;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.testing.MockEnvironment;
 import com.google.appengine.api.testing.SerializationTestBase;
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -274,6 +290,161 @@ public class MemcacheSerializationTest extends SerializationTestBase {
         () -> MemcacheSerialization.serialize(new NotSerializable()));
   }
 
+  private static Object roundTrip(Object value, Flag expectedFlag) throws Exception {
+    MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(value);
+    assertThat(vaf.flags).isEqualTo(expectedFlag);
+    return MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal());
+  }
+
+  @Test
+  public void testCompactCodec() throws Exception {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("string", "value");
+    map.put("int", -7);
+    map.put("long", Long.MAX_VALUE);
+    map.put("null", null);
+    map.put("list", new ArrayList<>(Arrays.asList(1.5, 'c', (short) 3, (byte) 4, true)));
+    map.put("set", new TreeSet<>(Arrays.asList("b", "a")));
+    map.put("date", new Date(1234));
+    ApiProxy.setEnvironmentForCurrentThread(new MockEnvironment("some-app", "v1"));
+    Key key = KeyFactory.createKey("Kind", "name");
+    Entity entity = new Entity(key);
+    entity.setProperty("p", 42L);
+    MemcacheGetRequest message = MemcacheGetRequest.newBuilder().setNameSpace("ns").build();
+
+    // Without the codec enabled, values are Java serialized as before.
+    assertThat(roundTrip(map, Flag.OBJECT)).isEqualTo(map);
+
+    map.put("bytes", new byte[] {1, 2, 3});
+    MemcacheCodecs.setCompactCodecEnabled(true);
+    try {
+      Object decoded = roundTrip(map, Flag.CODEC);
+      assertThat(decoded).isInstanceOf(LinkedHashMap.class);
+      assertThat(((Map<?, ?>) decoded).keySet()).containsExactlyElementsIn(map.keySet()).inOrder();
+      assertThat(((Map<?, ?>) decoded).get("bytes")).isEqualTo(new byte[] {1, 2, 3});
+      ((Map<?, ?>) decoded).remove("bytes");
+      map.remove("bytes");
+      assertThat(decoded).isEqualTo(map);
+      assertThat(((Map<?, ?>) decoded).get("set")).isInstanceOf(TreeSet.class);
+
+      assertThat(roundTrip(key, Flag.CODEC)).isEqualTo(key);
+      Entity decodedEntity = (Entity) roundTrip(entity, Flag.CODEC);
+      assertThat(decodedEntity.getKey()).isEqualTo(key);
+      assertThat(decodedEntity.getProperties()).isEqualTo(entity.getProperties());
+      assertThat(roundTrip(message, Flag.CODEC)).isEqualTo(message);
+
+      // Collection classes that would not be decoded as themselves are still Java serialized.
+      List<String> immutable = ImmutableList.of("a");
+      assertThat(roundTrip(immutable, Flag.OBJECT)).isEqualTo(immutable);
+      List<Object> notSerializable = new ArrayList<>(Arrays.asList(new NotSerializable()));
+      assertThrows(IOException.class, () -> MemcacheSerialization.serialize(notSerializable));
+
+      // Keys hash the same whether or not the codec is used.
+      List<String> listKey = new ArrayList<>(Arrays.asList("k"));
+      byte[] hashed = MemcacheSerialization.makePbKey(listKey);
+      MemcacheCodecs.setCompactCodecEnabled(false);
+      assertThat(MemcacheSerialization.makePbKey(listKey)).isEqualTo(hashed);
+    } finally {
+      MemcacheCodecs.setCompactCodecEnabled(false);
+    }
+
+    // Values written by the codec stay readable once it is disabled again.
+    MemcacheCodecs.setCompactCodecEnabled(true);
+    MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(key);
+    MemcacheCodecs.setCompactCodecEnabled(false);
+    assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal())).isEqualTo(key);
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  /** Records whether {@link NotAMessage} was initialized. */
+  static final class Initialization {
+    static boolean notAMessageInitialized;
+  }
+
+  static final class NotAMessage {
+    static {
+      Initialization.notAMessageInitialized = true;
+    }
+
+    public static NotAMessage parseFrom(byte[] bytes) {
+      return new NotAMessage();
+    }
+  }
+
+  @Test
+  public void testCompactCodecRejectsMessageOfOtherClassWithoutInitializingIt() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(32); // CompactCodec.MESSAGE
+    byte[] className = NotAMessage.class.getName().getBytes(UTF_8);
+    out.writeByte(className.length);
+    out.write(className);
+    out.writeByte(0);
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertThrows(InvalidValueException.class, () -> new CompactCodec().decode(in));
+    assertThat(Initialization.notAMessageInitialized).isFalse();
+    assertThat(new CompactCodec().canEncode(new NotAMessage())).isFalse();
+  }
+
+  @Test
+  public void testCompactCodecCompressesLargeValues() throws Exception {
+    List<String> list = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      list.add("value");
+    }
+    MemcacheCodecs.setCompactCodecEnabled(true);
+    try {
+      MemcacheSerialization.ValueAndFlags vaf = MemcacheSerialization.serialize(list);
+      assertThat(vaf.value.length).isLessThan(MemcacheCodecs.DEFAULT_COMPRESSION_THRESHOLD);
+      assertThat(MemcacheSerialization.deserialize(vaf.value, vaf.flags.ordinal()))
+          .isEqualTo(list);
+    } finally {
+      MemcacheCodecs.setCompactCodecEnabled(false);
+    }
+  }
+
+  /** A codec for {@link Point}s. */
+  private static final class PointCodec implements MemcacheCodec {
+    @Override
+    public boolean canEncode(Object value) {
+      return value instanceof Point;
+    }
+
+    @Override
+    public void encode(Object value, DataOutput out) throws IOException {
+      out.writeInt(((Point) value).x);
+      out.writeInt(((Point) value).y);
+    }
+
+    @Override
+    public Object decode(DataInput in) throws IOException {
+      return new Point(in.readInt(), in.readInt());
+    }
+  }
+
+  /** A value that is not serializable, and so can only be stored with a codec. */
+  private record Point(int x, int y) {}
+
+  @Test
+  public void testRegisteredCodec() throws Exception {
+    assertThrows(IllegalArgumentException.class, () -> roundTrip(new Point(1, 2), Flag.CODEC));
+    PointCodec codec = new PointCodec();
+    MemcacheSerialization.registerCodec(100, codec);
+    MemcacheSerialization.registerCodec(100, codec);
+    assertThat(roundTrip(new Point(1, 2), Flag.CODEC)).isEqualTo(new Point(1, 2));
+    assertThrows(
+        IllegalStateException.class,
+        () -> MemcacheSerialization.registerCodec(100, new PointCodec()));
+    assertThrows(
+        IllegalArgumentException.class, () -> MemcacheSerialization.registerCodec(0, codec));
+
+    byte[] unknownCodec = {101, 0};
+    assertThrows(
+        InvalidValueException.class,
+        () -> MemcacheSerialization.deserialize(unknownCodec, Flag.CODEC.ordinal()));
+  }
+
   @Override
   protected List<Serializable> getCanonicalObjects() {
     return Lists.newArrayList(
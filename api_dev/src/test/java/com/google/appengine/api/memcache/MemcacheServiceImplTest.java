@@ -23,9 +23,11 @@ import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.same;
@@ -2214,6 +2216,179 @@ assertThat(result.get(ONE).getValue()).isEqualTo(null);
     verifyAsyncCall("Set", setRequest);
   }
 
+  /**
+   * Answers Get and Set calls as a memcache holding {@code stored} would, and records the
+   * requests it answers.
+   */
+  private void answerGetAndSet(Map<ByteString, ByteString> stored, List<Message> requests) {
+    reset(delegate);
+    when(delegate.makeAsyncCall(
+            same(environment),
+            eq(MemcacheServiceApiHelper.PACKAGE),
+            any(String.class),
+            any(byte[].class),
+            eq(apiConfig)))
+        .thenAnswer(
+            invocation -> {
+              String method = invocation.getArgument(2);
+              byte[] requestBytes = invocation.getArgument(3);
+              Message response;
+              if (method.equals("Get")) {
+                MemcacheGetRequest request = MemcacheGetRequest.parseFrom(requestBytes);
+                requests.add(request);
+                MemcacheGetResponse.Builder builder = MemcacheGetResponse.newBuilder();
+                for (ByteString key : request.getKeyList()) {
+                  if (stored.containsKey(key)) {
+                    builder.addItem(
+                        MemcacheGetResponse.Item.newBuilder()
+                            .setKey(key)
+                            .setValue(stored.get(key))
+                            .setFlags(Flag.UTF8.ordinal()));
+                  }
+                }
+                response = builder.build();
+              } else if (method.equals("Set")) {
+                MemcacheSetRequest request = MemcacheSetRequest.parseFrom(requestBytes);
+                requests.add(request);
+                MemcacheSetResponse.Builder builder = MemcacheSetResponse.newBuilder();
+                for (MemcacheSetRequest.Item item : request.getItemList()) {
+                  stored.put(item.getKey(), item.getValue());
+                  builder.addSetStatus(SetStatusCode.STORED);
+                }
+                response = builder.build();
+              } else {
+                throw new AssertionError("Unexpected call to " + method);
+              }
+              return immediateFuture(response.toByteArray());
+            });
+  }
+
+  @Test
+  public void testLargeMultiPutAndGetAreSplit() {
+    Map<ByteString, ByteString> stored = new LinkedHashMap<>();
+    List<Message> requests = new ArrayList<>();
+    answerGetAndSet(stored, requests);
+    MemcacheService memcache = new MemcacheServiceImpl(null);
+
+    Map<String, String> values = new LinkedHashMap<>();
+    for (int i = 0; i < 2500; i++) {
+      values.put("key" + i, "value" + i);
+    }
+    memcache.putAll(values);
+    assertThat(requests).hasSize(3);
+    for (Message request : requests) {
+      assertThat(((MemcacheSetRequest) request).getItemCount())
+          .isAtMost(MemcacheBatcher.MAX_BATCH_ITEMS);
+    }
+    assertThat(stored).hasSize(2500);
+
+    requests.clear();
+    Map<String, Object> found = memcache.getAll(values.keySet());
+    assertThat(requests).hasSize(3);
+    assertThat(found).isEqualTo(values);
+
+    // Items that only fit a call a few at a time are split by size rather than count.
+    requests.clear();
+    String big = Strings.repeat("x", 10 << 20);
+    Set<String> added =
+        memcache.putAll(
+            ImmutableMap.of("a", big, "b", big, "c", big, "d", big),
+            null,
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    assertThat(added).containsExactly("a", "b", "c", "d");
+    assertThat(requests).hasSize(2);
+    assertThat(((MemcacheSetRequest) requests.get(0)).getItemCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testCoalescedGets() throws Exception {
+    Map<ByteString, ByteString> stored = new LinkedHashMap<>();
+    stored.put(ByteString.copyFrom(makePbKey(ONE)), ByteString.copyFromUtf8("1"));
+    stored.put(ByteString.copyFrom(makePbKey(TWO)), ByteString.copyFromUtf8("2"));
+    List<Message> requests = Collections.synchronizedList(new ArrayList<>());
+    answerGetAndSet(stored, requests);
+    // A window long enough that only the calls below send the gets.
+    AsyncMemcacheService memcache = new AsyncMemcacheServiceImpl(null, true, MINUTES.toMicros(1));
+
+    Future<Object> one = memcache.get(ONE);
+    Future<Object> two = memcache.get(TWO);
+    Future<Object> missing = memcache.get("missing");
+    assertThat(requests).isEmpty();
+    assertThat(two.get()).isEqualTo("2");
+    assertThat(one.get()).isEqualTo("1");
+    assertThat(missing.get()).isNull();
+    assertThat(requests).hasSize(1);
+    assertThat(((MemcacheGetRequest) requests.get(0)).getKeyCount()).isEqualTo(3);
+
+    // A write sends the gets made before it, so they do not see what it writes.
+    requests.clear();
+    Future<Object> beforePut = memcache.get(ONE);
+    memcache.put(ONE, "new").get();
+    Future<Object> afterPut = memcache.get(ONE);
+    assertThat(requests.get(0)).isInstanceOf(MemcacheGetRequest.class);
+    assertThat(requests.get(1)).isInstanceOf(MemcacheSetRequest.class);
+    assertThat(beforePut.get()).isEqualTo("1");
+    assertThat(afterPut.get()).isEqualTo("new");
+    assertThat(requests).hasSize(3);
+
+    // So does a write through another service.
+    requests.clear();
+    beforePut = memcache.get(TWO);
+    new AsyncMemcacheServiceImpl(null, false).put(TWO, "other").get();
+    assertThat(requests.get(0)).isInstanceOf(MemcacheGetRequest.class);
+    assertThat(beforePut.get()).isEqualTo("2");
+  }
+
+  @Test
+  public void testCoalescedGetsAreSentWhenTheWindowEnds() throws Exception {
+    Map<ByteString, ByteString> stored = new LinkedHashMap<>();
+    stored.put(ByteString.copyFrom(makePbKey(ONE)), ByteString.copyFromUtf8("1"));
+    List<Message> requests = Collections.synchronizedList(new ArrayList<>());
+    answerGetAndSet(stored, requests);
+    // Long enough for both gets to be made within it, however slow the first one is.
+    AsyncMemcacheService memcache = new AsyncMemcacheServiceImpl(null, true, SECONDS.toMicros(1));
+
+    Future<Object> one = memcache.get(ONE);
+    Future<Object> two = memcache.get(TWO);
+    // Nothing waits for the results, yet the gets are sent, as one call.
+    long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (requests.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertThat(requests).hasSize(1);
+    assertThat(((MemcacheGetRequest) requests.get(0)).getKeyCount()).isEqualTo(2);
+    assertThat(one.get()).isEqualTo("1");
+    assertThat(two.get()).isNull();
+    assertThat(requests).hasSize(1);
+  }
+
+  @Test
+  public void testCoalescedGetsAreKeptPerRequest() throws Exception {
+    Map<ByteString, ByteString> stored = new LinkedHashMap<>();
+    stored.put(ByteString.copyFrom(makePbKey(ONE)), ByteString.copyFromUtf8("1"));
+    List<Message> requests = Collections.synchronizedList(new ArrayList<>());
+    answerGetAndSet(stored, requests);
+    AsyncMemcacheService memcache = new AsyncMemcacheServiceImpl(null, true, MINUTES.toMicros(1));
+
+    Future<Object> first = memcache.get(ONE);
+    assertThat(environment.getAttributes())
+        .containsKey(MemcacheGetCoalescer.PENDING_GETS_ATTRIBUTE_KEY);
+    // The thread moves on to another request, as pooled request threads do.
+    ApiProxy.Environment previous = environment;
+    environment = new MockEnvironment("some-app", "v1");
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    answerGetAndSet(stored, requests);
+    Future<Object> second = memcache.get(ONE);
+
+    assertThat(second.get()).isEqualTo("1");
+    assertThat(requests).hasSize(1);
+    ApiProxy.setEnvironmentForCurrentThread(previous);
+    environment = previous;
+    answerGetAndSet(stored, requests);
+    assertThat(first.get()).isEqualTo("1");
+    assertThat(requests).hasSize(2);
+  }
+
   /** Class that saves any de-serialization error that occurs. */
   private static final class SaveDeserializationExceptionErrorHandler
       implements ConsistentErrorHandler {
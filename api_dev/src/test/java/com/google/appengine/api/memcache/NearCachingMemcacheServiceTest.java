@@ -0,0 +1,243 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.appengine.api.memcache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.testing.MockEnvironment;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.testing.FakeTicker;
+import com.google.common.util.concurrent.SettableFuture;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Unit tests for {@link NearCachingMemcacheService}. */
+@RunWith(JUnit4.class)
+public class NearCachingMemcacheServiceTest {
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  @Mock private MemcacheService delegate;
+  @Mock private AsyncMemcacheService async;
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Before
+  public void setUp() {
+    ApiProxy.setEnvironmentForCurrentThread(new MockEnvironment("some-app", "v1"));
+  }
+
+  @After
+  public void tearDown() {
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  private NearCachingMemcacheService newService(NearCacheConfig config) {
+    return new NearCachingMemcacheService(delegate, namespace -> async, config, ticker);
+  }
+
+  @Test
+  public void testGetIsCachedUntilTtl() {
+    NearCachingMemcacheService memcache =
+        newService(NearCacheConfig.builder().defaultTtl(Duration.ofSeconds(5)).build());
+    when(delegate.getAll(ImmutableList.of("a"))).thenReturn(ImmutableMap.of("a", "1"));
+    when(delegate.getAll(ImmutableList.of("missing"))).thenReturn(ImmutableMap.of());
+
+    assertThat(memcache.get("a")).isEqualTo("1");
+    assertThat(memcache.get("a")).isEqualTo("1");
+    assertThat(memcache.contains("a")).isTrue();
+    assertThat(memcache.get("missing")).isNull();
+    assertThat(memcache.contains("missing")).isFalse();
+    verify(delegate, times(1)).getAll(ImmutableList.of("a"));
+    verify(delegate, never()).contains("a");
+    verify(delegate).contains("missing");
+
+    ticker.advance(Duration.ofSeconds(5));
+    assertThat(memcache.get("a")).isEqualTo("1");
+    verify(delegate, times(2)).getAll(ImmutableList.of("a"));
+
+    NearCacheStats stats = memcache.getNearCacheStatistics();
+    assertThat(stats.getHitCount()).isEqualTo(2);
+    assertThat(stats.getMissCount()).isEqualTo(4);
+    assertThat(stats.getItemCount()).isEqualTo(1);
+    assertThat(stats.getHitRatio()).isWithin(1e-9).of(1.0 / 3);
+  }
+
+  @Test
+  public void testGetAllOnlyFetchesMissingKeys() {
+    NearCachingMemcacheService memcache = newService(NearCacheConfig.builder().build());
+    when(delegate.getAll(ImmutableList.of("a"))).thenReturn(ImmutableMap.of("a", "1"));
+    when(delegate.getAll(ImmutableList.of("b", "c"))).thenReturn(ImmutableMap.of("b", "2"));
+    when(delegate.getAll(ImmutableList.of("c"))).thenReturn(ImmutableMap.of());
+
+    assertThat(memcache.get("a")).isEqualTo("1");
+    Map<String, Object> values = memcache.getAll(ImmutableList.of("a", "b", "c"));
+    assertThat(values).containsExactly("a", "1", "b", "2");
+    assertThat(memcache.getAll(ImmutableList.of("a", "b", "c"))).isEqualTo(values);
+    verify(delegate, times(1)).getAll(ImmutableList.of("b", "c"));
+    verify(delegate, times(1)).getAll(ImmutableList.of("c"));
+  }
+
+  @Test
+  public void testKeysWithoutValueAreNotCached() {
+    NearCachingMemcacheService memcache = newService(NearCacheConfig.builder().build());
+    // With the default error handler, a failed call looks the same as finding nothing.
+    when(delegate.getAll(ImmutableList.of("a")))
+        .thenReturn(ImmutableMap.of())
+        .thenReturn(ImmutableMap.of("a", "1"));
+    when(delegate.contains("a")).thenReturn(true);
+
+    assertThat(memcache.get("a")).isNull();
+    assertThat(memcache.contains("a")).isTrue();
+    assertThat(memcache.get("a")).isEqualTo("1");
+    verify(delegate, times(2)).getAll(ImmutableList.of("a"));
+    assertThat(memcache.getNearCacheStatistics().getItemCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRefreshWithoutValueDropsCachedValue() {
+    NearCachingMemcacheService memcache =
+        newService(
+            NearCacheConfig.builder()
+                .defaultTtl(Duration.ofSeconds(1))
+                .staleWhileRevalidate(Duration.ofSeconds(10))
+                .build());
+    when(delegate.getAll(ImmutableList.of("a")))
+        .thenReturn(ImmutableMap.of("a", "1"))
+        .thenReturn(ImmutableMap.of("a", "2"));
+    when(async.getAll(ImmutableList.<Object>of("a")))
+        .thenReturn(immediateFuture(ImmutableMap.of()));
+
+    assertThat(memcache.get("a")).isEqualTo("1");
+    ticker.advance(Duration.ofSeconds(2));
+    assertThat(memcache.get("a")).isEqualTo("1");
+    verify(async, times(1)).getAll(ImmutableList.<Object>of("a"));
+
+    // The refresh found nothing, so the next read asks memcache instead of serving the old value.
+    assertThat(memcache.get("a")).isEqualTo("2");
+    verify(delegate, times(2)).getAll(ImmutableList.of("a"));
+  }
+
+  @Test
+  public void testWritesInvalidate() {
+    NearCachingMemcacheService memcache = newService(NearCacheConfig.builder().build());
+    when(delegate.getAll(ImmutableList.of("a")))
+        .thenReturn(ImmutableMap.of("a", "1"))
+        .thenReturn(ImmutableMap.of("a", "2"))
+        .thenReturn(ImmutableMap.of("a", 3L))
+        .thenReturn(ImmutableMap.of());
+
+    assertThat(memcache.get("a")).isEqualTo("1");
+    memcache.put("a", "2");
+    assertThat(memcache.get("a")).isEqualTo("2");
+    memcache.increment("a", 1);
+    assertThat(memcache.get("a")).isEqualTo(3L);
+    memcache.delete("a");
+    assertThat(memcache.get("a")).isNull();
+    verify(delegate, times(4)).getAll(ImmutableList.of("a"));
+
+    memcache.clearAll();
+    assertThat(memcache.getNearCacheStatistics().getItemCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testNamespacesAreCachedSeparately() {
+    NearCachingMemcacheService memcache =
+        newService(NearCacheConfig.builder().namespaceTtl("uncached", Duration.ZERO).build());
+    when(delegate.getAll(ImmutableList.of("a")))
+        .thenReturn(ImmutableMap.of("a", "default"))
+        .thenReturn(ImmutableMap.of("a", "other"))
+        .thenReturn(ImmutableMap.of("a", "uncached"));
+
+    assertThat(memcache.get("a")).isEqualTo("default");
+    NamespaceManager.set("other");
+    assertThat(memcache.get("a")).isEqualTo("other");
+    assertThat(memcache.get("a")).isEqualTo("other");
+    NamespaceManager.set("uncached");
+    assertThat(memcache.get("a")).isEqualTo("uncached");
+    assertThat(memcache.get("a")).isEqualTo("uncached");
+    verify(delegate, times(4)).getAll(ImmutableList.of("a"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedValueIsEvicted() {
+    NearCachingMemcacheService memcache =
+        newService(NearCacheConfig.builder().maxEntries(2).build());
+    when(delegate.getAll(anyCollection()))
+        .thenAnswer(invocation -> Maps.toMap(invocation.<Collection<?>>getArgument(0), k -> "v"));
+
+    memcache.get("a");
+    memcache.get("b");
+    memcache.get("a");
+    memcache.get("c");
+    memcache.get("a");
+    memcache.get("b");
+    verify(delegate, times(1)).getAll(ImmutableList.of("a"));
+    verify(delegate, times(2)).getAll(ImmutableList.of("b"));
+    assertThat(memcache.getNearCacheStatistics().getEvictionCount()).isEqualTo(2);
+    assertThat(memcache.getNearCacheStatistics().getItemCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testStaleValueIsServedWhileRefreshing() {
+    NearCachingMemcacheService memcache =
+        newService(
+            NearCacheConfig.builder()
+                .defaultTtl(Duration.ofSeconds(1))
+                .staleWhileRevalidate(Duration.ofSeconds(10))
+                .build());
+    when(delegate.getAll(ImmutableList.of("a"))).thenReturn(ImmutableMap.of("a", "1"));
+    SettableFuture<Map<Object, Object>> refresh = SettableFuture.create();
+    when(async.getAll(ImmutableList.<Object>of("a"))).thenReturn(refresh);
+
+    assertThat(memcache.get("a")).isEqualTo("1");
+    ticker.advance(Duration.ofSeconds(2));
+    assertThat(memcache.get("a")).isEqualTo("1");
+    assertThat(memcache.get("a")).isEqualTo("1");
+    verify(async, times(1)).getAll(ImmutableList.<Object>of("a"));
+
+    refresh.set(ImmutableMap.of("a", "2"));
+    assertThat(memcache.get("a")).isEqualTo("2");
+    verify(delegate, times(1)).getAll(ImmutableList.of("a"));
+    assertThat(memcache.getNearCacheStatistics().getStaleHitCount()).isEqualTo(2);
+
+    // Past the stale window the read waits for memcache again.
+    when(async.getAll(ImmutableList.<Object>of("a")))
+        .thenReturn(immediateFuture(ImmutableMap.of()));
+    ticker.advance(Duration.ofSeconds(20));
+    assertThat(memcache.get("a")).isEqualTo("1");
+    verify(delegate, times(2)).getAll(ImmutableList.of("a"));
+  }
+}
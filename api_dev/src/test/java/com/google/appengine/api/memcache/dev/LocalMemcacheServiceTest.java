@@ -20,6 +20,7 @@ import static com.google.appengine.tools.development.testing.LocalMemcacheServic
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertThrows;
 
 import com.google.appengine.api.memcache.Expiration;
@@ -33,6 +34,7 @@ import com.google.appengine.tools.development.ApiProxyLocal;
 import com.google.appengine.tools.development.Clock;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -41,6 +43,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.junit.After;
 import org.junit.Before;
@@ -697,13 +702,13 @@ public class LocalMemcacheServiceTest {
   @Test
   public void testSettingSameObjectDoesNotLeak() {
     // Verify that the LRU starts out empty
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(0);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(0);
 
     for (int i = 0; i < 10; i++) {
       memcache.put("this", "that");
     }
     // There is only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
 
     // Now repeat the test but with different values, expiration values, and set policies.
     for (int i = 0; i < 10; i++) {
@@ -712,22 +717,68 @@ public class LocalMemcacheServiceTest {
       }
     }
     // It's all the same key so the LRU should still only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
   }
 
   @Test
   public void testIncrementDoesNotLeak() {
     // Verify that the LRU starts out empty
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(0);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(0);
 
     memcache.put("this", 1);
     // There is only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
     for (int i = 0; i < 10; i++) {
       memcache.increment("this", 1);
     }
     // There is still only 1 key in the cache so the LRU should only have 1 entry.
-    assertThat(getLocalMemcacheService().getLRU().getChainLength()).isEqualTo(1);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConcurrentIncrementsAndCompareAndSet() throws Exception {
+    final int threads = 8;
+    final int iterations = 200;
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  ApiProxy.setEnvironmentForCurrentThread(environment);
+                  try {
+                    for (int i = 0; i < iterations; i++) {
+                      memcache.increment("counter", 1, 0L);
+                      memcache.put("key" + i, i);
+                      while (true) {
+                        IdentifiableValue v = memcache.getIdentifiable("cas");
+                        if (v == null) {
+                          if (memcache.put("cas", 1L, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                            break;
+                          }
+                        } else if (memcache.putIfUntouched("cas", v, (Long) v.getValue() + 1)) {
+                          break;
+                        }
+                      }
+                    }
+                  } finally {
+                    ApiProxy.clearEnvironmentForCurrentThread();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get(60, SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(memcache.get("counter")).isEqualTo((long) threads * iterations);
+    assertThat(memcache.get("cas")).isEqualTo((long) threads * iterations);
+    assertThat(memcache.getStatistics().getItemCount()).isEqualTo(iterations + 2);
+    assertThat(getLocalMemcacheService().getLruChainLength()).isEqualTo(iterations + 2);
   }
 
   @Test
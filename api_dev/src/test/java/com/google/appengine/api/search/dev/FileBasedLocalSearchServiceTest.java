@@ -77,6 +77,35 @@ public class FileBasedLocalSearchServiceTest {
     localSearch2.tearDown();
   }
 
+  @Test
+  public void testSearchesSeeEachCommittedChange() throws Exception {
+    LocalServiceTestHelper localSearch =
+        new LocalServiceTestHelper(
+            new LocalSearchServiceTestConfig()
+                .setPersistent(true)
+                .setStorageDirectory(tmpDir.getRoot().toString()));
+    localSearch.setUp();
+    LocalServiceTestHelper.getApiProxyLocal()
+        .setProperty(LocalSearchService.USE_MMAP_DIRECTORY, "true");
+    Index inboxIndex =
+        SearchServiceFactory.getSearchService()
+            .getIndex(IndexSpec.newBuilder().setName("inbox").build());
+    for (int i = 0; i < 5; i++) {
+      Document doc =
+          Document.newBuilder()
+              .setId("doc" + i)
+              .addField(Field.newBuilder().setName("foo").setText("bar"))
+              .build();
+      assertThat(inboxIndex.put(doc).getResults().get(0).getCode()).isEqualTo(StatusCode.OK);
+      assertThat(inboxIndex.search("foo:bar").getResults()).hasSize(i + 1);
+    }
+    inboxIndex.delete("doc0", "doc1");
+    assertThat(inboxIndex.search("foo:bar").getResults()).hasSize(3);
+    assertThat(inboxIndex.get("doc0")).isNull();
+    assertThat(inboxIndex.get("doc2")).isNotNull();
+    localSearch.tearDown();
+  }
+
   @Test
   public void testIndependentDocumentWithSameNameBackwardCompatibility() throws Exception {
     // golden_index.zip contains a golden index that was created by a version of the dev server
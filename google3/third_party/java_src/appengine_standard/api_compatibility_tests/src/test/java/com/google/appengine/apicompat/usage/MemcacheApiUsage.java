@@ -17,6 +17,7 @@ package com.google.appengine.apicompat.usage;
 
 import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.BaseMemcacheService;
+import com.google.appengine.api.memcache.ComputeOptions;
 import com.google.appengine.api.memcache.ConsistentErrorHandler;
 import com.google.appengine.api.memcache.ConsistentLogAndContinueErrorHandler;
 import com.google.appengine.api.memcache.ErrorHandler;
@@ -30,6 +31,7 @@ import com.google.appengine.api.memcache.MemcacheSerialization;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceException;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.NearCacheConfig;
 import com.google.appengine.api.memcache.Stats;
 import com.google.appengine.api.memcache.StrictErrorHandler;
 import com.google.appengine.api.memcache.stdimpl.GCache;
@@ -158,6 +160,7 @@ public final class MemcacheApiUsage {
       } catch (IOException e) {
         // fine
       }
+      MemcacheSerialization.registerCodec(1, null);
       return Sets.<Class<?>>newHashSet(Object.class);
     }
   }
@@ -203,6 +206,7 @@ public final class MemcacheApiUsage {
       Future<Map<Object, MemcacheService.IdentifiableValue>>
           iValueMapResult =
           svc.getIdentifiables(coll);
+      objResult = svc.getOrCompute(obj, () -> obj, ComputeOptions.builder().build());
       Future<Stats> statsResult = svc.getStatistics();
       Future<Long> longResult = svc.increment(obj, 23);
       longResult = svc.increment(obj, 23, 23L);
@@ -319,6 +323,7 @@ public final class MemcacheApiUsage {
       Map<Object, Object> objMapResult = svc.getAll(coll);
       MemcacheService.IdentifiableValue iValueResult = svc.getIdentifiable(obj);
       Map<Object, MemcacheService.IdentifiableValue> iValueMapResult = svc.getIdentifiables(coll);
+      objResult = svc.getOrCompute(obj, () -> obj, ComputeOptions.builder().build());
       Stats statsResult = svc.getStatistics();
       Long longResult = svc.increment(obj, 23);
       longResult = svc.increment(obj, 23, 23L);
@@ -616,6 +621,7 @@ public final class MemcacheApiUsage {
       flag = MemcacheSerialization.Flag.BOOLEAN;
       flag = MemcacheSerialization.Flag.BYTE;
       flag = MemcacheSerialization.Flag.BYTES;
+      flag = MemcacheSerialization.Flag.CODEC;
       flag = MemcacheSerialization.Flag.INTEGER;
       flag = MemcacheSerialization.Flag.LONG;
       flag = MemcacheSerialization.Flag.OBJECT;
@@ -635,6 +641,8 @@ public final class MemcacheApiUsage {
       ams = MemcacheServiceFactory.getAsyncMemcacheService("yar");
       MemcacheService ms = MemcacheServiceFactory.getMemcacheService();
       ms = MemcacheServiceFactory.getMemcacheService("yar");
+      ms = MemcacheServiceFactory.getNearCachingMemcacheService(
+          "yar", NearCacheConfig.builder().build());
       return Sets.<Class<?>>newHashSet(Object.class);
     }
   }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.GoogleLogger;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the outstanding API RPC permits of one request. While permits are free, calls take
+ * them straight from the request's semaphore. Once they run out, waiting calls are queued, and
+ * each permit that is released goes to a waiting call of the highest priority package. Packages
+ * of equal priority take turns, so a request that queues many calls to one package does not hold
+ * up its calls to another package for long.
+ *
+ * <p>Package priorities default to {@link #DEFAULT_PRIORITIES} and can be set with the {@code
+ * appengine.api.priorities} system property, for example {@code datastore_v3=2,memcache=-1}.
+ * Packages that are not listed have priority 0.
+ */
+final class ApiCallScheduler {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /**
+   * Datastore calls, which include the commit that usually ends a request, and task queue calls,
+   * which transactional tasks are added with, go ahead of other calls by default.
+   */
+  static final ImmutableMap<String, Integer> DEFAULT_PRIORITIES =
+      ImmutableMap.of(
+          "datastore_v3", 1,
+          "datastore_v4", 1,
+          "cloud_datastore_v1", 1,
+          "taskqueue", 1);
+
+  private static final ImmutableMap<String, Integer> CONFIGURED_PRIORITIES =
+      parsePriorities(System.getProperty("appengine.api.priorities"));
+
+  private final Semaphore permits;
+  private final Map<String, Integer> priorities;
+
+  // The waiting calls, highest priority first, then in the order in which they get their turn.
+  private final PriorityQueue<Waiter> waiters =
+      new PriorityQueue<>(
+          Comparator.comparingInt((Waiter w) -> -w.priority)
+              .thenComparingLong(w -> w.turn)
+              .thenComparingLong(w -> w.sequence));
+  // The last turn given to a waiting call of each package, and the turn of the last call that got
+  // a permit. A package whose last turn has passed starts again from the current turn, so a
+  // package that was idle does not make up for lost turns.
+  private final Map<String, Long> lastTurns = new HashMap<>();
+  private long currentTurn;
+  private long sequence;
+
+  ApiCallScheduler(Semaphore permits) {
+    this(permits, CONFIGURED_PRIORITIES);
+  }
+
+  ApiCallScheduler(Semaphore permits, Map<String, Integer> priorities) {
+    this.permits = permits;
+    this.priorities = priorities;
+  }
+
+  private static final class Waiter {
+    final int priority;
+    final long turn;
+    final long sequence;
+    final CountDownLatch granted = new CountDownLatch(1);
+
+    Waiter(int priority, long turn, long sequence) {
+      this.priority = priority;
+      this.turn = turn;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Takes a permit for a call to {@code packageName}, waiting for at most {@code timeoutMillis},
+   * or indefinitely if it is negative.
+   *
+   * @return whether a permit was taken
+   */
+  boolean acquire(String packageName, long timeoutMillis) throws InterruptedException {
+    Waiter waiter;
+    synchronized (this) {
+      if (waiters.isEmpty() && permits.tryAcquire()) {
+        return true;
+      }
+      int priority = priorities.getOrDefault(packageName, 0);
+      long turn = Math.max(lastTurns.getOrDefault(packageName, 0L), currentTurn) + 1;
+      lastTurns.put(packageName, turn);
+      waiter = new Waiter(priority, turn, sequence++);
+      waiters.add(waiter);
+      // A permit may have been released between the tryAcquire above and now.
+      dispatch();
+    }
+    try {
+      if (timeoutMillis < 0) {
+        waiter.granted.await();
+        return true;
+      }
+      if (waiter.granted.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      if (!cancel(waiter)) {
+        release();
+      }
+      throw e;
+    }
+    // The permit may have been handed over just as the wait timed out.
+    return !cancel(waiter);
+  }
+
+  /** Takes a permit if one is free and no call is waiting for one. */
+  synchronized boolean tryAcquire() {
+    return waiters.isEmpty() && permits.tryAcquire();
+  }
+
+  /** Stops {@code waiter} from waiting, and returns false if it was already given a permit. */
+  private synchronized boolean cancel(Waiter waiter) {
+    return waiters.remove(waiter);
+  }
+
+  /** Gives back a permit, to the next waiting call if there is one. */
+  synchronized void release() {
+    Waiter waiter = waiters.poll();
+    if (waiter != null) {
+      grant(waiter);
+    } else {
+      permits.release();
+    }
+  }
+
+  /** Returns the number of calls waiting for a permit. */
+  synchronized int waitingCalls() {
+    return waiters.size();
+  }
+
+  private void dispatch() {
+    while (!waiters.isEmpty() && permits.tryAcquire()) {
+      grant(waiters.poll());
+    }
+  }
+
+  private void grant(Waiter waiter) {
+    currentTurn = Math.max(currentTurn, waiter.turn);
+    waiter.granted.countDown();
+  }
+
+  static ImmutableMap<String, Integer> parsePriorities(String spec) {
+    if (spec == null) {
+      return DEFAULT_PRIORITIES;
+    }
+    Map<String, Integer> priorities = new HashMap<>(DEFAULT_PRIORITIES);
+    try {
+      Splitter.on(',')
+          .omitEmptyStrings()
+          .trimResults()
+          .withKeyValueSeparator('=')
+          .split(spec)
+          .forEach((pkg, priority) -> priorities.put(pkg, Integer.parseInt(priority)));
+    } catch (IllegalArgumentException e) {
+      logger.atWarning().withCause(e).log("Ignoring bad API priorities: %s", spec);
+      return DEFAULT_PRIORITIES;
+    }
+    return ImmutableMap.copyOf(priorities);
+  }
+}
@@ -17,8 +17,12 @@
 package com.google.apphosting.runtime;
 
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.OptionalLong;
 
 /**
  * {@code ApiDeadlineOracle} determines the appropriate deadline for API calls based on the
@@ -27,12 +31,32 @@ import java.util.Map;
  *
  * <p>This class is also used to track shared buffer counts and sizes as they can also be specified
  * on a per-package and online/offline basis.
+ *
+ * <p>With adaptive deadlines, online API calls that do not specify a deadline get one derived from
+ * the recent latencies of the same method: a percentile of those latencies, with some headroom,
+ * but no more than the package's default deadline. With hedging, idempotent reads that take longer
+ * than the 95th percentile of their recent latencies are sent a second time, and whichever
+ * response comes first is used.
  */
 public class ApiDeadlineOracle {
+  /** The factor by which adaptive deadlines exceed the chosen percentile of latencies. */
+  static final double ADAPTIVE_HEADROOM = 2.0;
+
+  /** The smallest adaptive deadline, in seconds, unless the package default is smaller. */
+  static final double MIN_ADAPTIVE_DEADLINE = 1.0;
+
+  static final double HEDGE_PERCENTILE = 95.0;
+
   private final DeadlineMap deadlineMap;
+  private final ApiLatencyTracker latencies = new ApiLatencyTracker();
+  private final double adaptivePercentile;
+  private final boolean hedging;
+
   // TODO: Rename this class to something less deadline-specific.
-  private ApiDeadlineOracle(DeadlineMap deadlineMap) {
+  private ApiDeadlineOracle(DeadlineMap deadlineMap, double adaptivePercentile, boolean hedging) {
     this.deadlineMap = deadlineMap;
+    this.adaptivePercentile = adaptivePercentile;
+    this.hedging = hedging;
   }
 
   public double getDeadline(String packageName, boolean isOffline, Number userDeadline) {
@@ -53,6 +77,65 @@ public class ApiDeadlineOracle {
     return deadlineMap.getDeadline(packageName, userDeadline);
   }
 
+  /**
+   * Like {@link #getDeadline(String, boolean, Number)}, but with adaptive deadlines enabled the
+   * default deadline of an online call is derived from the recent latencies of {@code methodName}.
+   */
+  public double getDeadline(
+      String packageName, String methodName, boolean isOffline, Number userDeadline) {
+    double deadline = getDeadline(packageName, isOffline, userDeadline);
+    if (adaptivePercentile <= 0 || isOffline || userDeadline != null) {
+      return deadline;
+    }
+    OptionalLong latencyMillis = latencies.percentile(packageName, methodName, adaptivePercentile);
+    if (latencyMillis.isEmpty()) {
+      return deadline;
+    }
+    double adaptiveDeadline = latencyMillis.getAsLong() * ADAPTIVE_HEADROOM / 1000.0;
+    return Math.min(deadline, Math.max(adaptiveDeadline, MIN_ADAPTIVE_DEADLINE));
+  }
+
+  /** Records how long a call to {@code methodName} took, for adaptive deadlines and hedging. */
+  public void recordLatency(String packageName, String methodName, long latencyMillis) {
+    if (adaptivePercentile > 0 || hedging) {
+      latencies.record(packageName, methodName, latencyMillis);
+    }
+  }
+
+  /**
+   * Returns how long to wait for a response to a call before sending the same call again, or
+   * nothing if the call should not be sent again. Only idempotent reads are sent again, and only
+   * once enough latencies of the method have been recorded.
+   */
+  public OptionalLong getHedgeDelayMillis(
+      String packageName, String methodName, ByteString request) {
+    if (!hedging || !isIdempotentRead(packageName, methodName, request)) {
+      return OptionalLong.empty();
+    }
+    return latencies.percentile(packageName, methodName, HEDGE_PERCENTILE);
+  }
+
+  /** Returns whether the call can be sent twice without changing its result or any data. */
+  static boolean isIdempotentRead(String packageName, String methodName, ByteString request) {
+    switch (packageName) {
+      case "memcache":
+        return methodName.equals("Get");
+      case "datastore_v3":
+        // A get in a transaction takes locks, so only gets outside a transaction (field 2 of a
+        // GetRequest) are idempotent.
+        if (!methodName.equals("Get")) {
+          return false;
+        }
+        try {
+          return !UnknownFieldSet.parseFrom(request).hasField(2);
+        } catch (InvalidProtocolBufferException e) {
+          return false;
+        }
+      default:
+        return false;
+    }
+  }
+
   public void addPackageDefaultDeadline(String packageName, double defaultDeadline) {
     deadlineMap.addDefaultDeadline(packageName, defaultDeadline);
   }
@@ -72,6 +155,8 @@ public class ApiDeadlineOracle {
   /** Build an ApiDeadlineOracle. */
   public static class Builder {
     private DeadlineMap deadlineMap;
+    private double adaptivePercentile;
+    private boolean hedging;
 
     /** Initializes the default deadline map using standard hardcoded values. */
     @CanIgnoreReturnValue
@@ -87,11 +172,31 @@ public class ApiDeadlineOracle {
       return this;
     }
 
+    /**
+     * Derives the default deadline of online calls from the given percentile of the recent
+     * latencies of each method, for example 99.9.
+     */
+    @CanIgnoreReturnValue
+    public Builder setAdaptiveDeadlinePercentile(double percentile) {
+      if (!(percentile > 0 && percentile <= 100)) {
+        throw new IllegalArgumentException("Percentile must be in (0, 100]: " + percentile);
+      }
+      this.adaptivePercentile = percentile;
+      return this;
+    }
+
+    /** Sends idempotent reads that are slower than usual a second time. */
+    @CanIgnoreReturnValue
+    public Builder setHedging(boolean hedging) {
+      this.hedging = hedging;
+      return this;
+    }
+
     public ApiDeadlineOracle build() {
       if (deadlineMap == null) {
         throw new IllegalStateException("All deadline maps must be initialized.");
       }
-      return new ApiDeadlineOracle(deadlineMap);
+      return new ApiDeadlineOracle(deadlineMap, adaptivePercentile, hedging);
     }
   }
 
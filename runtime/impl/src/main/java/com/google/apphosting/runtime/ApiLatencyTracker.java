@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a histogram of the recent latencies of each API method. Latencies are counted in buckets
+ * that are each 20% wider than the one before, so percentiles are accurate to within 20%. Once a
+ * histogram has counted {@link #WINDOW} latencies, its counts are halved, so that older latencies
+ * weigh less and the percentiles follow changes in latency.
+ */
+final class ApiLatencyTracker {
+  /** The number of latencies after which older latencies start to weigh less. */
+  static final int WINDOW = 1000;
+
+  /** The number of latencies a method needs before its percentiles are used. */
+  static final int MIN_SAMPLES = 100;
+
+  private static final double BUCKET_GROWTH = 1.2;
+  private static final int BUCKETS = 64;
+
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  void record(String packageName, String methodName, long latencyMillis) {
+    histograms
+        .computeIfAbsent(packageName + "." + methodName, unused -> new Histogram())
+        .record(latencyMillis);
+  }
+
+  /**
+   * Returns the latency in milliseconds that {@code percentile} percent of recent calls to the
+   * method took at most, or nothing if too few calls were made to tell.
+   */
+  OptionalLong percentile(String packageName, String methodName, double percentile) {
+    Histogram histogram = histograms.get(packageName + "." + methodName);
+    return histogram == null ? OptionalLong.empty() : histogram.percentile(percentile);
+  }
+
+  private static final class Histogram {
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+
+    synchronized void record(long latencyMillis) {
+      counts[bucket(latencyMillis)]++;
+      if (++total >= 2 * WINDOW) {
+        total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+          counts[i] /= 2;
+          total += counts[i];
+        }
+      }
+    }
+
+    synchronized OptionalLong percentile(double percentile) {
+      if (total < MIN_SAMPLES) {
+        return OptionalLong.empty();
+      }
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return OptionalLong.of(upperBound(i));
+        }
+      }
+      return OptionalLong.of(upperBound(BUCKETS - 1));
+    }
+  }
+
+  /** Returns the bucket of {@code latencyMillis}, which covers latencies up to its upper bound. */
+  static int bucket(long latencyMillis) {
+    if (latencyMillis <= 1) {
+      return 0;
+    }
+    int bucket = (int) Math.ceil(Math.log(latencyMillis) / Math.log(BUCKET_GROWTH));
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  static long upperBound(int bucket) {
+    return (long) Math.ceil(Math.pow(BUCKET_GROWTH, bucket));
+  }
+}
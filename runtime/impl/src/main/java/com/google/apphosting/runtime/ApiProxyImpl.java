@@ -56,6 +56,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
@@ -294,7 +295,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
   private byte[] doSyncCall(
       EnvironmentImpl environment, String packageName, String methodName, byte[] requestBytes) {
-    double deadlineInSeconds = getApiDeadline(packageName, environment);
+    double deadlineInSeconds = getApiDeadline(packageName, methodName, environment);
     Future<byte[]> future =
         doAsyncCall(environment, packageName, methodName, requestBytes, deadlineInSeconds);
     try {
@@ -413,7 +414,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
     double deadlineInSeconds =
         deadlineOracle.getDeadline(
-            packageName, environment.isOfflineRequest(), requestDeadlineInSeconds);
+            packageName, methodName, environment.isOfflineRequest(), requestDeadlineInSeconds);
 
     APIRequest.Builder apiRequest =
         APIRequest.newBuilder()
@@ -430,7 +431,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     try {
       // Get an API slot, waiting if there are already too many threads doing API calls.
       // If we do wait for t milliseconds then our deadline is decreased by t.
-      apiSlotWaitTime = environment.apiRpcStarting(deadlineInSeconds);
+      apiSlotWaitTime = environment.apiRpcStarting(packageName, deadlineInSeconds);
       deadlineInSeconds -= apiSlotWaitTime / 1000.0;
       if (deadlineInSeconds < 0) {
         throw new InterruptedException("Deadline was used up while waiting for API RPC slot");
@@ -506,8 +507,24 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
             currentContext,
             packageName,
             methodName,
+            deadlineOracle,
             disableApiCallLogging);
     apiHost.call(rpc, apiRequest, rpcCallback);
+    deadlineOracle
+        .getHedgeDelayMillis(packageName, methodName, apiRequest.getPb())
+        .ifPresent(
+            hedgeDelayMillis -> {
+              if (hedgeDelayMillis < deadlineMillis) {
+                CompletableFuture.delayedExecutor(hedgeDelayMillis, TimeUnit.MILLISECONDS)
+                    .execute(
+                        () ->
+                            sendHedgedCall(
+                                apiRequest,
+                                environment,
+                                rpcCallback,
+                                deadlineMillis - hedgeDelayMillis));
+              }
+            });
 
     settableFuture.addListener(
         environment::apiRpcFinished,
@@ -517,6 +534,60 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     return rpcCallback;
   }
 
+  /**
+   * Sends {@code apiRequest} again if the original call has not completed yet and an API slot is
+   * free. A successful response to either call completes the original call, and the other call is
+   * then cancelled. A failed second call is ignored.
+   */
+  private void sendHedgedCall(
+      APIRequest apiRequest,
+      EnvironmentImpl environment,
+      AsyncApiFuture rpcCallback,
+      long deadlineMillis) {
+    if (rpcCallback.isDone() || !environment.tryApiRpcStarting()) {
+      return;
+    }
+    AnyRpcClientContext hedgeRpc = apiHost.newClientContext();
+    hedgeRpc.setDeadline(deadlineMillis / 1000.0);
+    AtomicBoolean hedgeFinished = new AtomicBoolean();
+    AnyRpcCallback<APIResponse> hedgeCallback =
+        new AnyRpcCallback<APIResponse>() {
+          @Override
+          public void success(APIResponse response) {
+            hedgeFinished.set(true);
+            environment.apiRpcFinished();
+            if (response.getError() == APIResponse.ERROR.OK_VALUE) {
+              rpcCallback.hedgeSucceeded(
+                  response, System.currentTimeMillis() - hedgeRpc.getStartTimeMillis());
+            }
+          }
+
+          @Override
+          public void failure() {
+            hedgeFinished.set(true);
+            environment.apiRpcFinished();
+          }
+        };
+    if (!disableApiCallLogging) {
+      logger.atInfo().log(
+          "Sending API call to %s.%s again", apiRequest.getApiPackage(), apiRequest.getCall());
+    }
+    ((ApiStatsImpl) ApiStats.get(environment)).incrementHedgedApiCalls();
+    try {
+      apiHost.call(hedgeRpc, apiRequest, hedgeCallback);
+    } catch (RuntimeException e) {
+      hedgeCallback.failure();
+      logger.atWarning().withCause(e).log("Exception sending API call again");
+      return;
+    }
+    rpcCallback.addCompletionListener(
+        () -> {
+          if (!hedgeFinished.get()) {
+            hedgeRpc.startCancel();
+          }
+        });
+  }
+
   @SuppressWarnings("ShouldNotSubclass")
   private Future<byte[]> createCancelledFuture(
       final String packageName, final String methodName, final String reason) {
@@ -586,7 +657,10 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private final AtomicLong wallclockTimeInMillis;
     private final SettableFuture<byte[]> settable;
     private final Future<byte[]> delegate;
+    private final ApiDeadlineOracle deadlineOracle;
     private final boolean disableApiCallLogging;
+    // Set by the first response, from this call or from the same call sent again.
+    private final AtomicBoolean responded = new AtomicBoolean();
 
     AsyncApiFuture(
         long deadlineMillis,
@@ -597,6 +671,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
         @Nullable CloudTraceContext currentContext,
         String packageName,
         String methodName,
+        ApiDeadlineOracle deadlineOracle,
         boolean disableApiCallLogging) {
       this.deadlineMillis = deadlineMillis;
       // We would like to make sure that wallclockTimeInMillis
@@ -615,9 +690,14 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       this.context = currentContext;
       this.packageName = packageName;
       this.methodName = methodName;
+      this.deadlineOracle = deadlineOracle;
       this.disableApiCallLogging = disableApiCallLogging;
     }
 
+    void addCompletionListener(Runnable listener) {
+      settable.addListener(listener, MoreExecutors.directExecutor());
+    }
+
     @Override
     protected final Future<byte[]> delegate() {
       return delegate;
@@ -650,6 +730,33 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
     @Override
     public void success(APIResponse response) {
+      if (responded.compareAndSet(false, true)) {
+        recordLatency(response, System.currentTimeMillis() - rpc.getStartTimeMillis());
+        complete(response);
+      }
+    }
+
+    /** Completes this call with the response to the same call sent again, unless it responded. */
+    void hedgeSucceeded(APIResponse response, long latencyMillis) {
+      if (responded.compareAndSet(false, true)) {
+        recordLatency(response, latencyMillis);
+        // Cancelled first, so that this call has settled by the time its result is seen.
+        rpc.startCancel();
+        complete(response);
+      }
+    }
+
+    /**
+     * Records the latency of the response that completes this call. Only successful responses
+     * count: errors, cancelled calls and timeouts say nothing about how long the call takes.
+     */
+    private void recordLatency(APIResponse response, long latencyMillis) {
+      if (response.getError() == APIResponse.ERROR.OK_VALUE) {
+        deadlineOracle.recordLatency(packageName, methodName, latencyMillis);
+      }
+    }
+
+    private void complete(APIResponse response) {
       APIResponse apiResponse = response;
       wallclockTimeInMillis.compareAndSet(
           NO_VALUE, System.currentTimeMillis() - rpc.getStartTimeMillis());
@@ -688,6 +795,10 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
     @Override
     public void failure() {
+      if (!responded.compareAndSet(false, true)) {
+        // The same call sent again already responded, and this one was cancelled.
+        return;
+      }
       wallclockTimeInMillis.set(System.currentTimeMillis() - rpc.getStartTimeMillis());
       endApiSpan();
 
@@ -714,7 +825,10 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     public boolean cancel(boolean mayInterrupt) {
       if (mayInterrupt) {
         if (super.cancel(mayInterrupt)) {
+          // Cancelling the future has already released the API slot, through the listener on the
+          // settable future. Cancelling the RPC frees the connection it was using too.
           rpc.startCancel();
+          ((ApiStatsImpl) ApiStats.get(environment)).incrementCancelledApiCalls();
           return true;
         }
       }
@@ -810,13 +924,14 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
    * either case, the deadline cannot be higher than maximum deadline
    * for that package.
    */
-  private double getApiDeadline(String packageName, EnvironmentImpl env) {
+  private double getApiDeadline(String packageName, String methodName, EnvironmentImpl env) {
     // This hack is only used for sync API calls -- async calls
     // specify their own deadline.
     // TODO: In the next API version, we should always get
     // this from an ApiConfig.
     Number userDeadline = (Number) env.getAttributes().get(API_DEADLINE_KEY);
-    return deadlineOracle.getDeadline(packageName, env.isOfflineRequest(), userDeadline);
+    return deadlineOracle.getDeadline(
+        packageName, methodName, env.isOfflineRequest(), userDeadline);
   }
 
   private static final class CloudTraceImpl extends CloudTrace {
@@ -866,6 +981,17 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
      */
     private long apiTime;
 
+    /** The number of API calls that were cancelled while still in progress. */
+    private final AtomicLong cancelledApiCalls = new AtomicLong();
+
+    /** The number of API calls that were sent a second time because they were slow. */
+    private final AtomicLong hedgedApiCalls = new AtomicLong();
+
+    /** The total and longest times that API calls waited for an API RPC slot. */
+    private final AtomicLong apiSlotWaitMillis = new AtomicLong();
+
+    private final AtomicLong maxApiSlotWaitMillis = new AtomicLong();
+
     private final EnvironmentImpl env;
 
     @CanIgnoreReturnValue
@@ -891,6 +1017,39 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private void increaseApiTimeInMegacycles(long delta) {
       this.apiTime += delta;
     }
+
+    @Override
+    public long getCancelledApiCalls() {
+      return cancelledApiCalls.get();
+    }
+
+    private void incrementCancelledApiCalls() {
+      cancelledApiCalls.incrementAndGet();
+    }
+
+    @Override
+    public long getHedgedApiCalls() {
+      return hedgedApiCalls.get();
+    }
+
+    private void incrementHedgedApiCalls() {
+      hedgedApiCalls.incrementAndGet();
+    }
+
+    @Override
+    public long getApiSlotWaitTimeInMillis() {
+      return apiSlotWaitMillis.get();
+    }
+
+    @Override
+    public long getMaxApiSlotWaitTimeInMillis() {
+      return maxApiSlotWaitMillis.get();
+    }
+
+    private void recordApiSlotWait(long millis) {
+      apiSlotWaitMillis.addAndGet(millis);
+      maxApiSlotWaitMillis.accumulateAndGet(millis, Math::max);
+    }
   }
 
   /**
@@ -931,7 +1090,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     private final AppLogsWriter appLogsWriter;
     @Nullable private final TraceWriter traceWriter;
     @Nullable private final TraceExceptionGenerator traceExceptionGenerator;
-    private final Semaphore outstandingApiRpcSemaphore;
+    private final ApiCallScheduler apiCallScheduler;
     private final ThreadGroup requestThreadGroup;
     private final RequestState requestState;
     private final Optional<String> traceId;
@@ -962,7 +1121,7 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       this.asyncFutures = asyncFutures;
       this.attributes =
           createInitialAttributes(genericRequest, externalDatacenterName, coordinator);
-      this.outstandingApiRpcSemaphore = outstandingApiRpcSemaphore;
+      this.apiCallScheduler = new ApiCallScheduler(outstandingApiRpcSemaphore);
       this.requestState = requestState;
       this.millisUntilSoftDeadline = millisUntilSoftDeadline;
 
@@ -990,6 +1149,8 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
               byteCountBeforeFlushing,
               maxLogLineSize,
               isLongRequest ? maxLogFlushSeconds : 0);
+      // Flusher threads of the writer make their flushes on behalf of this environment.
+      appLogsWriter.setEnvironment(this);
 
       this.traceWriter = traceWriter;
       if (TraceContextHelper.needsStackTrace(genericRequest.getTraceContext())) {
@@ -1038,33 +1199,40 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
     }
 
     /**
-     * Ensure that we don't already have too many API calls in progress, and wait if we do.
+     * Ensure that we don't already have too many API calls in progress, and wait if we do. Calls
+     * that wait are let through in the order chosen by the {@link ApiCallScheduler}.
      *
      * @return the length of time we had to wait for an API slot.
      */
-    long apiRpcStarting(double deadlineInSeconds) throws InterruptedException {
+    long apiRpcStarting(String packageName, double deadlineInSeconds)
+        throws InterruptedException {
       if (deadlineInSeconds >= Double.MAX_VALUE) {
-        outstandingApiRpcSemaphore.acquire();
+        apiCallScheduler.acquire(packageName, -1);
         return 0;
       }
       // System.nanoTime() is guaranteed monotonic, unlike System.currentTimeMillis(). Of course
       // there are 1,000,000 nanoseconds in a millisecond.
       long startTime = System.nanoTime();
       long deadlineInMillis = Math.round(deadlineInSeconds * 1000);
-      boolean acquired =
-          outstandingApiRpcSemaphore.tryAcquire(deadlineInMillis, TimeUnit.MILLISECONDS);
+      boolean acquired = apiCallScheduler.acquire(packageName, deadlineInMillis);
       long elapsed = (System.nanoTime() - startTime) / 1_000_000;
+      ((ApiStatsImpl) ApiStats.get(this)).recordApiSlotWait(elapsed);
       if (!acquired || elapsed >= deadlineInMillis) {
         if (acquired) {
-          outstandingApiRpcSemaphore.release();
+          apiCallScheduler.release();
         }
         throw new InterruptedException("Deadline passed while waiting for API slot");
       }
       return elapsed;
     }
 
+    /** Takes an API slot if one is free and no call is waiting for one. */
+    boolean tryApiRpcStarting() {
+      return apiCallScheduler.tryAcquire();
+    }
+
     void apiRpcFinished() {
-      outstandingApiRpcSemaphore.release();
+      apiCallScheduler.release();
     }
 
     void addAsyncFuture(Future<?> future) {
@@ -1135,6 +1303,14 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
       appLogsWriter.flushAndWait();
     }
 
+    /**
+     * Returns the log lines that are still buffered in the response. Called once the request has
+     * completed; later log lines go straight to the response.
+     */
+    public void drainLogsToResponse() {
+      appLogsWriter.drainToResponse();
+    }
+
     public TraceWriter getTraceWriter() {
       return traceWriter;
     }
@@ -1360,9 +1536,44 @@ public class ApiProxyImpl implements ApiProxy.Delegate<ApiProxyImpl.EnvironmentI
 
       CloudTraceContext parentThreadContext = CloudTrace.getCurrentContext(environment);
       Runnable contextRunnable = runWithThreadContext(runnable, environment, parentThreadContext);
+      if (AppEngineConstants.useVirtualRequestThreads() && VirtualThreads.isSupported()) {
+        return newVirtualRequestThread(contextRunnable, requestState, environment);
+      }
       return new CurrentRequestThread(
           requestThreadGroup, contextRunnable, runnable, requestState, environment);
     }
+
+    /**
+     * Returns a virtual thread that belongs to the current request. Virtual threads cannot be
+     * subclassed or put in the request's thread group, so unlike a {@link CurrentRequestThread}
+     * the thread is recorded with the request when it is created rather than when it is started.
+     * Until it is started it is not alive, so the request does not wait for it. For the same
+     * reason {@code start()} cannot refuse to start it once the request has stopped; the thread
+     * then fails with an {@link IllegalStateException} instead of running the user code.
+     */
+    private static Thread newVirtualRequestThread(
+        Runnable contextRunnable, RequestState requestState, Environment environment) {
+      if (!requestState.getAllowNewRequestThreadCreation()) {
+        throw new IllegalStateException(
+            "Cannot create new threads after request thread stops.");
+      }
+      Thread thread =
+          VirtualThreads.newThread(
+              () -> {
+                try {
+                  if (!requestState.getAllowNewRequestThreadCreation()) {
+                    throw new IllegalStateException(
+                        "Cannot start new threads after request thread stops.");
+                  }
+                  ApiProxy.setEnvironmentForCurrentThread(environment);
+                  contextRunnable.run();
+                } finally {
+                  requestState.forgetRequestThread(Thread.currentThread());
+                }
+              });
+      requestState.recordRequestThread(thread);
+      return thread;
+    }
   }
 
   private static final class BackgroundThreadFactory implements ThreadFactory {
@@ -40,6 +40,24 @@ public final class AppEngineConstants {
     return Boolean.getBoolean("com.google.appengine.enable_async");
   }
 
+  /**
+   * If set, {@code ThreadManager.currentRequestThreadFactory()} creates virtual threads when the
+   * JVM supports them.
+   */
+  public static boolean useVirtualRequestThreads() {
+    return Boolean.getBoolean("appengine.use.virtualRequestThreads");
+  }
+
+  /**
+   * The size in bytes above which request and response bodies are passed between Jetty and the
+   * UPRequest/UPResponse protos as a sequence of chunks of at most this size, rather than being
+   * copied into a single array.
+   */
+  public static int getStreamingBodyThreshold() {
+    return Integer.getInteger(
+        "appengine.streamingBodyThreshold", DEFAULT_STREAMING_BODY_THRESHOLD);
+  }
+
   /** The maximum allowed size in bytes of the Runtime Log per request, returned in the UPResponse. */
   public static final long MAX_RUNTIME_LOG_PER_REQUEST = 3000L * 1024L;
 
@@ -196,5 +214,8 @@ public final class AppEngineConstants {
   /** The maximum response size in bytes (32M). */
   public static final int MAX_RESPONSE_SIZE = 32 * 1024 * 1024;
 
+  /** The default for {@link #getStreamingBodyThreshold()} in bytes (64K). */
+  public static final int DEFAULT_STREAMING_BODY_THRESHOLD = 64 * 1024;
+
   private AppEngineConstants() {}
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import com.google.apphosting.base.protos.AppLogsPb.AppLogLine;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring buffer of log lines that any number of threads can add to without locking, and
+ * that one thread at a time takes from. An adding thread claims a slot by advancing the tail, then
+ * fills it in. The taking thread stops at the first slot that is claimed but not yet filled in.
+ */
+final class AppLogLineBuffer {
+  private final AtomicReferenceArray<AppLogLine> slots;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Creates a buffer of at least {@code capacity} lines, rounded up to a power of two. */
+  AppLogLineBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    slots = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  int capacity() {
+    return slots.length();
+  }
+
+  /** Returns about how many lines are in the buffer. */
+  int size() {
+    return (int) Math.max(tail.get() - head.get(), 0);
+  }
+
+  /** Adds {@code line} and returns true, or returns false if the buffer is full. */
+  boolean offer(AppLogLine line) {
+    while (true) {
+      long t = tail.get();
+      if (t - head.get() >= slots.length()) {
+        return false;
+      }
+      if (tail.compareAndSet(t, t + 1)) {
+        slots.set((int) (t & mask), line);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the oldest line, or returns null if there is none yet. Must not be called
+   * by more than one thread at a time.
+   */
+  AppLogLine poll() {
+    long h = head.get();
+    int index = (int) (h & mask);
+    AppLogLine line = slots.get(index);
+    if (line == null) {
+      return null;
+    }
+    slots.set(index, null);
+    head.set(h + 1);
+    return line;
+  }
+}
@@ -25,11 +25,19 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import javax.annotation.concurrent.GuardedBy;
 import org.jspecify.annotations.Nullable;
@@ -56,6 +64,25 @@ import org.jspecify.annotations.Nullable;
  *       return the final set of logs in {@link UPResponse}.
  * </ul>
  *
+ * <p>When {@code appengine.logs.asyncFlush} is set, log lines are instead added to a lock-free
+ * ring buffer of {@code appengine.logs.bufferSize} lines (default {@value #DEFAULT_BUFFER_SIZE}),
+ * and flushes are made by a flusher thread rather than by the thread that logs:
+ *
+ * <ul>
+ *   <li>Once the buffered lines reach {@code byteCountBeforeFlush} bytes, or the oldest buffered
+ *       line is older than {@code maxFlushSeconds}, a flusher thread takes the lines from the
+ *       buffer and sends them with the LogService.Flush API call, in batches of at most {@code
+ *       byteCountBeforeFlush} bytes. Each request has at most one flush in progress at a time.
+ *   <li>If lines are logged faster than they can be flushed, the buffer fills up, and what
+ *       happens then depends on {@code appengine.logs.overflow}: {@code block} (the default) makes
+ *       the logging thread wait for space, {@code drop} drops new lines, and {@code sample} keeps
+ *       warnings and errors but only one in {@value #SAMPLE_RATE} other lines once the buffer is
+ *       three quarters full. The number of dropped lines is logged with the next flush.
+ *   <li>When the request completes, the lines still in the buffer are returned in {@link
+ *       UPResponse}. From then on no more flushes are made: lines logged later go straight to the
+ *       response, as they would without {@code appengine.logs.asyncFlush}.
+ * </ul>
+ *
  * <p>This class is also responsible for splitting large log entries into smaller fragments, which
  * is unrelated to the batching mechanism described above but is necessary to prevent the AppServer
  * from truncating individual log entries.
@@ -76,8 +103,43 @@ public class AppLogsWriter {
   static final String LOG_TRUNCATED_SUFFIX = "\n<truncated>";
   static final int LOG_TRUNCATED_SUFFIX_LENGTH = LOG_TRUNCATED_SUFFIX.length();
 
+  static final int DEFAULT_BUFFER_SIZE = 4096;
+  static final int SAMPLE_RATE = 10;
+  private static final long BLOCK_PARK_NANOS = 100_000;
+
+  /** What to do with a log line when the buffer is full. */
+  enum OverflowPolicy {
+    BLOCK,
+    DROP,
+    SAMPLE
+  }
+
+  // Flushes buffered logs for all requests. A flusher thread waits for its flush to complete, but
+  // each request has at most one flusher thread at a time.
+  private static final class FlusherHolder {
+    static final Executor FLUSHER =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("app-logs-flusher-%d").build());
+  }
+
   private final Object lock = new Object();
 
+  // Only set with appengine.logs.asyncFlush.
+  private final @Nullable AppLogLineBuffer buffer;
+  private final OverflowPolicy overflowPolicy;
+  private final AtomicLong bufferedBytes = new AtomicLong();
+  // When the oldest buffered line was added, or 0 if the buffer was drained since.
+  private final AtomicLong firstBufferedNanos = new AtomicLong();
+  private final AtomicLong droppedLines = new AtomicLong();
+  private final AtomicLong sampledLines = new AtomicLong();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  // Held while taking lines from the buffer, which only one thread may do at a time.
+  private final ReentrantLock drainLock = new ReentrantLock();
+  // The environment of the request, for flushes made by flusher threads.
+  private volatile ApiProxy.@Nullable Environment environment;
+  // Set once the request has completed and the buffer was drained to the response.
+  private volatile boolean drained;
+
   private final int maxLogMessageLength;
   private final int logCutLength;
   private final int logCutLengthDiv10;
@@ -160,6 +222,17 @@ public class AppLogsWriter {
     // Always have a stopwatch even if we're not doing time based flushing
     // to keep code a bit simpler
     stopwatch = Stopwatch.createUnstarted();
+
+    if (Boolean.getBoolean("appengine.logs.asyncFlush")) {
+      buffer =
+          new AppLogLineBuffer(Integer.getInteger("appengine.logs.bufferSize", DEFAULT_BUFFER_SIZE));
+      overflowPolicy =
+          OverflowPolicy.valueOf(
+              System.getProperty("appengine.logs.overflow", "block").toUpperCase(Locale.ROOT));
+    } else {
+      buffer = null;
+      overflowPolicy = OverflowPolicy.BLOCK;
+    }
   }
 
   /**
@@ -181,7 +254,9 @@ public class AppLogsWriter {
       appLogLines.add(logLineBuilder.build());
     }
 
-    if (Boolean.getBoolean("appengine.use.virtualthreads")) {
+    if (buffer != null) {
+      addLogLinesToBuffer(appLogLines);
+    } else if (Boolean.getBoolean("appengine.use.virtualthreads")) {
       addLogLinesAndMaybeFlushVirtualThreads(appLogLines);
     } else {
       synchronized (lock) {
@@ -190,6 +265,186 @@ public class AppLogsWriter {
     }
   }
 
+  /**
+   * Sets the environment of the request whose logs this writer holds. Flusher threads make their
+   * flushes on its behalf; without it, buffered lines are only returned in the response.
+   */
+  void setEnvironment(ApiProxy.Environment environment) {
+    this.environment = environment;
+  }
+
+  private void addLogLinesToBuffer(Iterable<AppLogLine> appLogLines) {
+    if (drained) {
+      addLogLinesToResponse(appLogLines);
+      return;
+    }
+    for (AppLogLine logLine : appLogLines) {
+      if (!offer(logLine)) {
+        droppedLines.incrementAndGet();
+        continue;
+      }
+      firstBufferedNanos.compareAndSet(0, System.nanoTime());
+      bufferedBytes.addAndGet(logLine.getSerializedSize());
+    }
+    long firstNanos = firstBufferedNanos.get();
+    if (bufferedBytes.get() >= maxBytesToFlush
+        || (maxSecondsBetweenFlush > 0
+            && firstNanos != 0
+            && System.nanoTime() - firstNanos >= maxSecondsBetweenFlush * 1_000_000_000L)) {
+      scheduleDrain();
+    }
+    if (drained) {
+      // The request completed while the lines were being added, maybe after the buffer was drained.
+      drainToResponse();
+    }
+  }
+
+  private void addLogLinesToResponse(Iterable<AppLogLine> appLogLines) {
+    synchronized (lock) {
+      for (AppLogLine logLine : appLogLines) {
+        genericResponse.addAppLog(logLine);
+      }
+    }
+  }
+
+  private boolean offer(AppLogLine logLine) {
+    switch (overflowPolicy) {
+      case SAMPLE:
+        if (logLine.getLevel() < ApiProxy.LogRecord.Level.warn.ordinal()
+            && buffer.size() >= buffer.capacity() / 4 * 3
+            && sampledLines.getAndIncrement() % SAMPLE_RATE != 0) {
+          return false;
+        }
+        return buffer.offer(logLine);
+      case DROP:
+        return buffer.offer(logLine);
+      case BLOCK:
+        while (!buffer.offer(logLine)) {
+          if (Thread.currentThread().isInterrupted() || drained) {
+            return false;
+          }
+          scheduleDrain();
+          LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        return true;
+    }
+    throw new AssertionError(overflowPolicy);
+  }
+
+  private void scheduleDrain() {
+    if (!drained && drainScheduled.compareAndSet(false, true)) {
+      FlusherHolder.FLUSHER.execute(
+          () -> {
+            drainScheduled.set(false);
+            drainLock.lock();
+            try {
+              flushBuffer();
+            } finally {
+              drainLock.unlock();
+            }
+          });
+    }
+  }
+
+  /**
+   * Sends the buffered lines with as many flushes as needed, waiting for each to complete. Once the
+   * request has completed, its environment must no longer be used, so the lines are added to the
+   * response instead.
+   */
+  private void flushBuffer() {
+    @SuppressWarnings("unchecked")
+    ApiProxy.Delegate<ApiProxy.Environment> delegate = ApiProxy.getDelegate();
+    if (drained || delegate == null || environment == null) {
+      drainBufferToResponse(null);
+      return;
+    }
+    AppLogLine carried = null;
+    while (true) {
+      if (drained) {
+        // The request is waiting in drainToResponse() for this flush to complete.
+        drainBufferToResponse(carried);
+        return;
+      }
+      firstBufferedNanos.set(0);
+      AppLogGroup.Builder group = AppLogGroup.newBuilder();
+      long bytes = 0;
+      AppLogLine droppedLinesLine = droppedLinesLine();
+      if (droppedLinesLine != null) {
+        group.addLogLine(droppedLinesLine);
+      }
+      AppLogLine logLine = carried != null ? carried : buffer.poll();
+      carried = null;
+      while (logLine != null) {
+        int size = logLine.getSerializedSize();
+        if (bytes > 0 && bytes + size > maxBytesToFlush) {
+          carried = logLine;
+          break;
+        }
+        group.addLogLine(logLine);
+        bytes += size;
+        logLine = buffer.poll();
+      }
+      if (group.getLogLineCount() == 0) {
+        return;
+      }
+      bufferedBytes.addAndGet(-bytes);
+      FlushRequest request =
+          FlushRequest.newBuilder().setLogs(group.build().toByteString()).build();
+      waitForFlush(
+          delegate.makeAsyncCall(
+              environment, "logservice", "Flush", request.toByteArray(), new ApiProxy.ApiConfig()));
+    }
+  }
+
+  /** Adds {@code first}, if any, and then the buffered lines to the response. */
+  private void drainBufferToResponse(@Nullable AppLogLine first) {
+    firstBufferedNanos.set(0);
+    synchronized (lock) {
+      AppLogLine droppedLinesLine = droppedLinesLine();
+      if (droppedLinesLine != null) {
+        genericResponse.addAppLog(droppedLinesLine);
+      }
+      for (AppLogLine logLine = first != null ? first : buffer.poll();
+          logLine != null;
+          logLine = buffer.poll()) {
+        genericResponse.addAppLog(logLine);
+        bufferedBytes.addAndGet(-logLine.getSerializedSize());
+      }
+    }
+  }
+
+  private @Nullable AppLogLine droppedLinesLine() {
+    long dropped = droppedLines.getAndSet(0);
+    if (dropped == 0) {
+      return null;
+    }
+    return AppLogLine.newBuilder()
+        .setLevel(ApiProxy.LogRecord.Level.warn.ordinal())
+        .setTimestampUsec(System.currentTimeMillis() * 1000)
+        .setMessage(
+            dropped + " log lines were dropped because they were logged faster than they could"
+                + " be sent")
+        .build();
+  }
+
+  /**
+   * Returns the lines that are still buffered in the response, once the request has completed.
+   * Lines logged after this are added to the response directly and no more flushes are made. Does
+   * nothing unless {@code appengine.logs.asyncFlush} is set.
+   */
+  void drainToResponse() {
+    if (buffer == null) {
+      return;
+    }
+    drained = true;
+    drainLock.lock();
+    try {
+      drainBufferToResponse(null);
+    } finally {
+      drainLock.unlock();
+    }
+  }
+
   private void addLogLinesAndMaybeFlushVirtualThreads(Iterable<AppLogLine> appLogLines) {
     for (AppLogLine logLine : appLogLines) {
       int serializedSize = logLine.getSerializedSize();
@@ -321,7 +576,14 @@ public class AppLogsWriter {
    * unmount without pinning carrier threads. Otherwise, it follows legacy synchronized locking.
    */
   public void flushAndWait() {
-    if (Boolean.getBoolean("appengine.use.virtualthreads")) {
+    if (buffer != null) {
+      drainLock.lock();
+      try {
+        flushBuffer();
+      } finally {
+        drainLock.unlock();
+      }
+    } else if (Boolean.getBoolean("appengine.use.virtualthreads")) {
       flushAndWaitVirtualThreads();
     } else {
       flushAndWaitLegacy();
@@ -21,37 +21,41 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.common.base.Strings;
-import com.google.common.base.Throwables;
-import com.google.common.escape.Escaper;
-import com.google.common.escape.Escapers;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import org.jspecify.annotations.Nullable;
 
-/** A log handler that publishes log messages in a json format. */
+/**
+ * A log handler that publishes log messages in a json format.
+ *
+ * <p>Each line is encoded as UTF-8 straight into a byte buffer that is reused by the thread that
+ * logs, and written to the output with a single call, so publishing a record does not build the
+ * line as a String first.
+ */
 public final class JsonLogHandler extends LogHandler {
-  private static final String TRACE_KEY = "\"logging.googleapis.com/trace\": ";
-  private static final String SPAN_KEY = "\"logging.googleapis.com/spanId\": ";
-  private static final String DEBUG = "DEBUG";
-  private static final String INFO = "INFO";
-  private static final String WARNING = "WARNING";
-  private static final String ERROR = "ERROR";
-  private static final String DEFAULT = "DEFAULT";
-
-  static final Escaper ESCAPER =
-      Escapers.builder()
-          .addEscape('"', "\\\"")
-          .addEscape('\\', "\\\\")
-          .addEscape('\n', "\\n")
-          .addEscape('\r', "\\r")
-          .addEscape('\t', "\\t")
-          .build();
+  private static final byte[] SPAN_KEY = bytes("\"logging.googleapis.com/spanId\": \"");
+  private static final byte[] MESSAGE_KEY = bytes("\"message\": \"");
+  private static final byte[] VALUE_END = bytes("\", ");
+  private static final byte[] ESCAPED_NEWLINE = bytes("\\n");
+  private static final byte[] LINE_END = bytes("\"}" + System.lineSeparator());
+  private static final byte[] DEBUG = severity("DEBUG");
+  private static final byte[] INFO = severity("INFO");
+  private static final byte[] WARNING = severity("WARNING");
+  private static final byte[] ERROR = severity("ERROR");
+  private static final byte[] DEFAULT = severity("DEFAULT");
+
+  private static final ThreadLocal<JsonLine> lines = ThreadLocal.withInitial(JsonLine::new);
 
   private final PrintStream out;
   private final boolean closePrintStreamOnClose;
-  @Nullable private final String projectId;
+  // The start of the trace field up to the trace ID, or null if there is no project ID.
+  private final byte @Nullable [] tracePrefix;
   private final Formatter formatter;
 
   public JsonLogHandler(
@@ -61,52 +65,61 @@ public final class JsonLogHandler extends LogHandler {
       Formatter formatter) {
     this.out = out;
     this.closePrintStreamOnClose = closePrintStreamOnClose;
-    this.projectId = projectId;
+    this.tracePrefix =
+        Strings.isNullOrEmpty(projectId)
+            ? null
+            : bytes("\"logging.googleapis.com/trace\": \"projects/" + projectId + "/traces/");
     this.formatter = checkNotNull(formatter);
   }
 
   @Override
   public void publish(LogRecord record) {
-    // We avoid String.format and String.join even though they would simplify the code.
-    // Logging code often shows up in profiling so we want to make this fast and StringBuilder is
-    // more performant.
-    StringBuilder json = new StringBuilder("{");
-    appendTraceId(json);
-    appendSpanId(json);
-    appendSeverity(json, record);
-    appendMessage(json, record); // must be last, see appendMessage
-    json.append("}");
-    // We must output the log all at once (should only call println once per call to publish)
-    out.println(json.toString());
+    // Format the message before taking the buffer, in case formatting it logs something too.
+    String message = formatter.formatMessage(record);
+    JsonLine json = lines.get();
+    if (json.inUse) {
+      json = new JsonLine();
+    }
+    json.inUse = true;
+    try {
+      json.reset();
+      json.put('{');
+      appendTraceId(json);
+      appendSpanId(json);
+      json.put(levelToSeverity(record.getLevel()));
+      appendMessage(json, message, record); // must be last, see appendMessage
+      json.put(LINE_END);
+      // We must output the log all at once (should only call write once per call to publish)
+      json.writeTo(out);
+    } finally {
+      json.inUse = false;
+    }
   }
 
-  private static void appendSpanId(StringBuilder json) {
+  private static void appendSpanId(JsonLine json) {
     Environment environment = ApiProxy.getCurrentEnvironment();
     if (environment instanceof ApiProxy.EnvironmentWithTrace environmentWithTrace) {
       environmentWithTrace
           .getSpanId()
-          .ifPresent(id -> json.append(SPAN_KEY).append("\"").append(id).append("\", "));
+          .ifPresent(id -> json.put(SPAN_KEY).putUnescaped(id).put(VALUE_END));
     }
   }
 
-  private void appendMessage(StringBuilder json, LogRecord record) {
-    String message = formatter.formatMessage(record);
-    if (message == null) {
-      message = "";
-    }
-
+  private static void appendMessage(JsonLine json, @Nullable String message, LogRecord record) {
     // This must be the last item in the JSON object, because it has no trailing comma. JSON is
     // unforgiving about commas and you can't have one just before }.
-    json.append("\"message\": \"").append(ESCAPER.escape(message));
+    json.put(MESSAGE_KEY);
+    if (message != null) {
+      json.putEscaped(message);
+    }
     if (record.getThrown() != null) {
-      json.append("\\n")
-          .append(ESCAPER.escape(Throwables.getStackTraceAsString(record.getThrown())));
+      json.put(ESCAPED_NEWLINE);
+      json.putStackTrace(record.getThrown());
     }
-    json.append("\"");
   }
 
-  private void appendTraceId(StringBuilder json) {
-    if (Strings.isNullOrEmpty(projectId)) {
+  private void appendTraceId(JsonLine json) {
+    if (tracePrefix == null) {
       return;
     }
 
@@ -114,22 +127,11 @@ public final class JsonLogHandler extends LogHandler {
     if (environment instanceof ApiProxy.EnvironmentWithTrace environmentWithTrace) {
       environmentWithTrace
           .getTraceId()
-          .ifPresent(
-              id ->
-                  json.append(TRACE_KEY)
-                      .append("\"projects/")
-                      .append(projectId)
-                      .append("/traces/")
-                      .append(id)
-                      .append("\", "));
+          .ifPresent(id -> json.put(tracePrefix).putUnescaped(id).put(VALUE_END));
     }
   }
 
-  private static void appendSeverity(StringBuilder json, LogRecord record) {
-    json.append("\"severity\": \"").append(levelToSeverity(record.getLevel())).append("\", ");
-  }
-
-  private static String levelToSeverity(Level level) {
+  private static byte[] levelToSeverity(Level level) {
     int intLevel = (level == null) ? 0 : level.intValue();
     return switch (intLevel) {
       case 300, 400, 500 -> DEBUG; // FINEST, FINER, FINE
@@ -143,6 +145,167 @@ public final class JsonLogHandler extends LogHandler {
     };
   }
 
+  private static byte[] severity(String severity) {
+    return bytes("\"severity\": \"" + severity + "\", ");
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A line of JSON being encoded as UTF-8. It is also a {@link Writer} that escapes what is
+   * written to it, so that stack traces can be printed straight into it.
+   */
+  private static final class JsonLine extends Writer {
+    private static final int INITIAL_CAPACITY = 1024;
+    // A buffer that has grown beyond this is not kept for the next line.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final PrintWriter stackTraceWriter = new PrintWriter(this);
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int count;
+    // A high surrogate whose low surrogate has not been written yet, or 0.
+    private char pendingHighSurrogate;
+    boolean inUse;
+
+    void reset() {
+      if (buf.length > MAX_RETAINED_CAPACITY) {
+        buf = new byte[INITIAL_CAPACITY];
+      }
+      count = 0;
+      pendingHighSurrogate = 0;
+    }
+
+    JsonLine put(char asciiChar) {
+      ensureCapacity(1);
+      buf[count++] = (byte) asciiChar;
+      return this;
+    }
+
+    JsonLine put(byte[] bytes) {
+      endEscaped();
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buf, count, bytes.length);
+      count += bytes.length;
+      return this;
+    }
+
+    /** Appends {@code s} without escaping it, for values such as IDs that never need escaping. */
+    JsonLine putUnescaped(String s) {
+      ensureCapacity(s.length());
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c >= 0x80) {
+          // Not expected for IDs, but encode it correctly anyway.
+          return put(bytes(s.substring(i)));
+        }
+        buf[count++] = (byte) c;
+      }
+      return this;
+    }
+
+    void putEscaped(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        putEscaped(s.charAt(i));
+      }
+    }
+
+    void putStackTrace(Throwable thrown) {
+      thrown.printStackTrace(stackTraceWriter);
+      stackTraceWriter.flush();
+    }
+
+    private void putEscaped(char c) {
+      if (pendingHighSurrogate != 0) {
+        char high = pendingHighSurrogate;
+        pendingHighSurrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          putCodePoint(Character.toCodePoint(high, c));
+          return;
+        }
+        put('?');
+      }
+      switch (c) {
+        case '"' -> put('\\').put('"');
+        case '\\' -> put('\\').put('\\');
+        case '\n' -> put('\\').put('n');
+        case '\r' -> put('\\').put('r');
+        case '\t' -> put('\\').put('t');
+        default -> {
+          if (c < 0x80) {
+            put(c);
+          } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+          } else if (Character.isLowSurrogate(c)) {
+            // An unpaired surrogate, which String.getBytes would also replace with '?'.
+            put('?');
+          } else {
+            putCodePoint(c);
+          }
+        }
+      }
+    }
+
+    private void putCodePoint(int codePoint) {
+      ensureCapacity(4);
+      if (codePoint < 0x800) {
+        buf[count++] = (byte) (0xc0 | (codePoint >> 6));
+      } else if (codePoint < 0x10000) {
+        buf[count++] = (byte) (0xe0 | (codePoint >> 12));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      } else {
+        buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+      }
+      buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+
+    private void ensureCapacity(int extra) {
+      if (count + extra > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+      }
+    }
+
+    /** Replaces a high surrogate that was escaped last and never paired with '?'. */
+    private void endEscaped() {
+      if (pendingHighSurrogate != 0) {
+        pendingHighSurrogate = 0;
+        put('?');
+      }
+    }
+
+    void writeTo(PrintStream out) {
+      out.write(buf, 0, count);
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        putEscaped(chars[i]);
+      }
+    }
+
+    @Override
+    public void write(String s, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        putEscaped(s.charAt(i));
+      }
+    }
+
+    @Override
+    public void write(int c) {
+      putEscaped((char) c);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
   @Override
   public void flush() {
     out.flush();
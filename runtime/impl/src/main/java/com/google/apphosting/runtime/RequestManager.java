@@ -342,6 +342,11 @@ public class RequestManager implements RequestThreadManager {
     // Now wait for any async API calls and all request threads to complete.
     waitForUserCodeToComplete(requestToken);
 
+    // Return any log lines that are still waiting for a flusher thread in the response.
+    if (ApiProxy.getCurrentEnvironment() instanceof ApiProxyImpl.EnvironmentImpl environment) {
+      environment.drainLogsToResponse();
+    }
+
     // There is no more user code left, stop the timers and tear down the state.
     requests.remove(requestToken.getSecurityTicket());
     requestToken.setFinished();
@@ -709,14 +714,15 @@ public class RequestManager implements RequestThreadManager {
    * compatibility, on Java 7 this returns all threads in the same thread group as the original
    * request thread. On later Java versions this returns the original request thread plus all
    * threads that were created with {@code ThreadManager.currentRequestThreadFactory()} and that
-   * have not yet terminated.
+   * have not yet terminated. Daemon threads are left out, except virtual ones, which are always
+   * daemon threads.
    */
   private Set<Thread> getActiveThreads(RequestToken token) {
     Collection<Thread> threads;
     // Join all live non-daemon request threads created using the current request ThreadFactory.
     Set<Thread> nonDaemonThreads = new LinkedHashSet<>();
     for (Thread thread : token.getState().requestThreads()) {
-      if (thread.isDaemon()) {
+      if (thread.isDaemon() && !VirtualThreads.isVirtual(thread)) {
         logger.atInfo().log("Ignoring daemon thread: %s", thread);
       } else if (!thread.isAlive()) {
         logger.atInfo().log("Ignoring dead thread: %s", thread);
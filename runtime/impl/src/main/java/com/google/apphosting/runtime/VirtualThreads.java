@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Virtual threads, which the runtime can use when running on Java 21 or later even though it is
+ * compiled for Java 17. They are looked up reflectively once.
+ */
+final class VirtualThreads {
+  private static final @Nullable ThreadFactory factory = createFactory();
+  private static final @Nullable MethodHandle isVirtual = findIsVirtual();
+
+  private VirtualThreads() {}
+
+  private static @Nullable ThreadFactory createFactory() {
+    try {
+      // Thread.ofVirtual().name("request-thread-", 0).factory()
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder =
+          builderClass.getMethod("name", String.class, long.class)
+              .invoke(builder, "request-thread-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static @Nullable MethodHandle findIsVirtual() {
+    try {
+      return MethodHandles.publicLookup()
+          .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /** Returns whether the JVM supports virtual threads. */
+  static boolean isSupported() {
+    return factory != null;
+  }
+
+  /**
+   * Returns a new unstarted virtual thread that runs {@code runnable}.
+   *
+   * @throws UnsupportedOperationException if the JVM does not support virtual threads
+   */
+  static Thread newThread(Runnable runnable) {
+    if (factory == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+    return factory.newThread(runnable);
+  }
+
+  /** Returns whether {@code thread} is a virtual thread. */
+  static boolean isVirtual(Thread thread) {
+    if (isVirtual == null) {
+      return false;
+    }
+    try {
+      return (boolean) isVirtual.invokeExact(thread);
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ApiCallScheduler}. */
+@RunWith(JUnit4.class)
+public class ApiCallSchedulerTest {
+  private final Semaphore permits = new Semaphore(1);
+  private final ApiCallScheduler scheduler =
+      new ApiCallScheduler(permits, ImmutableMap.of("datastore_v3", 1, "prefetch", -1));
+  private final List<String> granted = Collections.synchronizedList(new ArrayList<>());
+  private final List<Thread> threads = new ArrayList<>();
+
+  @After
+  public void tearDown() throws InterruptedException {
+    for (Thread thread : threads) {
+      thread.interrupt();
+      thread.join();
+    }
+  }
+
+  /** Starts a call that waits for a permit, and returns once it is waiting. */
+  private void startWaiting(String packageName) throws InterruptedException {
+    int waiting = scheduler.waitingCalls();
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                if (scheduler.acquire(packageName, -1)) {
+                  granted.add(packageName);
+                }
+              } catch (InterruptedException e) {
+                // The test is over.
+              }
+            });
+    threads.add(thread);
+    thread.start();
+    while (scheduler.waitingCalls() == waiting) {
+      Thread.sleep(1);
+    }
+  }
+
+  /** Releases a permit, and returns the package of the call that took it. */
+  private String releaseOne() throws InterruptedException {
+    int count = granted.size();
+    scheduler.release();
+    while (granted.size() == count) {
+      Thread.sleep(1);
+    }
+    return granted.get(count);
+  }
+
+  @Test
+  public void testFreePermitsAreTakenImmediately() throws InterruptedException {
+    assertThat(scheduler.acquire("memcache", 0)).isTrue();
+    assertThat(permits.availablePermits()).isEqualTo(0);
+    scheduler.release();
+    assertThat(permits.availablePermits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testHigherPriorityGoesFirst() throws InterruptedException {
+    assertThat(scheduler.acquire("memcache", 0)).isTrue();
+    startWaiting("prefetch");
+    startWaiting("memcache");
+    startWaiting("prefetch");
+    startWaiting("datastore_v3");
+
+    assertThat(releaseOne()).isEqualTo("datastore_v3");
+    assertThat(releaseOne()).isEqualTo("memcache");
+    assertThat(releaseOne()).isEqualTo("prefetch");
+    assertThat(releaseOne()).isEqualTo("prefetch");
+    scheduler.release();
+    assertThat(permits.availablePermits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPackagesOfEqualPriorityTakeTurns() throws InterruptedException {
+    assertThat(scheduler.acquire("memcache", 0)).isTrue();
+    startWaiting("memcache");
+    startWaiting("memcache");
+    startWaiting("memcache");
+    startWaiting("urlfetch");
+
+    assertThat(releaseOne()).isEqualTo("memcache");
+    assertThat(releaseOne()).isEqualTo("urlfetch");
+    assertThat(releaseOne()).isEqualTo("memcache");
+    // A package that was idle does not get extra turns.
+    startWaiting("urlfetch");
+    startWaiting("urlfetch");
+    assertThat(releaseOne()).isEqualTo("memcache");
+    assertThat(releaseOne()).isEqualTo("urlfetch");
+    assertThat(releaseOne()).isEqualTo("urlfetch");
+  }
+
+  @Test
+  public void testTimeout() throws InterruptedException {
+    assertThat(scheduler.acquire("memcache", 0)).isTrue();
+    assertThat(scheduler.acquire("memcache", 10)).isFalse();
+    assertThat(scheduler.waitingCalls()).isEqualTo(0);
+    scheduler.release();
+    assertThat(permits.availablePermits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testInterrupt() throws InterruptedException {
+    assertThat(scheduler.acquire("memcache", 0)).isTrue();
+    Thread.currentThread().interrupt();
+    assertThrows(InterruptedException.class, () -> scheduler.acquire("memcache", -1));
+    assertThat(scheduler.waitingCalls()).isEqualTo(0);
+    scheduler.release();
+    assertThat(permits.availablePermits()).isEqualTo(1);
+  }
+
+  @Test
+  public void testParsePriorities() {
+    assertThat(ApiCallScheduler.parsePriorities(null))
+        .isEqualTo(ApiCallScheduler.DEFAULT_PRIORITIES);
+    assertThat(ApiCallScheduler.parsePriorities("memcache=-1, datastore_v3=3"))
+        .containsAtLeast("memcache", -1, "datastore_v3", 3, "taskqueue", 1);
+    assertThat(ApiCallScheduler.parsePriorities("memcache=high"))
+        .isEqualTo(ApiCallScheduler.DEFAULT_PRIORITIES);
+  }
+}
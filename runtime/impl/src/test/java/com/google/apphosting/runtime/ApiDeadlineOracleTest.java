@@ -18,6 +18,9 @@ package com.google.apphosting.runtime;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import java.util.OptionalLong;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -61,4 +64,96 @@ public class ApiDeadlineOracleTest {
     oracle.addPackageMaxDeadline("foo", 300);
     assertThat(oracle.getDeadline("foo", false, null)).isEqualTo(30.0);
   }
+
+  @Test
+  public void testDeadline_Adaptive() {
+    oracle =
+        new ApiDeadlineOracle.Builder()
+            .initDeadlineMap()
+            .setAdaptiveDeadlinePercentile(99)
+            .build();
+    // Too few latencies to tell.
+    oracle.recordLatency("foo", "Get", 2000);
+    assertThat(oracle.getDeadline("foo", "Get", false, null)).isEqualTo(10.0);
+
+    for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+      oracle.recordLatency("foo", "Get", 2000);
+      oracle.recordLatency("foo", "Put", 10);
+      oracle.recordLatency("foo", "Slow", 60_000);
+    }
+    assertThat(oracle.getDeadline("foo", "Get", false, null)).isWithin(1.0).of(4.0);
+    // Adaptive deadlines are at least MIN_ADAPTIVE_DEADLINE, and at most the package default.
+    assertThat(oracle.getDeadline("foo", "Put", false, null))
+        .isEqualTo(ApiDeadlineOracle.MIN_ADAPTIVE_DEADLINE);
+    assertThat(oracle.getDeadline("foo", "Slow", false, null)).isEqualTo(10.0);
+    // Deadlines set by the user and offline deadlines are not adapted.
+    assertThat(oracle.getDeadline("foo", "Get", false, 7)).isEqualTo(7.0);
+    assertThat(oracle.getDeadline("foo", "Get", true, null)).isEqualTo(5.0);
+  }
+
+  @Test
+  public void testBadAdaptiveDeadlinePercentileIsIgnored() {
+    for (String percentile : new String[] {"high", "0", "101", "NaN"}) {
+      ApiDeadlineOracle.Builder builder = new ApiDeadlineOracle.Builder().initDeadlineMap();
+      JavaRuntimeFactory.setAdaptiveDeadlinePercentile(builder, percentile);
+      oracle = builder.build();
+      for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+        oracle.recordLatency("foo", "Get", 2000);
+      }
+      assertThat(oracle.getDeadline("foo", "Get", false, null)).isEqualTo(10.0);
+    }
+
+    ApiDeadlineOracle.Builder builder = new ApiDeadlineOracle.Builder().initDeadlineMap();
+    JavaRuntimeFactory.setAdaptiveDeadlinePercentile(builder, "99");
+    oracle = builder.build();
+    for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+      oracle.recordLatency("foo", "Get", 2000);
+    }
+    assertThat(oracle.getDeadline("foo", "Get", false, null)).isWithin(1.0).of(4.0);
+  }
+
+  @Test
+  public void testHedgeDelay() {
+    oracle = new ApiDeadlineOracle.Builder().initDeadlineMap().setHedging(true).build();
+    assertThat(oracle.getHedgeDelayMillis("memcache", "Get", ByteString.EMPTY)).isEmpty();
+    for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+      oracle.recordLatency("memcache", "Get", i < 90 ? 5 : 100);
+      oracle.recordLatency("memcache", "Set", 5);
+    }
+    OptionalLong delay = oracle.getHedgeDelayMillis("memcache", "Get", ByteString.EMPTY);
+    assertThat(delay.getAsLong()).isAtLeast(100L);
+    assertThat(delay.getAsLong()).isLessThan(120L);
+    assertThat(oracle.getHedgeDelayMillis("memcache", "Set", ByteString.EMPTY)).isEmpty();
+  }
+
+  @Test
+  public void testIsIdempotentRead() {
+    ByteString getRequest =
+        UnknownFieldSet.newBuilder()
+            .addField(
+                1,
+                UnknownFieldSet.Field.newBuilder()
+                    .addLengthDelimited(ByteString.copyFromUtf8("key"))
+                    .build())
+            .build()
+            .toByteString();
+    // Concatenated messages are merged, so this is the same request in a transaction.
+    ByteString transactionalGetRequest =
+        getRequest.concat(
+            UnknownFieldSet.newBuilder()
+                .addField(
+                    2,
+                    UnknownFieldSet.Field.newBuilder()
+                        .addLengthDelimited(ByteString.copyFromUtf8("txn"))
+                        .build())
+                .build()
+                .toByteString());
+    assertThat(ApiDeadlineOracle.isIdempotentRead("memcache", "Get", ByteString.EMPTY)).isTrue();
+    assertThat(ApiDeadlineOracle.isIdempotentRead("memcache", "Increment", ByteString.EMPTY))
+        .isFalse();
+    assertThat(ApiDeadlineOracle.isIdempotentRead("datastore_v3", "Get", getRequest)).isTrue();
+    assertThat(ApiDeadlineOracle.isIdempotentRead("datastore_v3", "Get", transactionalGetRequest))
+        .isFalse();
+    assertThat(ApiDeadlineOracle.isIdempotentRead("datastore_v3", "Put", getRequest)).isFalse();
+  }
 }
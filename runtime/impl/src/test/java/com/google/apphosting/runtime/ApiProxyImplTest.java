@@ -18,6 +18,7 @@ package com.google.apphosting.runtime;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
+import static com.google.common.truth.TruthJUnit.assume;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -82,6 +83,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
@@ -1321,6 +1324,9 @@ public class ApiProxyImplTest {
         .isEqualTo(
             "The API call sleep.Sleep() was cancelled because the thread was interrupted"
                 + " while waiting for concurrent API calls.");
+    ApiStats stats = ApiStats.get(nonConcurrentEnvironment);
+    assertThat(stats.getMaxApiSlotWaitTimeInMillis()).isAtLeast(200L);
+    assertThat(stats.getApiSlotWaitTimeInMillis()).isAtLeast(stats.getMaxApiSlotWaitTimeInMillis());
 
     firstFuture.cancel(true);
   }
@@ -1456,30 +1462,7 @@ public class ApiProxyImplTest {
 
   @Test
   public void testCurrentRequestThreadFactory() throws InterruptedException, IOException {
-    // Override the regular setup for this test to enable request threads.
-    ApplicationEnvironment appEnv =
-        new ApplicationEnvironment(
-            APP_ID,
-            VERSION_ID,
-            ImmutableMap.of(),
-            ImmutableMap.of(),
-            rootDirectory,
-            ApplicationEnvironment.RuntimeConfiguration.DEFAULT_FOR_TEST);
-    AppInfo appInfo =
-        AppInfo.newBuilder()
-            .setAppId(APP_ID)
-            .setVersionId(VERSION_ID)
-            .build();
-    appVersion =
-        AppVersion.builder()
-            .setAppVersionKey(AppVersionKey.of(APP_ID, VERSION_ID))
-            .setAppInfo(appInfo)
-            .setRootDirectory(rootDirectory)
-            .setEnvironment(appEnv)
-            .setSessionsConfig(sessionsConfig)
-            .setPublicRoot("")
-            .build();
-    environment = createEnvironment();
+    enableRequestThreads();
     ApiProxy.setEnvironmentForCurrentThread(environment);
     try {
       ThreadFactory factory = ThreadManager.currentRequestThreadFactory();
@@ -1513,6 +1496,74 @@ public class ApiProxyImplTest {
     }
   }
 
+  @Test
+  public void testCurrentRequestThreadFactoryWithVirtualThreads() throws Exception {
+    assume().that(VirtualThreads.isSupported()).isTrue();
+    enableRequestThreads();
+    System.setProperty("appengine.use.virtualRequestThreads", "true");
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    try {
+      AtomicBoolean sawEnvironment = new AtomicBoolean();
+      Thread thread =
+          ThreadManager.currentRequestThreadFactory()
+              .newThread(() -> sawEnvironment.set(ApiProxy.getCurrentEnvironment() == environment));
+      assertThat(VirtualThreads.isVirtual(thread)).isTrue();
+      // The thread is recorded when it is created, and forgotten when it finishes.
+      assertThat(environment.getRequestState().requestThreads()).contains(thread);
+      thread.start();
+      thread.join();
+      assertThat(sawEnvironment.get()).isTrue();
+      assertThat(environment.getRequestState().requestThreads()).doesNotContain(thread);
+
+      // A thread created while the request was running but started after it stopped fails at
+      // once, without running the user code.
+      AtomicBoolean ran = new AtomicBoolean();
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      Thread late = ThreadManager.currentRequestThreadFactory().newThread(() -> ran.set(true));
+      late.setUncaughtExceptionHandler((t, e) -> failure.set(e));
+      environment.getRequestState().setAllowNewRequestThreadCreation(false);
+      late.start();
+      late.join();
+      assertThat(ran.get()).isFalse();
+      assertThat(failure.get()).isInstanceOf(IllegalStateException.class);
+      assertThat(environment.getRequestState().requestThreads()).doesNotContain(late);
+
+      assertThrows(
+          IllegalStateException.class,
+          () -> ThreadManager.currentRequestThreadFactory().newThread(() -> {}));
+    } finally {
+      System.clearProperty("appengine.use.virtualRequestThreads");
+      ApiProxy.clearEnvironmentForCurrentThread();
+    }
+  }
+
+  /** Overrides the regular setup to enable request threads. */
+  private void enableRequestThreads() throws IOException {
+    ApplicationEnvironment appEnv =
+        new ApplicationEnvironment(
+            APP_ID,
+            VERSION_ID,
+            ImmutableMap.of(),
+            ImmutableMap.of(),
+            rootDirectory,
+            ApplicationEnvironment.RuntimeConfiguration.DEFAULT_FOR_TEST);
+    AppInfo appInfo =
+        AppInfo.newBuilder()
+            .setAppId(APP_ID)
+            .setVersionId(VERSION_ID)
+            .build();
+    appVersion =
+        AppVersion.builder()
+            .setAppVersionKey(AppVersionKey.of(APP_ID, VERSION_ID))
+            .setAppInfo(appInfo)
+            .setRootDirectory(rootDirectory)
+            .setEnvironment(appEnv)
+            .setSessionsConfig(sessionsConfig)
+            .setPublicRoot("")
+            .build();
+    environment = createEnvironment();
+  }
+
   @Test
   public void testExceptionInRpcCallDoesNotCountAsOngoingApiCall() {
     ApiProxy.ApiConfig apiConfig = new ApiProxy.ApiConfig();
@@ -1544,6 +1595,92 @@ public class ApiProxyImplTest {
     assertThat(exception2).hasCauseThat().isInstanceOf(UnsupportedOperationException.class);
   }
 
+  @Test
+  public void testSlowIdempotentReadIsSentAgain() throws Exception {
+    List<MockRpcClientContext> calls = Collections.synchronizedList(new ArrayList<>());
+    APIHostClientInterface apiHost =
+        new MockAPIHost(null) {
+          @Override
+          public void call(
+              AnyRpcClientContext anyCtx, APIRequest req, AnyRpcCallback<APIResponse> callback) {
+            MockRpcClientContext ctx = (MockRpcClientContext) anyCtx;
+            ctx.setStartTimeMillis(System.currentTimeMillis());
+            ctx.setCallback(callback);
+            calls.add(ctx);
+            // The first call never responds, the second responds at once.
+            if (calls.size() == 2) {
+              ctx.finishWithResponse(
+                  APIResponse.newBuilder()
+                      .setError(APIResponse.ERROR.OK_VALUE)
+                      .setPb(ByteString.copyFromUtf8("value"))
+                      .build());
+            }
+          }
+        };
+    oracle = new ApiDeadlineOracle.Builder().initDeadlineMap().setHedging(true).build();
+    for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+      oracle.recordLatency("memcache", "Get", 10);
+    }
+    delegate = ApiProxyImpl.builder().setApiHost(apiHost).setDeadlineOracle(oracle).build();
+    environment = createEnvironment();
+
+    Future<byte[]> result =
+        delegate.makeAsyncCall(
+            environment, "memcache", "Get", new byte[0], new ApiProxy.ApiConfig());
+    assertThat(result.get(5, SECONDS)).isEqualTo("value".getBytes(UTF_8));
+    assertThat(calls).hasSize(2);
+    // The first call was cancelled once the second one responded.
+    assertThat(calls.get(0).getStatus().getCanonicalCode()).isEqualTo(Code.CANCELLED_VALUE);
+    assertThat(ApiStats.get(environment).getHedgedApiCalls()).isEqualTo(1);
+  }
+
+  @Test
+  public void testOnlySuccessfulResponsesRecordLatency() throws Exception {
+    AtomicInteger error = new AtomicInteger(APIResponse.ERROR.CAPABILITY_DISABLED_VALUE);
+    APIHostClientInterface apiHost =
+        new MockAPIHost(null) {
+          @Override
+          public void call(
+              AnyRpcClientContext anyCtx, APIRequest req, AnyRpcCallback<APIResponse> callback) {
+            MockRpcClientContext ctx = (MockRpcClientContext) anyCtx;
+            ctx.setStartTimeMillis(System.currentTimeMillis());
+            ctx.setCallback(callback);
+            if (error.get() < 0) {
+              ctx.finishWithError("RPC", Code.UNAVAILABLE_VALUE, Code.UNAVAILABLE_VALUE, "Unavailable");
+            } else {
+              ctx.finishWithResponse(
+                  APIResponse.newBuilder()
+                      .setError(error.get())
+                      .setPb(ByteString.copyFromUtf8("value"))
+                      .build());
+            }
+          }
+        };
+    oracle = new ApiDeadlineOracle.Builder().initDeadlineMap().setHedging(true).build();
+    delegate = ApiProxyImpl.builder().setApiHost(apiHost).setDeadlineOracle(oracle).build();
+    environment = createEnvironment();
+
+    for (int code : new int[] {APIResponse.ERROR.CAPABILITY_DISABLED_VALUE, -1}) {
+      error.set(code);
+      for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+        Future<byte[]> result =
+            delegate.makeAsyncCall(
+                environment, "memcache", "Get", new byte[0], new ApiProxy.ApiConfig());
+        assertThrows(ExecutionException.class, () -> result.get(5, SECONDS));
+      }
+    }
+    // Failed calls say nothing about how long the call takes, so there is nothing to hedge by.
+    assertThat(oracle.getHedgeDelayMillis("memcache", "Get", ByteString.EMPTY)).isEmpty();
+
+    error.set(APIResponse.ERROR.OK_VALUE);
+    for (int i = 0; i < ApiLatencyTracker.MIN_SAMPLES; i++) {
+      delegate
+          .makeAsyncCall(environment, "memcache", "Get", new byte[0], new ApiProxy.ApiConfig())
+          .get(5, SECONDS);
+    }
+    assertThat(oracle.getHedgeDelayMillis("memcache", "Get", ByteString.EMPTY)).isPresent();
+  }
+
   private AppVersion createAppVersion(String versionId, AppInfo appInfo, File rootDirectory) {
     ApplicationEnvironment appEnv =
         new ApplicationEnvironment(
@@ -41,6 +41,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ExtensionRegistry;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
@@ -752,6 +753,112 @@ public class AppLogsWriterTest {
     }
   }
 
+  @Test
+  public void testAsyncFlush_linesStayBufferedUntilRequestEnds() {
+    System.setProperty("appengine.logs.asyncFlush", "true");
+    try {
+      AppLogsWriter writer = new AppLogsWriter(response, STANDARD_FLUSH, DEFAULT_MAX_LOG_LINE, 0);
+      writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+      writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+      assertThat(response.getAppLogCount()).isEqualTo(0);
+
+      writer.drainToResponse();
+      verifyNoMoreInteractions(delegate, environment);
+      assertThat(response.getAppLogCount()).isEqualTo(2);
+      assertThat(response.getAppLog(0)).isEqualTo(createLogLine("1"));
+      assertThat(response.getAppLog(1)).isEqualTo(createLogLine("2"));
+    } finally {
+      System.clearProperty("appengine.logs.asyncFlush");
+    }
+  }
+
+  @Test
+  public void testAsyncFlush_flushesOffTheLoggingThread() throws Exception {
+    System.setProperty("appengine.logs.asyncFlush", "true");
+    try {
+      Thread loggingThread = Thread.currentThread();
+      SettableFuture<Thread> flushingThread = SettableFuture.create();
+      ArgumentCaptor<byte[]> flushRequestBytes = ArgumentCaptor.forClass(byte[].class);
+      when(delegate.makeAsyncCall(
+              eq(environment),
+              eq("logservice"),
+              eq("Flush"),
+              flushRequestBytes.capture(),
+              notNull()))
+          .thenAnswer(
+              invocation -> {
+                flushingThread.set(Thread.currentThread());
+                return immediateFuture(new byte[0]);
+              });
+      AppLogsWriter writer = new AppLogsWriter(response, SMALL_FLUSH, DEFAULT_MAX_LOG_LINE, 0);
+      writer.setEnvironment(environment);
+      writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+      writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+
+      assertThat(flushingThread.get(5, SECONDS)).isNotSameInstanceAs(loggingThread);
+      writer.flushAndWait();
+      // Each flush holds at most SMALL_FLUSH bytes, so the two lines are sent separately.
+      List<AppLogLine> flushed = new ArrayList<>();
+      for (byte[] bytes : flushRequestBytes.getAllValues()) {
+        FlushRequest flushRequest =
+            FlushRequest.parseFrom(bytes, ExtensionRegistry.getEmptyRegistry());
+        AppLogGroup group =
+            AppLogGroup.parseFrom(flushRequest.getLogs(), ExtensionRegistry.getEmptyRegistry());
+        assertThat(group.getLogLineCount()).isEqualTo(1);
+        flushed.addAll(group.getLogLineList());
+      }
+      assertThat(flushed).containsExactly(createLogLine("1"), createLogLine("2")).inOrder();
+      assertThat(response.getAppLogCount()).isEqualTo(0);
+    } finally {
+      System.clearProperty("appengine.logs.asyncFlush");
+    }
+  }
+
+  @Test
+  public void testAsyncFlush_noFlushesAfterRequestEnds() {
+    System.setProperty("appengine.logs.asyncFlush", "true");
+    try {
+      AppLogsWriter writer = new AppLogsWriter(response, SMALL_FLUSH, DEFAULT_MAX_LOG_LINE, 0);
+      writer.setEnvironment(environment);
+      writer.drainToResponse();
+
+      // Enough to start a flush, but the environment of the request must no longer be used.
+      writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "1"));
+      writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + "2"));
+      writer.flushAndWait();
+
+      verifyNoMoreInteractions(delegate, environment);
+      assertThat(response.getAppLogCount()).isEqualTo(2);
+      assertThat(response.getAppLog(0)).isEqualTo(createLogLine("1"));
+      assertThat(response.getAppLog(1)).isEqualTo(createLogLine("2"));
+    } finally {
+      System.clearProperty("appengine.logs.asyncFlush");
+    }
+  }
+
+  @Test
+  public void testAsyncFlush_dropsLinesWhenBufferIsFull() {
+    System.setProperty("appengine.logs.asyncFlush", "true");
+    System.setProperty("appengine.logs.bufferSize", "2");
+    System.setProperty("appengine.logs.overflow", "drop");
+    try {
+      AppLogsWriter writer = new AppLogsWriter(response, STANDARD_FLUSH, DEFAULT_MAX_LOG_LINE, 0);
+      for (int i = 1; i <= 5; i++) {
+        writer.addLogRecordAndMaybeFlush(new LogRecord(LogRecord.Level.info, 0, LOG_BLOCK + i));
+      }
+      writer.drainToResponse();
+
+      assertThat(response.getAppLogCount()).isEqualTo(3);
+      assertThat(response.getAppLog(0).getMessage()).startsWith("3 log lines were dropped");
+      assertThat(response.getAppLog(1)).isEqualTo(createLogLine("1"));
+      assertThat(response.getAppLog(2)).isEqualTo(createLogLine("2"));
+    } finally {
+      System.clearProperty("appengine.logs.asyncFlush");
+      System.clearProperty("appengine.logs.bufferSize");
+      System.clearProperty("appengine.logs.overflow");
+    }
+  }
+
   // Change to true for manual inspection of Strings
   // in testLogMessageSplit()
   private static final boolean DEBUG_LOG_STRINGS = false;
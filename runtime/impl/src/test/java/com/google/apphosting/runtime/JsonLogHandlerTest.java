@@ -17,9 +17,8 @@
 package com.google.apphosting.runtime;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.times;
-import static org.mockito.Mockito.verify;
 
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.base.protos.AppinfoPb.AppInfo;
@@ -29,6 +28,9 @@ import com.google.apphosting.base.protos.TraceId;
 import com.google.apphosting.base.protos.TracePb.TraceContextProto;
 import com.google.apphosting.runtime.anyrpc.APIHostClientInterface;
 import com.google.common.base.Throwables;
+import com.google.common.escape.Escaper;
+import com.google.common.escape.Escapers;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -38,18 +40,29 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Mockito;
 
 @RunWith(JUnit4.class)
 public final class JsonLogHandlerTest {
-
+  private static final Escaper ESCAPER =
+      Escapers.builder()
+          .addEscape('"', "\\\"")
+          .addEscape('\\', "\\\\")
+          .addEscape('\n', "\\n")
+          .addEscape('\r', "\\r")
+          .addEscape('\t', "\\t")
+          .build();
+  private static final String NEWLINE = System.lineSeparator();
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final PrintStream out = new PrintStream(bytes, /* autoFlush= */ false, UTF_8);
   private LogRecord logRecord;
 
+  private String output() {
+    return bytes.toString(UTF_8);
+  }
+
   @Test
   public void testPublish() throws Exception {
-    PrintStream out = Mockito.mock(PrintStream.class);
-
     JsonLogHandler handler =
         new JsonLogHandler(out, true, "test-project-id", new SimpleFormatter());
 
@@ -66,9 +79,9 @@ public final class JsonLogHandlerTest {
             + " \"message\": \"This is a log"
             + " message that covers \\\"quotes\\\" \\n"
             + " newlines and \\\\ escaped characters.\\n"
-            + JsonLogHandler.ESCAPER.escape(Throwables.getStackTraceAsString(logRecord.getThrown()))
+            + ESCAPER.escape(Throwables.getStackTraceAsString(logRecord.getThrown()))
             + "\"}";
-    verify(out, times(2)).println(expectedJson);
+    assertThat(output()).isEqualTo(expectedJson + NEWLINE + expectedJson + NEWLINE);
 
     // Verify the escaper removes illegal characters from the JSON:
     assertThat(expectedJson).doesNotContain("\t");
@@ -79,8 +92,6 @@ public final class JsonLogHandlerTest {
   /** Verify the log handler still works if the project ID is null. */
   @Test
   public void testPublishNullProject() throws Exception {
-    PrintStream out = Mockito.mock(PrintStream.class);
-
     JsonLogHandler handler = new JsonLogHandler(out, true, null, new SimpleFormatter());
 
     logRecord.setSourceMethodName("testPublishNullProject");
@@ -94,14 +105,12 @@ public final class JsonLogHandlerTest {
             + " \"message\": \"This is a log"
             + " message that covers \\\"quotes\\\" \\n"
             + " newlines and \\\\ escaped characters.\"}";
-    verify(out, times(2)).println(expectedJson);
+    assertThat(output()).isEqualTo(expectedJson + NEWLINE + expectedJson + NEWLINE);
   }
 
   /** Verify the log handler still works if the message is null. */
   @Test
   public void testPublishNullMessage() throws Exception {
-    PrintStream out = Mockito.mock(PrintStream.class);
-
     JsonLogHandler handler = new JsonLogHandler(out, true, null, new SimpleFormatter());
 
     logRecord = new LogRecord(Level.INFO, null);
@@ -112,13 +121,25 @@ public final class JsonLogHandlerTest {
     String expectedJson =
         "{\"logging.googleapis.com/spanId\": \"000000000000004a\", \"severity\": \"INFO\","
             + " \"message\": \"\"}";
-    verify(out, times(1)).println(expectedJson);
+    assertThat(output()).isEqualTo(expectedJson + NEWLINE);
   }
 
   @Test
-  public void testMessageParameters() throws Exception {
-    PrintStream out = Mockito.mock(PrintStream.class);
+  public void testPublishNonAsciiMessage() throws Exception {
+    JsonLogHandler handler = new JsonLogHandler(out, true, null, new SimpleFormatter());
 
+    // Two, three and four byte UTF-8 characters, and a surrogate without its pair.
+    logRecord = new LogRecord(Level.WARNING, "caf\u00e9 \u20ac \ud83d\ude00 \ud83d\t");
+    handler.publish(logRecord);
+
+    String expectedJson =
+        "{\"logging.googleapis.com/spanId\": \"000000000000004a\", \"severity\": \"WARNING\","
+            + " \"message\": \"caf\u00e9 \u20ac \ud83d\ude00 ?\\t\"}";
+    assertThat(output()).isEqualTo(expectedJson + NEWLINE);
+  }
+
+  @Test
+  public void testMessageParameters() throws Exception {
     JsonLogHandler handler =
         new JsonLogHandler(out, true, "test-project-id", new SimpleFormatter());
 
@@ -126,9 +147,7 @@ public final class JsonLogHandlerTest {
     logger.addHandler(handler);
     logger.log(Level.INFO, "Message with parameters {0} and {1}", new String[] {"foo", "bar"});
 
-    ArgumentCaptor<String> string = ArgumentCaptor.forClass(String.class);
-    verify(out).println(string.capture());
-    assertThat(string.getValue()).contains("Message with parameters foo and bar");
+    assertThat(output()).contains("Message with parameters foo and bar");
   }
 
   @Before
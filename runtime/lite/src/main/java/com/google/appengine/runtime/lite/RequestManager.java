@@ -330,6 +330,11 @@ public class RequestManager implements RequestThreadManager {
     // Now wait for any async API calls and all request threads to complete.
     waitForUserCodeToComplete(requestToken);
 
+    // Return any log lines that are still waiting for a flusher thread in the response.
+    if (ApiProxy.getCurrentEnvironment() instanceof ApiProxyImpl.EnvironmentImpl environment) {
+      environment.drainLogsToResponse();
+    }
+
     // There is no more user code left, stop the timers and tear down the state.
     requests.remove(requestToken.getSecurityTicket());
     requestToken.setFinished();
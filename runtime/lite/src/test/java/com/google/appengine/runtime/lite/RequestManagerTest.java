@@ -256,6 +256,26 @@ public class RequestManagerTest {
     }
   }
 
+  @Test
+  public void testBufferedLogLinesAreReturnedInResponse() {
+    System.setProperty("appengine.logs.asyncFlush", "true");
+    try {
+      RequestManager requestManager = createRequestManager();
+      MockAnyRpcServerContext rpc = createRpc();
+      RequestManager.RequestToken token =
+          requestManager.startRequest(
+              appVersion, rpc, upRequest, upResponse, new ThreadGroup("test"));
+      ((ApiProxyImpl.EnvironmentImpl) ApiProxy.getCurrentEnvironment())
+          .addLogRecord(new ApiProxy.LogRecord(ApiProxy.LogRecord.Level.info, 0, "buffered"));
+      requestManager.finishRequest(token);
+
+      assertThat(upResponse.build().getAppLogList()).hasSize(1);
+      assertThat(upResponse.getAppLog(0).getMessage()).isEqualTo("buffered");
+    } finally {
+      System.clearProperty("appengine.logs.asyncFlush");
+    }
+  }
+
   @Test
   public void testTraceDisabled() {
     RequestManager requestManager = createRequestManager();
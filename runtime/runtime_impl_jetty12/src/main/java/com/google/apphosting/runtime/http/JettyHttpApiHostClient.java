@@ -32,6 +32,7 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
@@ -47,6 +48,8 @@ import org.eclipse.jetty.client.Result;
 import org.eclipse.jetty.http.HttpFields;
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.transport.HttpClientTransportOverHTTP2;
 import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
 import org.eclipse.jetty.util.thread.Scheduler;
@@ -71,7 +74,14 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
 
   static JettyHttpApiHostClient create(String url, Config config) {
     Preconditions.checkNotNull(url);
-    HttpClient httpClient = new HttpClient();
+    HttpClient httpClient;
+    if (config.useHttp2()) {
+      // The API host URL is http:, so this speaks h2c with prior knowledge. The connection pool
+      // only opens another connection when the server's limit on concurrent streams is reached.
+      httpClient = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()));
+    } else {
+      httpClient = new HttpClient();
+    }
     long idleTimeout = 58000; // 58 seconds, should be less than 60 used server-side.
     String envValue = System.getenv("APPENGINE_API_CALLS_IDLE_TIMEOUT_MS");
     if (envValue != null) {
@@ -178,6 +188,10 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
         Throwable failure = result.getFailure();
         if (failure instanceof ApiProxy.ResponseTooLargeException) {
           responseTooBig(callback);
+        } else if (context.isCancelled()) {
+          // The failure was most likely caused by the abort in startCancel(), whatever its type.
+          logger.atInfo().log("HTTP communication cancelled");
+          cancelled(callback);
         } else if (failure instanceof TimeoutException) {
           logger.atWarning().withCause(failure).log("HTTP communication timed out");
           timeout(callback);
@@ -255,7 +269,12 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
       request.timeout((long) (fallbackDeadlineSeconds * 1e9), NANOSECONDS);
     }
     CompleteListener completeListener = new Listener(context, callback);
-    request.send(completeListener);
+    Request sentRequest = request;
+    sentRequest.send(completeListener);
+    // Aborting the request fails the exchange and closes or releases its connection. If the
+    // exchange has already completed then aborting it does nothing.
+    context.setCanceller(
+        () -> sentRequest.abort(new CancellationException("API call cancelled")));
   }
 
   @Override
@@ -26,14 +26,26 @@ import org.eclipse.jetty.util.BufferUtil;
 public class ContentChunk extends Retainable.ReferenceCounter implements Content.Chunk {
   private final ByteBuffer byteBuffer;
   private final boolean last;
+  private final Content.Chunk next;
 
   public ContentChunk(byte[] bytes) {
     this(BufferUtil.toBuffer(bytes), true);
   }
 
   public ContentChunk(ByteBuffer byteBuffer, boolean last) {
+    this(byteBuffer, last, Content.Chunk.EOF);
+  }
+
+  /** Creates a chunk that is followed by {@code next} when the content is read. */
+  public ContentChunk(ByteBuffer byteBuffer, boolean last, Content.Chunk next) {
     this.byteBuffer = Objects.requireNonNull(byteBuffer);
     this.last = last;
+    this.next = Objects.requireNonNull(next);
+  }
+
+  /** Returns the chunk to read after this one. */
+  public Content.Chunk getNext() {
+    return next;
   }
 
   @Override
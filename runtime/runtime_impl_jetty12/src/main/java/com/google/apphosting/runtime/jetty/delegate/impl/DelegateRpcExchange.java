@@ -18,6 +18,7 @@ package com.google.apphosting.runtime.jetty.delegate.impl;
 
 import static com.google.apphosting.runtime.AppEngineConstants.SKIP_ADMIN_CHECK_ATTR;
 import static com.google.apphosting.runtime.AppEngineConstants.X_GOOGLE_INTERNAL_SKIPADMINCHECK;
+import static com.google.apphosting.runtime.AppEngineConstants.getStreamingBodyThreshold;
 import static com.google.apphosting.runtime.AppEngineConstants.isLegacyMode;
 
 import com.google.apphosting.base.protos.HttpPb;
@@ -29,6 +30,8 @@ import com.google.common.base.Ascii;
 import com.google.protobuf.ByteString;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
@@ -48,6 +51,9 @@ public class DelegateRpcExchange implements DelegateExchange {
   private final MutableUpResponse _response;
   private final ByteBufferAccumulator accumulator = new ByteBufferAccumulator();
   private final CompletableFuture<Void> _completion = new CompletableFuture<>();
+  private final int _streamingThreshold = Math.max(getStreamingBodyThreshold(), 1);
+  // The response content that no longer fit in the accumulator, in the chunks it was written in.
+  private ByteString _streamedContent = ByteString.EMPTY;
   private final Attributes _attributes = new Attributes.Lazy();
   private final String _httpMethod;
   private final boolean _isSecure;
@@ -55,7 +61,7 @@ public class DelegateRpcExchange implements DelegateExchange {
   public DelegateRpcExchange(RuntimePb.UPRequest request, MutableUpResponse response) {
     _request = request.getRequest();
     _response = response;
-    _content.set(new ContentChunk(_request.getPostdata().toByteArray()));
+    _content.set(toChunks(_request.getPostdata(), _streamingThreshold));
 
     String protocol = _request.getProtocol();
     HttpMethod method =
@@ -82,6 +88,31 @@ public class DelegateRpcExchange implements DelegateExchange {
     }
   }
 
+  /**
+   * Returns the first chunk of {@code body}. A body larger than {@code threshold} is read in
+   * chunks of at most that size, which share the memory of the proto rather than copying it.
+   */
+  private static Content.Chunk toChunks(ByteString body, int threshold) {
+    if (body.size() <= threshold) {
+      return new ContentChunk(body.toByteArray());
+    }
+    List<ByteBuffer> buffers = new ArrayList<>();
+    for (ByteBuffer buffer : body.asReadOnlyByteBufferList()) {
+      while (buffer.remaining() > threshold) {
+        buffers.add(buffer.slice(buffer.position(), threshold));
+        buffer.position(buffer.position() + threshold);
+      }
+      if (buffer.hasRemaining()) {
+        buffers.add(buffer);
+      }
+    }
+    Content.Chunk chunk = EOF;
+    for (int i = buffers.size() - 1; i >= 0; i--) {
+      chunk = new ContentChunk(buffers.get(i), i == buffers.size() - 1, chunk);
+    }
+    return chunk;
+  }
+
   private static boolean hasSkipAdminCheck(RuntimePb.UPRequest upRequest) {
     for (ParsedHttpHeader header : upRequest.getRuntimeHeadersList()) {
       if (Ascii.equalsIgnoreCase(X_GOOGLE_INTERNAL_SKIPADMINCHECK, header.getKey())) {
@@ -132,7 +163,8 @@ public class DelegateRpcExchange implements DelegateExchange {
 
   @Override
   public Content.Chunk read() {
-    return _content.getAndUpdate(chunk -> (chunk instanceof ContentChunk) ? EOF : chunk);
+    return _content.getAndUpdate(
+        chunk -> (chunk instanceof ContentChunk contentChunk) ? contentChunk.getNext() : chunk);
   }
 
   @Override
@@ -158,13 +190,26 @@ public class DelegateRpcExchange implements DelegateExchange {
 
   @Override
   public void write(boolean last, ByteBuffer content, Callback callback) {
-    if (content != null) accumulator.copyBuffer(content);
+    if (content != null) {
+      if (_streamedContent.isEmpty()
+          && accumulator.getLength() + content.remaining() <= _streamingThreshold) {
+        accumulator.copyBuffer(content);
+      } else {
+        // Keep a large response as a rope of the written chunks, without ever copying it into a
+        // single array.
+        _streamedContent =
+            _streamedContent
+                .concat(ByteString.copyFrom(accumulator.takeByteBuffer()))
+                .concat(ByteString.copyFrom(content));
+      }
+    }
     callback.succeeded();
   }
 
   @Override
   public void succeeded() {
-    _response.setHttpResponseResponse(ByteString.copyFrom(accumulator.takeByteBuffer()));
+    _response.setHttpResponseResponse(
+        _streamedContent.concat(ByteString.copyFrom(accumulator.takeByteBuffer())));
     _response.setError(RuntimePb.UPResponse.ERROR.OK_VALUE);
     _completion.complete(null);
   }
@@ -16,8 +16,10 @@
 
 package com.google.apphosting.runtime.jetty.ee10;
 
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.flogger.GoogleLogger;
 import jakarta.servlet.ServletException;
+import java.io.Flushable;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -48,6 +50,20 @@ public class TransactionCleanupListener implements RequestListener {
 
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
+  /**
+   * Environment attribute holding the datastore request entity cache. Keep in sync with
+   * com.google.appengine.api.datastore.RequestEntityCache.CACHE_ATTRIBUTE_KEY.
+   */
+  private static final String REQUEST_ENTITY_CACHE_ATTR =
+      "com.google.appengine.api.datastore.RequestEntityCache";
+
+  /**
+   * Environment attribute holding datastore operations buffered for coalescing. Keep in sync with
+   * com.google.appengine.api.datastore.OperationCoalescer.PENDING_OPERATIONS_ATTRIBUTE_KEY.
+   */
+  private static final String PENDING_OPERATIONS_ATTR =
+      "com.google.appengine.api.datastore.PendingOperations";
+
   private Object contextDatastoreService;
   private Method getActiveTransactions;
   private Method transactionRollback;
@@ -80,6 +96,8 @@ public class TransactionCleanupListener implements RequestListener {
 
   @Override
   public void requestComplete(WebAppContext context, Request request) {
+    flushPendingDatastoreOperations();
+    discardRequestEntityCache();
     if (transactionGetId == null) {
       // No datastore service found in webapp
       return;
@@ -110,4 +128,35 @@ public class TransactionCleanupListener implements RequestListener {
       logger.atWarning().withCause(ex).log("Failed to rollback abandoned transaction");
     }
   }
+
+  /**
+   * Sends datastore operations that the application buffered for coalescing but never waited on,
+   * so that they are not lost when the request ends.
+   */
+  private static void flushPendingDatastoreOperations() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null || environment.getAttributes() == null) {
+      return;
+    }
+    // The coalescer implements Flushable so that no reflection is needed to reach it.
+    Object pending = environment.getAttributes().remove(PENDING_OPERATIONS_ATTR);
+    if (pending instanceof Flushable) {
+      try {
+        ((Flushable) pending).flush();
+      } catch (IOException | RuntimeException ex) {
+        logger.atWarning().withCause(ex).log("Failed to send pending datastore operations");
+      }
+    }
+  }
+
+  /**
+   * Drops the datastore entity cache of the request so that entities cached by this request are
+   * neither retained nor visible to threads that outlive it.
+   */
+  private static void discardRequestEntityCache() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment != null && environment.getAttributes() != null) {
+      environment.getAttributes().remove(REQUEST_ENTITY_CACHE_ATTR);
+    }
+  }
 }
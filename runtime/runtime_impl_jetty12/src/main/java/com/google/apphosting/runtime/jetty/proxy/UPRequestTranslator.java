@@ -48,6 +48,7 @@ import static com.google.apphosting.runtime.AppEngineConstants.X_FORWARDED_PROTO
 import static com.google.apphosting.runtime.AppEngineConstants.X_GOOGLE_INTERNAL_PROFILER;
 import static com.google.apphosting.runtime.AppEngineConstants.X_GOOGLE_INTERNAL_SKIPADMINCHECK;
 import static com.google.apphosting.runtime.AppEngineConstants.X_GOOGLE_INTERNAL_SKIPADMINCHECK_UC;
+import static com.google.apphosting.runtime.AppEngineConstants.getStreamingBodyThreshold;
 
 import com.google.apphosting.base.protos.AppinfoPb;
 import com.google.apphosting.base.protos.HttpPb;
@@ -68,13 +69,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
 import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.HttpURI;
 import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.Blocker;
 import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.IteratingCallback;
 
 /** Translates HttpServletRequest to the UPRequest proto, and vice versa for the response. */
 public class UPRequestTranslator {
@@ -82,6 +87,7 @@ public class UPRequestTranslator {
   private final AppInfoFactory appInfoFactory;
   private final boolean passThroughPrivateHeaders;
   private final boolean skipPostData;
+  private final int streamingThreshold = getStreamingBodyThreshold();
 
   /**
    * Construct an UPRequestTranslator.
@@ -118,7 +124,42 @@ public class UPRequestTranslator {
       response.getHeaders().add(header.getKey(), header.getValue());
     }
 
-    response.write(true, rpcHttpResp.getResponse().asReadOnlyByteBuffer(), callback);
+    ByteString content = rpcHttpResp.getResponse();
+    if (content.size() <= streamingThreshold) {
+      response.write(true, content.asReadOnlyByteBuffer(), callback);
+    } else {
+      writeChunks(response, content.asReadOnlyByteBufferList(), callback);
+    }
+  }
+
+  /**
+   * Writes the chunks of a large response one after the other, so that a response made of several
+   * chunks is never copied into a single buffer.
+   */
+  private static void writeChunks(Response response, List<ByteBuffer> chunks, Callback callback) {
+    new IteratingCallback() {
+      private int next;
+
+      @Override
+      protected Action process() {
+        if (next == chunks.size()) {
+          return Action.SUCCEEDED;
+        }
+        ByteBuffer chunk = chunks.get(next++);
+        response.write(next == chunks.size(), chunk, this);
+        return Action.SCHEDULED;
+      }
+
+      @Override
+      protected void onCompleteSuccess() {
+        callback.succeeded();
+      }
+
+      @Override
+      protected void onCompleteFailure(Throwable cause) {
+        callback.failed(cause);
+      }
+    }.iterate();
   }
 
   /**
@@ -175,8 +216,13 @@ public class UPRequestTranslator {
 
     if (!skipPostData) {
       try {
-        InputStream inputStream = Content.Source.asInputStream(jettyRequest);
-        httpRequest.setPostdata(ByteString.readFrom(inputStream));
+        long length = jettyRequest.getLength();
+        if (length >= 0 && length <= streamingThreshold) {
+          InputStream inputStream = Content.Source.asInputStream(jettyRequest);
+          httpRequest.setPostdata(ByteString.readFrom(inputStream));
+        } else {
+          httpRequest.setPostdata(readChunks(jettyRequest));
+        }
       } catch (IOException ex) {
         throw new IllegalStateException("Could not read POST content:", ex);
       }
@@ -198,6 +244,37 @@ public class UPRequestTranslator {
     return upReqBuilder.build();
   }
 
+  /**
+   * Reads a large or chunked request body into a {@link ByteString} made of the chunks Jetty read
+   * it in, so that it is copied once and never into a single array.
+   */
+  private static ByteString readChunks(Content.Source source) throws IOException {
+    ByteString content = ByteString.EMPTY;
+    while (true) {
+      Content.Chunk chunk = source.read();
+      if (chunk == null) {
+        try (Blocker.Runnable blocker = Blocker.runnable()) {
+          source.demand(blocker);
+          blocker.block();
+        }
+        continue;
+      }
+      try {
+        if (Content.Chunk.isFailure(chunk)) {
+          throw new IOException(chunk.getFailure());
+        }
+        if (chunk.hasRemaining()) {
+          content = content.concat(ByteString.copyFrom(chunk.getByteBuffer()));
+        }
+        if (chunk.isLast()) {
+          return content;
+        }
+      } finally {
+        chunk.release();
+      }
+    }
+  }
+
   private static void builderHeader(UPRequest.Builder upReqBuilder, String name, String value) {
     if (Strings.isNullOrEmpty(value)) {
       return;
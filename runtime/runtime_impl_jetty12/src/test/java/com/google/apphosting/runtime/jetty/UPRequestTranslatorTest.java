@@ -19,6 +19,7 @@ package com.google.apphosting.runtime.jetty;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toSet;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -37,6 +38,7 @@ import com.google.apphosting.runtime.jetty.proxy.UPRequestTranslator;
 import com.google.common.base.Ascii;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.ExtensionRegistry;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -45,7 +47,9 @@ import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
@@ -348,6 +352,67 @@ public final class UPRequestTranslatorTest {
                 + "<body>Expected error during test.</body></html>");
   }
 
+  @Test
+  public void translateLargeBodiesInChunks() throws Exception {
+    System.setProperty("appengine.streamingBodyThreshold", "100");
+    try {
+      translator =
+          new UPRequestTranslator(
+              new AppInfoFactory(ImmutableMap.of("GAE_APPLICATION", "s~mytestappid")),
+              /* passThroughPrivateHeaders= */ false,
+              /* skipPostData= */ false);
+    } finally {
+      System.clearProperty("appengine.streamingBodyThreshold");
+    }
+    String first = "a".repeat(150);
+    String second = "b".repeat(150);
+
+    Request httpRequest =
+        mockServletRequest("http://myapp.appspot.com/upload", "127.0.0.1", ImmutableMap.of());
+    when(httpRequest.getLength()).thenReturn(-1L);
+    when(httpRequest.read())
+        .thenReturn(
+            Content.Chunk.from(ByteBuffer.wrap(first.getBytes(UTF_8)), false),
+            null,
+            Content.Chunk.from(ByteBuffer.wrap(second.getBytes(UTF_8)), true));
+    Mockito.doAnswer(
+            (Answer<Void>)
+                invocation -> {
+                  ((Runnable) invocation.getArgument(0)).run();
+                  return null;
+                })
+        .when(httpRequest)
+        .demand(any());
+    RuntimePb.UPRequest translatedUpRequest = translator.translateRequest(httpRequest);
+    assertThat(translatedUpRequest.getRequest().getPostdata().toStringUtf8())
+        .isEqualTo(first + second);
+
+    Response httpResponse = mock(Response.class);
+    when(httpResponse.getHeaders()).thenReturn(mock(HttpFields.Mutable.class));
+    List<String> written = new ArrayList<>();
+    Mockito.doAnswer(
+            (Answer<Void>)
+                invocation -> {
+                  boolean last = invocation.getArgument(0);
+                  written.add(BufferUtil.toString(invocation.getArgument(1)) + (last ? "." : ""));
+                  ((Callback) invocation.getArgument(2)).succeeded();
+                  return null;
+                })
+        .when(httpResponse)
+        .write(anyBoolean(), any(), any());
+    RuntimePb.UPResponse upResponse =
+        RuntimePb.UPResponse.newBuilder()
+            .setError(RuntimePb.UPResponse.ERROR.OK_VALUE)
+            .setHttpResponse(
+                HttpPb.HttpResponse.newBuilder()
+                    .setResponsecode(200)
+                    .setResponse(
+                        ByteString.copyFromUtf8(first).concat(ByteString.copyFromUtf8(second))))
+            .build();
+    translator.translateResponse(httpResponse, upResponse, Callback.NOOP);
+    assertThat(written).containsExactly(first, second + ".").inOrder();
+  }
+
   @Test
   public void translateSkipAdminCheckInAppEngineHeaders() throws Exception {
     Request httpRequest =
@@ -37,6 +37,8 @@ import com.google.protobuf.UninitializedMessageException;
 import java.io.IOException;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** A client of the APIHost service over HTTP. */
 abstract class HttpApiHostClient implements APIHostClientInterface {
@@ -90,11 +92,19 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
      */
     abstract boolean treatClosedChannelAsCancellation();
 
+    /**
+     * Send calls over clear-text HTTP/2 (h2c, with prior knowledge) rather than HTTP/1.1. Concurrent
+     * calls are then multiplexed as streams over a few connections instead of each needing a
+     * connection of its own. Only {@link JettyHttpApiHostClient} supports this.
+     */
+    abstract boolean useHttp2();
+
     static Builder builder() {
       return new AutoValue_HttpApiHostClient_Config.Builder()
           .setExtraTimeoutSeconds(DEFAULT_EXTRA_TIMEOUT_SECONDS)
           .setIgnoreContentLength(false)
-          .setTreatClosedChannelAsCancellation(false);
+          .setTreatClosedChannelAsCancellation(false)
+          .setUseHttp2(false);
     }
 
     abstract Builder toBuilder();
@@ -109,12 +119,52 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
 
       abstract Builder setTreatClosedChannelAsCancellation(boolean value);
 
+      abstract Builder setUseHttp2(boolean value);
+
       abstract Config build();
     }
   }
 
+  /**
+   * A snapshot of the calls made through a client. With HTTP/2 each call is one stream, so {@link
+   * #activeStreams} is the number of streams currently multiplexed over the client's connections.
+   */
+  @AutoValue
+  abstract static class StreamStats {
+    /** The number of calls sent since the client was created. */
+    abstract long startedStreams();
+
+    /** The number of calls sent whose outcome is not known yet. */
+    abstract int activeStreams();
+
+    /** The highest value {@link #activeStreams} has had. */
+    abstract int peakActiveStreams();
+
+    /** The number of calls that failed at the transport level, as opposed to the API level. */
+    abstract long failedStreams();
+
+    /** The number of calls that ended with a {@link ERROR#CANCELLED} response. */
+    abstract long cancelledStreams();
+
+    static StreamStats of(
+        long startedStreams,
+        int activeStreams,
+        int peakActiveStreams,
+        long failedStreams,
+        long cancelledStreams) {
+      return new AutoValue_HttpApiHostClient_StreamStats(
+          startedStreams, activeStreams, peakActiveStreams, failedStreams, cancelledStreams);
+    }
+  }
+
   private final Config config;
 
+  private final AtomicLong startedStreams = new AtomicLong();
+  private final AtomicInteger activeStreams = new AtomicInteger();
+  private final AtomicInteger peakActiveStreams = new AtomicInteger();
+  private final AtomicLong failedStreams = new AtomicLong();
+  private final AtomicLong cancelledStreams = new AtomicLong();
+
   HttpApiHostClient(Config config) {
     this.config = config;
   }
@@ -123,8 +173,17 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     return config;
   }
 
+  StreamStats getStreamStats() {
+    return StreamStats.of(
+        startedStreams.get(),
+        activeStreams.get(),
+        peakActiveStreams.get(),
+        failedStreams.get(),
+        cancelledStreams.get());
+  }
+
   static HttpApiHostClient create(String url, Config config) {
-    if (System.getenv("APPENGINE_API_CALLS_USING_JDK_CLIENT") != null) {
+    if (System.getenv("APPENGINE_API_CALLS_USING_JDK_CLIENT") != null && !config.useHttp2()) {
       logger.atInfo().log("Using JDK HTTP client for API calls");
       return JdkHttpApiHostClient.create(url, config);
     } else {
@@ -140,6 +199,8 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     private StatusProto status;
     private Throwable exception;
     private Optional<Long> deadlineNanos = Optional.empty();
+    private boolean cancelled; // guarded by this
+    private Runnable canceller; // guarded by this
 
     Context() {
       this.startTimeMillis = System.currentTimeMillis();
@@ -198,9 +259,44 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
       return deadlineNanos;
     }
 
+    /**
+     * Sets the action that aborts the HTTP exchange of this call, releasing its connection. If
+     * {@link #startCancel} has already been called, the action is run straight away.
+     */
+    void setCanceller(Runnable canceller) {
+      synchronized (this) {
+        if (!cancelled) {
+          this.canceller = canceller;
+          return;
+        }
+      }
+      canceller.run();
+    }
+
+    synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Aborts the HTTP exchange of this call, if it has started. The callback of the call then
+     * receives a {@link ERROR#CANCELLED} response, unless the outcome of the call was already
+     * known.
+     */
     @Override
     public void startCancel() {
-      logger.atWarning().log("Canceling HTTP API call has no effect");
+      Runnable toRun;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        toRun = canceller;
+        canceller = null;
+      }
+      logger.atInfo().log("Canceling HTTP API call");
+      if (toRun != null) {
+        toRun.run();
+      }
     }
   }
 
@@ -264,7 +360,30 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
             .setRequestId(req.getSecurityTicket())
             .setTraceContext(req.getTraceContext().toByteString())
             .build();
-    send(requestPb.toByteArray(), context, cb);
+    send(requestPb.toByteArray(), context, countingCallback(cb));
+  }
+
+  /** Returns a callback that counts a call as an active stream until {@code callback} runs. */
+  private AnyRpcCallback<APIResponse> countingCallback(AnyRpcCallback<APIResponse> callback) {
+    startedStreams.incrementAndGet();
+    peakActiveStreams.accumulateAndGet(activeStreams.incrementAndGet(), Math::max);
+    return new AnyRpcCallback<APIResponse>() {
+      @Override
+      public void success(APIResponse response) {
+        activeStreams.decrementAndGet();
+        if (response.getError() == ERROR.CANCELLED_VALUE) {
+          cancelledStreams.incrementAndGet();
+        }
+        callback.success(response);
+      }
+
+      @Override
+      public void failure() {
+        activeStreams.decrementAndGet();
+        failedStreams.incrementAndGet();
+        callback.failure();
+      }
+    };
   }
 
   static void receivedResponse(
@@ -25,6 +25,9 @@ import java.util.OptionalInt;
 
 /** Makes instances of {@link HttpApiHostClient}. */
 public class HttpApiHostClientFactory {
+  /** The maximum number of connections to the API host when calls are made over HTTP/2. */
+  private static final int HTTP2_CONNECTIONS = 4;
+
   private HttpApiHostClientFactory() {}
 
   /**
@@ -34,7 +37,13 @@ public class HttpApiHostClientFactory {
   public static APIHostClientInterface create(
       HostAndPort hostAndPort, OptionalInt maxConcurrentRpcs) {
     String url = "http://" + hostAndPort + REQUEST_ENDPOINT;
-    Config config = Config.builder().setMaxConnectionsPerDestination(maxConcurrentRpcs).build();
-    return HttpApiHostClient.create(url, config);
+    Config.Builder config = Config.builder();
+    if (System.getenv("APPENGINE_API_CALLS_USING_H2C") != null) {
+      // Concurrent calls are multiplexed over each connection, so a few connections are enough.
+      config.setUseHttp2(true).setMaxConnectionsPerDestination(OptionalInt.of(HTTP2_CONNECTIONS));
+    } else {
+      config.setMaxConnectionsPerDestination(maxConcurrentRpcs);
+    }
+    return HttpApiHostClient.create(url, config.build());
   }
 }
@@ -96,6 +96,12 @@ class JdkHttpApiHostClient extends HttpApiHostClient {
       AnyRpcCallback<APIResponse> callback) {
     try {
       HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      // Disconnecting closes the socket, so a blocked write or read fails with an IOException.
+      context.setCanceller(connection::disconnect);
+      if (context.isCancelled()) {
+        cancelled(callback);
+        return;
+      }
       connection.setDoOutput(true);
       HEADERS.forEach(connection::addRequestProperty);
       connection.addRequestProperty("Content-Type", "application/octet-stream");
@@ -128,6 +134,11 @@ class JdkHttpApiHostClient extends HttpApiHostClient {
       logger.atWarning().withCause(e).log("SocketTimeoutException");
       timeout(callback);
     } catch (IOException e) {
+      if (context.isCancelled()) {
+        logger.atInfo().log("HTTP communication cancelled");
+        cancelled(callback);
+        return;
+      }
       logger.atWarning().withCause(e).log("IOException");
       communicationFailure(context, e.toString(), callback, e);
     }
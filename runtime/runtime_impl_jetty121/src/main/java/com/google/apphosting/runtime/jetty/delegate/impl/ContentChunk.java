@@ -17,15 +17,30 @@
 package com.google.apphosting.runtime.jetty.delegate.impl;
 
 import java.nio.ByteBuffer;
+import java.util.Objects;
+import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.io.internal.ByteBufferChunk;
 import org.eclipse.jetty.util.BufferUtil;
 
 public class ContentChunk extends ByteBufferChunk.WithReferenceCount {
+  private final Content.Chunk next;
+
   public ContentChunk(byte[] bytes) {
     this(BufferUtil.toBuffer(bytes), true);
   }
 
   public ContentChunk(ByteBuffer byteBuffer, boolean last) {
+    this(byteBuffer, last, Content.Chunk.EOF);
+  }
+
+  /** Creates a chunk that is followed by {@code next} when the content is read. */
+  public ContentChunk(ByteBuffer byteBuffer, boolean last, Content.Chunk next) {
     super(byteBuffer, last);
+    this.next = Objects.requireNonNull(next);
+  }
+
+  /** Returns the chunk to read after this one. */
+  public Content.Chunk getNext() {
+    return next;
   }
 }
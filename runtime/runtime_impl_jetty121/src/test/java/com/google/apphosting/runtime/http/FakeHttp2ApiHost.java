@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.http;
+
+import static com.google.apphosting.runtime.http.FakeHttpApiHost.CONTENT_TYPE_VALUE;
+import static com.google.apphosting.runtime.http.FakeHttpApiHost.REQUEST_ENDPOINT;
+import static com.google.apphosting.runtime.http.FakeHttpApiHost.RPC_ENDPOINT_HEADER;
+import static com.google.apphosting.runtime.http.FakeHttpApiHost.RPC_ENDPOINT_VALUE;
+
+import com.google.apphosting.base.protos.api_bytes.RemoteApiPb;
+import com.google.common.net.HostAndPort;
+import com.google.protobuf.ExtensionRegistry;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * Fake APIHost server that only speaks clear-text HTTP/2 (h2c), as a stand-in for testing {@link
+ * HttpApiHostClient.Config#useHttp2()}. It serves the same requests as {@link FakeHttpApiHost} and
+ * records how many of them it was handling at the same time.
+ */
+public class FakeHttp2ApiHost {
+  private final Server server;
+  private final URL url;
+  private final AtomicInteger activeRequests = new AtomicInteger();
+  private final AtomicInteger peakActiveRequests = new AtomicInteger();
+
+  private FakeHttp2ApiHost(Server server, URL url) {
+    this.server = server;
+    this.url = url;
+  }
+
+  public static FakeHttp2ApiHost create(
+      int port, FakeHttpApiHost.ApiRequestHandler apiRequestHandler) throws Exception {
+    Server server = new Server();
+    ServerConnector connector =
+        new ServerConnector(server, new HTTP2CServerConnectionFactory(new HttpConfiguration()));
+    connector.setPort(port);
+    server.addConnector(connector);
+    URL url =
+        new URL(
+            String.format(
+                "http://%s%s", HostAndPort.fromParts("localhost", port), REQUEST_ENDPOINT));
+    FakeHttp2ApiHost host = new FakeHttp2ApiHost(server, url);
+    server.setHandler(host.new ApiHandler(apiRequestHandler));
+    server.start();
+    return host;
+  }
+
+  URL getUrl() {
+    return url;
+  }
+
+  /** Returns the largest number of requests that were being handled at the same time. */
+  int getPeakActiveRequests() {
+    return peakActiveRequests.get();
+  }
+
+  public void stop() throws Exception {
+    server.stop();
+  }
+
+  private class ApiHandler extends Handler.Abstract {
+    private final FakeHttpApiHost.ApiRequestHandler apiRequestHandler;
+
+    ApiHandler(FakeHttpApiHost.ApiRequestHandler apiRequestHandler) {
+      this.apiRequestHandler = apiRequestHandler;
+    }
+
+    @Override
+    public boolean handle(Request request, Response response, Callback callback) throws Exception {
+      if (!request.getMethod().equals("POST")
+          || !RPC_ENDPOINT_VALUE.equals(request.getHeaders().get(RPC_ENDPOINT_HEADER))) {
+        Response.writeError(request, response, callback, HttpStatus.BAD_REQUEST_400);
+        return true;
+      }
+      peakActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), Math::max);
+      RemoteApiPb.Response responsePb;
+      try (InputStream in = Content.Source.asInputStream(request)) {
+        RemoteApiPb.Request requestPb =
+            RemoteApiPb.Request.parseFrom(in, ExtensionRegistry.getEmptyRegistry());
+        responsePb = apiRequestHandler.handle(requestPb);
+      } finally {
+        activeRequests.decrementAndGet();
+      }
+      byte[] responseBytes = responsePb.toByteArray();
+      response.setStatus(HttpStatus.OK_200);
+      response.getHeaders().put(HttpHeader.CONTENT_TYPE, CONTENT_TYPE_VALUE);
+      response.getHeaders().put(HttpHeader.CONTENT_LENGTH, responseBytes.length);
+      response.write(true, ByteBuffer.wrap(responseBytes), callback);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.http;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.apphosting.base.protos.RuntimePb.APIRequest;
+import com.google.apphosting.base.protos.RuntimePb.APIResponse;
+import com.google.apphosting.base.protos.RuntimePb.APIResponse.ERROR;
+import com.google.apphosting.base.protos.api_bytes.RemoteApiPb;
+import com.google.apphosting.runtime.anyrpc.AnyRpcCallback;
+import com.google.apphosting.testing.PortPicker;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.protobuf.ByteString;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for API calls made over HTTP/2 with {@link HttpApiHostClient.Config#useHttp2()}. */
+@RunWith(JUnit4.class)
+public class Http2ApiHostClientTest {
+  private static final String ECHO_SERVICE = "echo";
+  private static final String ECHO_METHOD = "Echo";
+  private static final String BLOCK_METHOD = "Block";
+
+  private static FakeHttp2ApiHost fakeHttp2ApiHost;
+
+  // Calls to BLOCK_METHOD count down arrived when the fake host starts handling them, and then
+  // wait for release, so tests can tell which calls are in progress at the same time.
+  private static volatile CountDownLatch arrived;
+  private static volatile CountDownLatch release;
+
+  private HttpApiHostClient client;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    int port = PortPicker.create().pickUnusedPort();
+    fakeHttp2ApiHost = FakeHttp2ApiHost.create(port, new EchoHandler());
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    fakeHttp2ApiHost.stop();
+  }
+
+  @Before
+  public void setUp() {
+    arrived = new CountDownLatch(0);
+    release = new CountDownLatch(1);
+    HttpApiHostClient.Config config =
+        HttpApiHostClient.Config.builder()
+            .setUseHttp2(true)
+            .setMaxConnectionsPerDestination(OptionalInt.of(1))
+            .build();
+    client = HttpApiHostClient.create(fakeHttp2ApiHost.getUrl().toString(), config);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    client.disable();
+  }
+
+  private static class EchoHandler implements FakeHttpApiHost.ApiRequestHandler {
+    @Override
+    public RemoteApiPb.Response handle(RemoteApiPb.Request request) {
+      if (request.getMethod().equals(BLOCK_METHOD)) {
+        arrived.countDown();
+        try {
+          if (!release.await(30, SECONDS)) {
+            throw new IllegalStateException("Blocked call was never released");
+          }
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return RemoteApiPb.Response.newBuilder().setResponse(request.getRequest()).build();
+    }
+  }
+
+  private static class RecordingCallback implements AnyRpcCallback<APIResponse> {
+    final List<APIResponse> responses = new CopyOnWriteArrayList<>();
+    final CountDownLatch done;
+
+    RecordingCallback(int expectedCalls) {
+      done = new CountDownLatch(expectedCalls);
+    }
+
+    @Override
+    public void success(APIResponse response) {
+      responses.add(response);
+      done.countDown();
+    }
+
+    @Override
+    public void failure() {
+      done.countDown();
+    }
+  }
+
+  @CanIgnoreReturnValue
+  private HttpApiHostClient.Context call(
+      String method, ByteString payload, RecordingCallback callback) {
+    APIRequest request =
+        APIRequest.newBuilder()
+            .setApiPackage(ECHO_SERVICE)
+            .setCall(method)
+            .setPb(payload)
+            .setSecurityTicket("tickety-boo")
+            .build();
+    HttpApiHostClient.Context context = client.newClientContext();
+    context.setDeadline(10);
+    client.call(context, request, callback);
+    return context;
+  }
+
+  @Test
+  public void echo() throws Exception {
+    ByteString payload = ByteString.copyFrom(new byte[] {1, 2, 3, 4});
+    RecordingCallback callback = new RecordingCallback(1);
+    call(ECHO_METHOD, payload, callback);
+
+    assertThat(callback.done.await(10, SECONDS)).isTrue();
+    assertThat(callback.responses).hasSize(1);
+    assertThat(callback.responses.get(0).getPb()).isEqualTo(payload);
+    HttpApiHostClient.StreamStats stats = client.getStreamStats();
+    assertThat(stats.startedStreams()).isEqualTo(1);
+    assertThat(stats.activeStreams()).isEqualTo(0);
+    assertThat(stats.failedStreams()).isEqualTo(0);
+  }
+
+  @Test
+  public void concurrentCallsAreMultiplexedOverOneConnection() throws Exception {
+    int calls = 10;
+    arrived = new CountDownLatch(calls);
+    RecordingCallback callback = new RecordingCallback(calls);
+    for (int i = 0; i < calls; i++) {
+      call(BLOCK_METHOD, ByteString.copyFromUtf8(Integer.toString(i)), callback);
+    }
+
+    // None of the calls can finish before all of them have reached the fake host, which with a
+    // single HTTP/1.1 connection would only ever see one at a time.
+    assertThat(arrived.await(30, SECONDS)).isTrue();
+    assertThat(fakeHttp2ApiHost.getPeakActiveRequests()).isEqualTo(calls);
+    release.countDown();
+
+    assertThat(callback.done.await(30, SECONDS)).isTrue();
+    assertThat(callback.responses).hasSize(calls);
+    HttpApiHostClient.StreamStats stats = client.getStreamStats();
+    assertThat(stats.startedStreams()).isEqualTo(calls);
+    assertThat(stats.activeStreams()).isEqualTo(0);
+    assertThat(stats.peakActiveStreams()).isEqualTo(calls);
+  }
+
+  @Test
+  public void cancelAbortsCallInProgress() throws Exception {
+    arrived = new CountDownLatch(1);
+    RecordingCallback callback = new RecordingCallback(1);
+    HttpApiHostClient.Context context =
+        call(BLOCK_METHOD, ByteString.copyFromUtf8("cancel me"), callback);
+    assertThat(arrived.await(10, SECONDS)).isTrue();
+    context.startCancel();
+
+    // The fake host is still holding the call, so the callback cannot be waiting for it to finish.
+    assertThat(callback.done.await(10, SECONDS)).isTrue();
+    assertThat(callback.responses).hasSize(1);
+    assertThat(callback.responses.get(0).getError()).isEqualTo(ERROR.CANCELLED_VALUE);
+    HttpApiHostClient.StreamStats stats = client.getStreamStats();
+    assertThat(stats.activeStreams()).isEqualTo(0);
+    assertThat(stats.failedStreams()).isEqualTo(0);
+    assertThat(stats.cancelledStreams()).isEqualTo(1);
+  }
+}
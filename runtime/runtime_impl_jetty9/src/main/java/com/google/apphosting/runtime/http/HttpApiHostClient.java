@@ -136,6 +136,8 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
     private StatusProto status;
     private Throwable exception;
     private Optional<Long> deadlineNanos = Optional.empty();
+    private boolean cancelled; // guarded by this
+    private Runnable canceller; // guarded by this
 
     Context() {
       this.startTimeMillis = System.currentTimeMillis();
@@ -194,9 +196,44 @@ abstract class HttpApiHostClient implements APIHostClientInterface {
       return deadlineNanos;
     }
 
+    /**
+     * Sets the action that aborts the HTTP exchange of this call, releasing its connection. If
+     * {@link #startCancel} has already been called, the action is run straight away.
+     */
+    void setCanceller(Runnable canceller) {
+      synchronized (this) {
+        if (!cancelled) {
+          this.canceller = canceller;
+          return;
+        }
+      }
+      canceller.run();
+    }
+
+    synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Aborts the HTTP exchange of this call, if it has started. The callback of the call then
+     * receives a {@link ERROR#CANCELLED} response, unless the outcome of the call was already
+     * known.
+     */
     @Override
     public void startCancel() {
-      logger.atWarning().log("Canceling HTTP API call has no effect");
+      Runnable toRun;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        toRun = canceller;
+        canceller = null;
+      }
+      logger.atInfo().log("Canceling HTTP API call");
+      if (toRun != null) {
+        toRun.run();
+      }
     }
   }
 
@@ -32,6 +32,7 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
@@ -178,6 +179,10 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
         Throwable failure = result.getFailure();
         if (failure instanceof ApiProxy.ResponseTooLargeException) {
           responseTooBig(callback);
+        } else if (context.isCancelled()) {
+          // The failure was most likely caused by the abort in startCancel(), whatever its type.
+          logger.atInfo().log("HTTP communication cancelled");
+          cancelled(callback);
         } else if (failure instanceof TimeoutException) {
           logger.atWarning().withCause(failure).log("HTTP communication timed out");
           timeout(callback);
@@ -247,7 +252,12 @@ class JettyHttpApiHostClient extends HttpApiHostClient {
       request.timeout((long) (fallbackDeadlineSeconds * 1e9), NANOSECONDS);
     }
     CompleteListener completeListener = new Listener(context, callback);
-    request.send(completeListener);
+    Request sentRequest = request;
+    sentRequest.send(completeListener);
+    // Aborting the request fails the exchange and closes or releases its connection. If the
+    // exchange has already completed then aborting it does nothing.
+    context.setCanceller(
+        () -> sentRequest.abort(new CancellationException("API call cancelled")));
   }
 
   @Override
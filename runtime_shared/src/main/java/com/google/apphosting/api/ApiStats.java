@@ -48,6 +48,40 @@ public abstract class ApiStats {
    */
   public abstract long getCpuTimeInMegaCycles();
 
+  /**
+   * @return the number of API calls that were cancelled before they completed, for
+   *     example because the request reached its deadline. The default
+   *     implementation returns 0.
+   */
+  public long getCancelledApiCalls() {
+    return 0;
+  }
+
+  /**
+   * @return the total time that API calls spent waiting for a slot because the
+   *     request already had as many API calls in progress as it may have. Unit
+   *     is milliseconds. The default implementation returns 0.
+   */
+  public long getApiSlotWaitTimeInMillis() {
+    return 0;
+  }
+
+  /**
+   * @return the longest time that a single API call spent waiting for a slot.
+   *     Unit is milliseconds. The default implementation returns 0.
+   */
+  public long getMaxApiSlotWaitTimeInMillis() {
+    return 0;
+  }
+
+  /**
+   * @return the number of API calls that were sent a second time because they
+   *     took longer than usual. The default implementation returns 0.
+   */
+  public long getHedgedApiCalls() {
+    return 0;
+  }
+
   /**
    * Creates a new ApiStats object and binds it to a given Environment.
    * @param env the Environment object to bind this object to.
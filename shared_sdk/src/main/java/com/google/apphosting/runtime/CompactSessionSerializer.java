@@ -0,0 +1,452 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A {@link SessionSerializer} that writes the values sessions usually hold without any class
+ * descriptors, and falls back to Java serialization for everything else.
+ *
+ * <p>A value is written in the compact format if it is a tree made only of {@code null}, strings,
+ * boxed primitives, byte arrays, {@link ArrayList}s, {@link HashMap}s, {@link LinkedHashMap}s,
+ * {@link ConcurrentHashMap}s and {@link SessionData}. Any other value, or an object appearing more
+ * than once in the tree, causes the whole value to be written with Java serialization instead, so
+ * that shared references and the exact classes of user objects are preserved as before.
+ *
+ * <p>Serialized values larger than the compression threshold are deflated if that makes them
+ * smaller. Uncompressed Java serialization output is stored as is, so it stays readable by runtimes
+ * that predate this class. Everything else starts with {@link #MAGIC_0} and {@link #MAGIC_1},
+ * which can never start a Java serialization stream, followed by a flags byte.
+ */
+final class CompactSessionSerializer implements SessionSerializer {
+
+  static final byte MAGIC_0 = (byte) 0xAE;
+  static final byte MAGIC_1 = (byte) 0x5E;
+
+  private static final int HEADER_LENGTH = 3;
+
+  /** The body is deflated. */
+  private static final int FLAG_DEFLATED = 1;
+
+  /** The body is a Java serialization stream rather than the compact format. */
+  private static final int FLAG_JAVA_SERIALIZED = 2;
+
+  // Value tags of the compact format.
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int INTEGER = 2;
+  private static final int LONG = 3;
+  private static final int TRUE = 4;
+  private static final int FALSE = 5;
+  private static final int DOUBLE = 6;
+  private static final int FLOAT = 7;
+  private static final int SHORT = 8;
+  private static final int BYTE = 9;
+  private static final int CHARACTER = 10;
+  private static final int BYTES = 11;
+  private static final int ARRAY_LIST = 12;
+  private static final int HASH_MAP = 13;
+  private static final int LINKED_HASH_MAP = 14;
+  private static final int CONCURRENT_HASH_MAP = 15;
+  private static final int SESSION_DATA = 16;
+
+  private final JavaSessionSerializer javaSerializer = new JavaSessionSerializer();
+  private final int compressionThreshold;
+
+  /**
+   * @param compressionThreshold the size in bytes above which serialized values are compressed, or
+   *     a negative value to never compress
+   */
+  CompactSessionSerializer(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  static boolean isCompactSerialized(byte[] bytes) {
+    return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+  }
+
+  @Override
+  public byte[] serialize(Object value) {
+    byte[] body = isCompactTree(value, new IdentityHashMap<>()) ? writeCompact(value) : null;
+    int flags = 0;
+    if (body == null) {
+      body = javaSerializer.serialize(value);
+      flags = FLAG_JAVA_SERIALIZED;
+    }
+    int bodyOffset = flags == 0 ? HEADER_LENGTH : 0;
+    if (compressionThreshold >= 0 && body.length - bodyOffset > compressionThreshold) {
+      byte[] deflated = deflate(body, bodyOffset, flags | FLAG_DEFLATED);
+      if (deflated.length < body.length) {
+        return deflated;
+      }
+    }
+    return body;
+  }
+
+  /** Returns {@code value} in the compact format, or {@code null} if it cannot be written so. */
+  private static byte @Nullable [] writeCompact(Object value) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(MAGIC_0);
+    bytes.write(MAGIC_1);
+    bytes.write(0);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      writeValue(out, value);
+    } catch (IOException ex) {
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] body, int offset, int flags) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 2);
+    bytes.write(MAGIC_0);
+    bytes.write(MAGIC_1);
+    bytes.write(flags);
+    try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+      out.write(body, offset, body.length - offset);
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public Object deserialize(byte[] bytes) {
+    if (!isCompactSerialized(bytes)) {
+      return javaSerializer.deserialize(bytes);
+    }
+    int flags = bytes[2];
+    try {
+      byte[] body = bytes;
+      int offset = HEADER_LENGTH;
+      if ((flags & FLAG_DEFLATED) != 0) {
+        try (InputStream in =
+            new InflaterInputStream(
+                new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH))) {
+          body = in.readAllBytes();
+        }
+        offset = 0;
+      }
+      if ((flags & FLAG_JAVA_SERIALIZED) != 0) {
+        return javaSerializer.deserialize(body, offset, body.length - offset);
+      }
+      DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(body, offset, body.length - offset));
+      return readValue(in);
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Returns true if {@code value} can be written in the compact format. {@code seen} holds the
+   * containers visited so far.
+   */
+  private static boolean isCompactTree(Object value, Map<Object, Boolean> seen) {
+    if (value == null
+        || value instanceof String
+        || value instanceof Integer
+        || value instanceof Long
+        || value instanceof Boolean
+        || value instanceof Double
+        || value instanceof Float
+        || value instanceof Short
+        || value instanceof Byte
+        || value instanceof Character) {
+      return true;
+    }
+    Class<?> type = value.getClass();
+    if (type == byte[].class) {
+      return seen.put(value, true) == null;
+    }
+    if (type == ArrayList.class) {
+      return seen.put(value, true) == null && isCompactTree((Collection<?>) value, seen);
+    }
+    if (mapTag(type) >= 0) {
+      return seen.put(value, true) == null && isCompactTree((Map<?, ?>) value, seen);
+    }
+    if (type == SessionData.class) {
+      // The value map goes through the same class check as any other value, so a null map or one
+      // of another class falls back to Java serialization rather than changing on the round trip.
+      Object valueMap = ((SessionData) value).getValueMap();
+      return seen.put(value, true) == null && valueMap != null && isCompactTree(valueMap, seen);
+    }
+    return false;
+  }
+
+  private static boolean isCompactTree(Collection<?> values, Map<Object, Boolean> seen) {
+    for (Object element : values) {
+      if (!isCompactTree(element, seen)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isCompactTree(Map<?, ?> map, Map<Object, Boolean> seen) {
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      if (!isCompactTree(entry.getKey(), seen) || !isCompactTree(entry.getValue(), seen)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Writes {@code value}, which must satisfy {@link #isCompactTree}. */
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.write(NULL);
+    } else if (value instanceof String) {
+      out.write(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Integer) {
+      out.write(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.write(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Double) {
+      out.write(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.write(FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Short) {
+      out.write(SHORT);
+      out.writeShort((Short) value);
+    } else if (value instanceof Byte) {
+      out.write(BYTE);
+      out.writeByte((Byte) value);
+    } else if (value instanceof Character) {
+      out.write(CHARACTER);
+      out.writeChar((Character) value);
+    } else if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      out.write(BYTES);
+      writeLength(out, bytes.length);
+      out.write(bytes);
+    } else if (value instanceof ArrayList) {
+      List<?> list = (List<?>) value;
+      out.write(ARRAY_LIST);
+      writeLength(out, list.size());
+      for (Object element : list) {
+        writeValue(out, element);
+      }
+    } else if (value instanceof SessionData) {
+      SessionData sessionData = (SessionData) value;
+      out.write(SESSION_DATA);
+      out.writeLong(sessionData.getExpirationTime());
+      writeValue(out, sessionData.getValueMap());
+    } else if (value instanceof Map && mapTag(value.getClass()) >= 0) {
+      out.write(mapTag(value.getClass()));
+      // Copy the entries first: a concurrent map may change size while being written.
+      List<Map.Entry<?, ?>> entries = new ArrayList<>(((Map<?, ?>) value).entrySet());
+      writeLength(out, entries.size());
+      for (Map.Entry<?, ?> entry : entries) {
+        writeValue(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      // A concurrent map changed after isCompactTree looked at it, or a session's value map was
+      // replaced in between.
+      throw new IOException("Not a compact value: " + value.getClass().getName());
+    }
+  }
+
+  /** Returns the tag of a map class accepted by {@link #isCompactTree}, or -1 for any other. */
+  private static int mapTag(Class<?> type) {
+    if (type == HashMap.class) {
+      return HASH_MAP;
+    }
+    if (type == LinkedHashMap.class) {
+      return LINKED_HASH_MAP;
+    }
+    if (type == ConcurrentHashMap.class) {
+      return CONCURRENT_HASH_MAP;
+    }
+    return -1;
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    int tag = in.read();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INTEGER:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case TRUE:
+        return true;
+      case FALSE:
+        return false;
+      case DOUBLE:
+        return in.readDouble();
+      case FLOAT:
+        return in.readFloat();
+      case SHORT:
+        return in.readShort();
+      case BYTE:
+        return in.readByte();
+      case CHARACTER:
+        return in.readChar();
+      case BYTES:
+        {
+          byte[] bytes = new byte[readLength(in)];
+          in.readFully(bytes);
+          return bytes;
+        }
+      case ARRAY_LIST:
+        {
+          int size = readLength(in);
+          List<Object> list = new ArrayList<>(size);
+          for (int i = 0; i < size; i++) {
+            list.add(readValue(in));
+          }
+          return list;
+        }
+      case HASH_MAP:
+        return readMap(in, new HashMap<>());
+      case LINKED_HASH_MAP:
+        return readMap(in, new LinkedHashMap<>());
+      case CONCURRENT_HASH_MAP:
+        return readMap(in, new ConcurrentHashMap<>());
+      case SESSION_DATA:
+        {
+          SessionData sessionData = new SessionData();
+          sessionData.setExpirationTime(in.readLong());
+          @SuppressWarnings("unchecked")
+          Map<String, Object> valueMap = (Map<String, Object>) readValue(in);
+          sessionData.setValueMap(valueMap);
+          return sessionData;
+        }
+      default:
+        throw new IOException("Unknown session value tag " + tag);
+    }
+  }
+
+  private static Map<Object, Object> readMap(DataInputStream in, Map<Object, Object> map)
+      throws IOException {
+    int size = readLength(in);
+    for (int i = 0; i < size; i++) {
+      Object key = readValue(in);
+      map.put(key, readValue(in));
+    }
+    return map;
+  }
+
+  /** Writes a non-negative length as a base 128 varint. */
+  private static void writeLength(DataOutputStream out, int length) throws IOException {
+    while ((length & ~0x7F) != 0) {
+      out.write((length & 0x7F) | 0x80);
+      length >>>= 7;
+    }
+    out.write(length);
+  }
+
+  private static int readLength(DataInputStream in) throws IOException {
+    int length = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      length |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (length < 0) {
+          break;
+        }
+        return length;
+      }
+    }
+    throw new IOException("Malformed session value length");
+  }
+
+  /**
+   * Writes {@code s} in modified UTF-8, like {@link DataOutputStream#writeUTF} but without its 64K
+   * limit. Unlike standard UTF-8 this preserves unpaired surrogates, as Java serialization does.
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    int length = s.length();
+    int encodedLength = length;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80 || c == 0) {
+        encodedLength += c >= 0x800 ? 2 : 1;
+      }
+    }
+    writeLength(out, encodedLength);
+    if (encodedLength == length) {
+      out.writeBytes(s);
+      return;
+    }
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80 && c != 0) {
+        out.write(c);
+      } else if (c < 0x800) {
+        out.write(0xC0 | (c >> 6));
+        out.write(0x80 | (c & 0x3F));
+      } else {
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    char[] chars = new char[bytes.length];
+    int count = 0;
+    for (int i = 0; i < bytes.length; ) {
+      int b = bytes[i++] & 0xFF;
+      if (b < 0x80) {
+        chars[count++] = (char) b;
+      } else if ((b & 0xE0) == 0xC0 && i < bytes.length) {
+        chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[i++] & 0x3F));
+      } else if ((b & 0xF0) == 0xE0 && i + 1 < bytes.length) {
+        chars[count++] =
+            (char) (((b & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F));
+        i += 2;
+      } else {
+        throw new UTFDataFormatException("Malformed session string");
+      }
+    }
+    return new String(chars, 0, count);
+  }
+}
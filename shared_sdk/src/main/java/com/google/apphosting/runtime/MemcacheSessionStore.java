@@ -29,6 +29,10 @@ import java.util.logging.Level;
 /**
  * A {@link SessionStore} implementation on top of memcache.
  *
+ * <p>Sessions are written unconditionally, so the last writer wins. The Jetty runtimes use this
+ * store as the cache of a {@code CachingSessionDataStore}, which has already written a session to
+ * the datastore when it saves it here. Refusing a write that raced with another instance would
+ * only leave memcache holding a different session than the datastore.
  */
 public class MemcacheSessionStore implements SessionStore {
 
@@ -37,7 +41,11 @@ public class MemcacheSessionStore implements SessionStore {
   private final MemcacheService memcache;
 
   public MemcacheSessionStore() {
-    memcache = MemcacheServiceFactory.getMemcacheService("");
+    this(MemcacheServiceFactory.getMemcacheService(""));
+  }
+
+  public MemcacheSessionStore(MemcacheService memcache) {
+    this.memcache = memcache;
     memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
   }
 
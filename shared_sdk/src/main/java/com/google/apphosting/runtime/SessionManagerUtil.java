@@ -16,129 +16,75 @@
 
 package com.google.apphosting.runtime;
 
-// <internal22>
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
-import java.lang.reflect.Modifier;
-import java.lang.reflect.Proxy;
-import java.util.HashMap;
-import java.util.Map;
+import org.jspecify.annotations.Nullable;
 
 /**
+ * Serializes and deserializes session contents with the configured {@link SessionSerializer}.
+ *
+ * <p>The {@value #SERIALIZER_PROPERTY} system property selects how sessions are written: {@code
+ * java} (the default) for Java serialization, {@code compact} for {@link CompactSessionSerializer},
+ * or the fully qualified name of a {@link SessionSerializer} implementation, loaded with the
+ * application class loader. With {@code compact}, sessions larger than {@value
+ * #COMPRESSION_THRESHOLD_PROPERTY} bytes (default {@value #DEFAULT_COMPRESSION_THRESHOLD}, negative
+ * to disable) are also compressed.
+ *
+ * <p>Sessions written in any of the built-in formats are read regardless of the property, so it
+ * can be changed without losing existing sessions. Instances of a version that predates the
+ * compact format cannot read it though, so it should only be enabled once no such instance serves
+ * the same sessions.
  */
 public final class SessionManagerUtil {
+  public static final String SERIALIZER_PROPERTY = "appengine.session.serializer";
+  public static final String COMPRESSION_THRESHOLD_PROPERTY =
+      "appengine.session.compression.threshold";
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 16 * 1024;
+
+  private static final JavaSessionSerializer JAVA_SERIALIZER = new JavaSessionSerializer();
+
+  private static volatile @Nullable SessionSerializer serializer;
+
   private SessionManagerUtil() {}
 
   public static byte[] serialize(Object value) {
-    try (
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-      oos.writeObject(value);
-      return baos.toByteArray();
-    } catch (IOException ex) {
-      throw new RuntimeException(ex);
-    }
+    return getSerializer().serialize(value);
   }
 
-  // <internal23>
   public static Object deserialize(byte[] bytes) {
-    // N.B.: There is most likely user code on the stack
-    // here, but because the value we're returning is not related to
-    // our ClassLoader we'll fail the
-    // RuntimePermission("getClassLoader") check.
-    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-    // TODO: It seems strange that we need to do this.  It
-    // would be safer and cleaner if we could find a way to have user
-    // code initiate this serialization, rather than having
-    // implementation code perform it on the user's behalf.
-    try (ObjectInputStream ois =
-        new DelegatingObjectInputStream(new ByteArrayInputStream(bytes), classLoader)) {
-      return ois.readObject();
-    } catch (IOException | ClassNotFoundException ex) {
-      throw new RuntimeException(ex);
+    if (JavaSessionSerializer.isJavaSerialized(bytes)) {
+      return JAVA_SERIALIZER.deserialize(bytes);
     }
-  }
-
-  /**
-   * {@code DelegatingObjectInputStream} is an {@link
-   * ObjectInputStream} that uses the specified class loader to
-   * deserialize objects rather than the classloader that loaded the
-   * calling class.
-   *
-   * <p>One would think this would already be built into the JRE, but
-   * according to
-   * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4340158 fixing
-   * this is such a low priority that the bug was simply closed.
-   */
-  private static class DelegatingObjectInputStream extends ObjectInputStream {
-
-    private static final Map<String, Class<?>> primitiveTypes = new HashMap<>();
-
-    static {
-      Class<?>[] primitives = {
-          boolean.class, byte.class, char.class, short.class, int.class, long.class,
-          float.class, double.class, void.class,
-      };
-      for (Class<?> primitive : primitives) {
-        primitiveTypes.put(primitive.getName(), primitive);
-      }
-    }
-
-    private final ClassLoader classLoader;
-
-    DelegatingObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
-      super(in);
-      this.classLoader = classLoader;
+    if (CompactSessionSerializer.isCompactSerialized(bytes)) {
+      return new CompactSessionSerializer(-1).deserialize(bytes);
     }
+    return getSerializer().deserialize(bytes);
+  }
 
-    @Override
-    protected Class<?> resolveClass(ObjectStreamClass classDesc)
-        throws IOException, ClassNotFoundException {
-
-      String name = classDesc.getName();
-      Class<?> c = primitiveTypes.get(name);
-      if (c != null) {
-        return c;
-      }
-      return Class.forName(classDesc.getName(), false, classLoader);
+  /** Returns the serializer selected by {@value #SERIALIZER_PROPERTY}. */
+  static SessionSerializer getSerializer() {
+    SessionSerializer result = serializer;
+    if (result == null) {
+      result = createSerializer(System.getProperty(SERIALIZER_PROPERTY, "java"));
+      serializer = result;
     }
+    return result;
+  }
 
-    @Override
-    protected Class<?> resolveProxyClass(String[] interfaces)
-        throws IOException, ClassNotFoundException {
-      // Note This logic was copied from ObjectInputStream.java in the
-      // JDK, and then modified to use the UserClassLoader instead of the
-      // "latest" loader that is used there.
-      ClassLoader nonPublicLoader = null;
-      boolean hasNonPublicInterface = false;
-
-      // define proxy in class loader of non-public interface(s), if any
-      Class<?>[] classObjs = new Class<?>[interfaces.length];
-      for (int i = 0; i < interfaces.length; i++) {
-        Class<?> cl = Class.forName(interfaces[i], false, classLoader);
-        if ((cl.getModifiers() & Modifier.PUBLIC) == 0) {
-          if (hasNonPublicInterface) {
-            if (nonPublicLoader != cl.getClassLoader()) {
-              throw new IllegalAccessError("conflicting non-public interface class loaders");
-            }
-          } else {
-            nonPublicLoader = cl.getClassLoader();
-            hasNonPublicInterface = true;
-          }
+  private static SessionSerializer createSerializer(String name) {
+    switch (name) {
+      case "java":
+        return JAVA_SERIALIZER;
+      case "compact":
+        return new CompactSessionSerializer(
+            Integer.getInteger(COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_COMPRESSION_THRESHOLD));
+      default:
+        try {
+          return Class.forName(name, true, Thread.currentThread().getContextClassLoader())
+              .asSubclass(SessionSerializer.class)
+              .getConstructor()
+              .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+          throw new IllegalStateException("Cannot create session serializer " + name, ex);
         }
-        classObjs[i] = cl;
-      }
-      try {
-        return Proxy.getProxyClass(
-            hasNonPublicInterface ? nonPublicLoader : classLoader, classObjs);
-      } catch (IllegalArgumentException e) {
-        throw new ClassNotFoundException(null, e);
-      }
     }
   }
 }
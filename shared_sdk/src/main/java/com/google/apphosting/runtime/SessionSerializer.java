@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+/**
+ * Converts the contents of a session to and from the bytes stored in memcache and the datastore.
+ *
+ * <p>The serializer used to write sessions is selected with the {@value
+ * SessionManagerUtil#SERIALIZER_PROPERTY} system property, see {@link SessionManagerUtil}. Sessions
+ * written with Java serialization or with the compact format are always readable, whichever
+ * serializer is selected, so switching serializers does not lose existing sessions. Any other
+ * format is read by the selected serializer.
+ *
+ * <p>Implementations must be thread-safe and have a public no-argument constructor. Classes of
+ * deserialized values should be resolved with the context class loader of the calling thread,
+ * which is the class loader of the application.
+ */
+public interface SessionSerializer {
+
+  /** Returns the serialized form of {@code value}. */
+  byte[] serialize(Object value);
+
+  /** Returns the value serialized in {@code bytes}. */
+  Object deserialize(byte[] bytes);
+}
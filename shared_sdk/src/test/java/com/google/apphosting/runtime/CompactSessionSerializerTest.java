@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CompactSessionSerializer}. */
+@RunWith(JUnit4.class)
+public class CompactSessionSerializerTest {
+  private final CompactSessionSerializer serializer = new CompactSessionSerializer(-1);
+
+  private Object roundTrip(Object value) {
+    return serializer.deserialize(serializer.serialize(value));
+  }
+
+  private static SessionData session(Map<String, Object> valueMap) {
+    SessionData data = new SessionData();
+    data.setExpirationTime(1234);
+    data.setValueMap(valueMap);
+    return data;
+  }
+
+  @Test
+  public void testScalarsRoundTripCompactly() {
+    List<Object> values =
+        Arrays.asList(
+            null, "s", "\u0000é€\ud800", "", 1, 2L, true, false, 1.5d, 2.5f, (short) 3,
+            (byte) 4, 'c', Strings.repeat("x", 70000));
+    for (Object value : values) {
+      assertThat(CompactSessionSerializer.isCompactSerialized(serializer.serialize(value)))
+          .isTrue();
+      assertThat(roundTrip(value)).isEqualTo(value);
+    }
+    assertThat((byte[]) roundTrip(new byte[] {1, 2, 3})).isEqualTo(new byte[] {1, 2, 3});
+  }
+
+  @Test
+  public void testSessionDataRoundTripKeepsMapClasses() {
+    Map<String, Object> inner = new LinkedHashMap<>();
+    inner.put("b", 2);
+    inner.put("a", null);
+    inner.put(null, new ArrayList<>(Arrays.asList("x", null)));
+    ConcurrentHashMap<String, Object> valueMap = new ConcurrentHashMap<>();
+    valueMap.put("inner", inner);
+    valueMap.put("plain", new HashMap<>(Map.of("k", "v")));
+
+    byte[] bytes = serializer.serialize(session(valueMap));
+    assertThat(CompactSessionSerializer.isCompactSerialized(bytes)).isTrue();
+    SessionData copy = (SessionData) serializer.deserialize(bytes);
+
+    assertThat(copy.getExpirationTime()).isEqualTo(1234);
+    assertThat(copy.getValueMap()).isInstanceOf(ConcurrentHashMap.class);
+    assertThat(copy.getValueMap()).isEqualTo(valueMap);
+    assertThat(copy.getValueMap().get("inner")).isInstanceOf(LinkedHashMap.class);
+    assertThat(((Map<?, ?>) copy.getValueMap().get("inner")).keySet())
+        .containsExactly("b", "a", null)
+        .inOrder();
+    assertThat(copy.getValueMap().get("plain")).isInstanceOf(HashMap.class);
+  }
+
+  @Test
+  public void testSessionDataWithOtherMapClassUsesJavaSerialization() {
+    TreeMap<String, Object> valueMap = new TreeMap<>();
+    valueMap.put("a", 1);
+
+    SessionData copy = (SessionData) roundTrip(session(valueMap));
+
+    assertThat(copy.getValueMap()).isInstanceOf(TreeMap.class);
+    assertThat(copy.getValueMap()).isEqualTo(valueMap);
+  }
+
+  @Test
+  public void testSessionDataWithNullValueMap() {
+    SessionData copy = (SessionData) roundTrip(session(null));
+
+    assertThat(copy.getExpirationTime()).isEqualTo(1234);
+    assertThat(copy.getValueMap()).isNull();
+  }
+
+  @Test
+  public void testSharedReferencesUseJavaSerialization() {
+    List<Object> shared = new ArrayList<>(Arrays.asList("x"));
+    HashMap<String, Object> valueMap = new HashMap<>();
+    valueMap.put("a", shared);
+    valueMap.put("b", shared);
+
+    SessionData copy = (SessionData) roundTrip(session(valueMap));
+
+    assertThat(copy.getValueMap().get("a")).isSameInstanceAs(copy.getValueMap().get("b"));
+  }
+
+  @Test
+  public void testLargeValuesAreCompressed() {
+    CompactSessionSerializer compressing = new CompactSessionSerializer(100);
+    HashMap<String, Object> valueMap = new HashMap<>();
+    valueMap.put("big", Strings.repeat("abc", 1000));
+    valueMap.put("user", new TreeMap<>(Map.of("k", Strings.repeat("def", 1000))));
+
+    byte[] bytes = compressing.serialize(session(valueMap));
+
+    assertThat(CompactSessionSerializer.isCompactSerialized(bytes)).isTrue();
+    assertThat(bytes.length).isLessThan(1000);
+    assertThat(((SessionData) compressing.deserialize(bytes)).getValueMap()).isEqualTo(valueMap);
+  }
+
+  @Test
+  public void testReadsSessionsWrittenWithJavaSerialization() throws Exception {
+    HashMap<String, Object> valueMap = new HashMap<>();
+    valueMap.put("a", 1);
+    valueMap.put("b", new TreeMap<>(Map.of("k", "v")));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(session(valueMap));
+    }
+
+    SessionData copy = (SessionData) serializer.deserialize(bytes.toByteArray());
+    assertThat(copy.getValueMap()).isEqualTo(valueMap);
+    copy = (SessionData) SessionManagerUtil.deserialize(bytes.toByteArray());
+    assertThat(copy.getValueMap()).isEqualTo(valueMap);
+  }
+}
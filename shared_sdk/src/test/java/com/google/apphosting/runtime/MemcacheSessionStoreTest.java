@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime;
+
+import static com.google.apphosting.runtime.SessionManagerUtil.deserialize;
+import static com.google.apphosting.runtime.SessionManagerUtil.serialize;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.apphosting.api.ApiProxy;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Unit tests for {@link MemcacheSessionStore}. */
+@RunWith(JUnit4.class)
+public class MemcacheSessionStoreTest {
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  @Mock private MemcacheService memcache;
+  private MemcacheSessionStore store;
+
+  @Before
+  public void setUp() {
+    store = new MemcacheSessionStore(memcache);
+  }
+
+  private static SessionData session(String attribute, Object value) {
+    SessionData data = new SessionData();
+    data.getValueMap().put(attribute, value);
+    data.setExpirationTime(1234);
+    return data;
+  }
+
+  @Test
+  public void testGetSession() {
+    when(memcache.get("k")).thenReturn(serialize(session("a", "1")));
+
+    SessionData data = store.getSession("k");
+
+    assertThat(data.getValueMap()).containsExactly("a", "1");
+    assertThat(data.getExpirationTime()).isEqualTo(1234);
+  }
+
+  @Test
+  public void testGetMissingSession() {
+    assertThat(store.getSession("k")).isNull();
+  }
+
+  @Test
+  public void testSaveSessionOverwrites() throws Exception {
+    store.saveSession("k", session("a", "2"));
+
+    ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+    verify(memcache).put(eq("k"), bytes.capture());
+    SessionData saved = (SessionData) deserialize(bytes.getValue());
+    assertThat(saved.getValueMap()).containsExactly("a", "2");
+  }
+
+  @Test
+  public void testSaveSessionDeadlineIsRetryable() {
+    doThrow(new ApiProxy.ApiDeadlineExceededException("memcache", "Set"))
+        .when(memcache)
+        .put(any(), any());
+
+    assertThrows(SessionStore.Retryable.class, () -> store.saveSession("k", session("a", "2")));
+  }
+
+  @Test
+  public void testDeleteSession() {
+    store.deleteSession("k");
+
+    verify(memcache).delete("k");
+  }
+}
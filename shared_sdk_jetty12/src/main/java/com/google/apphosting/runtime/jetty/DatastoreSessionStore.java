@@ -25,12 +25,10 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.runtime.SessionManagerUtil;
 import com.google.apphosting.runtime.SessionStore;
 import com.google.common.flogger.GoogleLogger;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -41,7 +39,6 @@ import org.eclipse.jetty.session.SessionDataMap;
 import org.eclipse.jetty.session.SessionDataStore;
 import org.eclipse.jetty.session.UnreadableSessionDataException;
 import org.eclipse.jetty.session.UnwriteableSessionDataException;
-import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
 
 /**
  * Jetty Store that uses DataStore for sessions. We cannot re-use the Jetty 9.4
@@ -56,10 +53,25 @@ class DatastoreSessionStore implements SessionStore {
   private static final String VALUES_PROP = "_values";
   private static final String SESSION_PREFIX = "_ahs";
 
+  /**
+   * System property holding the number of seconds during which a session whose attributes have not
+   * been set or removed is not written again, even though its access time and expiry have moved.
+   * The default, 0, writes a session at the end of every request that accessed it.
+   *
+   * <p>Attributes are only known to have changed when they are set or removed, so an application
+   * that mutates an attribute value in place must set it again for the change to be saved within
+   * the period. A session that is only read may expire up to this long before its last access plus
+   * its maximum inactive interval, so the period should be well below that interval.
+   */
+  static final String SAVE_PERIOD_SEC_PROPERTY = "appengine.session.saveperiod.seconds";
+
   private final SessionDataStoreImpl impl;
 
   DatastoreSessionStore(boolean useTaskqueue, Optional<String> queueName) {
     impl = useTaskqueue ? new DeferredDatastoreSessionStore(queueName) : new SessionDataStoreImpl();
+    // AbstractSessionDataStore.store() skips sessions that are not dirty and were saved within the
+    // save period.
+    impl.setSavePeriodSec(Integer.getInteger(SAVE_PERIOD_SEC_PROPERTY, 0));
   }
 
   static String keyForSessionId(String id) {
@@ -68,6 +80,17 @@ class DatastoreSessionStore implements SessionStore {
     return id.startsWith(SESSION_PREFIX) ? id : SESSION_PREFIX + id;
   }
 
+  /**
+   * Restores the last save time of a session read back from the datastore or memcache. Neither
+   * stores it, but a session is always saved with an expiry computed from its access time at that
+   * point, which is when it was saved.
+   */
+  static void restoreLastSaved(SessionData data) {
+    if (data.getExpiry() > 0 && data.getMaxInactiveMs() > 0) {
+      data.setLastSaved(data.getExpiry() - data.getMaxInactiveMs());
+    }
+  }
+
   static String normalizeSessionId(String id) {
     // TODO The id startsWith check is only needed while sessions created
     // with versions of 9.4 prior to 9.4.27 are still valid.
@@ -100,7 +123,15 @@ class DatastoreSessionStore implements SessionStore {
   static class SessionDataStoreImpl extends AbstractSessionDataStore {
     private static final int MAX_RETRIES = 10;
     private static final int INITIAL_BACKOFF_MS = 50;
-    private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    private final DatastoreService datastore;
+
+    SessionDataStoreImpl() {
+      this(DatastoreServiceFactory.getDatastoreService());
+    }
+
+    SessionDataStoreImpl(DatastoreService datastore) {
+      this.datastore = datastore;
+    }
 
     /**
      * Scavenging is not performed by the Jetty session setup, so this method will never be called.
@@ -224,15 +255,13 @@ class DatastoreSessionStore implements SessionStore {
       String originalNamespace = NamespaceManager.get();
 
       try {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(((AppEngineSessionData) data).getMutableAttributes());
-        oos.flush();
+        byte[] values =
+            SessionManagerUtil.serialize(((AppEngineSessionData) data).getMutableAttributes());
 
         NamespaceManager.set("");
         Entity entity = new Entity(SESSION_ENTITY_TYPE, SESSION_PREFIX + id);
         entity.setProperty(EXPIRES_PROP, data.getExpiry());
-        entity.setProperty(VALUES_PROP, new Blob(baos.toByteArray()));
+        entity.setProperty(VALUES_PROP, new Blob(values));
         return entity;
       } finally {
         NamespaceManager.set(originalNamespace);
@@ -304,14 +333,15 @@ class DatastoreSessionStore implements SessionStore {
               time,
               (1000L * _context.getSessionManager().getMaxInactiveInterval()));
       session.setExpiry(expiry);
+      restoreLastSaved(session);
 
-      try (ClassLoadingObjectInputStream ois =
-          new ClassLoadingObjectInputStream(new ByteArrayInputStream(blob.getBytes()))) {
+      try {
         @SuppressWarnings("unchecked")
-        Map<String, Object> map = (Map<String, Object>) ois.readObject();
+        Map<String, Object> map =
+            (Map<String, Object>) SessionManagerUtil.deserialize(blob.getBytes());
 
-        // TODO: avoid this data copy
-        session.putAllAttributes(map);
+        // The map was just deserialized, so it need not be copied.
+        ((AppEngineSessionData) session).setMutableAttributes(map);
       } catch (Exception ex) {
         throw new UnreadableSessionDataException(id, _context, ex);
       }
@@ -34,10 +34,19 @@ class MemcacheSessionDataMap extends AbstractLifeCycle implements SessionDataMap
   private SessionContext context;
   private MemcacheSessionStore memcacheSessionStore;
 
+  MemcacheSessionDataMap() {}
+
+  /** Creates a map that uses {@code memcacheSessionStore} rather than one it creates on start. */
+  MemcacheSessionDataMap(MemcacheSessionStore memcacheSessionStore) {
+    this.memcacheSessionStore = memcacheSessionStore;
+  }
+
   /** @see org.eclipse.jetty.util.component.AbstractLifeCycle#doStart() */
   @Override
   public void doStart() throws Exception {
-    memcacheSessionStore = new MemcacheSessionStore();
+    if (memcacheSessionStore == null) {
+      memcacheSessionStore = new MemcacheSessionStore();
+    }
   }
 
   /**
@@ -130,7 +139,7 @@ class MemcacheSessionDataMap extends AbstractLifeCycle implements SessionDataMap
     @SuppressWarnings("NowMillis")
     long now = System.currentTimeMillis();
     long maxInactiveMs = 1000L * this.context.getSessionManager().getMaxInactiveInterval();
-    SessionData jettySession =
+    AppEngineSessionData jettySession =
         new AppEngineSessionData(
             id,
             this.context.getCanonicalContextPath(),
@@ -140,8 +149,9 @@ class MemcacheSessionDataMap extends AbstractLifeCycle implements SessionDataMap
             /* lastAccessed= */ now,
             maxInactiveMs);
     jettySession.setExpiry(runtimeSession.getExpirationTime());
-    // TODO: avoid this data copy
-    jettySession.putAllAttributes(runtimeSession.getValueMap());
+    DatastoreSessionStore.restoreLastSaved(jettySession);
+    // The session was just deserialized, so its attributes need not be copied.
+    jettySession.setMutableAttributes(runtimeSession.getValueMap());
     return jettySession;
   }
 
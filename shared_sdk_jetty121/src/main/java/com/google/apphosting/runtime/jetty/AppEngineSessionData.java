@@ -17,6 +17,7 @@
 package com.google.apphosting.runtime.jetty;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.eclipse.jetty.session.SessionData;
 
 /**
@@ -51,4 +52,20 @@ public class AppEngineSessionData extends SessionData {
     // should eventually be added to make future changes to the session stores simpler.
     return _attributes;
   }
+
+  /**
+   * Replaces the attributes with {@code attributes}, which are used directly rather than copied if
+   * they are in a {@link ConcurrentHashMap}, as the attributes of sessions written by this runtime
+   * are. The caller must not use the map afterwards.
+   *
+   * @param attributes the freshly deserialized attributes of the session
+   */
+  public void setMutableAttributes(Map<String, Object> attributes) {
+    if (attributes instanceof ConcurrentHashMap) {
+      _attributes = attributes;
+    } else {
+      _attributes.clear();
+      _attributes.putAll(attributes);
+    }
+  }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.runtime.SessionManagerUtil;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.session.SessionContext;
+import org.eclipse.jetty.session.SessionData;
+import org.eclipse.jetty.session.SessionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Unit tests for {@link DatastoreSessionStore}. */
+@RunWith(JUnit4.class)
+public class DatastoreSessionStoreTest {
+  private static final int SAVE_PERIOD_SEC = 60;
+  private static final int MAX_INACTIVE_SEC = 1800;
+  private static final long MAX_INACTIVE_MS = TimeUnit.SECONDS.toMillis(MAX_INACTIVE_SEC);
+
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  @Mock private ApiProxy.Environment environment;
+  @Mock private DatastoreService datastore;
+  @Mock private SessionContext context;
+  @Mock private SessionManager sessionManager;
+
+  private DatastoreSessionStore.SessionDataStoreImpl store;
+
+  @Before
+  public void setUp() throws Exception {
+    // Entity keys take the application id from the environment.
+    when(environment.getAppId()).thenReturn("s~app");
+    when(environment.getAttributes()).thenReturn(new HashMap<>());
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    doAnswer(
+            invocation -> {
+              invocation.<Runnable>getArgument(0).run();
+              return null;
+            })
+        .when(context)
+        .run(any());
+    when(context.getSessionManager()).thenReturn(sessionManager);
+    when(context.getCanonicalContextPath()).thenReturn("");
+    when(context.getVhost()).thenReturn("0.0.0.0");
+    when(sessionManager.getMaxInactiveInterval()).thenReturn(MAX_INACTIVE_SEC);
+
+    store = new DatastoreSessionStore.SessionDataStoreImpl(datastore);
+    store.setSavePeriodSec(SAVE_PERIOD_SEC);
+    store.initialize(context);
+    store.start();
+  }
+
+  @After
+  public void tearDown() {
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  /** Makes the datastore hold a session that was last written {@code savedAgoMs} ago. */
+  private void storedSession(long savedAgoMs) throws Exception {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("a", "1");
+    Entity entity = new Entity(DatastoreSessionStore.SESSION_ENTITY_TYPE, "_ahsabc");
+    long expiry = System.currentTimeMillis() - savedAgoMs + MAX_INACTIVE_MS;
+    entity.setProperty("_expires", expiry);
+    entity.setProperty("_values", new Blob(SessionManagerUtil.serialize(attributes)));
+    when(datastore.get(any(Key.class))).thenReturn(entity);
+  }
+
+  /** Updates the access time and expiry of {@code data} as a request that uses it does. */
+  private static void access(SessionData data) {
+    long now = System.currentTimeMillis();
+    data.setAccessed(now);
+    data.calcAndSetExpiry(now);
+  }
+
+  @Test
+  public void testSavePeriodIsReadFromSystemProperty() {
+    System.setProperty(DatastoreSessionStore.SAVE_PERIOD_SEC_PROPERTY, "42");
+    try {
+      DatastoreSessionStore sessionStore = new DatastoreSessionStore(false, Optional.empty());
+      assertThat(sessionStore.getSessionDataStoreImpl().getSavePeriodSec()).isEqualTo(42);
+    } finally {
+      System.clearProperty(DatastoreSessionStore.SAVE_PERIOD_SEC_PROPERTY);
+    }
+  }
+
+  @Test
+  public void testLoadFromDatastoreRestoresLastSaved() throws Exception {
+    storedSession(/* savedAgoMs= */ 1000);
+
+    SessionData data = store.load("abc");
+
+    assertThat(data.getLastSaved()).isEqualTo(data.getExpiry() - MAX_INACTIVE_MS);
+  }
+
+  @Test
+  public void testLoadFromMemcacheRestoresLastSaved() throws Exception {
+    MemcacheSessionDataMap memcacheMap = new MemcacheSessionDataMap();
+    memcacheMap.initialize(context);
+    com.google.apphosting.runtime.SessionData runtimeSession =
+        new com.google.apphosting.runtime.SessionData();
+    runtimeSession.setExpirationTime(System.currentTimeMillis() - 1000 + MAX_INACTIVE_MS);
+
+    SessionData data = memcacheMap.appEngineToJettySessionData("abc", runtimeSession);
+
+    assertThat(data.getLastSaved())
+        .isEqualTo(runtimeSession.getExpirationTime() - MAX_INACTIVE_MS);
+    // The store therefore knows it was saved within the period.
+    access(data);
+    store.store("abc", data);
+    verify(datastore, never()).put(any(Entity.class));
+  }
+
+  @Test
+  public void testUnchangedSessionIsNotWrittenWithinSavePeriod() throws Exception {
+    storedSession(/* savedAgoMs= */ 1000);
+    SessionData data = store.load("abc");
+
+    access(data);
+    store.store("abc", data);
+
+    verify(datastore, never()).put(any(Entity.class));
+  }
+
+  @Test
+  public void testUnchangedSessionIsWrittenAfterSavePeriod() throws Exception {
+    storedSession(TimeUnit.SECONDS.toMillis(SAVE_PERIOD_SEC + 1));
+    SessionData data = store.load("abc");
+
+    access(data);
+    store.store("abc", data);
+
+    verify(datastore).put(any(Entity.class));
+  }
+
+  @Test
+  public void testChangedSessionIsWrittenWithinSavePeriod() throws Exception {
+    storedSession(/* savedAgoMs= */ 1000);
+    SessionData data = store.load("abc");
+
+    access(data);
+    data.setAttribute("a", "2");
+    store.store("abc", data);
+
+    verify(datastore).put(any(Entity.class));
+  }
+}
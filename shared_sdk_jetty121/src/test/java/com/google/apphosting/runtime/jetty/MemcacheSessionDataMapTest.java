@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apphosting.runtime.jetty;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.runtime.MemcacheSessionStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.eclipse.jetty.session.CachingSessionDataStore;
+import org.eclipse.jetty.session.SessionContext;
+import org.eclipse.jetty.session.SessionData;
+import org.eclipse.jetty.session.SessionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Unit tests for {@link MemcacheSessionDataMap} in front of the datastore session store. */
+@RunWith(JUnit4.class)
+public class MemcacheSessionDataMapTest {
+  private static final String ID = "abc";
+
+  @Rule public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+  @Mock private ApiProxy.Environment environment;
+  @Mock private MemcacheService memcache;
+  @Mock private DatastoreService datastore;
+  @Mock private SessionContext context;
+  @Mock private SessionManager sessionManager;
+
+  // What the two instances below share.
+  private final Map<Object, Object> memcacheValues = new ConcurrentHashMap<>();
+  private final Map<Key, Entity> datastoreEntities = new ConcurrentHashMap<>();
+
+  @Before
+  public void setUp() throws Exception {
+    when(environment.getAppId()).thenReturn("s~app");
+    when(environment.getAttributes()).thenReturn(new HashMap<>());
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    doAnswer(
+            invocation -> {
+              invocation.<Runnable>getArgument(0).run();
+              return null;
+            })
+        .when(context)
+        .run(any());
+    when(context.getSessionManager()).thenReturn(sessionManager);
+    when(context.getCanonicalContextPath()).thenReturn("");
+    when(context.getVhost()).thenReturn("0.0.0.0");
+    when(sessionManager.getMaxInactiveInterval()).thenReturn(1800);
+
+    when(memcache.get(any()))
+        .thenAnswer(invocation -> memcacheValues.get(invocation.getArgument(0)));
+    doAnswer(invocation -> memcacheValues.put(invocation.getArgument(0), invocation.getArgument(1)))
+        .when(memcache)
+        .put(any(), any());
+    when(datastore.put(any(Entity.class)))
+        .thenAnswer(
+            invocation -> {
+              Entity entity = invocation.getArgument(0);
+              datastoreEntities.put(entity.getKey(), entity);
+              return entity.getKey();
+            });
+    when(datastore.get(any(Key.class)))
+        .thenAnswer(
+            invocation -> {
+              Key key = invocation.getArgument(0);
+              Entity entity = datastoreEntities.get(key);
+              if (entity == null) {
+                throw new EntityNotFoundException(key);
+              }
+              return entity;
+            });
+  }
+
+  @After
+  public void tearDown() {
+    ApiProxy.clearEnvironmentForCurrentThread();
+  }
+
+  /** Returns the session store of one instance of the application. */
+  private CachingSessionDataStore newInstance() throws Exception {
+    CachingSessionDataStore store =
+        new CachingSessionDataStore(
+            new MemcacheSessionDataMap(new MemcacheSessionStore(memcache)),
+            new DatastoreSessionStore.SessionDataStoreImpl(datastore));
+    store.initialize(context);
+    store.start();
+    return store;
+  }
+
+  @Test
+  public void testConcurrentSavesLeaveMemcacheAndDatastoreAgreeing() throws Exception {
+    CachingSessionDataStore first = newInstance();
+    CachingSessionDataStore second = newInstance();
+    long now = System.currentTimeMillis();
+    SessionData created = first.newSessionData(ID, now, now, now, 1_800_000);
+    created.setAttribute("a", "created");
+    first.store(ID, created);
+
+    // Both instances read the session, then both change and save it.
+    SessionData firstCopy = first.load(ID);
+    SessionData secondCopy = second.load(ID);
+    firstCopy.setAttribute("a", "first");
+    first.store(ID, firstCopy);
+    secondCopy.setAttribute("a", "second");
+    second.store(ID, secondCopy);
+
+    // The last write wins in both, so it makes no difference which one a load is served from.
+    assertThat(first.getSessionDataMap().load(ID).getAttribute("a")).isEqualTo("second");
+    assertThat(first.getSessionStore().load(ID).getAttribute("a")).isEqualTo("second");
+  }
+}